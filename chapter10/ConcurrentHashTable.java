@@ -0,0 +1,359 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * This file defines a ConcurrentHashTable class, a version of HashTable that
+ * can be used safely by several threads at the same time.  Keys and values in
+ * the table are of type String.  Keys and values cannot be null.
+ *
+ * The easy way to make a class thread-safe is to make all its methods
+ * synchronized, but then only one thread at a time can use the table, and
+ * threads spend much of their time waiting for each other.  Instead, this
+ * class divides the table into a number of "segments" (16 by default), and
+ * each key belongs to one segment, chosen from its hash code.  Each segment is
+ * a small hash table of its own, with its own lock, so threads that are working
+ * with keys in different segments don't get in each other's way.  A segment
+ * also grows on its own when it becomes more than 3/4 full, so while one
+ * segment is being resized, the others can still be used.
+ *
+ * Only the methods that change the table use the locks.  get() and containsKey()
+ * don't lock anything, so any number of threads can read the table at the same
+ * time, even while another thread is changing it.  This works because a thread
+ * that changes a segment never leaves it in a state that a reader can't handle:
+ * a new node is filled in before it is linked into a list; a node is removed by
+ * making the node before it point past it, which a reader that is already at
+ * the removed node doesn't notice; and when a segment is resized, its nodes are
+ * copied into the new array instead of being moved, so a reader that is still
+ * using the old array finds them where they have always been.  The variables
+ * that link the lists together are volatile, and the arrays are
+ * AtomicReferenceArrays, so that the changes are seen by other threads in
+ * the right order.  (A reader that runs at the same time as a put() or remove()
+ * might or might not see the change, but it will never see anything worse.)
+ *
+ * putIfAbsent(), computeIfAbsent(), and compute() look at a key and change its
+ * value as one atomic step, while holding the lock for the key's segment, so
+ * no other thread can change that key in between.
+ */
+public class ConcurrentHashTable {
+
+   /**
+    * A ListNode holds a (key,value) pair, as in HashTable.  The key and its
+    * hash code never change.  The value and the pointer to the next node
+    * are volatile, so that a thread that reads them without a lock sees the
+    * latest values.
+    */
+   private static class ListNode {
+      final String key;
+      final int hash;
+      volatile String value;
+      volatile ListNode next;
+      ListNode(String key, int hash, String value, ListNode next) {
+         this.key = key;
+         this.hash = hash;
+         this.value = value;
+         this.next = next;
+      }
+   }
+
+   /**
+    * A Segment is one part of the table.  The segment object itself is
+    * used as the lock for changing the segment.
+    */
+   private static class Segment {
+      volatile AtomicReferenceArray<ListNode> table;  // Its size is a power of two.
+      volatile int count;  // Only changed while holding the lock.
+      Segment(int size) {
+         table = new AtomicReferenceArray<ListNode>(size);
+      }
+   }
+
+   private final Segment[] segments;  // The number of segments is a power of two.
+
+   private final int segmentShift;  // The segment number for a hash code is made
+                                    //   from its highest bits:  hash >>> segmentShift.
+   private final int segmentMask;   // segments.length - 1.
+
+
+   /**
+    * Create a hash table with 16 segments and an initial size of 64.
+    */
+   public ConcurrentHashTable() {
+      this(64, 16);
+   }
+
+
+   /**
+    * Create a hash table with a specified initial size, divided into a specified
+    * number of segments.  More segments let more threads change the table at the
+    * same time.  Both numbers are rounded up to powers of two.
+    * Precondition: initialSize > 0 and segmentCount > 0.
+    */
+   public ConcurrentHashTable(int initialSize, int segmentCount) {
+      if (initialSize <= 0)
+         throw new IllegalArgumentException("Illegal table size");
+      if (segmentCount <= 0 || segmentCount > (1 << 16))
+         throw new IllegalArgumentException("Illegal number of segments");
+      int bits = 0;
+      while ((1 << bits) < segmentCount)
+         bits++;
+      segments = new Segment[1 << bits];
+      segmentShift = 32 - bits;
+      segmentMask = segments.length - 1;  // (Needed when there is only one segment,
+                                          //   since hash >>> 32 is the same as hash.)
+      int segmentSize = 2;
+      while ((long)segmentSize * segments.length < initialSize && segmentSize < (1 << 30))
+         segmentSize *= 2;  // (The product is a long, since it can be too big for an int.)
+      for (int i = 0; i < segments.length; i++)
+         segments[i] = new Segment(segmentSize);
+   }
+
+
+   /**
+    * Retrieve the value associated with the specified key in the table,
+    * if there is any.  If not, the value null will be returned.  This does
+    * not wait for other threads, even if they are changing the table.
+    * @param key The key whose associated value we want to find
+    * @return the associated value, or null if there is no associated value
+    */
+   public String get(String key) {
+      ListNode node = find(key, spread(key.hashCode()));
+      return node == null ? null : node.value;
+   }
+
+
+   /**
+    * Test whether the specified key has an associated value in the table.
+    * Like get(), this does not wait for other threads.
+    */
+   public boolean containsKey(String key) {
+      return find(key, spread(key.hashCode())) != null;
+   }
+
+
+   /**
+    * Associate the specified value with the specified key.
+    * Precondition:  The key and value are not null.
+    */
+   public void put(String key, String value) {
+      if (key == null || value == null)
+         throw new NullPointerException("Keys and values can't be null");
+      int hash = spread(key.hashCode());
+      Segment segment = segmentFor(hash);
+      synchronized(segment) {
+         ListNode node = findInSegment(segment, key, hash);
+         if (node != null)
+            node.value = value;
+         else
+            add(segment, key, hash, value);
+      }
+   }
+
+
+   /**
+    * If the key is not already in the table, associate it with the specified
+    * value.  This is done as one atomic step.
+    * @return the value that was already associated with the key, or null
+    *    if the key was not in the table and the new value was added.
+    */
+   public String putIfAbsent(String key, String value) {
+      if (key == null || value == null)
+         throw new NullPointerException("Keys and values can't be null");
+      int hash = spread(key.hashCode());
+      Segment segment = segmentFor(hash);
+      synchronized(segment) {
+         ListNode node = findInSegment(segment, key, hash);
+         if (node != null)
+            return node.value;
+         add(segment, key, hash, value);
+         return null;
+      }
+   }
+
+
+   /**
+    * If the key is not already in the table, compute a value for it by calling
+    * the function, and add the key with that value to the table (unless the
+    * function returns null).  This is done as one atomic step, so the function is
+    * called at most once for each key, even if several threads ask for the same
+    * key at the same time.  The function should be short and simple, since other
+    * threads that want to change the same segment have to wait for it; it must
+    * not try to change the table.
+    * @return the value that is now associated with the key, or null if there is none
+    */
+   public String computeIfAbsent(String key, Function<String,String> function) {
+      int hash = spread(key.hashCode());
+      ListNode node = find(key, hash);
+      if (node != null)
+         return node.value;  // (Don't bother with the lock if the key is already there.)
+      Segment segment = segmentFor(hash);
+      synchronized(segment) {
+         node = findInSegment(segment, key, hash);
+         if (node != null)
+            return node.value;
+         String value = function.apply(key);
+         if (value != null)
+            add(segment, key, hash, value);
+         return value;
+      }
+   }
+
+
+   /**
+    * Compute a new value for the key from the key and its current value (which
+    * is null if the key is not in the table), and associate the key with the new
+    * value, or remove the key from the table if the new value is null.  This is
+    * done as one atomic step.  For example, table.compute(word, (k,v) -> v == null
+    * ? "1" : "" + (Integer.parseInt(v) + 1)) counts the number of times that it
+    * has been called for each word, even when several threads call it at once.
+    * The same rules apply to the function as for computeIfAbsent().
+    * @return the new value, or null if the key is not in the table
+    */
+   public String compute(String key, BiFunction<String,String,String> function) {
+      int hash = spread(key.hashCode());
+      Segment segment = segmentFor(hash);
+      synchronized(segment) {
+         ListNode node = findInSegment(segment, key, hash);
+         String value = function.apply(key, node == null ? null : node.value);
+         if (value == null) {
+            if (node != null)
+               removeFromSegment(segment, key, hash);
+         }
+         else if (node != null)
+            node.value = value;
+         else
+            add(segment, key, hash, value);
+         return value;
+      }
+   }
+
+
+   /**
+    * Remove the key and its associated value from the table,
+    * if the key occurs in the table.  If it does not occur,
+    * then nothing is done.
+    */
+   public void remove(String key) {
+      int hash = spread(key.hashCode());
+      Segment segment = segmentFor(hash);
+      synchronized(segment) {
+         removeFromSegment(segment, key, hash);
+      }
+   }
+
+
+   /**
+    * Return the number of key/value pairs in the table.  If other threads are
+    * changing the table at the same time, the answer might be out of date by
+    * the time it is returned.
+    */
+   public int size() {
+      int total = 0;
+      for (Segment segment : segments)
+         total += segment.count;
+      return total;
+   }
+
+
+   /**
+    * Mixes the bits of a hash code, as in OpenHashTable, so that both the high
+    * bits (which choose a segment) and the low bits (which choose a location in
+    * the segment) depend on all the bits of key.hashCode().
+    */
+   private static int spread(int h) {
+      h *= 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+
+   private Segment segmentFor(int hash) {
+      return segments[(hash >>> segmentShift) & segmentMask];
+   }
+
+
+   /**
+    * Find the node that contains the key, without locking anything.
+    * Returns null if the key is not in the table.
+    */
+   private ListNode find(String key, int hash) {
+      return findInSegment(segmentFor(hash), key, hash);
+   }
+
+
+   private static ListNode findInSegment(Segment segment, String key, int hash) {
+      AtomicReferenceArray<ListNode> table = segment.table;
+      ListNode list = table.get(hash & (table.length() - 1));
+      while (list != null) {
+         if (list.hash == hash && list.key.equals(key))
+            return list;
+         list = list.next;
+      }
+      return null;
+   }
+
+
+   /**
+    * Add a new node, for a key that is not in the segment, at the head of
+    * its list.  The caller must hold the lock for the segment.
+    */
+   private static void add(Segment segment, String key, int hash, String value) {
+      if (segment.count >= 0.75 * segment.table.length())
+         resize(segment);
+      AtomicReferenceArray<ListNode> table = segment.table;
+      int bucket = hash & (table.length() - 1);
+      table.set(bucket, new ListNode(key, hash, value, table.get(bucket)));
+      segment.count++;
+   }
+
+
+   /**
+    * Remove the node that contains the key, if there is one.  The node before it
+    * is made to point to the node after it.  The removed node is not changed, so
+    * a reader that is looking at it can still go on to the rest of the list.
+    * The caller must hold the lock for the segment.
+    */
+   private static void removeFromSegment(Segment segment, String key, int hash) {
+      AtomicReferenceArray<ListNode> table = segment.table;
+      int bucket = hash & (table.length() - 1);
+      ListNode prev = null;
+      ListNode curr = table.get(bucket);
+      while (curr != null && ! (curr.hash == hash && curr.key.equals(key))) {
+         prev = curr;
+         curr = curr.next;
+      }
+      if (curr == null)
+         return;  // The key is not in the table.
+      if (prev == null)
+         table.set(bucket, curr.next);
+      else
+         prev.next = curr.next;
+      segment.count--;
+   }
+
+
+   /**
+    * Double the size of a segment's array.  New nodes are made for the new array,
+    * and the new array is put into the segment only when it is complete, so that
+    * threads that are reading the old array are not affected.  The caller must
+    * hold the lock for the segment.  A segment's array can't grow past 2^30
+    * elements; after that, its lists just get longer.
+    */
+   private static void resize(Segment segment) {
+      AtomicReferenceArray<ListNode> oldTable = segment.table;
+      if (oldTable.length() >= (1 << 30))
+         return;
+      int size = oldTable.length() * 2;
+      AtomicReferenceArray<ListNode> newTable = new AtomicReferenceArray<ListNode>(size);
+      for (int i = 0; i < oldTable.length(); i++) {
+         ListNode list = oldTable.get(i);
+         while (list != null) {
+            int bucket = list.hash & (size - 1);
+            newTable.set(bucket, new ListNode(list.key, list.hash, list.value, newTable.get(bucket)));
+            list = list.next;
+         }
+      }
+      segment.table = newTable;
+   }
+
+
+} // end class ConcurrentHashTable
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This program measures how well ConcurrentHashTable works when several threads
+ * use it at the same time, compared to a HashMap that is made thread-safe with
+ * Collections.synchronizedMap(), which uses one lock for the whole map, and to
+ * java.util.concurrent.ConcurrentHashMap.  Each table starts out holding half of
+ * a set of keys.  Then some number of threads use the table for a fixed time,
+ * each one picking random keys and calling get(), put(), or remove() for them.
+ * This is done with two mixes of operations:  a "read-heavy" mix of 90% get(),
+ * 5% put(), and 5% remove(), and a "write-heavy" mix of 50% get(), 25% put(),
+ * and 25% remove().  For each mix and each number of threads, from 1 up to
+ * the maximum, the program reports how many millions of operations per second
+ * all the threads together did.
+ *
+ * As in HashTableBenchmark, each kind of table is tested in a separate run of
+ * the Java Virtual Machine, which this program starts for itself, and each
+ * test runs for a while before the operations are counted.  Of course, the
+ * number of operations can only go up with the number of threads if the
+ * computer has enough processors to run the threads at the same time.
+ *
+ * Usage:  java ConcurrentHashTableBenchmark [max-threads] [keys] [seconds]
+ *
+ * The default is to go up to twice the number of available processors (but
+ * at least 4), with 100000 keys, for 1 second for each test.
+ */
+public class ConcurrentHashTableBenchmark {
+
+   private static final String[] NAMES = { "ConcurrentHashTable", "synchronizedMap", "ConcurrentHashMap" };
+
+   private static final String[] MIXES = { "Read-heavy (90% get)", "Write-heavy (50% get)" };
+   private static final int[] GET_PERCENT = { 90, 50 };  // The rest is half put(), half remove().
+
+   /**
+    * The operations that are timed.  Each kind of table is wrapped in an
+    * object that implements this interface.
+    */
+   private interface Table {
+      void put(String key, String value);
+      String get(String key);
+      void remove(String key);
+   }
+
+   private static volatile boolean counting;  // Set to true when the operations start to count.
+   private static volatile boolean stopped;   // Set to true when the threads should stop.
+
+
+   public static void main(String[] args) throws Exception {
+      if (args.length > 0 && args[0].equals("-run")) {
+            // This is one of the runs started below.  Test one kind of table, and
+            // write the results for each mix and number of threads on one line.
+         int kind = Integer.parseInt(args[1]);
+         int maxThreads = Integer.parseInt(args[2]);
+         int keyCount = Integer.parseInt(args[3]);
+         double seconds = Double.parseDouble(args[4]);
+         for (int mix = 0; mix < MIXES.length; mix++) {
+            for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads))
+               System.out.print(test(kind, GET_PERCENT[mix], threads, keyCount, seconds) + " ");
+         }
+         System.out.println();
+         return;
+      }
+      int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                                       : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+      int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+      String seconds = args.length > 2 ? args[2] : "1";
+
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      String[][] results = new String[NAMES.length][];
+      for (int t = 0; t < NAMES.length; t++) {
+         System.out.print(NAMES[t] + "... ");
+         ArrayList<String> command = new ArrayList<String>();
+         command.add(java);
+         command.add("-cp");
+         command.add(System.getProperty("java.class.path"));
+         command.add("ConcurrentHashTableBenchmark");
+         command.add("-run");
+         command.add("" + t);
+         command.add("" + maxThreads);
+         command.add("" + keyCount);
+         command.add(seconds);
+         Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+         String line;
+         try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            line = in.readLine();
+         }
+         if (process.waitFor() != 0 || line == null) {
+            System.out.println("failed.");
+            return;
+         }
+         results[t] = line.trim().split(" ");
+         System.out.println("done.");
+      }
+
+      System.out.println();
+      System.out.printf("%d keys, %s second(s) per test, %d processors; millions of operations per second%n",
+                          keyCount, seconds, Runtime.getRuntime().availableProcessors());
+      int column = 0;
+      for (int mix = 0; mix < MIXES.length; mix++) {
+         System.out.println();
+         System.out.printf("%-22s", MIXES[mix]);
+         for (String name : NAMES)
+            System.out.printf("%21s", name);
+         System.out.println();
+         for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads)) {
+            System.out.printf("%-22s", threads + (threads == 1 ? " thread" : " threads"));
+            for (int t = 0; t < NAMES.length; t++)
+               System.out.printf("%21.2f", Double.parseDouble(results[t][column]));
+            System.out.println();
+            column++;
+         }
+      }
+   }
+
+
+   /**
+    * The numbers of threads that are tested are 1, 2, 4, 8, ..., and finally
+    * maxThreads itself, if it is not a power of two.
+    */
+   private static int nextThreadCount(int threads, int maxThreads) {
+      if (threads < maxThreads && threads * 2 > maxThreads)
+         return maxThreads;
+      return threads * 2;
+   }
+
+
+   /**
+    * Returns a new table of one of the three kinds.
+    */
+   private static Table newTable(int kind) {
+      if (kind == 0) {
+         ConcurrentHashTable table = new ConcurrentHashTable();
+         return new Table() {
+            public void put(String key, String value) { table.put(key, value); }
+            public String get(String key) { return table.get(key); }
+            public void remove(String key) { table.remove(key); }
+         };
+      }
+      Map<String,String> map;
+      if (kind == 1)
+         map = Collections.synchronizedMap(new HashMap<String,String>());
+      else
+         map = new ConcurrentHashMap<String,String>();
+      return new Table() {
+         public void put(String key, String value) { map.put(key, value); }
+         public String get(String key) { return map.get(key); }
+         public void remove(String key) { map.remove(key); }
+      };
+   }
+
+
+   /**
+    * Runs one test, and returns the number of millions of operations per second.
+    * The threads run for a fifth of the time before their operations are counted.
+    */
+   private static double test(int kind, int getPercent, int threadCount, int keyCount, double seconds)
+                                                                         throws InterruptedException {
+      String[] keys = new String[keyCount];
+      for (int i = 0; i < keyCount; i++) {
+         keys[i] = "key" + i;
+         keys[i].hashCode();  // (So the String's hash code is not computed during the test.)
+      }
+      Table table = newTable(kind);
+      for (int i = 0; i < keyCount; i += 2)
+         table.put(keys[i], keys[i]);
+
+      counting = false;
+      stopped = false;
+      long[] counts = new long[threadCount];
+      long[] found = new long[threadCount];  // (Saved, so the calls to get() can't be skipped.)
+      Thread[] threads = new Thread[threadCount];
+      for (int t = 0; t < threadCount; t++) {
+         int id = t;
+         threads[t] = new Thread( () -> {
+            int random = 12345 + 1000 * id;  // State for a simple random number generator.
+            long count = 0;
+            long hits = 0;
+            boolean wasCounting = false;
+            while ( ! stopped ) {
+               random ^= random << 13;  // (This is Marsaglia's "xorshift" generator.)
+               random ^= random >>> 17;
+               random ^= random << 5;
+               String key = keys[(random & 0x7FFFFFFF) % keyCount];
+               int op = (random >>> 8 & 0x7FFFFFFF) % 100;
+               if (op < getPercent) {
+                  if (table.get(key) != null)
+                     hits++;
+               }
+               else if (op % 2 == 0)
+                  table.put(key, key);
+               else
+                  table.remove(key);
+               if ( ! wasCounting && counting ) {
+                  wasCounting = true;
+                  count = 0;
+               }
+               count++;
+            }
+            counts[id] = count;
+            found[id] = hits;
+         });
+         threads[t].start();
+      }
+      Thread.sleep((long)(seconds * 200));
+      counting = true;
+      long start = System.nanoTime();
+      Thread.sleep((long)(seconds * 1000));
+      stopped = true;
+      long end = System.nanoTime();
+      long total = 0;
+      for (int t = 0; t < threadCount; t++) {
+         threads[t].join();
+         total += counts[t];
+      }
+      return total / ((end - start) / 1e9) / 1e6;
+   }
+
+
+} // end class ConcurrentHashTableBenchmark
@@ -4,6 +4,16 @@
  * that initially has 64 locations, but a different initial size can be specified 
  * as a parameter to the constructor.  The table increases in size if it 
  * becomes more than 3/4 full.
+ *
+ * Normally, all the key/value pairs are moved to the new, bigger table at once,
+ * during the call to put() that makes the table too full.  For a big table, that
+ * one call can take many milliseconds.  A table can instead be created with
+ * "incremental resizing", which spreads that work out:  the old table is kept
+ * alongside the new one, and each operation on the table moves just a few of the
+ * old table's linked lists into the new table, until the old table is empty.
+ * Before an operation looks for a key, it also moves the list where the key
+ * would be in the old table, so that the key, if it is there at all, is always
+ * in the new table when it is looked for.
  */
 public class HashTable {
 
@@ -25,6 +35,25 @@ public class HashTable {
    private int count;  // The number of (key,value) pairs in the
                        // hash table.
 
+   private boolean incremental;  // If true, the table is resized a little at a time.
+
+   private ListNode[] oldTable;  // During an incremental resize, the table that the
+                                 // nodes are being moved out of.  Null at other times.
+
+   private int moved;  // During an incremental resize, the number of locations in
+                       // oldTable, counting from location 0, that have been emptied.
+
+   /**
+    * During an incremental resize, the number of locations in the old table that
+    * are emptied by each operation on the table.  When a resize starts, the new
+    * table is 3/8 full, so the number of keys that must be added before the next
+    * resize is at least 3/8 of the new table's size, or 3/4 of the old table's
+    * size.  With four locations emptied by each operation, the old table will
+    * be empty after a number of operations equal to 1/4 of its size, long before
+    * then.
+    */
+   private static final int LOCATIONS_PER_OPERATION = 4;
+
    
    /**
     * Create a hash table with an initial size of 64.
@@ -45,6 +74,17 @@ public class HashTable {
    }
 
    
+   /**
+    * Create a hash table with a specified initial size, which will be
+    * resized incrementally if incrementalResize is true.
+    * Precondition: initalSize > 0.
+    */
+   public HashTable(int initialSize, boolean incrementalResize) {
+      this(initialSize);
+      incremental = incrementalResize;
+   }
+
+   
    /**
     * This method is NOT part of the usual interface for a hash table.  
     * It is here only to be used for testing purposes, and should be 
@@ -64,6 +104,18 @@ public class HashTable {
          }
          System.out.println();
       }
+      if (oldTable != null) {
+         System.out.println("Old table, " + moved + " locations moved:");
+         for (int i = moved; i < oldTable.length; i++) {
+            System.out.print(i + ":");
+            ListNode list = oldTable[i];
+            while (list != null) {
+               System.out.print("  (" + list.key + "," + list.value + ")");
+               list = list.next;
+            }
+            System.out.println();
+         }
+      }
    } // end dump()
 
    
@@ -75,6 +127,9 @@ public class HashTable {
       
       assert key != null : "The key must be non-null";
       
+      if (oldTable != null)
+         continueResize(key);
+
       int bucket = hash(key); // Which location should this key be in?
       
       ListNode list = table[bucket]; // For traversing the linked list
@@ -122,6 +177,9 @@ public class HashTable {
     */
    public String get(String key) {
       
+      if (oldTable != null)
+         continueResize(key);
+
       int bucket = hash(key);  // At what location should the key be?
       
       ListNode list = table[bucket];  // For traversing the list.
@@ -148,6 +206,9 @@ public class HashTable {
     */
    public void remove(String key) {  
       
+      if (oldTable != null)
+         continueResize(key);
+
       int bucket = hash(key);  // At what location should the key be?
       
       if (table[bucket] == null) {
@@ -176,8 +237,8 @@ public class HashTable {
       ListNode curr = prev.next;  // For traversing the list,
                                   // starting from the second node.
       while (curr != null && ! curr.key.equals(key)) {
-         curr = curr.next;
          prev = curr;
+         curr = curr.next;
       }
       
       // If we get to this point, then either curr is null,
@@ -202,6 +263,9 @@ public class HashTable {
     */
    public boolean containsKey(String key) {
       
+      if (oldTable != null)
+         continueResize(key);
+
       int bucket = hash(key);  // In what location should key be?
       
       ListNode list = table[bucket];  // For traversing the list.
@@ -233,7 +297,17 @@ public class HashTable {
     * well as on the value returned by key.hashCode().
     */
    private int hash(Object key) {
-      return (Math.abs(key.hashCode())) % table.length;
+      return hash(key, table.length);
+   }
+
+
+   /**
+    * Compute the location of a key in a table of a given size.
+    */
+   private int hash(Object key, int size) {
+      return (key.hashCode() & 0x7FFFFFFF) % size;
+         // (Math.abs() can't be used here, since Math.abs(Integer.MIN_VALUE)
+         // is negative.  Clearing the sign bit always gives a value >= 0.)
    }
 
    
@@ -243,6 +317,22 @@ public class HashTable {
     * new table.
     */
    private void resize() {
+      if (oldTable != null) {
+            // A previous incremental resize has not finished.  (That
+            // should not happen; see LOCATIONS_PER_OPERATION.)
+            // Finish it now.
+         while (moved < oldTable.length)
+            moveList(moved++);
+         oldTable = null;
+      }
+      if (incremental) {
+            // Just make the new table.  The nodes will be moved into it
+            // by continueResize(), a few lists at a time.
+         oldTable = table;
+         table = new ListNode[table.length*2];
+         moved = 0;
+         return;
+      }
       ListNode[] newtable = new ListNode[table.length*2];
       for (int i = 0; i < table.length; i++) {
              // Move all the nodes in linked list number i into the new table.  
@@ -255,7 +345,7 @@ public class HashTable {
                // Move the node pointed to by list to the new table.
             ListNode next = list.next;  // The is the next node in the list.
                // Remember it, before changing the value of list!
-            int hash = (Math.abs(list.key.hashCode())) % newtable.length;
+            int hash = (list.key.hashCode() & 0x7FFFFFFF) % newtable.length;
                // hash is the hash code of list.key that is 
                // appropriate for the new table size.  The
                // next two lines add the node pointed to by list
@@ -268,6 +358,39 @@ public class HashTable {
       }
       table = newtable;  // Replace the table with the new table.
    } // end resize()
+
+
+   /**
+    * Do part of the work of an incremental resize.  This moves the list
+    * where the key would be in the old table, if it has not been moved
+    * already, and then the next few lists in the old table.  When the
+    * old table is empty, the resize is finished.
+    */
+   private void continueResize(String key) {
+      moveList(hash(key, oldTable.length));
+      for (int i = 0; i < LOCATIONS_PER_OPERATION && moved < oldTable.length; i++)
+         moveList(moved++);
+      if (moved == oldTable.length)
+         oldTable = null;  // The resize is finished.
+   }
+
+
+   /**
+    * Move all the nodes in linked list number i of the old table into
+    * the new table, as in resize().  A list that has already been moved
+    * is null, so moving it again does nothing.
+    */
+   private void moveList(int i) {
+      ListNode list = oldTable[i];
+      oldTable[i] = null;
+      while (list != null) {
+         ListNode next = list.next;
+         int hash = hash(list.key);
+         list.next = table[hash];
+         table[hash] = list;
+         list = next;
+      }
+   }
    
 
 } // end class HashTable
@@ -0,0 +1,258 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * This program compares the speed of three hash tables that map Strings
+ * to Strings:  HashTable, which keeps a linked list in each location of
+ * its table; OpenHashTable, which uses open addressing with Robin Hood
+ * probing; and java.util.HashMap from the standard library.  It does the
+ * same things to each table that TestHashTable lets a user do by hand, but
+ * many times over and with a timer running:  it puts a large number of
+ * keys into a new, small table (so that the table has to grow several
+ * times), looks up every key, looks up the same number of keys that are
+ * not in the table, and finally removes every key.  For each operation,
+ * the program reports the average time in nanoseconds.
+ *
+ * Timing Java code is tricky, since the Java Virtual Machine compiles a
+ * method into machine code only after it has been run many times.  So each
+ * test is run a few times as a "warmup", and those times are not reported.
+ * The reported time is the average of the remaining rounds.  The values that
+ * are found are added into a checksum that is printed at the end, so that
+ * the compiler can't decide that the lookups are not needed.  Also, the
+ * machine code for a method depends on what the method has done so far:
+ * once the timing loops have called the methods of two different kinds of
+ * table, the code is recompiled in a slower, more general form, so whichever
+ * table was tested first would look faster than it is.  To avoid that, each
+ * table is tested in a separate run of the Java Virtual Machine, which this
+ * program starts for itself, in the same way as the JMH benchmarking tool.
+ * The program checks that each table gives the right answers.
+ *
+ * Usage:  java HashTableBenchmark [keys] [rounds]
+ *
+ * The default is 1000000 keys and 5 measured rounds, after 3 warmup rounds.
+ * Use a heap of at least 512 MB (java -Xmx512m ...) for the default size.
+ */
+public class HashTableBenchmark {
+
+   private static final int WARMUP_ROUNDS = 3;
+
+   private static final String[] OPERATIONS = { "put", "get (found)", "get (missing)", "remove" };
+
+   /**
+    * The operations that are timed.  The three tables have these methods
+    * but no common interface, so each is wrapped in an object that
+    * implements this one.
+    */
+   private interface Table {
+      void put(String key, String value);
+      String get(String key);
+      void remove(String key);
+      int size();
+   }
+
+   private static final String[] NAMES = { "HashTable", "OpenHashTable", "HashMap" };
+
+   private static long checksum;  // Sum of the lengths of the values that are found.
+
+
+   public static void main(String[] args) throws Exception {
+      if (args.length > 0 && args[0].equals("-run")) {
+            // This is one of the runs started below.  Test one kind of table, and
+            // write the times and the checksum on one line.
+         double[] times = test(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                                                          Integer.parseInt(args[3]));
+         for (double time : times)
+            System.out.print(time + " ");
+         System.out.println(checksum);
+         return;
+      }
+      int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      double[][] results = new double[NAMES.length][];
+      for (int t = 0; t < NAMES.length; t++) {
+         System.out.print(NAMES[t] + "... ");
+         ArrayList<String> command = new ArrayList<String>();
+         command.add(java);
+         command.add("-Xmx" + (Runtime.getRuntime().maxMemory() / (1024*1024)) + "m");
+         command.add("-cp");
+         command.add(System.getProperty("java.class.path"));
+         command.add("HashTableBenchmark");
+         command.add("-run");
+         command.add("" + t);
+         command.add("" + keyCount);
+         command.add("" + rounds);
+         Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+         String line;
+         try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            line = in.readLine();
+         }
+         if (process.waitFor() != 0 || line == null) {
+            System.out.println("failed.");
+            return;
+         }
+         String[] fields = line.trim().split(" ");
+         results[t] = new double[OPERATIONS.length];
+         for (int op = 0; op < OPERATIONS.length; op++)
+            results[t][op] = Double.parseDouble(fields[op]);
+         checksum += Long.parseLong(fields[OPERATIONS.length]);
+         System.out.println("done.");
+      }
+
+      System.out.println();
+      System.out.printf("%d keys, average of %d rounds, nanoseconds per operation%n", keyCount, rounds);
+      System.out.printf("%-16s", "");
+      for (String name : NAMES)
+         System.out.printf("%15s", name);
+      System.out.println();
+      for (int op = 0; op < OPERATIONS.length; op++) {
+         System.out.printf("%-16s", OPERATIONS[op]);
+         for (int t = 0; t < NAMES.length; t++)
+            System.out.printf("%15.1f", results[t][op]);
+         System.out.println();
+      }
+      System.out.println();
+      System.out.println("(Checksum: " + checksum + ")");
+   }
+
+
+   /**
+    * Tests one kind of table, and returns the average time for each operation.
+    */
+   private static double[] test(int kind, int keyCount, int rounds) {
+
+      /* Make the keys ahead of time, so that making them is not timed.
+         Half of the keys are consecutive numbers, which have similar hash
+         codes, and half are random.  The keys are looked up in a shuffled
+         order, not in the order in which they were added, and the missing
+         keys are shuffled too.  A String saves its hash code the first time
+         it is computed, so hashCode() is called here for each key, so that
+         the timed loops never have to compute it. */
+
+      Random random = new Random(42);
+      String[] keys = new String[keyCount];
+      String[] missing = new String[keyCount];
+      for (int i = 0; i < keyCount; i++) {
+         if (i % 2 == 0)
+            keys[i] = "key" + i;
+         else
+            keys[i] = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+         missing[i] = "missing" + i;
+         keys[i].hashCode();
+         missing[i].hashCode();
+      }
+      String[] shuffled = keys.clone();
+      shuffle(shuffled, random);
+      shuffle(missing, random);
+
+      double[] total = new double[OPERATIONS.length];
+      for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+         double[] times = runRound(newTable(kind), keys, shuffled, missing);
+         if (round >= WARMUP_ROUNDS) {
+            for (int op = 0; op < OPERATIONS.length; op++)
+               total[op] += times[op];
+         }
+      }
+      for (int op = 0; op < OPERATIONS.length; op++)
+         total[op] /= rounds;
+      return total;
+   }
+
+
+   /**
+    * Puts the items in an array into a random order.
+    */
+   private static void shuffle(String[] array, Random random) {
+      for (int i = array.length - 1; i > 0; i--) {
+         int j = random.nextInt(i + 1);
+         String temp = array[i];
+         array[i] = array[j];
+         array[j] = temp;
+      }
+   }
+
+
+   /**
+    * Returns a new, empty table of one of the three kinds.  Each one starts
+    * with its default size.
+    */
+   private static Table newTable(int kind) {
+      if (kind == 0) {
+         HashTable table = new HashTable();
+         return new Table() {
+            public void put(String key, String value) { table.put(key, value); }
+            public String get(String key) { return table.get(key); }
+            public void remove(String key) { table.remove(key); }
+            public int size() { return table.size(); }
+         };
+      }
+      else if (kind == 1) {
+         OpenHashTable table = new OpenHashTable();
+         return new Table() {
+            public void put(String key, String value) { table.put(key, value); }
+            public String get(String key) { return table.get(key); }
+            public void remove(String key) { table.remove(key); }
+            public int size() { return table.size(); }
+         };
+      }
+      else {
+         HashMap<String,String> table = new HashMap<String,String>();
+         return new Table() {
+            public void put(String key, String value) { table.put(key, value); }
+            public String get(String key) { return table.get(key); }
+            public void remove(String key) { table.remove(key); }
+            public int size() { return table.size(); }
+         };
+      }
+   }
+
+
+   /**
+    * Does each of the operations once for every key, and returns the
+    * average time for each operation, in nanoseconds.  The keys are used
+    * as their own values.  Throws an IllegalStateException if the table
+    * gives a wrong answer.
+    */
+   private static double[] runRound(Table table, String[] keys, String[] shuffled, String[] missing) {
+      int n = keys.length;
+      double[] times = new double[OPERATIONS.length];
+
+      long start = System.nanoTime();
+      for (int i = 0; i < n; i++)
+         table.put(keys[i], keys[i]);
+      times[0] = (double)(System.nanoTime() - start) / n;
+      if (table.size() != n)
+         throw new IllegalStateException("Wrong size after put: " + table.size());
+
+      long sum = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < n; i++)
+         sum += table.get(shuffled[i]).length();
+      times[1] = (double)(System.nanoTime() - start) / n;
+
+      int found = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+         if (table.get(missing[i]) != null)
+            found++;
+      }
+      times[2] = (double)(System.nanoTime() - start) / n;
+      if (found != 0)
+         throw new IllegalStateException("Found " + found + " keys that were never added");
+
+      start = System.nanoTime();
+      for (int i = 0; i < n; i++)
+         table.remove(shuffled[i]);
+      times[3] = (double)(System.nanoTime() - start) / n;
+      if (table.size() != 0)
+         throw new IllegalStateException("Wrong size after remove: " + table.size());
+
+      checksum += sum + found;
+      return times;
+   }
+
+
+} // end class HashTableBenchmark
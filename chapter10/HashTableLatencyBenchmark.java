@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * This program shows the effect of incremental resizing on the time taken by
+ * a single call to HashTable.put().  It adds a large number of keys to a new
+ * HashTable, timing every call to put() separately, first for a table that is
+ * resized all at once and then for a table that is resized incrementally.
+ * Most calls take well under a microsecond either way; the difference is in the
+ * few calls that make the table grow.  So the program reports percentiles of
+ * the times -- the 99.9th percentile, for example, is the time that all but one
+ * in a thousand calls were faster than -- along with the longest time, the
+ * total time, and a histogram that shows how many calls took at least 1
+ * microsecond, at least 2, at least 4, and so on.
+ *
+ * A table that starts with 64 locations grows 16 times while two million keys
+ * are added to it, so a resize happens in fewer than one in 100,000 calls to
+ * put().  The 99.9th percentile therefore shows the extra work that an
+ * incremental resize adds to ordinary calls, and the pauses of a full resize
+ * show up only in the highest percentiles, in the maximum, and in the
+ * histogram.  (An incremental resize still has to create the new table, which
+ * takes a millisecond or two when the table has millions of locations.)
+ *
+ * Each kind of table is filled several times, and the first few times are not
+ * counted, to give the Java Virtual Machine a chance to compile the code.
+ * Pauses for garbage collection are included in the times, for both kinds of
+ * table.  A large heap, with a large "young generation", will keep those
+ * pauses from hiding the pauses caused by resizing.
+ *
+ * Usage:  java -Xms3g -Xmx3g -Xmn2g HashTableLatencyBenchmark [keys] [rounds]
+ *
+ * The default is 2000000 keys and 3 measured rounds, after 2 warmup rounds.
+ */
+public class HashTableLatencyBenchmark {
+
+   private static final int WARMUP_ROUNDS = 2;
+
+   private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99, 99.999, 99.9999 };
+
+
+   public static void main(String[] args) {
+      int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+      String[] keys = new String[keyCount];
+      for (int i = 0; i < keyCount; i++) {
+         keys[i] = "key" + i;
+         keys[i].hashCode();  // (So the String's hash code is not computed during the test.)
+      }
+
+      String[] modes = { "Resize all at once", "Incremental resize" };
+      long[][] times = new long[modes.length][];
+      long[] totals = new long[modes.length];
+      for (int mode = 0; mode < modes.length; mode++) {
+         System.out.print(modes[mode] + "... ");
+         long[] all = new long[keyCount * rounds];
+         for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+            System.gc();  // (So that garbage from the previous round is not collected during this one.)
+            long[] roundTimes = fill(new HashTable(64, mode == 1), keys);
+            if (round >= WARMUP_ROUNDS) {
+               int r = round - WARMUP_ROUNDS;
+               System.arraycopy(roundTimes, 0, all, r * keyCount, keyCount);
+               for (long t : roundTimes)
+                  totals[mode] += t;
+            }
+         }
+         Arrays.sort(all);
+         times[mode] = all;
+         System.out.println("done.");
+      }
+
+      System.out.println();
+      System.out.printf("%d keys, %d rounds; time for one put(), in microseconds%n", keyCount, rounds);
+      System.out.printf("%-12s", "");
+      for (String mode : modes)
+         System.out.printf("%22s", mode);
+      System.out.println();
+      for (double p : PERCENTILES) {
+         System.out.printf("%-12s", "p" + (p == (int)p ? "" + (int)p : "" + p));
+         for (int mode = 0; mode < modes.length; mode++)
+            System.out.printf("%22.2f", percentile(times[mode], p) / 1000.0);
+         System.out.println();
+      }
+      System.out.printf("%-12s", "max");
+      for (int mode = 0; mode < modes.length; mode++)
+         System.out.printf("%22.2f", times[mode][times[mode].length - 1] / 1000.0);
+      System.out.println();
+      System.out.printf("%-12s", "total (ms)");
+      for (int mode = 0; mode < modes.length; mode++)
+         System.out.printf("%22.1f", totals[mode] / 1e6 / rounds);
+      System.out.println();
+
+      System.out.println();
+      System.out.println("Number of calls to put() that took at least the given time:");
+      System.out.printf("%-12s", "");
+      for (String mode : modes)
+         System.out.printf("%22s", mode);
+      System.out.println();
+      for (long limit = 1000; limit <= 1000L * 1000 * 1000; limit *= 2) {
+         String label = limit < 1000000 ? (limit / 1000) + " us" : (limit / 1000000) + " ms";
+         System.out.printf("%-12s", ">= " + label);
+         boolean any = false;
+         for (int mode = 0; mode < modes.length; mode++) {
+            int count = countAtLeast(times[mode], limit);
+            System.out.printf("%22d", count);
+            any = any || count > 0;
+         }
+         System.out.println();
+         if ( ! any )
+            break;
+      }
+   }
+
+
+   /**
+    * Puts every key into the table, with the key as its value, and returns
+    * the time taken by each call to put(), in nanoseconds.
+    */
+   private static long[] fill(HashTable table, String[] keys) {
+      long[] times = new long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         long start = System.nanoTime();
+         table.put(keys[i], keys[i]);
+         times[i] = System.nanoTime() - start;
+      }
+      if (table.size() != keys.length)
+         throw new IllegalStateException("Wrong size: " + table.size());
+      return times;
+   }
+
+
+   /**
+    * Returns the given percentile of a sorted array of times.
+    */
+   private static long percentile(long[] sorted, double p) {
+      int index = (int)Math.ceil(p / 100 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+   }
+
+
+   /**
+    * Returns the number of times in a sorted array that are at least the limit.
+    */
+   private static int countAtLeast(long[] sorted, long limit) {
+      int lo = 0, hi = sorted.length;  // Binary search for the first time >= limit.
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (sorted[mid] < limit)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return sorted.length - lo;
+   }
+
+
+} // end class HashTableLatencyBenchmark
@@ -0,0 +1,520 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * This file defines an OffHeapHashTable class, which has the same interface as
+ * HashTable, but keeps its keys and values in files instead of in objects.
+ * Keys and values in the table are of type String.  Keys and values cannot be
+ * null.
+ *
+ * A HashTable that holds millions of pairs is made of millions of objects --
+ * a ListNode and two Strings for each pair -- and the garbage collector has to
+ * look at all of them, over and over, which can make it very slow.  This class
+ * instead stores each key and its value, encoded as UTF-8 bytes, in a "record"
+ * in a data file.  Records are added to the end of the file, one after the
+ * other.  The records are found using an index, which is an open-addressing
+ * hash table, like OpenHashTable, stored in a second file.  Each location in
+ * the index is one long integer that holds the hash code of a key and the
+ * position of its record in the data file, or zero for an empty location.
+ *
+ * The files are "memory-mapped":  the operating system makes them look like
+ * ordinary memory, in MappedByteBuffers, and reads and writes them as needed.
+ * None of that memory is part of the Java heap, so the garbage collector never
+ * sees it, and the table can be much larger than the heap.  A MappedByteBuffer
+ * can't be larger than 2 GB, so the data file is mapped in pieces ("chunks") of
+ * 64 MB each, and a record never crosses from one chunk to the next.
+ *
+ * Since the table is in files, it lasts after the program ends:  creating an
+ * OffHeapHashTable for the same file name again gives back the same table.
+ * The files are only guaranteed to be complete after close() has been called.
+ * A flag in the index file records whether the table was closed, and opening a
+ * table that was not closed throws an exception, since the files might not be
+ * consistent.
+ *
+ * When a key is removed, or gets a new value, its old record stays in the data
+ * file, as wasted space.  compact() copies the records that are still in use to
+ * a new data file, to get rid of that space.  The data file can hold up to 32
+ * GB of records, and the index can have up to 2^27 locations; like OpenHashTable,
+ * the index is kept no more than half full, so the table can hold about 67
+ * million keys.
+ */
+public class OffHeapHashTable implements Closeable {
+
+   private static final long MAGIC = 0x4F66664865617054L;  // "OffHeapT" in ASCII.
+
+   private static final int HEADER_SIZE = 64;  // The index file starts with a header:
+   private static final int CAPACITY = 8;      //   the number of locations in the index,
+   private static final int COUNT = 12;        //   the number of keys in the table,
+   private static final int END = 16;          //   the end of the last record in the data file,
+   private static final int GARBAGE = 24;      //   the number of unused bytes in the data file,
+   private static final int CLOSED = 32;       //   and 1 if the table was closed, 0 if it is open.
+                                               // The locations of the index come after the header.
+
+   private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+   private static final int INITIAL_CAPACITY = 1024;
+   private static final int MAX_CAPACITY = 1 << 27;  // (The index file must be less than 2 GB.)
+
+   private final File dataFile;
+   private final File indexFile;
+
+   private FileChannel dataChannel;
+   private ArrayList<MappedByteBuffer> chunks;  // The chunks of the data file that have been mapped.
+   private FileChannel indexChannel;
+   private MappedByteBuffer index;
+
+   private int mask;      // The number of locations in the index, minus 1.
+   private int count;     // The number of (key,value) pairs in the table.
+   private long end;      // Where the next record will go in the data file.
+   private long garbage;  // The number of bytes in the data file that are not in use.
+
+
+   /**
+    * Open the table that is stored in the files with the given name plus ".data"
+    * and ".index", or create a new, empty table if the files don't exist.
+    * @throws IOException if the files can't be opened or created, or if they
+    *    do not contain a table that was properly closed.
+    */
+   public OffHeapHashTable(File file) throws IOException {
+      dataFile = new File(file.getPath() + ".data");
+      indexFile = new File(file.getPath() + ".index");
+      boolean exists = indexFile.exists();
+      indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ, StandardOpenOption.WRITE);
+      if (exists) {
+         long size = indexChannel.size();
+         if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            indexChannel.close();
+            throw new IOException(indexFile + " is not an OffHeapHashTable index.");
+         }
+         index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+         int capacity = index.getInt(CAPACITY);
+         if (index.getLong(0) != MAGIC || Integer.bitCount(capacity) != 1
+                                       || size != HEADER_SIZE + 8L * capacity) {
+            indexChannel.close();
+            throw new IOException(indexFile + " is not an OffHeapHashTable index.");
+         }
+         if (index.getInt(CLOSED) != 1) {
+            indexChannel.close();
+            throw new IOException("The table in " + file + " is in use, or was not closed properly.");
+         }
+         mask = capacity - 1;
+         count = index.getInt(COUNT);
+         end = index.getLong(END);
+         garbage = index.getLong(GARBAGE);
+      }
+      else {
+         index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 8L * INITIAL_CAPACITY);
+         index.putLong(0, MAGIC);
+         index.putInt(CAPACITY, INITIAL_CAPACITY);
+         mask = INITIAL_CAPACITY - 1;
+      }
+      dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+                                     StandardOpenOption.READ, StandardOpenOption.WRITE);
+      chunks = new ArrayList<MappedByteBuffer>();
+      index.putInt(CLOSED, 0);
+      writeHeader();
+      index.force();
+   }
+
+
+   /**
+    * Associate the specified value with the specified key.
+    * Precondition:  The key and value are not null.
+    * @throws IllegalArgumentException if the key and value are too long
+    *    to fit in one chunk of the data file.
+    * @throws IllegalStateException if the table is full.
+    * @throws UncheckedIOException if the files can't be written.
+    */
+   public void put(String key, String value) {
+      if (key == null || value == null)
+         throw new NullPointerException("Keys and values can't be null");
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+      int hash = spread(key.hashCode());
+      int location = find(keyBytes, hash);
+      if (location < 0 && count >= (mask + 1) / 2) {
+            // The index is becoming too full.  Increase its size
+            // before adding the new key.
+         resize();
+      }
+      long offset = append(keyBytes, valueBytes);
+      if (location >= 0) {
+            // The key is already in the table.  Point its location in the
+            // index to the new record, and count the old one as garbage.
+         long oldOffset = offsetOf(slot(location));
+         MappedByteBuffer chunk = chunk(oldOffset);
+         int p = (int)(oldOffset % CHUNK_SIZE);
+         garbage += recordSize(chunk.getInt(p), chunk.getInt(p + 4));
+         setSlot(location, makeSlot(hash, offset));
+      }
+      else {
+         insert(makeSlot(hash, offset));
+         count++;
+      }
+      writeHeader();
+   }
+
+
+   /**
+    * Retrieve the value associated with the specified key in the table,
+    * if there is any.  If not, the value null will be returned.
+    * @param key The key whose associated value we want to find
+    * @return the associated value, or null if there is no associated value
+    */
+   public String get(String key) {
+      int location = find(key.getBytes(StandardCharsets.UTF_8), spread(key.hashCode()));
+      if (location < 0)
+         return null;
+      long offset = offsetOf(slot(location));
+      MappedByteBuffer chunk = chunk(offset);
+      int p = (int)(offset % CHUNK_SIZE);
+      byte[] valueBytes = new byte[chunk.getInt(p + 4)];
+      chunk.get(p + 8 + chunk.getInt(p), valueBytes);
+      return new String(valueBytes, StandardCharsets.UTF_8);
+   }
+
+
+   /**
+    * Remove the key and its associated value from the table,
+    * if the key occurs in the table.  If it does not occur,
+    * then nothing is done.
+    */
+   public void remove(String key) {
+      int location = find(key.getBytes(StandardCharsets.UTF_8), spread(key.hashCode()));
+      if (location < 0)
+         return;  // The key is not in the table.
+      long offset = offsetOf(slot(location));
+      MappedByteBuffer chunk = chunk(offset);
+      int p = (int)(offset % CHUNK_SIZE);
+      garbage += recordSize(chunk.getInt(p), chunk.getInt(p + 4));
+
+      // Move the following locations back by one, as in OpenHashTable.
+
+      int next = (location + 1) & mask;
+      long slot;
+      while ((slot = slot(next)) != 0 && distance(next, slot) > 0) {
+         setSlot(location, slot);
+         location = next;
+         next = (next + 1) & mask;
+      }
+      setSlot(location, 0);
+      count--;
+      writeHeader();
+   }
+
+
+   /**
+    * Test whether the specified key has an associated value in the table.
+    * @param key The key that we want to search for.
+    * @return true if the key exists in the table, false if not
+    */
+   public boolean containsKey(String key) {
+      return find(key.getBytes(StandardCharsets.UTF_8), spread(key.hashCode())) >= 0;
+   }
+
+
+   /**
+    * Return the number of key/value pairs in the table.
+    */
+   public int size() {
+      return count;
+   }
+
+
+   /**
+    * Returns the number of bytes of the data file that have been used,
+    * including garbage.
+    */
+   public long getDataSize() {
+      return end;
+   }
+
+
+   /**
+    * Returns the number of bytes of the data file that are garbage:  the
+    * records of keys that have been removed or have been given new values.
+    */
+   public long getGarbageSize() {
+      return garbage;
+   }
+
+
+   /**
+    * Copy the records that are in use to a new data file, to get rid of
+    * the garbage.
+    * @throws IOException if the new file can't be written.
+    */
+   public void compact() throws IOException {
+      File newFile = new File(dataFile.getPath() + ".new");
+      for (long offset = 0; offset < end; offset += CHUNK_SIZE)
+         chunk(offset);  // (Make sure that all of the old file is mapped.)
+      ArrayList<MappedByteBuffer> oldChunks = chunks;
+      FileChannel oldChannel = dataChannel;
+      dataChannel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                     StandardOpenOption.READ, StandardOpenOption.WRITE);
+      chunks = new ArrayList<MappedByteBuffer>();
+      end = 0;
+      garbage = 0;
+      for (int location = 0; location <= mask; location++) {
+         long slot = slot(location);
+         if (slot != 0) {
+            long offset = offsetOf(slot);
+            MappedByteBuffer oldChunk = oldChunks.get((int)(offset / CHUNK_SIZE));
+            int p = (int)(offset % CHUNK_SIZE);
+            byte[] record = new byte[recordSize(oldChunk.getInt(p), oldChunk.getInt(p + 4))];
+            oldChunk.get(p, record);
+            long newOffset = allocate(record.length);
+            chunk(newOffset).put((int)(newOffset % CHUNK_SIZE), record);
+            setSlot(location, makeSlot((int)(slot >>> 32), newOffset));
+         }
+      }
+      for (MappedByteBuffer chunk : chunks)
+         chunk.force();
+      oldChannel.close();
+      Files.move(newFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                                      StandardCopyOption.ATOMIC_MOVE);
+      writeHeader();
+      index.force();
+   }
+
+
+   /**
+    * Write everything to the files, and close them.  The table can't be
+    * used after it has been closed.
+    */
+   public void close() throws IOException {
+      if (index == null)
+         return;  // It is already closed.
+      for (MappedByteBuffer chunk : chunks)
+         chunk.force();
+      writeHeader();
+      index.putInt(CLOSED, 1);
+      index.force();
+      dataChannel.close();
+      indexChannel.close();
+      index = null;
+      chunks = null;
+   }
+
+
+   /**
+    * Returns the location of the key in the index, or -1 if it is not there.
+    * The search works in the same way as in OpenHashTable.  A record in the
+    * data file is only looked at when its hash code is the same as the key's.
+    */
+   private int find(byte[] keyBytes, int hash) {
+      int location = hash & mask;
+      for (int dist = 0; ; dist++) {
+         long slot = slot(location);
+         if ((int)(slot >>> 32) == hash && keyMatches(offsetOf(slot), keyBytes))
+            return location;
+         if (slot == 0 || distance(location, slot) < dist)
+            return -1;  // If the key were in the table, it would be here.
+         location = (location + 1) & mask;
+      }
+   }
+
+
+   /**
+    * Tests whether the record at a given position in the data file has the given key.
+    */
+   private boolean keyMatches(long offset, byte[] keyBytes) {
+      MappedByteBuffer chunk = chunk(offset);
+      int p = (int)(offset % CHUNK_SIZE);
+      if (chunk.getInt(p) != keyBytes.length)
+         return false;
+      p += 8;
+      for (int i = 0; i < keyBytes.length; i++) {
+         if (chunk.get(p + i) != keyBytes[i])
+            return false;
+      }
+      return true;
+   }
+
+
+   /**
+    * Puts a location that is not already in the index into the index,
+    * using Robin Hood probing as in OpenHashTable.
+    */
+   private void insert(long slot) {
+      int location = (int)(slot >>> 32) & mask;
+      int dist = 0;
+      long existing;
+      while ((existing = slot(location)) != 0) {
+         int existingDist = distance(location, existing);
+         if (existingDist < dist) {
+            setSlot(location, slot);
+            slot = existing;
+            dist = existingDist;
+         }
+         location = (location + 1) & mask;
+         dist++;
+      }
+      setSlot(location, slot);
+   }
+
+
+   /**
+    * Double the size of the index.  The new index is made in a new file, which
+    * then replaces the old one.
+    */
+   private void resize() {
+      int capacity = (mask + 1) * 2;
+      if (capacity > MAX_CAPACITY)
+         throw new IllegalStateException("The table is full.");
+      File newFile = new File(indexFile.getPath() + ".new");
+      try {
+         FileChannel newChannel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+         MappedByteBuffer oldIndex = index;
+         int oldCapacity = mask + 1;
+         index = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 8L * capacity);
+         index.putLong(0, MAGIC);
+         index.putInt(CAPACITY, capacity);
+         mask = capacity - 1;
+         for (int i = 0; i < oldCapacity; i++) {
+            long slot = oldIndex.getLong(HEADER_SIZE + 8 * i);
+            if (slot != 0)
+               insert(slot);
+         }
+         writeHeader();
+         index.force();
+         indexChannel.close();
+         indexChannel = newChannel;
+         Files.move(newFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                                          StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+
+   /**
+    * Returns the position for a new record of a given size in the data file,
+    * at the end of the file or, if it would not fit in the last chunk, at the
+    * start of a new chunk.  The space at the end of the last chunk is then
+    * counted as garbage.
+    */
+   private long allocate(int size) {
+      if (size > CHUNK_SIZE)
+         throw new IllegalArgumentException("The key and value are too long.");
+      long offset = end;
+      int used = (int)(offset % CHUNK_SIZE);
+      if (used + size > CHUNK_SIZE) {
+         garbage += CHUNK_SIZE - used;
+         offset += CHUNK_SIZE - used;
+      }
+      if ((offset + size) >>> 3 > 0xFFFFFFFFL)
+         throw new IllegalStateException("The data file is full.");
+      end = offset + size;
+      return offset;
+   }
+
+
+   /**
+    * Adds a record to the end of the data file, and returns its position.
+    * A record consists of the length of the key, the length of the value,
+    * the bytes of the key, and the bytes of the value.  It is padded to a
+    * multiple of 8 bytes, so that its position can be stored in the index
+    * divided by 8.
+    */
+   private long append(byte[] keyBytes, byte[] valueBytes) {
+      long offset = allocate(recordSize(keyBytes.length, valueBytes.length));
+      MappedByteBuffer chunk = chunk(offset);
+      int p = (int)(offset % CHUNK_SIZE);
+      chunk.putInt(p, keyBytes.length);
+      chunk.putInt(p + 4, valueBytes.length);
+      chunk.put(p + 8, keyBytes);
+      chunk.put(p + 8 + keyBytes.length, valueBytes);
+      return offset;
+   }
+
+
+   private static int recordSize(int keyLength, int valueLength) {
+      long size = (8L + keyLength + valueLength + 7) & ~7L;
+      return size > CHUNK_SIZE ? Integer.MAX_VALUE : (int)size;
+   }
+
+
+   /**
+    * Returns the chunk of the data file that contains the given position,
+    * mapping it into memory first if necessary.
+    */
+   private MappedByteBuffer chunk(long offset) {
+      int number = (int)(offset / CHUNK_SIZE);
+      try {
+         while (chunks.size() <= number) {
+            long start = (long)chunks.size() * CHUNK_SIZE;
+            chunks.add(dataChannel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE));
+         }
+      }
+      catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return chunks.get(number);
+   }
+
+
+   private long slot(int location) {
+      return index.getLong(HEADER_SIZE + 8 * location);
+   }
+
+
+   private void setSlot(int location, long slot) {
+      index.putLong(HEADER_SIZE + 8 * location, slot);
+   }
+
+
+   /**
+    * A location in the index holds the hash code of the key in its high 32
+    * bits and the position of the record, divided by 8, in its low 32 bits.
+    * Since the highest bit of a hash code is always 1, an occupied location
+    * is never zero.
+    */
+   private static long makeSlot(int hash, long offset) {
+      return ((long)hash << 32) | (offset >>> 3);
+   }
+
+
+   private static long offsetOf(long slot) {
+      return (slot & 0xFFFFFFFFL) << 3;
+   }
+
+
+   /**
+    * Returns the probe distance of the key in a given location.
+    */
+   private int distance(int location, long slot) {
+      return (location - (int)(slot >>> 32)) & mask;
+   }
+
+
+   /**
+    * Mixes the bits of a hash code, and sets the highest bit, as in OpenHashTable.
+    * (String.hashCode() is defined exactly by the Java API, so the hash codes
+    * stored in the index are still correct when the table is opened again by
+    * another program.)
+    */
+   private static int spread(int h) {
+      h *= 0x9E3779B9;
+      return (h ^ (h >>> 16)) | 0x80000000;
+   }
+
+
+   private void writeHeader() {
+      index.putInt(COUNT, count);
+      index.putLong(END, end);
+      index.putLong(GARBAGE, garbage);
+   }
+
+
+} // end class OffHeapHashTable
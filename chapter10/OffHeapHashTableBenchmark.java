@@ -0,0 +1,231 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * This program compares OffHeapHashTable, which keeps its keys and values in
+ * memory-mapped files, with HashTable, which keeps them in objects on the Java
+ * heap.  It puts a large number of keys into each kind of table, and then looks
+ * them all up in a random order.  For each table, it reports the number of puts
+ * and gets per second, the amount of heap memory that the full table uses, and
+ * the number of garbage collections, and the time spent in them, while the test
+ * was running.  For OffHeapHashTable, it also closes the table, opens it again
+ * from its files, and checks that all the keys are still there, and it reports
+ * the size of the data file and the time taken to open the table again.
+ *
+ * As in HashTableBenchmark, each kind of table is tested in a separate run of
+ * the Java Virtual Machine, which this program starts for itself, so that the
+ * memory used by one table does not affect the other.  The files for the
+ * OffHeapHashTable are made in a temporary directory and deleted at the end.
+ *
+ * Usage:  java -Xmx2g OffHeapHashTableBenchmark [keys] [value-length]
+ *
+ * The default is 2000000 keys, with values of 32 characters.
+ */
+public class OffHeapHashTableBenchmark {
+
+   private static final String[] NAMES = { "HashTable", "OffHeapHashTable" };
+
+   private static final String[] RESULTS = {
+         "puts per second", "gets per second", "heap used (MB)", "garbage collections",
+         "collection time (ms)", "data file (MB)", "reopen time (ms)"
+   };
+
+
+   public static void main(String[] args) throws Exception {
+      if (args.length > 0 && args[0].equals("-run")) {
+            // This is one of the runs started below.  Test one kind of table,
+            // and write the results on one line.
+         double[] results = test(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                                                              Integer.parseInt(args[3]));
+         for (double result : results)
+            System.out.print(result + " ");
+         System.out.println();
+         return;
+      }
+      int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+      int valueLength = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      double[][] results = new double[NAMES.length][];
+      for (int t = 0; t < NAMES.length; t++) {
+         System.out.print(NAMES[t] + "... ");
+         ArrayList<String> command = new ArrayList<String>();
+         command.add(java);
+         command.add("-Xmx" + (Runtime.getRuntime().maxMemory() / (1024*1024)) + "m");
+         command.add("-cp");
+         command.add(System.getProperty("java.class.path"));
+         command.add("OffHeapHashTableBenchmark");
+         command.add("-run");
+         command.add("" + t);
+         command.add("" + keyCount);
+         command.add("" + valueLength);
+         Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+         String line;
+         try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            line = in.readLine();
+         }
+         if (process.waitFor() != 0 || line == null) {
+            System.out.println("failed.");
+            return;
+         }
+         String[] fields = line.trim().split(" ");
+         results[t] = new double[RESULTS.length];
+         for (int i = 0; i < RESULTS.length; i++)
+            results[t][i] = Double.parseDouble(fields[i]);
+         System.out.println("done.");
+      }
+
+      System.out.println();
+      System.out.printf("%d keys, values of %d characters%n", keyCount, valueLength);
+      System.out.printf("%-24s", "");
+      for (String name : NAMES)
+         System.out.printf("%20s", name);
+      System.out.println();
+      for (int i = 0; i < RESULTS.length; i++) {
+         System.out.printf("%-24s", RESULTS[i]);
+         for (int t = 0; t < NAMES.length; t++) {
+            if (results[t][i] < 0)
+               System.out.printf("%20s", "-");
+            else
+               System.out.printf("%20.0f", results[t][i]);
+         }
+         System.out.println();
+      }
+   }
+
+
+   /**
+    * Tests one kind of table.  Returns the results in the order of the names in
+    * RESULTS, with -1 for the results that don't apply to the kind of table.
+    */
+   private static double[] test(int kind, int keyCount, int valueLength) throws IOException {
+      double[] results = new double[RESULTS.length];
+      String padding = "";
+      while (padding.length() < valueLength)
+         padding += "-";
+      int[] order = new int[keyCount];  // The order in which the keys are looked up.
+      for (int i = 0; i < keyCount; i++)
+         order[i] = i;
+      Random random = new Random(42);
+      for (int i = keyCount - 1; i > 0; i--) {
+         int j = random.nextInt(i + 1);
+         int temp = order[i];
+         order[i] = order[j];
+         order[j] = temp;
+      }
+
+      /* The keys and values are made as they are needed, so that the only
+         copies that stay in memory are the ones in the table. */
+
+      long heapBefore = heapUsed();
+      long gcCountBefore = gcCount();
+      long gcTimeBefore = gcTime();
+      HashTable heapTable = null;
+      OffHeapHashTable offHeapTable = null;
+      File directory = null;
+      File file = null;
+      long start = System.nanoTime();
+      if (kind == 0) {
+         heapTable = new HashTable();
+         for (int i = 0; i < keyCount; i++)
+            heapTable.put("key" + i, value(i, padding, valueLength));
+      }
+      else {
+         directory = Files.createTempDirectory("offheap").toFile();
+         file = new File(directory, "table");
+         offHeapTable = new OffHeapHashTable(file);
+         for (int i = 0; i < keyCount; i++)
+            offHeapTable.put("key" + i, value(i, padding, valueLength));
+      }
+      results[0] = keyCount / ((System.nanoTime() - start) / 1e9);
+
+      start = System.nanoTime();
+      int found = 0;
+      for (int i = 0; i < keyCount; i++) {
+         String key = "key" + order[i];
+         String value = (kind == 0) ? heapTable.get(key) : offHeapTable.get(key);
+         if (value != null && value.length() == valueLength)
+            found++;
+      }
+      results[1] = keyCount / ((System.nanoTime() - start) / 1e9);
+      if (found != keyCount)
+         throw new IllegalStateException("Only " + found + " of the keys were found.");
+
+      results[3] = gcCount() - gcCountBefore;
+      results[4] = gcTime() - gcTimeBefore;
+      results[2] = (heapUsed() - heapBefore) / (1024.0*1024.0);  // (After the counts, since it calls System.gc().)
+
+      if (kind == 0) {
+         results[5] = -1;
+         results[6] = -1;
+         if (heapTable.size() != keyCount)
+            throw new IllegalStateException("Wrong size: " + heapTable.size());
+      }
+      else {
+         results[5] = offHeapTable.getDataSize() / (1024.0*1024.0);
+         offHeapTable.close();
+         start = System.nanoTime();
+         offHeapTable = new OffHeapHashTable(file);
+         results[6] = (System.nanoTime() - start) / 1e6;
+         if (offHeapTable.size() != keyCount)
+            throw new IllegalStateException("Wrong size after reopening: " + offHeapTable.size());
+         for (int i = 0; i < keyCount; i++) {
+            if ( ! value(i, padding, valueLength).equals(offHeapTable.get("key" + i)) )
+               throw new IllegalStateException("Wrong value after reopening for key" + i);
+         }
+         offHeapTable.close();
+         new File(file.getPath() + ".data").delete();
+         new File(file.getPath() + ".index").delete();
+         directory.delete();
+      }
+      return results;
+   }
+
+
+   /**
+    * Returns the value for key number i, which has the given length.
+    */
+   private static String value(int i, String padding, int valueLength) {
+      String value = "value" + i + padding;
+      return value.substring(0, valueLength);
+   }
+
+
+   /**
+    * Returns the number of bytes of heap memory in use, after collecting garbage.
+    */
+   private static long heapUsed() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++)
+         System.gc();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+
+   /**
+    * Returns the total number of garbage collections so far.
+    */
+   private static long gcCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+         count += Math.max(0, bean.getCollectionCount());
+      return count;
+   }
+
+
+   /**
+    * Returns the total time spent in garbage collection so far, in milliseconds.
+    */
+   private static long gcTime() {
+      long time = 0;
+      for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+         time += Math.max(0, bean.getCollectionTime());
+      return time;
+   }
+
+
+} // end class OffHeapHashTableBenchmark
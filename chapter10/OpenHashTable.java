@@ -0,0 +1,299 @@
+/**
+ * This file defines an OpenHashTable class, which has the same interface as
+ * the HashTable class but uses a different implementation.  Keys and values
+ * in the table are of type String.  Keys cannot be null.
+ *
+ * Instead of a linked list for each location in the table, this class uses
+ * "open addressing":  every (key,value) pair is stored in one of the locations
+ * of the table itself.  The keys, the values, and the hash codes of the keys
+ * are kept in three parallel arrays, so no object is created when a pair is
+ * added.  A key is stored at the location given by its hash code, if that
+ * location is free; if not, it goes in the next free location after it, wrapping
+ * around to the start of the array if necessary ("linear probing").  To find a
+ * key, the search starts at the location given by the hash code and moves
+ * forward until it finds the key or an empty location.
+ *
+ * The distance from the location where a key "should" be to the location where
+ * it actually is, is called its probe distance.  This class uses "Robin Hood"
+ * hashing, which keeps the probe distances short and even:  while a new key is
+ * being inserted, if it comes to a key whose probe distance is shorter than its
+ * own, it takes that key's place, and the search continues for a place to put
+ * the displaced key.  One useful consequence is that a search can stop as soon
+ * as it comes to a key whose probe distance is shorter than the distance that
+ * the search has already moved, since the key it is looking for would have
+ * taken that location.  When a key is removed, the keys after it are moved back
+ * one location each ("backward shift"), up to the first key that is already in
+ * its own location, so there is never a gap in the middle of a run of keys.
+ *
+ * The size of the table is always a power of two, so that a hash code can be
+ * turned into a location with a bitwise AND instead of the slower % operator.
+ * Since that uses only the low-order bits of the hash code, the code from
+ * key.hashCode() is first "spread" by multiplying it by a large odd constant
+ * and mixing the high bits into the low bits.  The table doubles in size if
+ * it becomes more than half full.  (Open addressing needs more empty space
+ * than chaining does:  the number of locations that have to be looked at goes
+ * up quickly as the table fills up.  Since there are no list nodes, a table
+ * that is half full still uses about as much memory as a HashTable.)  The
+ * largest table, with 2^30 locations, can't double, so it is allowed to fill
+ * up, except for one empty location, although it gets slower as it does.
+ */
+public class OpenHashTable {
+
+   private String[] keys;    // The keys; null in an empty location.
+   private String[] values;  // values[i] is the value associated with keys[i].
+   private int[] hashes;     // hashes[i] is the spread hash code of keys[i],
+                             //    or 0 if location i is empty.
+
+   private int mask;       // keys.length - 1; hash & mask is a location in the table.
+   private int threshold;  // The table is resized when count reaches this number.
+
+   private int count;  // The number of (key,value) pairs in the
+                       // hash table.
+
+
+   /**
+    * Create a hash table with an initial size of 64.
+    */
+   public OpenHashTable() {
+      this(64);
+   }
+
+
+   /**
+    * Create a hash table with a specified initial size.  The size is
+    * rounded up to a power of two.
+    * Precondition: initalSize > 0.
+    */
+   public OpenHashTable(int initialSize) {
+      if (initialSize <= 0)
+         throw new IllegalArgumentException("Illegal table size");
+      int size = 2;
+      while (size < initialSize && size < (1 << 30))
+         size *= 2;
+      allocate(size);
+   }
+
+
+   /**
+    * This method is NOT part of the usual interface for a hash table.
+    * It is here only to be used for testing purposes.  This lists the
+    * (key,value) pair, if any, in each location of the table, with its
+    * probe distance.
+    */
+   void dump() {
+      System.out.println();
+      for (int i = 0; i < keys.length; i++) {
+         System.out.print(i + ":");
+         if (hashes[i] != 0)
+            System.out.print("  (" + keys[i] + "," + values[i] + ")  distance " + distance(i));
+         System.out.println();
+      }
+   } // end dump()
+
+
+   /**
+    * Associate the specified value with the specified key.
+    * Precondition:  The key is not null.
+    * @throws IllegalStateException if the table is full, which happens
+    *    only when it has 2^30 - 1 keys.
+    */
+   public void put(String key, String value) {
+
+      assert key != null : "The key must be non-null";
+
+      int hash = spread(key.hashCode());
+      int location = find(key, hash);
+      if (location >= 0) {
+            // The key is already in the table.  Just change the associated value.
+         values[location] = value;
+         return;
+      }
+      if (count >= threshold) {
+            // The table is becoming too full.  Increase its size
+            // before adding the new key.
+         resize();
+      }
+      insert(key, value, hash);
+      count++;  // Count the newly added key.
+   }
+
+
+   /**
+    * Retrieve the value associated with the specified key in the table,
+    * if there is any.  If not, the value null will be returned.
+    * @param key The key whose associated value we want to find
+    * @return the associated value, or null if there is no associated value
+    */
+   public String get(String key) {
+      int location = find(key, spread(key.hashCode()));
+      return location < 0 ? null : values[location];
+   }
+
+
+   /**
+    * Remove the key and its associated value from the table,
+    * if the key occurs in the table.  If it does not occur,
+    * then nothing is done.
+    */
+   public void remove(String key) {
+      int location = find(key, spread(key.hashCode()));
+      if (location < 0)
+         return;  // The key is not in the table.
+
+      // Move the following keys back by one location, until coming to an
+      // empty location or to a key that is already where it belongs (that
+      // is, whose probe distance is zero).  Then the last location that
+      // was moved from is made empty.
+
+      int next = (location + 1) & mask;
+      while (hashes[next] != 0 && distance(next) > 0) {
+         keys[location] = keys[next];
+         values[location] = values[next];
+         hashes[location] = hashes[next];
+         location = next;
+         next = (next + 1) & mask;
+      }
+      keys[location] = null;  // (So the key and value can be garbage collected.)
+      values[location] = null;
+      hashes[location] = 0;
+      count--;  // Record new number of items in the table.
+   }
+
+
+   /**
+    * Test whether the specified key has an associated value in the table.
+    * @param key The key that we want to search for.
+    * @return true if the key exists in the table, false if not
+    */
+   public boolean containsKey(String key) {
+      return find(key, spread(key.hashCode())) >= 0;
+   }
+
+
+   /**
+    * Return the number of key/value pairs in the table.
+    */
+   public int size() {
+      return count;
+   }
+
+
+   /**
+    * Returns the location of the key in the table, or -1 if it is not there.
+    * Only the array of hash codes is used to decide where to stop, and the
+    * hash codes are compared before the keys, so the keys array is hardly
+    * ever looked at except for the key that is found.  (When the table is
+    * large, each array that is looked at can mean a slow trip to main memory.)
+    * ((location - h) & mask) is the same as distance(location).  The match
+    * is tested first, since most keys that are found are in their own
+    * location or the next one.
+    */
+   private int find(String key, int hash) {
+      int location = hash & mask;
+      for (int dist = 0; ; dist++) {
+         int h = hashes[location];
+         if (h == hash && keys[location].equals(key))
+            return location;
+         if (h == 0 || ((location - h) & mask) < dist)
+            return -1;  // If the key were in the table, it would be here.
+         location = (location + 1) & mask;
+      }
+   }
+
+
+   /**
+    * Puts a key that is not already in the table into the table, swapping
+    * it with any key it comes to that has a shorter probe distance; the
+    * displaced key is then put into the table in the same way.  There must
+    * be at least one empty location.
+    */
+   private void insert(String key, String value, int hash) {
+      int location = hash & mask;
+      int dist = 0;  // The probe distance of the key that is being placed.
+      while (hashes[location] != 0) {
+         int existing = distance(location);
+         if (existing < dist) {
+               // The key here is closer to its home than the new key is
+               // to its own; put the new key here, and go on looking for
+               // a place for the key that was here.
+            String k = keys[location];
+            String v = values[location];
+            int h = hashes[location];
+            keys[location] = key;
+            values[location] = value;
+            hashes[location] = hash;
+            key = k;
+            value = v;
+            hash = h;
+            dist = existing;
+         }
+         location = (location + 1) & mask;
+         dist++;
+      }
+      keys[location] = key;
+      values[location] = value;
+      hashes[location] = hash;
+   }
+
+
+   /**
+    * Returns the probe distance of the key in a given location:  how
+    * far it is past the location where its hash code says it belongs.
+    */
+   private int distance(int location) {
+      return (location - (hashes[location] & mask)) & mask;
+   }
+
+
+   /**
+    * Mixes the bits of a hash code, so that keys whose hash codes differ
+    * only in their high-order bits still go to different locations.
+    * (0x9E3779B9 is 2^32 divided by the golden ratio.)  The highest bit
+    * of the result is always set, so that it is never 0, which marks an
+    * empty location.  That bit is never part of a location number, since
+    * the size of the table is at most 2^30.
+    */
+   private static int spread(int h) {
+      h *= 0x9E3779B9;
+      return (h ^ (h >>> 16)) | 0x80000000;
+   }
+
+
+   /**
+    * Creates empty arrays of a given size, which must be a power of two.
+    */
+   private void allocate(int size) {
+      keys = new String[size];
+      values = new String[size];
+      hashes = new int[size];
+      mask = size - 1;
+      if (size == (1 << 30))
+         threshold = size - 1;  // This table can't grow, so let it fill up.
+      else
+         threshold = size / 2;
+   }
+
+
+   /**
+    * Double the size of the table, and put the key/value pairs into their
+    * proper locations in the new table.  The hash codes were saved, so
+    * key.hashCode() does not have to be called again.  An array can't
+    * have 2^31 elements, so a table of size 2^30 can't grow any more;
+    * this is only called for that table when it is completely full
+    * (except for one location, which is always left empty).
+    */
+   private void resize() {
+      if (keys.length >= (1 << 30))
+         throw new IllegalStateException("The table is full.");
+      String[] oldKeys = keys;
+      String[] oldValues = values;
+      int[] oldHashes = hashes;
+      allocate(oldKeys.length * 2);
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldHashes[i] != 0)
+            insert(oldKeys[i], oldValues[i], oldHashes[i]);
+      }
+   } // end resize()
+
+
+} // end class OpenHashTable
@@ -1,5 +1,11 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
    
 /**
  * This program is a client for the FileServer server.  The 
@@ -10,9 +16,13 @@ import java.io.*;
  * "INDEX" or "GET <file-name>".  The server replies to
  * the first command by sending the list of available files.
  * It responds to the second with a one-line message,
- * either "OK" or "ERROR".  If the message is "ok", it is
- * followed by the contents of the file with the specified
- * name.  The "error" message indicates that the specified
+ * either "OK <length>" or "ERROR".  If the message is "OK", it
+ * is followed by exactly <length> bytes, the contents of the
+ * file with the specified name.  The client copies those bytes
+ * to a local file without changing them, so binary files can
+ * be downloaded as well as text files, and the client can tell
+ * whether the whole file was received.  The "ERROR" message
+ * indicates that the specified
  * file does not exist on the server.  (The server can also
  * respond with the message "unsupported command" if the command
  * it reads is not one of the two possible legal commands.)
@@ -31,6 +41,45 @@ import java.io.*;
  * downloaded and the third is the name under which the
  * local copy of the file is to be saved.  This will
  * work even if a file of the same name already exists.
+ * 
+ * The client can also use the server's "GET <file-name>
+ * <offset> <length>" command, which downloads part of a
+ * file.  If the first argument is "-resume", the next
+ * arguments are the server, the file, and optionally the
+ * local file, as above.  If the local file already exists,
+ * it is taken to be the beginning of the file, left by a
+ * download that was interrupted, and only the rest of the
+ * file is downloaded and added to the end of it.  (The
+ * client can't tell whether the file on the server has
+ * changed since the first part was downloaded.)  If the
+ * first argument is "-parallel", the second is a number
+ * of connections, and the rest are the same as for
+ * "-resume".  The file is divided into that many pieces,
+ * which are downloaded at the same time, each over its own
+ * connection, and written into their places in the local
+ * file.  For a large file, that can get more data through
+ * the network than a single connection does.
+ * 
+ * Finally, if the first argument is "-batch", the next
+ * arguments are the server, a local directory, and the names
+ * of any number of files.  All the files are downloaded into
+ * the directory, over a single connection; if no files are
+ * named, every file in the server's index is downloaded.
+ * This needs a server that understands "KEEPALIVE", such as
+ * ThreadedFileServer, which carries out many commands on the
+ * same connection.  The GET commands are sent by a separate
+ * thread, without waiting for the replies, while the main
+ * thread reads the files as they arrive.  For many small
+ * files, this is much faster than opening a connection for
+ * each file.
+ * 
+ * If the first argument is "-sync", the next arguments are
+ * the server and a local directory.  The client asks the
+ * server for "INDEX -R", a list of every file in the server's
+ * directory tree with its size, modification time, and hash,
+ * and downloads only the files that are missing from the
+ * local directory or different from the local copies.  This
+ * also needs ThreadedFileServer.
  */
 public class FileClient {
 
@@ -42,18 +91,58 @@ public class FileClient {
       String computer;          // Name or IP address of server.
       Socket connection;        // Socket for communicating with that computer.
       PrintWriter outgoing;     // Stream for sending a command to the server.
-      BufferedReader incoming;  // Stream for reading data from the connection.
+      InputStream incoming;     // Stream for reading data from the connection.
       String command;           // Command to send to the server.
       
 
+      /* Handle the -resume and -parallel options, which are
+         carried out by separate methods. */
+      
+      if (args.length >= 3 && args.length <= 4 && args[0].equalsIgnoreCase("-resume")) {
+         resumeDownload(args[1], args[2], args.length == 4 ? args[3] : args[2]);
+         return;
+      }
+      if (args.length >= 4 && args.length <= 5 && args[0].equalsIgnoreCase("-parallel")) {
+         int pieces;
+         try {
+            pieces = Integer.parseInt(args[1]);
+         }
+         catch (NumberFormatException e) {
+            pieces = 0;
+         }
+         if (pieces < 1 || pieces > 100) {
+            System.out.println("The number of connections must be between 1 and 100.");
+            return;
+         }
+         parallelDownload(args[2], args[3], args.length == 5 ? args[4] : args[3], pieces);
+         return;
+      }
+
+      if (args.length == 3 && args[0].equalsIgnoreCase("-sync")) {
+         syncDirectory(args[1], new File(args[2]));
+         return;
+      }
+      if (args.length >= 3 && args[0].equalsIgnoreCase("-batch")) {
+         batchDownload(args[1], new File(args[2]), Arrays.copyOfRange(args, 3, args.length));
+         return;
+      }
+
       /* Check that the number of command-line arguments is legal.
          If not, print a usage message and end. */
       
-      if (args.length == 0 || args.length > 3) {
+      if (args.length == 0 || args.length > 3 || args[0].startsWith("-")) {
          System.out.println("Usage:  java FileClient <server>");
          System.out.println("    or  java FileClient <server> <file>");
          System.out.println(
                "    or  java FileClient <server> <file> <local-file>");
+         System.out.println(
+               "    or  java FileClient -resume <server> <file> [<local-file>]");
+         System.out.println(
+               "    or  java FileClient -parallel <connections> <server> <file> [<local-file>]");
+         System.out.println(
+               "    or  java FileClient -batch <server> <local-directory> [<file> ...]");
+         System.out.println(
+               "    or  java FileClient -sync <server> <local-directory>");
          return;
       }
       
@@ -72,8 +161,7 @@ public class FileClient {
       
       try {
          connection = new Socket( computer, LISTENING_PORT );
-         incoming = new BufferedReader( 
-                           new InputStreamReader(connection.getInputStream()) );
+         incoming = new BufferedInputStream( connection.getInputStream() );
          outgoing = new PrintWriter( connection.getOutputStream() );
          outgoing.println(command);
          outgoing.flush(); // ESSENTIAL: Make sure command is dispatched to server!
@@ -93,7 +181,7 @@ public class FileClient {
                // from the server until the end-of-stream is reached.
             System.out.println("File list from server:");
             while (true) {
-               String line = incoming.readLine();
+               String line = readLine(incoming);
                if (line == null)
                    break;
                System.out.println("   " + line);
@@ -101,18 +189,19 @@ public class FileClient {
          }
          else {
                // The command was "get <file-name>".  Read the server's
-               // response message.  If the message is "OK", get the file.
-            String message = incoming.readLine();
-            if (! message.equalsIgnoreCase("OK")) {
+               // response message.  If the message is "OK <length>", get the file.
+            String message = readLine(incoming);
+            if (message == null || ! message.toUpperCase().startsWith("OK ")) {
                System.out.println("File not found on server.");
                System.out.println("Message from server: " + message);
                return;
             }
-            PrintWriter fileOut;  // For writing the received data to a file.
+            long length = Long.parseLong(message.substring(3).trim());
+            OutputStream fileOut;  // For writing the received data to a file.
             if (args.length == 3) {
                   // Use the third parameter as a file name.
                   // This will overwrite a file with the same name!
-                fileOut = new PrintWriter( new FileWriter(args[2]) );
+                fileOut = new FileOutputStream(args[2]);
             }
             else {
                   // Use the second parameter as a file name,
@@ -124,19 +213,19 @@ public class FileClient {
                    System.out.println("version of the command.");
                    return;
                 }
-                fileOut = new PrintWriter( new FileWriter(args[1]) );
+                fileOut = new FileOutputStream(args[1]);
             }
-            while (true) {
-                   // Copy lines from incoming to the file until
-                   // the end of the incoming stream is encountered.
-                String line = incoming.readLine();
-                if (line == null)
-                    break;
-                fileOut.println(line);
+            long received;
+            try {
+               received = copy(incoming, length, fileOut);
+            }
+            finally {
+               fileOut.close();
             }
-            if (fileOut.checkError()) {
-               System.out.println("Some error occurred while writing the file.");
-               System.out.println("Output file might be empty or incomplete.");
+            if (received < length) {
+               System.out.println("The connection was closed after " + received
+                                        + " of " + length + " bytes were received.");
+               System.out.println("The output file is incomplete.");
             }
          }
       }
@@ -156,4 +245,464 @@ public class FileClient {
    }  // end main()
    
 
+   /**
+    * Downloads the rest of a file whose beginning has already been
+    * downloaded, and adds it to the end of the local file.  If the local
+    * file does not exist, the whole file is downloaded.
+    */
+   private static void resumeDownload(String computer, String fileName, String localFileName) {
+      File localFile = new File(localFileName);
+      long offset = localFile.length();  // (Zero if the file does not exist.)
+      try (Socket connection = new Socket( computer, LISTENING_PORT )) {
+         InputStream incoming = new BufferedInputStream( connection.getInputStream() );
+            // Ask for everything from the offset to the end of the file.  (The
+            // server sends fewer bytes than the length, if the file ends first.)
+         long[] reply = requestRange(connection, incoming, fileName, offset, Long.MAX_VALUE);
+         if (reply[0] == 0) {
+            System.out.println("The local file is already complete.");
+            return;
+         }
+         System.out.println("Downloading " + reply[0] + " bytes, starting at byte "
+                                 + offset + " of " + reply[1] + ".");
+         long received;
+         try (OutputStream fileOut = new FileOutputStream(localFile, true)) {
+            received = copy(incoming, reply[0], fileOut);
+         }
+         if (received < reply[0]) {
+            System.out.println("The connection was closed after " + received
+                                     + " of " + reply[0] + " bytes were received.");
+            System.out.println("Use -resume again to get the rest of the file.");
+         }
+      }
+      catch (Exception e) {
+         System.out.println("Sorry, an error occurred while downloading the file.");
+         System.out.println("Error: " + e);
+      }
+   }
+
+
+   /**
+    * Downloads a file in several pieces at the same time, using a separate
+    * thread and connection for each piece.  The length of the file is found
+    * first, by asking the server for zero bytes.  The local file is then
+    * created with that length, and each thread writes its piece into its
+    * place in the file, using positional writes on a FileChannel that is
+    * shared by all the threads.
+    */
+   private static void parallelDownload(String computer, String fileName,
+                                          String localFileName, int pieces) {
+      long size;
+      try (Socket connection = new Socket( computer, LISTENING_PORT )) {
+         InputStream incoming = new BufferedInputStream( connection.getInputStream() );
+         size = requestRange(connection, incoming, fileName, 0, 0)[1];
+      }
+      catch (Exception e) {
+         System.out.println("Sorry, an error occurred while getting the size of the file.");
+         System.out.println("Error: " + e);
+         return;
+      }
+      try (RandomAccessFile file = new RandomAccessFile(localFileName, "rw")) {
+         file.setLength(size);
+         FileChannel fileOut = file.getChannel();
+         Thread[] workers = new Thread[pieces];
+         Exception[] errors = new Exception[pieces];
+         long startTime = System.currentTimeMillis();
+         for (int i = 0; i < pieces; i++) {
+            int piece = i;
+            long start = size * i / pieces;
+            long end = size * (i+1) / pieces;
+            workers[i] = new Thread( () -> {
+               try {
+                  downloadPiece(computer, fileName, start, end - start, fileOut);
+               }
+               catch (Exception e) {
+                  errors[piece] = e;
+               }
+            });
+            workers[i].start();
+         }
+         boolean complete = true;
+         for (int i = 0; i < pieces; i++) {
+            workers[i].join();
+            if (errors[i] != null) {
+               System.out.println("Error while downloading piece " + (i+1) + ": " + errors[i]);
+               complete = false;
+            }
+         }
+         if (complete) {
+            long time = Math.max(1, System.currentTimeMillis() - startTime);
+            System.out.printf("Downloaded %d bytes over %d connections in %.3f seconds.%n",
+                                    size, pieces, time/1000.0);
+         }
+         else
+            System.out.println("The output file is incomplete.");
+      }
+      catch (Exception e) {
+         System.out.println("Sorry, an error occurred while writing the file.");
+         System.out.println("Error: " + e);
+      }
+   }
+
+
+   /**
+    * Downloads one piece of a file, over a new connection, and writes it
+    * into the given position in the local file.
+    */
+   private static void downloadPiece(String computer, String fileName, long offset,
+                                       long length, FileChannel fileOut) throws Exception {
+      try (Socket connection = new Socket( computer, LISTENING_PORT )) {
+         InputStream incoming = new BufferedInputStream( connection.getInputStream() );
+         long[] reply = requestRange(connection, incoming, fileName, offset, length);
+         if (reply[0] != length)
+            throw new IOException("The file has changed on the server.");
+         byte[] buffer = new byte[64*1024];
+         long position = offset;
+         long end = offset + length;
+         while (position < end) {
+            int count = incoming.read(buffer, 0, (int)Math.min(buffer.length, end - position));
+            if (count < 0)
+               throw new IOException("Connection closed after " + (position - offset)
+                                          + " of " + length + " bytes.");
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+            while (data.hasRemaining())
+               position += fileOut.write(data, position);
+         }
+      }
+   }
+
+
+   /**
+    * Downloads a list of files into a local directory over one keep-alive
+    * connection.  If the list is empty, the server's index is downloaded
+    * first, and all the files in it are downloaded.
+    */
+   private static void batchDownload(String computer, File directory, String[] fileNames) {
+      if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+         System.out.println("Can't create the directory " + directory);
+         return;
+      }
+      long startTime = System.currentTimeMillis();
+      try (Socket connection = new Socket( computer, LISTENING_PORT )) {
+         InputStream incoming = new BufferedInputStream( connection.getInputStream() );
+         PrintWriter outgoing = new PrintWriter( new OutputStreamWriter(
+                                              connection.getOutputStream(), "UTF-8") );
+         if ( ! startKeepAlive(incoming, outgoing, fileNames.length == 0 ? "INDEX" : null) )
+            return;
+         if (fileNames.length == 0) {
+            ArrayList<String> names = readList(incoming);
+            fileNames = names.toArray(new String[names.size()]);
+         }
+         long[] sizes = downloadFiles(incoming, outgoing, fileNames, directory);
+         int received = 0;
+         long bytes = 0;
+         for (long size : sizes) {
+            if (size >= 0) {
+               received++;
+               bytes += size;
+            }
+         }
+         double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+         System.out.printf("Downloaded %d of %d files, %d bytes, in %.3f seconds.%n",
+                                 received, fileNames.length, bytes, seconds);
+      }
+      catch (Exception e) {
+         System.out.println("Sorry, an error occurred while downloading the files.");
+         System.out.println("Error: " + e);
+      }
+   }
+
+
+   /**
+    * Makes a local directory into a copy of the server's directory tree, by
+    * downloading only the files that are missing or different.  The server's
+    * "INDEX -R" command gives the path, size, modification time, and SHA-256
+    * hash of every file on the server.  A local file is taken to be the same
+    * as the one on the server if it has the same size and modification time;
+    * if only the size is the same, its hash is computed and compared.  The
+    * files that are different are then downloaded over a keep-alive
+    * connection, as in a batch download, and each one is given the server's
+    * modification time, so that the next sync can skip it without computing
+    * its hash.  Local files that are not on the server are left alone.
+    * The index is read on a connection of its own, which is closed before
+    * the local files are hashed, since hashing a large directory can take
+    * longer than the server will keep an idle connection open.
+    */
+   private static void syncDirectory(String computer, File directory) {
+      if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+         System.out.println("Can't create the directory " + directory);
+         return;
+      }
+      long startTime = System.currentTimeMillis();
+      try {
+         ArrayList<String> index;
+         try (Socket connection = new Socket( computer, LISTENING_PORT )) {
+            InputStream incoming = new BufferedInputStream( connection.getInputStream() );
+            PrintWriter outgoing = new PrintWriter( new OutputStreamWriter(
+                                                 connection.getOutputStream(), "UTF-8") );
+            if ( ! startKeepAlive(incoming, outgoing, "INDEX -R") )
+               return;
+            index = readList(incoming);
+            outgoing.println("QUIT");
+            outgoing.flush();
+         }
+         ArrayList<String> paths = new ArrayList<String>();   // Files to be downloaded,
+         ArrayList<Long> times = new ArrayList<Long>();       //   with their modification
+         ArrayList<String> hashes = new ArrayList<String>();  //   times and hashes.
+         for (String line : index) {
+               // Each line is "<size> <last-modified> <hash> <path>".
+            String[] words = line.split(" ", 4);
+            long size = Long.parseLong(words[0]);
+            long lastModified = Long.parseLong(words[1]);
+            String hash = words[2];
+            String path = words[3];
+            if ( ! isSafePath(path) ) {
+               System.out.println("Skipping " + path + ", which is outside the directory.");
+               continue;
+            }
+            File file = new File(directory, path);
+            if (file.isFile() && file.length() == size) {
+               if (file.lastModified() == lastModified)
+                  continue;
+               if (hash(file).equals(hash)) {
+                  file.setLastModified(lastModified);
+                  continue;
+               }
+            }
+            paths.add(path);
+            times.add(lastModified);
+            hashes.add(hash);
+         }
+         System.out.println(paths.size() + " of " + index.size() + " files are new or changed.");
+         long[] sizes = new long[0];
+         if (paths.size() > 0) {
+            try (Socket connection = new Socket( computer, LISTENING_PORT )) {
+               InputStream incoming = new BufferedInputStream( connection.getInputStream() );
+               PrintWriter outgoing = new PrintWriter( new OutputStreamWriter(
+                                                    connection.getOutputStream(), "UTF-8") );
+               if ( ! startKeepAlive(incoming, outgoing, null) )
+                  return;
+               sizes = downloadFiles(incoming, outgoing,
+                                       paths.toArray(new String[paths.size()]), directory);
+            }
+         }
+         int received = 0;
+         long bytes = 0;
+         for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] < 0)
+               continue;
+            File file = new File(directory, paths.get(i));
+            if (hash(file).equals(hashes.get(i)))
+               file.setLastModified(times.get(i));
+            else
+               System.out.println(paths.get(i) + " changed on the server during the sync.");
+            received++;
+            bytes += sizes[i];
+         }
+         double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+         System.out.printf("Downloaded %d of %d files, %d bytes, in %.3f seconds.%n",
+                                 received, paths.size(), bytes, seconds);
+      }
+      catch (Exception e) {
+         System.out.println("Sorry, an error occurred while synchronizing the files.");
+         System.out.println("Error: " + e);
+      }
+   }
+
+
+   /**
+    * Asks the server for a keep-alive connection, and optionally sends a
+    * first command along with the request.  Returns false, after printing a
+    * message, if the server does not accept the keep-alive connection.
+    */
+   private static boolean startKeepAlive(InputStream incoming, PrintWriter outgoing,
+                                           String firstCommand) throws IOException {
+      outgoing.println("KEEPALIVE");
+      if (firstCommand != null)
+         outgoing.println(firstCommand);
+      outgoing.flush();
+      String message = readLine(incoming);
+      if (message == null || ! message.equalsIgnoreCase("OK")) {
+         System.out.println("The server did not accept a keep-alive connection.");
+         System.out.println("Message from server: " + message);
+         return false;
+      }
+      return true;
+   }
+
+
+   /**
+    * Reads a framed reply on a keep-alive connection that contains lines of
+    * text, such as the reply to "INDEX" or "INDEX -R", and returns the lines.
+    */
+   private static ArrayList<String> readList(InputStream incoming) throws IOException {
+      String message = readLine(incoming);
+      if (message == null || ! message.toUpperCase().startsWith("OK "))
+         throw new IOException("Can't get the index.  Message from server: " + message);
+      ByteArrayOutputStream list = new ByteArrayOutputStream();
+      copy(incoming, Long.parseLong(message.substring(3).trim()), list);
+      ArrayList<String> lines = new ArrayList<String>();
+      for (String line : list.toString("UTF-8").split("\n"))
+         if (line.length() > 0)
+            lines.add(line);
+      return lines;
+   }
+
+
+   /**
+    * Downloads files into a local directory over a keep-alive connection.  The
+    * GET commands are sent by a separate thread, so that the server always has
+    * the next command waiting when it finishes a reply, while this thread reads
+    * the framed replies, which arrive in the same order as the commands.  The
+    * paths can include subdirectories, which are created if necessary.
+    * @return the size of each file that was received, or -1 for a file that
+    *    the server could not send.
+    */
+   private static long[] downloadFiles(InputStream incoming, PrintWriter outgoing,
+                                    String[] paths, File directory) throws IOException {
+      Thread sender = new Thread( () -> {
+         for (String path : paths)
+            outgoing.println("GET " + path);
+         outgoing.println("QUIT");
+         outgoing.flush();  // (Errors are found by the reading thread.)
+      });
+      sender.setDaemon(true);
+      sender.start();
+      long[] sizes = new long[paths.length];
+      for (int i = 0; i < paths.length; i++) {
+         String message = readLine(incoming);
+         if (message == null)
+            throw new IOException("The server closed the connection after "
+                                             + i + " files.");
+         if ( ! message.toUpperCase().startsWith("OK ") ) {
+            System.out.println("Can't get " + paths[i] + ".  Message from server: " + message);
+            sizes[i] = -1;
+            continue;
+         }
+         long length = Long.parseLong(message.substring(3).trim());
+         File file = new File(directory, paths[i]);
+         if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+         long copied;
+         try (OutputStream fileOut = new FileOutputStream(file)) {
+            copied = copy(incoming, length, fileOut);
+         }
+         if (copied < length)
+            throw new IOException("The connection was closed while receiving " + paths[i]);
+         sizes[i] = length;
+      }
+      return sizes;
+   }
+
+
+   /**
+    * Tests whether a path from the server stays inside the local directory:
+    * it must not be absolute, and must not contain "..".
+    */
+   private static boolean isSafePath(String path) {
+      if (new File(path).isAbsolute() || path.startsWith("/"))
+         return false;
+      for (String name : path.split("[/\\\\]"))
+         if (name.equals(".."))
+            return false;
+      return true;
+   }
+
+
+   /**
+    * Computes the SHA-256 hash of the contents of a file, as a string of 64
+    * hexadecimal digits, in the same form as the server's "INDEX -R" command.
+    */
+   private static String hash(File file) throws IOException {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException e) {
+         throw new IOException("SHA-256 is not available.");  // (Every Java has it.)
+      }
+      byte[] buffer = new byte[64*1024];
+      try (InputStream in = new FileInputStream(file)) {
+         while (true) {
+            int count = in.read(buffer);
+            if (count < 0)
+               break;
+            digest.update(buffer, 0, count);
+         }
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest())
+         hex.append(String.format("%02x", b & 0xFF));
+      return hex.toString();
+   }
+
+
+   /**
+    * Sends a "GET <file-name> <offset> <length>" command over a connection
+    * and reads the server's reply, "OK <count> <file-size>".  After this returns,
+    * the next count bytes from the incoming stream are the data.
+    * @return an array containing the count and the file size.
+    * @throws IOException if the server replies with an error message, or if
+    *    the connection is closed before a reply is received.
+    */
+   private static long[] requestRange(Socket connection, InputStream incoming, String fileName,
+                                          long offset, long length) throws IOException {
+      PrintWriter outgoing = new PrintWriter( new OutputStreamWriter(
+                                           connection.getOutputStream(), "UTF-8") );
+      outgoing.println("GET " + fileName + " " + offset + " " + length);
+      outgoing.flush();
+      String message = readLine(incoming);
+      if (message == null)
+         throw new IOException("The server closed the connection without replying.");
+      String[] words = message.trim().split("\\s+");
+      if (words.length != 3 || ! words[0].equalsIgnoreCase("OK"))
+         throw new IOException("Message from server: " + message);
+      return new long[] { Long.parseLong(words[1]), Long.parseLong(words[2]) };
+   }
+
+
+   /**
+    * Copies up to a given number of bytes from an input stream to an output
+    * stream, and returns the number of bytes that were copied.  This is less
+    * than count only if the end of the input stream was reached first.
+    */
+   private static long copy(InputStream in, long count, OutputStream out) throws IOException {
+      byte[] buffer = new byte[64*1024];
+      long copied = 0;
+      while (copied < count) {
+         int n = in.read(buffer, 0, (int)Math.min(buffer.length, count - copied));
+         if (n < 0)
+            break;
+         out.write(buffer, 0, n);
+         copied += n;
+      }
+      return copied;
+   }
+
+
+   /**
+    * Reads one line of text, such as the server's response to a command, from
+    * a stream that can also contain binary data.  The bytes are read one at a
+    * time, so that none of the data that follows the line are used up.  (That's
+    * why the stream should be buffered.)  The line ends with a line feed,
+    * which is not included in the return value, and any carriage return
+    * before it is also dropped.
+    * @return the line, or null if the end of the stream is reached before any
+    *    characters are read.
+    */
+   private static String readLine(InputStream in) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b = in.read();
+      if (b < 0)
+         return null;
+      while (b >= 0 && b != '\n') {
+         line.write(b);
+         b = in.read();
+      }
+      String str = line.toString("UTF-8");
+      if (str.endsWith("\r"))
+         str = str.substring(0, str.length() - 1);
+      return str;
+   }
+
+
 } //end class FileClient
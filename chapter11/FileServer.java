@@ -1,6 +1,8 @@
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.util.Scanner;
+import java.util.regex.*;
 
 /**
  * This program is a very simple network file server.  The 
@@ -11,31 +13,54 @@ import java.util.Scanner;
  * "INDEX" or "GET <file-name>".  The server replies to
  * the first command by sending the list of available files.
  * It responds to the second with a one-line message,
- * either "OK" or "ERROR".  If the message is "OK", it is
- * followed by the contents of the file with the specified
- * name.  The "ERROR" message indicates that the specified
- * file does not exist on the server. (The server can also
- * respond with the message "unknown command" if the command
- * it reads is not one of the two possible legal commands.)
- * (The commands INDEX and GET are not case-sensitive.)
+ * either "OK <length>" or "ERROR".  If the message is "OK",
+ * it is followed by exactly <length> bytes, the contents of
+ * the file with the specified name.  The "ERROR" message
+ * indicates that the specified file does not exist on the
+ * server. (The server can also respond with the message
+ * "unknown command" if the command it reads is not one of
+ * the two possible legal commands.) (The commands INDEX
+ * and GET are not case-sensitive.)
  * 
  * The server program requires a command-line parameter
  * that specifies the directory that contains the files
- * that the server can serve.  The files should all be
- * text files, but this is not checked.  Also, the server
- * must have permission to read all the files.
+ * that the server can serve.  The server must have
+ * permission to read all the files.  The contents of a file
+ * are sent exactly as they are stored, so the files can be
+ * binary files as well as text files.
+ * 
+ * A client can also ask for part of a file with the command
+ * "GET <file-name> <offset> <length>", where <offset> and
+ * <length> are non-negative integers.  The server sends the
+ * bytes starting at position <offset> in the file, up to
+ * <length> of them (fewer, if the file ends first).  Its
+ * reply starts with "OK <count> <file-size>", where <count>
+ * is the number of bytes that follow and <file-size> is the
+ * length of the whole file.  (A GET command whose file name
+ * ends with two numbers, separated by spaces, is taken to be
+ * a request for part of a file only if there is no file with
+ * the whole name.  A number that is too big for a long is
+ * taken to be Long.MAX_VALUE, so an offset that is too big
+ * gets the same reply as any other offset that is past the
+ * end of the file.)
  */
 public class FileServer {
 
    static final int LISTENING_PORT = 3210;
 
+   /**
+    * Matches the rest of a "GET" command that asks for part of a file:
+    * a file name followed by an offset and a length.
+    */
+   private static final Pattern RANGE = Pattern.compile("(.*\\S)\\s+(\\d{1,19})\\s+(\\d{1,19})");
+
 
    public static void main(String[] args) {
 
       File directory;        // The directory from which the server
                              //    gets the files that it serves.
 
-      ServerSocket listener; // Listens for connection requests.
+      ServerSocketChannel listener; // Listens for connection requests.
 
       Socket connection;     // A socket for communicating with a client.
 
@@ -68,10 +93,11 @@ public class FileServer {
          is terminated, for example by a CONTROL-C. */
 
       try {
-         listener = new ServerSocket(LISTENING_PORT);
+         listener = ServerSocketChannel.open();
+         listener.bind(new InetSocketAddress(LISTENING_PORT));
          System.out.println("Listening on port " + LISTENING_PORT);
          while (true) {
-            connection = listener.accept();
+            connection = listener.socket().accept(); // (A socket with a channel, for sendFile().)
             handleConnection(directory,connection);
          }
       }
@@ -107,7 +133,12 @@ public class FileServer {
          }
          else if (command.toLowerCase().startsWith("get")){
             String fileName = command.substring(3).trim();
-            sendFile(fileName, directory, outgoing);
+            Matcher range = RANGE.matcher(fileName);
+            if (range.matches() && ! new File(directory,fileName).exists())
+               sendFile(range.group(1), parseNumber(range.group(2)),
+                     parseNumber(range.group(3)), directory, connection, outgoing);
+            else
+               sendFile(fileName, 0, -1, directory, connection, outgoing);
          }
          else {
             outgoing.println("ERROR unsupported command");
@@ -144,30 +175,76 @@ public class FileServer {
    }
 
    /**
-    * This is called by the handleConnection() command in response to "GET <fileName>" 
-    * command from the client.  If the file doesn't exist, send the message "ERROR".
-    * Otherwise, send the message "OK" followed by the contents of the file.
+    * Converts the digits of an offset or length in a "GET" command to a long,
+    * or to Long.MAX_VALUE if the number is too big for a long.
+    */
+   private static long parseNumber(String digits) {
+      try {
+         return Long.parseLong(digits);
+      }
+      catch (NumberFormatException e) {
+         return Long.MAX_VALUE;  // (There are 19 digits, but the number is too big.)
+      }
+   }
+
+   /**
+    * This is called by the handleConnection() command in response to a "GET <fileName>" or
+    * "GET <fileName> <offset> <length>" command from the client.  If the file
+    * doesn't exist, send the message "ERROR".  Otherwise, for a request for the whole
+    * file, send the message "OK <length>" followed by the contents of the file, and
+    * for a request for part of the file, send "OK <count> <file-size>" followed by
+    * count bytes from the given offset.  The bytes are copied from the file to the
+    * socket's channel by FileChannel.transferTo(), which does not change them in any
+    * way and, on most operating systems, does not copy them through the program's
+    * memory.  (One call of transferTo() might not send everything it was asked to,
+    * so it is called until all the bytes have been sent.)
+    * @param length the number of bytes requested, or -1 for the whole file.
     */
-   private static void sendFile(String fileName, File directory, PrintWriter outgoing)
-                                                                       throws Exception {
+   private static void sendFile(String fileName, long offset, long length, File directory,
+                        Socket connection, PrintWriter outgoing) throws Exception {
       File file = new File(directory,fileName);
       if ( (! file.exists()) || file.isDirectory() ) {
          // (Note:  Don't try to send a directory, which
          // shouldn't be there anyway.)
-         outgoing.println("ERROR");
+         sendError("ERROR", outgoing);
+         return;
       }
-      else {
-         outgoing.println("OK");
-         BufferedReader fileIn = new BufferedReader( new FileReader(file) );
-         while (true) {
-            // Read and send lines from the file until
-            // an end-of-file is encountered.
-            String line = fileIn.readLine();
-            if (line == null)
-               break;
-            outgoing.println(line);
+      try (FileChannel fileIn = FileChannel.open(file.toPath())) {
+         long size = fileIn.size();
+         if (offset > size) {
+            sendError("ERROR offset is past the end of the file", outgoing);
+            return;
+         }
+         long end;  // The position just after the last byte to be sent.
+         if (length < 0) {
+            end = size;
+            outgoing.println("OK " + size);
+         }
+         else {
+            end = offset + Math.min(length, size - offset);
+            outgoing.println("OK " + (end - offset) + " " + size);
+         }
+         outgoing.flush();  // The header must be sent before the data!
+         if (outgoing.checkError())
+            throw new Exception("Error while transmitting data.");
+         WritableByteChannel out = connection.getChannel();
+         if (out == null) // (Only if the socket was not made by a ServerSocketChannel.)
+            out = Channels.newChannel(connection.getOutputStream());
+         long position = offset;
+         while (position < end) {
+            long count = fileIn.transferTo(position, end - position, out);
+            if (count <= 0)
+               throw new Exception("File became shorter while it was being sent.");
+            position += count;
          }
       }
+   }
+
+   /**
+    * Sends a one-line error message in response to a "GET" command.
+    */
+   private static void sendError(String message, PrintWriter outgoing) throws Exception {
+      outgoing.println(message);
       outgoing.flush(); 
       outgoing.close();
       if (outgoing.checkError())
@@ -0,0 +1,183 @@
+import java.net.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This program runs a "connection storm" against ThreadedFileServer with
+ * several different settings for its thread pool and overload policy.  Many
+ * client threads connect to the server at the same time, each one over and
+ * over.  Each client waits for a while before it sends its command, like a
+ * client on a slow network, so that a connection ties up a server thread for
+ * that long; then it downloads a small file.  For each setting, the program
+ * reports how many connections were served, how many got a "busy" reply,
+ * and how many failed in some other way, along with the number of connections
+ * served per second and the time taken by the median and the 99th-percentile
+ * connection.  (The old version of ThreadedFileServer, with ten threads
+ * and a queue of five, simply stopped accepting connections after the
+ * first storm, because adding a connection to the full queue threw an
+ * exception that ended the main program's loop.)
+ *
+ * Usage:  java ConnectionStormBenchmark [connections] [client-threads] [delay-ms]
+ *
+ * The default is 2000 connections, made by 200 threads, with a delay of 20
+ * milliseconds.  The server runs in this program, on port 3212.  The setting
+ * that uses virtual threads is skipped on versions of Java before 21.
+ */
+public class ConnectionStormBenchmark {
+
+    private static final int PORT = 3212;
+
+    private static final String[] SETTINGS = {
+            "pool 10-10, queue 5, wait",
+            "pool 10-10, queue 5, reject",
+            "pool 10-100, queue 20, wait",
+            "pool 10-100, queue 20, reject",
+            "virtual threads, max 1000, wait"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        File directory = Files.createTempDirectory("storm").toFile();
+        File file = new File(directory, "small.txt");
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (int i = 0; i < 100; i++)
+                out.println("This is line " + i + " of a small file.");
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // Hide the server's log.
+        String[] results = new String[SETTINGS.length];
+        for (int i = 0; i < SETTINGS.length; i++) {
+            if (i == 4 && ! virtualThreadsAvailable()) {
+                results[i] = "(virtual threads need Java 21 or later)";
+                continue;
+            }
+            ThreadedFileServer server = new ThreadedFileServer(directory, PORT);
+            if (i < 2) {
+                server.setPoolSize(10, 10);
+                server.setQueueSize(5);
+            }
+            server.setRejectWhenBusy(i == 1 || i == 3);
+            if (i == 4)
+                server.setVirtualThreads(1000);
+            Thread listener = new Thread( () -> {
+                try {
+                    server.listen();
+                }
+                catch (IOException e) {
+                    console.println("Server error: " + e);
+                }
+            });
+            listener.start();
+            Thread.sleep(500);  // Give the server time to start listening.
+            results[i] = storm(connectionCount, threadCount, delay);
+            console.printf("%-32s %s%n", SETTINGS[i], results[i]);
+            server.shutDown(5000);
+            listener.join();
+        }
+
+        file.delete();
+        directory.delete();
+        console.println();
+        console.printf("%d connections from %d threads, %d ms delay%n", connectionCount, threadCount, delay);
+        console.printf("%-32s %7s %7s %7s %9s %9s %9s%n", "Setting", "Served", "Busy", "Failed",
+                                                          "Conn/s", "p50 (ms)", "p99 (ms)");
+        for (int i = 0; i < SETTINGS.length; i++)
+            console.printf("%-32s %s%n", SETTINGS[i], results[i]);
+        System.exit(0);
+    }
+
+    /**
+     * Tests whether this version of Java has virtual threads.
+     */
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes the given number of connections from the given number of threads,
+     * and returns a line of results.
+     */
+    private static String storm(int connectionCount, int threadCount, int delay) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger served = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long[] times = new long[connectionCount];  // Nanoseconds, for served connections.
+        Thread[] clients = new Thread[threadCount];
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            clients[t] = new Thread( () -> {
+                int i;
+                while ((i = next.getAndIncrement()) < connectionCount) {
+                    long begin = System.nanoTime();
+                    String reply = download(delay);
+                    if (reply.startsWith("ok")) {
+                        times[served.getAndIncrement()] = System.nanoTime() - begin;
+                    }
+                    else if (reply.equals("error server busy"))
+                        busy.incrementAndGet();
+                    else
+                        failed.incrementAndGet();
+                }
+            });
+            clients[t].start();
+        }
+        for (Thread client : clients)
+            client.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int count = served.get();
+        long[] sorted = Arrays.copyOf(times, count);
+        Arrays.sort(sorted);
+        double p50 = count == 0 ? 0 : sorted[count / 2] / 1e6;
+        double p99 = count == 0 ? 0 : sorted[Math.min(count - 1, count * 99 / 100)] / 1e6;
+        return String.format("%7d %7d %7d %9.0f %9.1f %9.1f", count, busy.get(), failed.get(),
+                                                              count / seconds, p50, p99);
+    }
+
+    /**
+     * Connects to the server, waits for the given delay, asks for the file,
+     * and reads the reply.  Returns the server's first line, or "incomplete
+     * file" if the file is not received in full.  If the
+     * connection fails, the error is returned instead.
+     */
+    private static String download(int delay) {
+        try (Socket connection = new Socket("localhost", PORT)) {
+            connection.setSoTimeout(60000);
+            Thread.sleep(delay);
+            OutputStream out = connection.getOutputStream();
+            out.write("get small.txt\n".getBytes("UTF-8"));
+            out.flush();
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            StringBuilder header = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n')
+                header.append((char)b);
+            String reply = header.toString().trim();
+            if (reply.startsWith("ok ")) {
+                long length = Long.parseLong(reply.substring(3));
+                for (long i = 0; i < length; i++) {
+                    if (in.read() < 0)
+                        return "incomplete file";
+                }
+            }
+            return reply;
+        }
+        catch (Exception e) {
+            return e.toString();
+        }
+    }
+
+}
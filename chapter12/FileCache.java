@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A FileCache keeps the contents of recently used files in memory, so that
+ * a server that sends the same small files over and over does not have to
+ * open and read each file for every request.  The contents are stored in
+ * direct ByteBuffers, outside the Java heap, which can be written to a
+ * socket's channel without being copied first.
+ *
+ * The cache has a budget, a maximum number of bytes that it can hold.  When
+ * adding a file would go over the budget, the least recently used files are
+ * removed from the cache to make room.  (This is done with a LinkedHashMap
+ * in access order, which keeps its entries in order from least recently used
+ * to most recently used.)  Files that are bigger than a given size are never
+ * cached, since they would push out too many small files.
+ *
+ * Every time a file is requested, its last-modified time and size are
+ * checked, and if either one is different from when the file was cached,
+ * the cached copy is thrown away and the file is read again.  (A change
+ * to a file that does not change its size, made within the resolution of
+ * the file system's modification times, can't be detected in this way.)
+ * The cache counts hits and misses, which can be used to tell whether it
+ * is doing any good.
+ *
+ * A FileCache can be used by several threads at the same time.  Files are
+ * read without holding the lock on the cache, so a thread that is reading
+ * a file does not hold up threads that find their files in the cache.
+ */
+public class FileCache {
+
+    /**
+     * The contents of one file, with the modification time and size that
+     * the file had when it was read.
+     */
+    private static class Entry {
+        final long lastModified;
+        final long size;
+        final ByteBuffer data;  // Read-only; duplicates are handed out.
+        Entry(long lastModified, long size, ByteBuffer data) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private final long maxBytes;      // The budget.
+    private final long maxFileSize;   // Bigger files are not cached.
+    private final LinkedHashMap<String,Entry> entries;  // Keys are file paths.  Guarded by "this".
+    private long cachedBytes;         // Total size of the entries.  Guarded by "this".
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache with a given budget, which caches files up to a given size.
+     * @param maxBytes the maximum total size, in bytes, of the files in the cache.
+     * @param maxFileSize the size, in bytes, of the biggest file that will be cached.
+     */
+    public FileCache(long maxBytes, long maxFileSize) {
+        if (maxBytes <= 0 || maxFileSize <= 0)
+            throw new IllegalArgumentException("The sizes must be positive.");
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(maxBytes, Integer.MAX_VALUE));
+        entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the contents of a file, from the cache if the cached copy is up to
+     * date, or else by reading the file and (if it is not too big) adding it to
+     * the cache.  The return value is a new buffer that shares its contents with
+     * the cache, so the caller can change its position and limit, but not its
+     * contents.
+     * @return the contents of the file, or null if the file is too big to be cached.
+     * @throws IOException if the file can't be read.
+     */
+    public ByteBuffer get(File file) throws IOException {
+        String key = file.getPath();
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        synchronized(this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.lastModified == lastModified && entry.size == size) {
+                    hits.incrementAndGet();
+                    return entry.data.duplicate();
+                }
+                remove(key);  // The file has changed.
+            }
+        }
+        misses.incrementAndGet();
+        if (size > maxFileSize)
+            return null;
+        ByteBuffer data = ByteBuffer.allocateDirect((int)size);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0)
+                    break;  // The file has become shorter.
+            }
+        }
+        data.flip();
+        attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (attributes.lastModifiedTime().toMillis() != lastModified || attributes.size() != size
+                                                          || data.remaining() != size) {
+            return data;  // The file changed while it was being read; don't cache this copy.
+        }
+        data = data.asReadOnlyBuffer();
+        synchronized(this) {
+            remove(key);  // (In case another thread read the same file at the same time.)
+            entries.put(key, new Entry(lastModified, size, data));
+            cachedBytes += size;
+            Iterator<Entry> iter = entries.values().iterator();
+            while (cachedBytes > maxBytes && iter.hasNext()) {
+                Entry oldest = iter.next();  // (The least recently used entry.)
+                iter.remove();
+                cachedBytes -= oldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+        return data.duplicate();
+    }
+
+    /**
+     * Removes a file from the cache, if it is there.  Files that change are
+     * removed automatically, but this can be used to free memory sooner.
+     */
+    synchronized public void invalidate(File file) {
+        remove(file.getPath());
+    }
+
+    /**
+     * Removes everything from the cache.
+     */
+    synchronized public void clear() {
+        entries.clear();
+        cachedBytes = 0;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            cachedBytes -= entry.size;
+    }
+
+    /**
+     * Returns the number of requests that were answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests for which the file had to be read, because
+     * it was not in the cache, it had changed, or it was too big to be cached.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of files that have been removed from the cache to
+     * make room for other files.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of files in the cache.
+     */
+    synchronized public int getFileCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the files in the cache, in bytes.
+     */
+    synchronized public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Returns the budget, the maximum number of bytes that the cache can hold.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns a one-line summary of the counters, for a log or a report.
+     */
+    public String toString() {
+        long h = getHits();
+        long m = getMisses();
+        return String.format("%d hits, %d misses (%.1f%% hits), %d evictions, %d files, %d of %d bytes",
+                h, m, h + m == 0 ? 0.0 : 100.0*h/(h + m), getEvictions(), getFileCount(),
+                getCachedBytes(), maxBytes);
+    }
+
+}
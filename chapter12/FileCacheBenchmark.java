@@ -0,0 +1,198 @@
+import java.net.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This program measures how much a FileCache speeds up a ThreadedFileServer
+ * that serves the same small files over and over.  It creates a directory of
+ * small files, starts a server on port 3214, and runs several client threads,
+ * each of which asks for files chosen at random over its own keep-alive
+ * connection, one request at a time.  This is done with no cache, with a
+ * cache that is big enough for all the files, and with a cache that can hold
+ * only half of them, so that files are evicted and read again.  For each
+ * case, the program reports the number of requests per second and the cache's
+ * counters.  At the end, it changes one of the files and checks that the
+ * server sends the new contents, not the ones in the cache.
+ *
+ * Usage:  java FileCacheBenchmark [files] [file-size] [client-threads] [seconds]
+ *
+ * The default is 300 files of 4096 bytes, 4 client threads, and 5 seconds
+ * for each case.  The server's log is not shown.
+ */
+public class FileCacheBenchmark {
+
+    private static final int PORT = 3214;
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        File directory = Files.createTempDirectory("filecache").toFile();
+        byte[] data = new byte[fileSize];
+        String[] names = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            names[i] = "file" + i + ".dat";
+            Arrays.fill(data, (byte)i);
+            try (OutputStream out = new FileOutputStream(new File(directory, names[i]))) {
+                out.write(data);
+            }
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // Hide the server's log.
+        String[] cases = { "No cache", "Cache holds all files", "Cache holds half the files" };
+        long totalBytes = (long)fileCount * fileSize;
+        double[] rates = new double[cases.length];
+        String[] counters = new String[cases.length];
+        FileCache cache = null;
+        ThreadedFileServer server = null;
+        Thread listener = null;
+        for (int c = 0; c < cases.length; c++) {
+            cache = null;
+            if (c == 1)
+                cache = new FileCache(totalBytes + 1024*1024, fileSize);
+            else if (c == 2)
+                cache = new FileCache(totalBytes / 2, fileSize);
+            server = new ThreadedFileServer(directory, PORT);
+            server.setCache(cache);
+            listener = startServer(server, console);
+            rates[c] = run(names, fileSize, threadCount, seconds);
+            counters[c] = (cache == null) ? "" : cache.toString();
+            console.printf("%-28s %10.0f requests/second%n", cases[c], rates[c]);
+            if (c < cases.length - 1) {
+                server.shutDown(5000);
+                listener.join();
+            }
+        }
+
+        /* Change a file while the last server is running, and check that the new
+           contents are sent.  The size is changed as well as the contents, since
+           the modification time might not change if the file system's clock is
+           not fine enough. */
+
+        File changed = new File(directory, names[0]);
+        byte[] newData = new byte[fileSize + 1];
+        Arrays.fill(newData, (byte)99);
+        try (OutputStream out = new FileOutputStream(changed)) {
+            out.write(newData);
+        }
+        byte[] received = download(names[0]);
+        boolean updated = Arrays.equals(received, newData);
+        server.shutDown(5000);
+
+        for (String name : names)
+            new File(directory, name).delete();
+        directory.delete();
+        console.println();
+        console.printf("%d files of %d bytes, %d client threads%n", fileCount, fileSize, threadCount);
+        for (int c = 0; c < cases.length; c++) {
+            console.printf("%-28s %10.0f requests/second   %s%n", cases[c], rates[c], counters[c]);
+        }
+        console.println("After a file was changed, the server sent "
+                                    + (updated ? "the new contents." : "the OLD CONTENTS!"));
+        System.exit(0);
+    }
+
+    /**
+     * Starts a thread that runs a server, and gives it time to start listening.
+     */
+    private static Thread startServer(ThreadedFileServer server, PrintStream console) throws Exception {
+        Thread listener = new Thread( () -> {
+            try {
+                server.listen();
+            }
+            catch (IOException e) {
+                console.println("Server error: " + e);
+            }
+        });
+        listener.start();
+        Thread.sleep(500);
+        return listener;
+    }
+
+    /**
+     * Runs the client threads for the given number of seconds, and returns the
+     * number of requests per second that they made, all together.
+     */
+    private static double run(String[] names, int fileSize, int threadCount, int seconds) throws Exception {
+        long[] requests = new long[threadCount];
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] clients = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int id = t;
+            clients[t] = new Thread( () -> {
+                Random random = new Random(id);
+                try (Socket connection = new Socket("localhost", PORT)) {
+                    connection.setTcpNoDelay(true);
+                    OutputStream out = connection.getOutputStream();
+                    DataInputStream in = new DataInputStream(
+                                             new BufferedInputStream(connection.getInputStream()));
+                    out.write("keepalive\n".getBytes("UTF-8"));
+                    out.flush();
+                    readLine(in);
+                    byte[] buffer = new byte[fileSize];
+                    while (System.currentTimeMillis() < deadline) {
+                        String name = names[random.nextInt(names.length)];
+                        out.write(("get " + name + "\n").getBytes("UTF-8"));
+                        out.flush();
+                        String header = readLine(in);
+                        if ( ! header.equals("ok " + fileSize) )
+                            throw new IOException("Server said \"" + header + "\"");
+                        in.readFully(buffer);
+                        requests[id]++;
+                    }
+                    out.write("quit\n".getBytes("UTF-8"));
+                    out.flush();
+                }
+                catch (IOException e) {
+                    System.err.println("Client error: " + e);
+                }
+            });
+            clients[t].start();
+        }
+        long start = System.nanoTime();
+        long total = 0;
+        for (int t = 0; t < threadCount; t++) {
+            clients[t].join();
+            total += requests[t];
+        }
+        return total / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Downloads one file over a new connection, and returns its contents.
+     */
+    private static byte[] download(String name) throws IOException {
+        try (Socket connection = new Socket("localhost", PORT)) {
+            OutputStream out = connection.getOutputStream();
+            DataInputStream in = new DataInputStream(
+                                     new BufferedInputStream(connection.getInputStream()));
+            out.write(("get " + name + "\n").getBytes("UTF-8"));
+            out.flush();
+            String header = readLine(in);
+            if ( ! header.startsWith("ok ") )
+                throw new IOException("Server said \"" + header + "\"");
+            byte[] data = new byte[Integer.parseInt(header.substring(3))];
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    /**
+     * Reads a line, one byte at a time, so that the data after it is not used up.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r')
+                line.append((char)b);
+        }
+        return line.toString();
+    }
+
+}
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A FileIndexer makes a list of all the files in a directory and its
+ * subdirectories, with the size, modification time, and SHA-256 hash of
+ * each file.  A client can compare such a list with its own copies of the
+ * files, to find out which files have changed, without downloading them.
+ *
+ * The directory tree is walked in parallel, using the fork/join framework:
+ * the task for a directory forks a task for each of its subdirectories, and
+ * then handles its own files with a task that splits the list of files in
+ * half, forking one half, until the list is short enough to handle directly.
+ * The tasks run in the common ForkJoinPool.
+ *
+ * Computing the hash of a file means reading the whole file, so hashes are
+ * remembered from one call of index() to the next, along with the
+ * modification time and size of the file when its hash was computed.  The
+ * hash is computed again only if one of them has changed.  (Hashes for files
+ * that no longer exist are forgotten at the end of each call.)  Symbolic
+ * links to directories are not followed, so the walk can't go around in
+ * circles.
+ */
+public class FileIndexer {
+
+    /**
+     * The information about one file.  The path is relative to the directory
+     * that is being indexed, with '/' between the names of directories.
+     */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long lastModified;  // In milliseconds, as for File.lastModified().
+        public final String hash;        // SHA-256, in hexadecimal.
+        Entry(String path, long size, long lastModified, String hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+        /**
+         * Returns the entry in the form used by the "index -r" command of
+         * ThreadedFileServer:  "<size> <last-modified> <hash> <path>".
+         * The path comes last, since it can contain spaces.
+         */
+        public String toString() {
+            return size + " " + lastModified + " " + hash + " " + path;
+        }
+    }
+
+    /**
+     * Files in a list are hashed by a single task when there are this many
+     * of them or fewer; a longer list is split in half.
+     */
+    private static final int FILES_PER_TASK = 8;
+
+    private final File root;
+    private final ConcurrentHashMap<String,Entry> hashes;  // Keys are paths.
+    private final AtomicLong hashesComputed = new AtomicLong();
+    private final AtomicLong hashesReused = new AtomicLong();
+
+    /**
+     * Creates an indexer for a given directory.  Nothing is done until
+     * index() is called.
+     */
+    public FileIndexer(File root) {
+        this.root = root;
+        hashes = new ConcurrentHashMap<String,Entry>();
+    }
+
+    /**
+     * Walks the directory tree and returns an entry for every file in it,
+     * sorted by path.  This can be called by several threads at once.
+     * @throws IOException if a file can't be read.
+     */
+    public List<Entry> index() throws IOException {
+        List<Entry> entries;
+        try {
+            entries = ForkJoinPool.commonPool().invoke(new DirectoryTask(root, ""));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Collections.sort(entries, (a,b) -> a.path.compareTo(b.path));
+        HashSet<String> paths = new HashSet<String>();
+        for (Entry entry : entries)
+            paths.add(entry.path);
+        hashes.keySet().retainAll(paths);
+        return entries;
+    }
+
+    /**
+     * Returns the number of times that a file's hash has had to be computed.
+     */
+    public long getHashesComputed() {
+        return hashesComputed.get();
+    }
+
+    /**
+     * Returns the number of times that a remembered hash could be used.
+     */
+    public long getHashesReused() {
+        return hashesReused.get();
+    }
+
+    /**
+     * The task that indexes one directory and everything in it.
+     */
+    private class DirectoryTask extends RecursiveTask<List<Entry>> {
+        final File directory;
+        final String prefix;  // The path of the directory, ending with "/", or "" for the root.
+        DirectoryTask(File directory, String prefix) {
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+        protected List<Entry> compute() {
+            File[] children = directory.listFiles();
+            if (children == null)
+                return new ArrayList<Entry>();  // (Not a directory, or can't be read.)
+            ArrayList<File> files = new ArrayList<File>();
+            ArrayList<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    if ( ! Files.isSymbolicLink(child.toPath()) ) {
+                        DirectoryTask task = new DirectoryTask(child, prefix + child.getName() + "/");
+                        task.fork();
+                        subtasks.add(task);
+                    }
+                }
+                else if (child.isFile()) {
+                    files.add(child);
+                }
+            }
+            List<Entry> entries = new FilesTask(files.toArray(new File[files.size()]),
+                                                     prefix, 0, files.size()).compute();
+            for (DirectoryTask task : subtasks)
+                entries.addAll(task.join());
+            return entries;
+        }
+    }
+
+    /**
+     * The task that makes entries for the files files[lo] through files[hi-1],
+     * which are all in the same directory.
+     */
+    private class FilesTask extends RecursiveTask<List<Entry>> {
+        final File[] files;
+        final String prefix;
+        final int lo, hi;
+        FilesTask(File[] files, String prefix, int lo, int hi) {
+            this.files = files;
+            this.prefix = prefix;
+            this.lo = lo;
+            this.hi = hi;
+        }
+        protected List<Entry> compute() {
+            if (hi - lo > FILES_PER_TASK) {
+                int mid = (lo + hi) / 2;
+                FilesTask first = new FilesTask(files, prefix, lo, mid);
+                first.fork();
+                List<Entry> entries = new FilesTask(files, prefix, mid, hi).compute();
+                entries.addAll(first.join());
+                return entries;
+            }
+            ArrayList<Entry> entries = new ArrayList<Entry>();
+            for (int i = lo; i < hi; i++) {
+                try {
+                    entries.add(entryFor(files[i], prefix + files[i].getName()));
+                }
+                catch (FileNotFoundException | NoSuchFileException e) {
+                    // The file was deleted during the walk; leave it out.
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Returns the entry for a file, using the remembered hash if the file's
+     * modification time and size have not changed.
+     */
+    private Entry entryFor(File file, String path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        Entry entry = hashes.get(path);
+        if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+            hashesReused.incrementAndGet();
+            return entry;
+        }
+        entry = new Entry(path, size, lastModified, hash(file));
+        hashesComputed.incrementAndGet();
+        hashes.put(path, entry);
+        return entry;
+    }
+
+    /**
+     * Computes the SHA-256 hash of the contents of a file, as a string of 64
+     * hexadecimal digits.
+     */
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available.");  // (Every Java has it.)
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+
+}
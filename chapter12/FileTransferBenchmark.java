@@ -0,0 +1,163 @@
+import java.net.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * This program compares two ways for a file server to send a file:
+ * reading it line by line with a BufferedReader and sending each
+ * line with a PrintWriter, as ThreadedFileServer used to do, and
+ * copying its bytes straight to the network with FileChannel.transferTo(),
+ * as ThreadedFileServer does now.  The program starts a ThreadedFileServer
+ * (on its usual port, 3210) to test the second way.  For the first way, it
+ * runs a small server of its own on port 3211 that uses the old code.
+ * For each file size, it creates a text file of that size, downloads it
+ * from each server, and reports the number of megabytes per second.
+ * The client reads the data and throws it away, so that the time to
+ * write the copy to a disk is not included.
+ *
+ * Usage:  java FileTransferBenchmark [directory] [size-in-MB ...]
+ *
+ * The files are created in the given directory, or in a new temporary
+ * directory if none is given, and they are deleted at the end.  The
+ * default sizes are 1, 100, and 2048 megabytes; the largest file needs
+ * 2 gigabytes of disk space.  Small files are downloaded several times,
+ * so that each test takes long enough to be measured.
+ */
+public class FileTransferBenchmark {
+
+    private static final int LINE_SERVER_PORT = 3211;
+
+    public static void main(String[] args) throws Exception {
+        File directory;
+        if (args.length > 0)
+            directory = new File(args[0]);
+        else
+            directory = Files.createTempDirectory("filetransfer").toFile();
+        int[] sizes = { 1, 100, 2048 };
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                sizes[i-1] = Integer.parseInt(args[i]);
+        }
+
+        Thread server = new Thread( () -> ThreadedFileServer.main(new String[] { directory.getPath() }) );
+        server.setDaemon(true);
+        server.start();
+        Thread lineServer = new Thread( () -> runLineServer(directory) );
+        lineServer.setDaemon(true);
+        lineServer.start();
+        Thread.sleep(500);  // Give the servers time to start listening.
+
+        double[][] rates = new double[sizes.length][2];
+        for (int i = 0; i < sizes.length; i++) {
+            long length = sizes[i] * 1024L * 1024L;
+            String name = "test-" + sizes[i] + "MB.txt";
+            File file = new File(directory, name);
+            System.out.println("Creating " + file + "...");
+            createTextFile(file, length);
+            int repeats = (int)Math.max(1, Math.min(50, (200L*1024*1024) / length));
+            download(LINE_SERVER_PORT, name, 1);     // (Warm up, so the file is in the
+            download(ThreadedFileServer.LISTENING_PORT, name, 1);  //   page cache for both tests.)
+            rates[i][0] = download(LINE_SERVER_PORT, name, repeats);
+            rates[i][1] = download(ThreadedFileServer.LISTENING_PORT, name, repeats);
+            file.delete();
+        }
+        if (args.length == 0)
+            directory.delete();
+
+        System.out.println();
+        System.out.printf("%10s %22s %22s%n", "File", "Lines (MB/s)", "transferTo (MB/s)");
+        for (int i = 0; i < sizes.length; i++)
+            System.out.printf("%8d MB %22.1f %22.1f%n", sizes[i], rates[i][0], rates[i][1]);
+        System.exit(0);
+    }
+
+    /**
+     * Downloads a file one or more times from the server on a given port, and
+     * returns the number of megabytes received per second.  If the server
+     * sends a length in its "ok" message, checks that the right number of bytes
+     * was received.
+     */
+    private static double download(int port, String name, int repeats) throws Exception {
+        byte[] buffer = new byte[64*1024];
+        long received = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            try (Socket connection = new Socket("localhost", port)) {
+                PrintWriter out = new PrintWriter(connection.getOutputStream());
+                out.println("get " + name);
+                out.flush();
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                StringBuilder header = new StringBuilder();
+                int b;
+                while ((b = in.read()) >= 0 && b != '\n')
+                    header.append((char)b);
+                if ( ! header.toString().startsWith("ok") )
+                    throw new Exception("Server said \"" + header + "\"");
+                long count = 0;
+                while (true) {
+                    int n = in.read(buffer);
+                    if (n < 0)
+                        break;
+                    count += n;
+                }
+                if (header.length() > 2 && count != Long.parseLong(header.substring(3)))
+                    throw new Exception("Expected " + header.substring(3) + " bytes, got " + count);
+                received += count;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return received / seconds / (1024*1024);
+    }
+
+    /**
+     * Creates a text file of a given length, made of lines of random letters.
+     * To save time, the same megabyte of lines is written over and over.
+     */
+    private static void createTextFile(File file, long length) throws IOException {
+        byte[] block = new byte[1024*1024];
+        Random random = new Random(42);
+        for (int i = 0; i < block.length; i++)
+            block[i] = (i % 80 == 79) ? (byte)'\n' : (byte)('a' + random.nextInt(26));
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < length; written += block.length)
+                out.write(block, 0, (int)Math.min(block.length, length - written));
+        }
+    }
+
+    /**
+     * Runs a one-thread server that answers "get <file-name>" with "ok"
+     * followed by the lines of the file, the way ThreadedFileServer used to.
+     */
+    private static void runLineServer(File directory) {
+        try (ServerSocket listener = new ServerSocket(LINE_SERVER_PORT)) {
+            while (true) {
+                try (Socket connection = listener.accept()) {
+                    BufferedReader incoming = new BufferedReader(
+                                    new InputStreamReader(connection.getInputStream()) );
+                    PrintWriter outgoing = new PrintWriter( connection.getOutputStream() );
+                    String fileName = incoming.readLine().substring(3).trim();
+                    outgoing.println("ok");
+                    try (BufferedReader fileIn = new BufferedReader(
+                                           new FileReader(new File(directory,fileName))) ) {
+                        while (true) {
+                            String line = fileIn.readLine();
+                            if (line == null)
+                                break;
+                            outgoing.println(line);
+                        }
+                    }
+                    outgoing.flush();
+                }
+                catch (Exception e) {
+                    System.out.println("Line server: " + e);
+                }
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Line server can't listen on port " + LINE_SERVER_PORT + ": " + e);
+        }
+    }
+
+}
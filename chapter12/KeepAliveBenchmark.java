@@ -0,0 +1,166 @@
+import java.net.*;
+import java.io.*;
+import java.nio.file.Files;
+
+/**
+ * This program measures how fast many small files can be downloaded from
+ * a ThreadedFileServer in three different ways:  with a new connection for
+ * each file, with one keep-alive connection on which the client waits for
+ * each reply before sending the next command, and with one keep-alive
+ * connection on which all the commands are sent at once ("pipelined") by
+ * a separate thread.  The program starts the server itself, on its usual
+ * port, 3210, and creates the files in a new temporary directory, which is
+ * deleted at the end.  For each way, it reports the number of files per
+ * second.  The client reads the files and throws them away.  (The server
+ * still prints a line for each command; those lines are thrown away too.)
+ *
+ * Usage:  java KeepAliveBenchmark [files] [file-size]
+ *
+ * The default is 500 files of 4096 bytes each.  Each way of downloading
+ * the files is run three times, and the best time is reported.
+ */
+public class KeepAliveBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+        File directory = Files.createTempDirectory("keepalive").toFile();
+        byte[] data = new byte[fileSize];
+        for (int i = 0; i < fileSize; i++)
+            data[i] = (byte)('a' + i % 26);
+        String[] names = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            names[i] = "file" + i + ".txt";
+            try (OutputStream out = new FileOutputStream(new File(directory, names[i]))) {
+                out.write(data);
+            }
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // Hide the server's log.
+        Thread server = new Thread( () -> ThreadedFileServer.main(new String[] { directory.getPath() }) );
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);  // Give the server time to start listening.
+
+        String[] ways = { "Connection per file", "Keep-alive", "Keep-alive, pipelined" };
+        double[] rates = new double[ways.length];
+        for (int way = 0; way < ways.length; way++) {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                long bytes;
+                if (way == 0)
+                    bytes = downloadSeparately(names);
+                else
+                    bytes = downloadOverOneConnection(names, way == 2);
+                best = Math.min(best, System.nanoTime() - start);
+                if (bytes != (long)fileCount * fileSize)
+                    throw new Exception(ways[way] + ": received " + bytes + " bytes.");
+            }
+            rates[way] = fileCount / (best / 1e9);
+        }
+
+        for (String name : names)
+            new File(directory, name).delete();
+        directory.delete();
+        console.println();
+        console.printf("%d files of %d bytes%n", fileCount, fileSize);
+        for (int way = 0; way < ways.length; way++)
+            console.printf("%-24s %10.0f files/second%n", ways[way], rates[way]);
+        System.exit(0);
+    }
+
+    /**
+     * Downloads each file over its own connection, and returns the total
+     * number of bytes received.
+     */
+    private static long downloadSeparately(String[] names) throws IOException {
+        long bytes = 0;
+        for (String name : names) {
+            try (Socket connection = new Socket("localhost", ThreadedFileServer.LISTENING_PORT)) {
+                PrintWriter out = new PrintWriter(connection.getOutputStream());
+                out.println("get " + name);
+                out.flush();
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                bytes += readReply(in);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Downloads all the files over one keep-alive connection, and returns the
+     * total number of bytes received.  If pipelined is true, the commands are
+     * all sent by another thread without waiting for the replies; otherwise,
+     * each command is sent after the reply to the previous one has been read.
+     */
+    private static long downloadOverOneConnection(String[] names, boolean pipelined) throws Exception {
+        try (Socket connection = new Socket("localhost", ThreadedFileServer.LISTENING_PORT)) {
+            connection.setTcpNoDelay(true);
+            PrintWriter out = new PrintWriter(connection.getOutputStream());
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            out.println("keepalive");
+            out.flush();
+            if ( ! readLine(in).equals("ok") )
+                throw new IOException("The server does not support keep-alive connections.");
+            long bytes = 0;
+            if (pipelined) {
+                Thread sender = new Thread( () -> {
+                    for (String name : names)
+                        out.println("get " + name);
+                    out.println("quit");
+                    out.flush();
+                });
+                sender.start();
+                for (int i = 0; i < names.length; i++)
+                    bytes += readReply(in);
+                sender.join();
+            }
+            else {
+                for (String name : names) {
+                    out.println("get " + name);
+                    out.flush();
+                    bytes += readReply(in);
+                }
+                out.println("quit");
+                out.flush();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Reads an "ok <length>" line and the data that follows it, and returns
+     * the length.
+     */
+    private static long readReply(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null || ! header.startsWith("ok "))
+            throw new IOException("Server said \"" + header + "\"");
+        long length = Long.parseLong(header.substring(3));
+        for (long i = 0; i < length; i++) {
+            if (in.read() < 0)
+                throw new IOException("Connection closed in the middle of a file.");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a line, one byte at a time, so that the data after it is not used up.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b = in.read();
+        if (b < 0)
+            return null;
+        while (b >= 0 && b != '\n') {
+            if (b != '\r')
+                line.append((char)b);
+            b = in.read();
+        }
+        return line.toString();
+    }
+
+}
@@ -1,7 +1,14 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.lang.reflect.Method;
 import java.util.Scanner;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.*;
+import java.util.concurrent.*;
 
 /**
  * This program is a very simple network file server.  The 
@@ -12,70 +19,259 @@ import java.util.concurrent.ArrayBlockingQueue;
  * "index" or "get <file-name>".  The server replies to
  * the first command by sending the list of available files.
  * It responds to the second with a one-line message,
- * either "ok" or "error".  If the message is "ok", it is
- * followed by the contents of the file with the specified
- * name.  The "error" message indicates that the specified
- * file does not exist on the server. (The server can also
- * respond with the message "unknown command" if the command
- * it reads is not one of the two possible legal commands.)
+ * either "ok <length>" or "error".  If the message is "ok",
+ * it is followed by exactly <length> bytes, the contents
+ * of the file with the specified name.  The "error" message
+ * indicates that the specified file does not exist on the
+ * server. (The server can also respond with the message
+ * "unknown command" if the command it reads is not one of
+ * the two possible legal commands.)  The commands are not
+ * case-sensitive.
  * 
  * The server program requires a command-line parameter
  * that specifies the directory that contains the files
- * that the server can serve.  The files should all be
- * text files, but this is not checked.  Also, the server
- * must have permission to read all the files.
+ * that the server can serve.  The server must have
+ * permission to read all the files.  Since the contents
+ * of a file are sent as bytes, exactly as they are stored,
+ * the files can be binary files as well as text files.
+ * The bytes are copied from the file to the network
+ * with FileChannel.transferTo(), which lets the operating
+ * system send them without copying them into the program.
+ * 
+ * A client can also ask for part of a file with the command
+ * "get <file-name> <offset> <length>", where <offset> and
+ * <length> are non-negative integers.  The server sends the
+ * bytes starting at position <offset> in the file, up to
+ * <length> of them (fewer, if the file ends first).  Its
+ * reply starts with "ok <count> <file-size>", where <count>
+ * is the number of bytes that follow and <file-size> is the
+ * length of the whole file.  This lets a client resume a
+ * download that was interrupted, or download a large file
+ * in several pieces at the same time.  (A "get" command
+ * whose file name ends with two numbers is taken to be a
+ * request for part of a file only if there is no file with
+ * the whole name.  A number that is too big for a long is
+ * taken to be Long.MAX_VALUE, so an offset that is too big
+ * gets the same reply as any other offset that is past the
+ * end of the file.)
+ * 
+ * Normally, the server closes the connection after carrying
+ * out one command.  If the first line that the client sends
+ * is "keepalive", the server replies "ok" and then carries
+ * out any number of commands over the same connection,
+ * until the client sends "quit" or closes the connection.
+ * On a keep-alive connection, every reply is framed so that
+ * the client can tell where it ends:  it is either a line
+ * that starts with "ok <length>" followed by <length> bytes
+ * (for an index, the list of file names, one per line, in
+ * UTF-8), or a line that starts with "error", with no data.
+ * The commands are carried out in the order in which they
+ * are received, so a client can send many commands without
+ * waiting for the replies ("pipelining"), and the replies
+ * come back in the same order.  A connection that is idle
+ * for too long is closed by the server, since it ties up
+ * one of the threads in the thread pool.
  * 
  * This version of the program defines a multithreaded
  * server that uses a thread pool.  The threads handle
  * all communication with the clients.  The main program
- * simply accepts connections and puts them into a queue.
- * The connection-handling threads in the thread pool remove
- * connections from the queue as they become available.
+ * simply accepts connections and hands them to the pool,
+ * which is a ThreadPoolExecutor.  A connection waits in the
+ * pool's queue until a thread is free.  The pool starts with
+ * a "core" number of threads; when the queue is full, more
+ * threads are added, up to a maximum, and the extra threads
+ * end after they have been idle for a minute.  When all the
+ * threads are busy and the queue is full, the server is
+ * overloaded.  By default, it then stops accepting
+ * connections until there is room in the queue, so that
+ * new clients wait in the operating system's backlog of
+ * connection requests.  Alternatively, it can accept each
+ * new connection, reply "error server busy", and close it,
+ * so that the client finds out at once.  On Java 21 and
+ * later, the server can instead run each connection in its
+ * own virtual thread, with a limit on the number of
+ * connections that are served at the same time.
+ * 
+ * The sizes and the overload policy can be set with options
+ * on the command line, before the directory name:
+ * 
+ *    -pool <core> <max>      the number of threads in the pool
+ *    -queue <size>           the length of the queue
+ *    -reject                 reply "busy" when overloaded
+ *    -virtual <max>          one virtual thread per connection,
+ *                              up to <max> connections at once
+ *    -cache <megabytes>      keep recently used files in memory
+ * 
+ * With the -cache option, the server keeps the contents of
+ * files that it has sent in a FileCache, up to the given
+ * number of megabytes, so that a file that is requested
+ * often does not have to be read from disk every time.
+ * Only files up to MAX_CACHED_FILE_SIZE bytes are cached.
+ * The hits and misses are reported when the server shuts down.
+ * 
+ * The command "index -r" asks for a list of all the files in
+ * the directory and its subdirectories, with one line for each
+ * file:  "<size> <last-modified> <hash> <path>", where the
+ * last-modified time is in milliseconds, the hash is the
+ * SHA-256 hash of the file's contents in hexadecimal, and the
+ * path is relative to the server's directory, with "/" between
+ * names.  The path can be used in a "get" command.  The list
+ * is made by a FileIndexer, which walks the tree in parallel
+ * and remembers the hashes, so that they are only computed
+ * again for files that have changed.  A client can use the
+ * list to find the files that are different from its own
+ * copies.  (A "get" command can't reach outside the server's
+ * directory; a path that contains ".." and leads outside it
+ * gets an error reply.)
+ * 
+ * When the program is terminated by CONTROL-C, it shuts down
+ * gracefully:  it stops accepting connections, finishes the
+ * commands that it is working on, and closes the keep-alive
+ * connections after their current replies, waiting up to
+ * SHUTDOWN_GRACE_PERIOD milliseconds before it gives up.
+ * The server can also be run from another program, by
+ * creating a ThreadedFileServer object, calling its listen()
+ * method in some thread, and eventually calling shutDown().
  */
 public class ThreadedFileServer {
 
     static final int LISTENING_PORT = 3210;
+
+    /**
+     * Matches the rest of a "get" command that asks for part of a file:
+     * a file name followed by an offset and a length.
+     */
+    private static final Pattern RANGE = Pattern.compile("(.*\\S)\\s+(\\d{1,19})\\s+(\\d{1,19})");
+    
+    /**
+     * How long, in milliseconds, a connection can wait for the
+     * client's next command before the server closes it.
+     */
+    private static final int IDLE_TIMEOUT = 30000;
+    
+    /**
+     * The default number of core threads in the thread pool.
+     */
+    private static final int DEFAULT_CORE_POOL_SIZE = 10;
+    
+    /**
+     * The default maximum number of threads in the thread pool.
+     */
+    private static final int DEFAULT_MAX_POOL_SIZE = 100;
+    
+    /**
+     * The default length of the queue of connections.  This
+     * should not be too big, since connections in the queue are
+     * waiting for service and hopefully won't spend too long in
+     * the queue.  (Also, the pool only grows past its core size
+     * when the queue is full.)
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 20;
     
     /**
-     * The number of threads in the thread pool.
+     * The length of the operating system's queue of connection
+     * requests that have not yet been accepted.  Clients wait
+     * there while the server is not accepting connections.
      */
-    private static final int THREAD_POOL_SIZE = 10;
+    private static final int LISTEN_BACKLOG = 1000;
     
     /**
-     * The length of the ArrayBlockingQueue of connections.
-     * This should not be too big, since connections in the
-     * queue are waiting for service and hopefully won't 
-     * spend too long in the queue.
+     * How long, in milliseconds, the program waits for connections
+     * to finish when it is shut down by CONTROL-C.
      */
-    private static final int CONNECTION_QUEUE_SIZE = 5;
+    private static final int SHUTDOWN_GRACE_PERIOD = 10000;
     
     /**
-     * The queue that is used to send connections from the
-     * main program to the connection-handling threads.
-     * A connection is represented by a connected Socket.
+     * The size of the biggest file that is kept in the cache, when
+     * the -cache option is used.  Bigger files are sent straight from
+     * the disk with FileChannel.transferTo().
      */
-    private static ArrayBlockingQueue<Socket> connectionQueue;
+    private static final int MAX_CACHED_FILE_SIZE = 1024*1024;
+    
+    
+    private final File directory;   // The directory that contains the files
+                                    //   that are made available on this server.
+    private final Path root;        // The directory's absolute, normalized path.
+    private final FileIndexer indexer;  // Makes the lists for "index -r".
+    private final int port;         // The port on which the server listens.
+    private int corePoolSize = DEFAULT_CORE_POOL_SIZE;
+    private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean rejectWhenBusy;    // Reply "busy" instead of waiting when overloaded?
+    private int maxVirtualThreads;     // If > 0, use that many virtual threads at most.
+    private FileCache cache;           // If not null, holds recently sent files.
     
+    private volatile ExecutorService executor;        // Runs the connections.
+    private volatile Semaphore virtualThreadPermits;  // Limits connections in virtual threads.
+    private volatile ServerSocketChannel listener;    // Listens for connection requests.
+    private volatile boolean shuttingDown;            // Set to true by shutDown().
     
     /**
-     * Main program creates the thread pool, then opens a
-     * server socket to listen for connection requests.
+     * The connections that are being handled, so that they can be
+     * closed when the server is shut down.
+     */
+    private final Set<Socket> activeConnections = ConcurrentHashMap.newKeySet();
+    
+    
+    /**
+     * Main program reads the options and the directory name from the
+     * command line, creates the server, and runs it until the program is
+     * terminated, for example by a CONTROL-C.
      */
     public static void main(String[] args) {
 
         File directory;        // The directory from which the server
         //    gets the files that it serves.
 
-        ServerSocket listener; // Listens for connection requests.
-
-        Socket connection;     // A socket for communicating with a client.
+        ThreadedFileServer server;
 
 
-        /* Check that there is a command-line argument.
-         If not, print a usage message and end. */
+        /* Read the options, if any, and check that there is a
+         directory name after them.  If not, print a usage message
+         and end. */
 
-        if (args.length == 0) {
-            System.out.println("Usage:  java FileServer <directory>");
+        int core = DEFAULT_CORE_POOL_SIZE;
+        int max = DEFAULT_MAX_POOL_SIZE;
+        int queue = DEFAULT_QUEUE_SIZE;
+        boolean reject = false;
+        int virtual = 0;
+        int cacheMegabytes = 0;
+        int i = 0;
+        try {
+            while (i < args.length && args[i].startsWith("-")) {
+                if (args[i].equalsIgnoreCase("-pool")) {
+                    core = Integer.parseInt(args[i+1]);
+                    max = Integer.parseInt(args[i+2]);
+                    i += 3;
+                }
+                else if (args[i].equalsIgnoreCase("-queue")) {
+                    queue = Integer.parseInt(args[i+1]);
+                    i += 2;
+                }
+                else if (args[i].equalsIgnoreCase("-reject")) {
+                    reject = true;
+                    i += 1;
+                }
+                else if (args[i].equalsIgnoreCase("-virtual")) {
+                    virtual = Integer.parseInt(args[i+1]);
+                    i += 2;
+                }
+                else if (args[i].equalsIgnoreCase("-cache")) {
+                    cacheMegabytes = Integer.parseInt(args[i+1]);
+                    i += 2;
+                }
+                else
+                    break;
+            }
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            i = args.length;  // Causes the usage message to be printed.
+        }
+        if (i != args.length - 1 || core < 1 || max < core || queue < 1 || virtual < 0
+                                                           || cacheMegabytes < 0) {
+            System.out.println("Usage:  java ThreadedFileServer [options] <directory>");
+            System.out.println("Options:  -pool <core> <max>   -queue <size>   -reject"
+                                               + "   -virtual <max>   -cache <megabytes>");
             return;
         }
 
@@ -83,7 +279,7 @@ public class ThreadedFileServer {
          it into a file object.  Check that the file exists and
          is in fact a directory. */
 
-        directory = new File(args[0]);
+        directory = new File(args[i]);
         if ( ! directory.exists() ) {
             System.out.println("Specified directory does not exist.");
             return;
@@ -93,35 +289,27 @@ public class ThreadedFileServer {
             return;
         }
         
-        /* Create the connection queue.  We want to do this before 
-         * creating the threads, which need to use the queue. */
-        
-        connectionQueue = new ArrayBlockingQueue<Socket>(CONNECTION_QUEUE_SIZE);
-        
-        /* Create the thread pool and start the threads.  The directory
-         * that contains the files is passed to each thread as a
-         * parameter to its constructor.  Note that there is no
-         * need to keep references to the threads, since we don't have
-         * to do anything with them in this program after they have
-         * been started.*/
-        
-        for (int i = 0; i < THREAD_POOL_SIZE; i++) {
-            ConnectionHandler worker = new ConnectionHandler(directory);
-            worker.start();
-        }
+        /* Create the server.  The shutdown hook runs when the
+         program is terminated by CONTROL-C. */
+
+        server = new ThreadedFileServer(directory, LISTENING_PORT);
+        server.setPoolSize(core, max);
+        server.setQueueSize(queue);
+        server.setRejectWhenBusy(reject);
+        server.setVirtualThreads(virtual);
+        if (cacheMegabytes > 0)
+            server.setCache(new FileCache(cacheMegabytes * 1024L * 1024L, MAX_CACHED_FILE_SIZE));
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+            System.out.println("Shutting down...");
+            server.shutDown(SHUTDOWN_GRACE_PERIOD);
+            if (server.getCache() != null)
+                System.out.println("Cache:  " + server.getCache());
+        }) );
 
-        /* Listen for connection requests from clients.  For each 
-         * connection, add the connected socket to the connection
-         * queue.  The server runs until the program is terminated, 
-         * for example by a CONTROL-C. */
+        /* Listen for connection requests from clients. */
 
         try {
-            listener = new ServerSocket(LISTENING_PORT);
-            System.out.println("Listening on port " + LISTENING_PORT);
-            while (true) {
-                connection = listener.accept();
-                connectionQueue.add(connection);
-            }
+            server.listen();
         }
         catch (Exception e) {
             System.out.println("Server shut down unexpectedly.");
@@ -133,68 +321,329 @@ public class ThreadedFileServer {
 
 
     /**
-     * The class that defines the connection-handling threads in the
-     * thread pool.  The thread runs in an infinite loop in which
-     * it removes a connected socket from the connection queue and
-     * calls the handleConnection() method for that socket.
+     * Creates a server that will serve the files in a given directory.
+     * The server does not start listening until listen() is called.
+     */
+    public ThreadedFileServer(File directory, int port) {
+        this.directory = directory;
+        this.port = port;
+        root = directory.toPath().toAbsolutePath().normalize();
+        indexer = new FileIndexer(directory);
+    }
+    
+    /**
+     * Sets the core and maximum number of threads in the thread pool.
+     * This must be called before listen().
+     */
+    public void setPoolSize(int core, int max) {
+        if (core < 1 || max < core)
+            throw new IllegalArgumentException("Illegal pool size.");
+        corePoolSize = core;
+        maxPoolSize = max;
+    }
+    
+    /**
+     * Sets the length of the queue of connections that are waiting for a
+     * thread.  This must be called before listen().
+     */
+    public void setQueueSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("Illegal queue size.");
+        queueSize = size;
+    }
+    
+    /**
+     * Says what to do when the server is overloaded:  if reject is true, a
+     * new connection gets the reply "error server busy" and is closed;
+     * if false, the server does not accept new connections until it can
+     * take on another one.  This must be called before listen().
+     */
+    public void setRejectWhenBusy(boolean reject) {
+        rejectWhenBusy = reject;
+    }
+    
+    /**
+     * If max is greater than zero, each connection is run in its own virtual
+     * thread, and no more than max connections are served at the same time;
+     * the pool and queue sizes are then ignored.  If max is zero, the thread
+     * pool is used.  Virtual threads need Java 21 or later; on an older Java,
+     * the thread pool is used anyway.  This must be called before listen().
+     */
+    public void setVirtualThreads(int max) {
+        if (max < 0)
+            throw new IllegalArgumentException("Illegal number of virtual threads.");
+        maxVirtualThreads = max;
+    }
+    
+    /**
+     * Sets the cache that holds the contents of recently sent files, or
+     * turns off caching if the parameter is null.  This must be called
+     * before listen().
+     */
+    public void setCache(FileCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Returns the cache that was set by setCache(), or null if there is none.
+     */
+    public FileCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * Opens a server socket and accepts connections until shutDown() is
+     * called, handing each connection to the executor.  This method does
+     * not return until the server is shut down.
+     * @throws IOException if the server socket can't be opened, or if an
+     *    error occurs while accepting a connection.
+     */
+    public void listen() throws IOException {
+        executor = createExecutor();
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port), LISTEN_BACKLOG);
+        System.out.println("Listening on port " + port);
+        try {
+            while ( ! shuttingDown ) {
+                Socket connection = listener.socket().accept(); // (A socket with a channel, for sendFile().)
+                if (virtualThreadPermits != null)
+                    startVirtualThread(connection);
+                else
+                    executor.execute(new ConnectionTask(connection));
+            }
+        }
+        catch (IOException e) {
+            if ( ! shuttingDown )
+                throw e;
+        }
+    }
+    
+    /**
+     * Shuts down the server gracefully.  The server stops accepting
+     * connections.  Connections that have already been accepted are still
+     * served, but keep-alive connections end after their current command,
+     * and connections that are waiting for a command are closed.  If that
+     * has not all happened after a given number of milliseconds, the
+     * remaining connections are closed and the threads are interrupted.
+     */
+    public void shutDown(long graceMillis) {
+        shuttingDown = true;
+        try {
+            if (listener != null)
+                listener.close();
+        }
+        catch (IOException e) {
+        }
+        if (executor == null)
+            return;
+        executor.shutdown();
+        for (Socket connection : activeConnections) {
+            try {
+                connection.shutdownInput();  // A command that is waiting to be read never arrives.
+            }
+            catch (IOException e) {
+            }
+        }
+        try {
+            if (executor.awaitTermination(graceMillis, TimeUnit.MILLISECONDS))
+                return;
+        }
+        catch (InterruptedException e) {
+        }
+        executor.shutdownNow();
+        for (Socket connection : activeConnections) {
+            try {
+                connection.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+    
+    
+    /**
+     * Creates the executor that runs the connections.  For virtual threads,
+     * Executors.newVirtualThreadPerTaskExecutor() is called by reflection,
+     * so that this program can still be compiled and run on Java versions
+     * that don't have it.  Otherwise, a ThreadPoolExecutor is created.  Its
+     * threads are daemon threads, so they don't keep the program running.
+     */
+    private ExecutorService createExecutor() {
+        if (maxVirtualThreads > 0) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService virtualExecutor = (ExecutorService)factory.invoke(null);
+                virtualThreadPermits = new Semaphore(maxVirtualThreads);
+                return virtualExecutor;
+            }
+            catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available in this version"
+                                            + " of Java; using a thread pool.");
+            }
+        }
+        ThreadFactory daemonThreads = task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(corePoolSize, maxPoolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), daemonThreads, new OverloadHandler());
+    }
+
+    /**
+     * Runs a connection in a new virtual thread, if fewer than maxVirtualThreads
+     * connections are being served.  Otherwise, the connection is rejected, or
+     * this method waits until one of the connections ends.
+     */
+    private void startVirtualThread(Socket connection) {
+        if (rejectWhenBusy) {
+            if ( ! virtualThreadPermits.tryAcquire() ) {
+                sendBusy(connection);
+                return;
+            }
+        }
+        else {
+            try {
+                virtualThreadPermits.acquire();
+            }
+            catch (InterruptedException e) {
+                sendBusy(connection);
+                return;
+            }
+        }
+        try {
+            executor.execute( () -> {
+                try {
+                    handleConnection(connection);
+                }
+                finally {
+                    virtualThreadPermits.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {  // (The server is shutting down.)
+            virtualThreadPermits.release();
+            sendBusy(connection);
+        }
+    }
+
+    /**
+     * The task that is given to the thread pool for one connection.
+     * (This is a named class, rather than a lambda, so that the
+     * OverloadHandler can get the socket back out of it.)
      */
-    private static class ConnectionHandler extends Thread {
-        File directory;  // The directory that contains the files
-                         // that are made available on this server.
-        ConnectionHandler(File directory) {
-            this.directory = directory;
-            setDaemon(true);
+    private class ConnectionTask implements Runnable {
+        final Socket connection;
+        ConnectionTask(Socket connection) {
+            this.connection = connection;
         }
         public void run() {
-            while (true) {
+            handleConnection(connection);
+        }
+    }
+
+    /**
+     * Called by the thread pool when a connection can't be run because
+     * all the threads are busy and the queue is full, or because the
+     * pool has been shut down.  Unless the server is set to reject
+     * connections when it is busy, this waits for room in the queue,
+     * which keeps the main program from accepting more connections
+     * in the meantime.
+     */
+    private class OverloadHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+            Socket connection = ((ConnectionTask)task).connection;
+            if ( ! rejectWhenBusy && ! pool.isShutdown() ) {
                 try {
-                    Socket connection = connectionQueue.take();
-                    handleConnection(directory,connection);
+                    pool.getQueue().put(task);
+                    if ( ! pool.isShutdown() || ! pool.remove(task) )
+                        return;  // (If the pool was shut down while this was waiting,
+                                 //  the task might never be run, so it is taken back.)
                 }
-                catch (Exception e) {
+                catch (InterruptedException e) {
                 }
             }
+            sendBusy(connection);
         }
     }
+
+    /**
+     * Tells the client that the server is too busy to serve it, and closes
+     * the connection.  The reply is short enough that writing it does not
+     * block, so this does not hold up the main program.
+     */
+    private static void sendBusy(Socket connection) {
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write("error server busy\n".getBytes("UTF-8"));
+            out.flush();
+        }
+        catch (IOException e) {
+        }
+        finally {
+            try {
+                connection.close();
+            }
+            catch (IOException e) {
+            }
+        }
+        System.out.println("BUSY  " + connection.getInetAddress());
+    }
     
     
     /**
      * This method processes process the connection with one client.
      * It creates streams for communicating with the client,
      * reads a command from the client, and carries out that
-     * command.  The connection is also logged to standard output.
+     * command.  If the command is "keepalive", it goes on to
+     * read and carry out commands until the client sends "quit"
+     * or closes the connection, until no command arrives within
+     * IDLE_TIMEOUT milliseconds, or until the server is shut
+     * down.  Each command is also logged to standard output.
      * An output beginning with ERROR indicates that a network
      * error occurred.  A line beginning with OK means that
      * there was no network error, but does not imply that the
      * command from the client was a legal command.
      */
-    private static void handleConnection(File directory, Socket connection) {
+    private void handleConnection(Socket connection) {
         Scanner incoming;       // For reading data from the client.
         PrintWriter outgoing;   // For transmitting data to the client.
         String command = "Command not read";
+        activeConnections.add(connection);
         try {
-            incoming = new Scanner( connection.getInputStream() );
-            outgoing = new PrintWriter( connection.getOutputStream() );
+            connection.setSoTimeout(IDLE_TIMEOUT);
+            incoming = new Scanner( connection.getInputStream(), "UTF-8" );
+            outgoing = new PrintWriter( new OutputStreamWriter(
+                                     connection.getOutputStream(), "UTF-8") );
             command = incoming.nextLine();
-            if (command.equals("index")) {
-                sendIndex(directory, outgoing);
-            }
-            else if (command.startsWith("get")){
-                String fileName = command.substring(3).trim();
-                sendFile(fileName, directory, outgoing);
-            }
-            else {
-                outgoing.println("unsupported command");
-                outgoing.flush();
+            if ( ! command.equalsIgnoreCase("keepalive") ) {
+                carryOutCommand(command, false, connection, outgoing);
+                System.out.println("OK    " + connection.getInetAddress()
+                        + " " + command);
+                return;
             }
+            outgoing.println("ok");
+            outgoing.flush();
             System.out.println("OK    " + connection.getInetAddress()
                     + " " + command);
+            connection.setTcpNoDelay(true);  // Don't hold back the last part of a reply.
+            while ( ! shuttingDown && incoming.hasNextLine() ) {
+                    // (hasNextLine() is false at end-of-stream, after a timeout,
+                    // and after shutDown() has called connection.shutdownInput().)
+                command = incoming.nextLine();
+                if (command.equalsIgnoreCase("quit"))
+                    break;
+                carryOutCommand(command, true, connection, outgoing);
+                System.out.println("OK    " + connection.getInetAddress()
+                        + " " + command);
+            }
         }
         catch (Exception e) {
             System.out.println("ERROR " + connection.getInetAddress()
                     + " " + command + " " + e);
         }
         finally {
+            activeConnections.remove(connection);
             try {
                 connection.close();
             }
@@ -204,45 +653,142 @@ public class ThreadedFileServer {
     }
 
     /**
-     * This is called by the run() method in response to an "index" command
-     * from the client.  Send the list of files in the server's directory.
+     * Carries out one command from the client.  If framed is true, the reply
+     * is framed as described in the comment at the top of this class.
+     */
+    private void carryOutCommand(String command, boolean framed,
+                             Socket connection, PrintWriter outgoing) throws Exception {
+        if (command.equalsIgnoreCase("index")) {
+            sendIndex(directory.list(), framed, outgoing);
+        }
+        else if (command.trim().toLowerCase().matches("index\\s+-r")) {
+            List<FileIndexer.Entry> entries = indexer.index();
+            String[] lines = new String[entries.size()];
+            for (int i = 0; i < lines.length; i++)
+                lines[i] = entries.get(i).toString();
+            sendIndex(lines, framed, outgoing);
+        }
+        else if (command.toLowerCase().startsWith("get")){
+            String fileName = command.substring(3).trim();
+            Matcher range = RANGE.matcher(fileName);
+            if (range.matches() && ! new File(directory,fileName).exists())
+                sendFile(range.group(1), parseNumber(range.group(2)),
+                        parseNumber(range.group(3)), connection, outgoing);
+            else
+                sendFile(fileName, 0, -1, connection, outgoing);
+        }
+        else {
+            sendError(framed ? "error unsupported command" : "unsupported command", outgoing);
+        }
+    }
+
+    /**
+     * This is called by carryOutCommand() in response to an "index" or "index -r"
+     * command from the client.  Send the list of files in the server's directory,
+     * or the list of entries for "index -r", one per line.  For a framed reply,
+     * the list is preceded by "ok <length>"; since the length has to be known
+     * first, the list is put into an array of bytes before it is sent.
      */
-    private static void sendIndex(File directory, PrintWriter outgoing) throws Exception {
-        String[] fileList = directory.list();
-        for (int i = 0; i < fileList.length; i++)
-            outgoing.println(fileList[i]);
+    private static void sendIndex(String[] fileList, boolean framed, PrintWriter outgoing) throws Exception {
+        if (framed) {
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < fileList.length; i++)
+                list.append(fileList[i]).append('\n');
+            byte[] bytes = list.toString().getBytes("UTF-8");
+            outgoing.println("ok " + bytes.length);
+            outgoing.print(list);  // (The PrintWriter also uses UTF-8.)
+        }
+        else {
+            for (int i = 0; i < fileList.length; i++)
+                outgoing.println(fileList[i]);
+        }
         outgoing.flush();
-        outgoing.close();
         if (outgoing.checkError())
             throw new Exception("Error while transmitting data.");
     }
 
     /**
-     * This is called by the run() command in response to "get <fileName>" 
-     * command from the client.  If the file doesn't exist, send the message "error".
-     * Otherwise, send the message "ok" followed by the contents of the file.
+     * Converts the digits of an offset or length in a "get" command to a long,
+     * or to Long.MAX_VALUE if the number is too big for a long.
+     */
+    private static long parseNumber(String digits) {
+        try {
+            return Long.parseLong(digits);
+        }
+        catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * This is called by carryOutCommand() in response to a "get <fileName>" or
+     * "get <fileName> <offset> <length>" command from the client.  If the file
+     * doesn't exist, send the message "error".  Otherwise, for a request for the whole
+     * file, send the message "ok <length>" followed by the contents of the file, and
+     * for a request for part of the file, send "ok <count> <file-size>" followed by
+     * count bytes from the given offset.  The bytes are copied from the file to the
+     * socket's channel by FileChannel.transferTo(), which does not change them in any
+     * way and, on most operating systems, does not copy them through the program's
+     * memory.  (One call of transferTo() might not send everything it was asked to,
+     * so it is called until all the bytes have been sent.)  If there is a cache, and
+     * the file is small enough to be cached, the bytes are written to the socket's
+     * channel from the cache instead.
+     * @param length the number of bytes requested, or -1 for the whole file.
      */
-    private static void sendFile(String fileName, File directory, PrintWriter outgoing) throws Exception {
+    private void sendFile(String fileName, long offset, long length,
+                                Socket connection, PrintWriter outgoing) throws Exception {
         File file = new File(directory,fileName);
-        if ( (! file.exists()) || file.isDirectory() ) {
+        if ( (! file.exists()) || file.isDirectory()
+                || ! file.toPath().toAbsolutePath().normalize().startsWith(root) ) {
             // (Note:  Don't try to send a directory, which
-            // shouldn't be there anyway.)
-            outgoing.println("error");
+            // shouldn't be there anyway, or a file outside the directory.)
+            sendError("error", outgoing);
+            return;
         }
-        else {
-            outgoing.println("ok");
-            BufferedReader fileIn = new BufferedReader( new FileReader(file) );
-            while (true) {
-                // Read and send lines from the file until
-                // an end-of-file is encountered.
-                String line = fileIn.readLine();
-                if (line == null)
-                    break;
-                outgoing.println(line);
+        ByteBuffer cached = (cache == null) ? null : cache.get(file);  // (Null if not cached.)
+        try (FileChannel fileIn = (cached == null) ? FileChannel.open(file.toPath()) : null) {
+            long size = (cached == null) ? fileIn.size() : cached.remaining();
+            if (offset > size) {
+                sendError("error offset is past the end of the file", outgoing);
+                return;
+            }
+            long end;  // The position just after the last byte to be sent.
+            if (length < 0) {
+                end = size;
+                outgoing.println("ok " + size);
+            }
+            else {
+                end = offset + Math.min(length, size - offset);
+                outgoing.println("ok " + (end - offset) + " " + size);
+            }
+            outgoing.flush();  // The header must be sent before the data!
+            if (outgoing.checkError())
+                throw new Exception("Error while transmitting data.");
+            WritableByteChannel out = connection.getChannel();
+            if (out == null) // (Only if the socket was not made by a ServerSocketChannel.)
+                out = Channels.newChannel(connection.getOutputStream());
+            if (cached != null) {
+                cached.limit((int)end).position((int)offset);
+                while (cached.hasRemaining())
+                    out.write(cached);
+                return;
+            }
+            long position = offset;
+            while (position < end) {
+                long count = fileIn.transferTo(position, end - position, out);
+                if (count <= 0)
+                    throw new Exception("File became shorter while it was being sent.");
+                position += count;
             }
         }
+    }
+
+    /**
+     * Sends a one-line error message in response to a command.
+     */
+    private static void sendError(String message, PrintWriter outgoing) throws Exception {
+        outgoing.println(message);
         outgoing.flush(); 
-        outgoing.close();
         if (outgoing.checkError())
             throw new Exception("Error while transmitting data.");
     }
@@ -0,0 +1,44 @@
+package netgame.common;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This package private class is used internally in Hub and Client, under the
+ * ObjectOutputStream of a connection.  During the connection handshake, data is
+ * passed directly to the socket, since the extraHandshake() methods of some
+ * applications do not flush their output before waiting for a reply.  Once
+ * startBuffering() has been called, data is buffered until the stream is
+ * flushed, so that a batch of messages can be sent with one write to the socket.
+ */
+class BatchingOutputStream extends BufferedOutputStream {
+    
+    private volatile boolean buffering;
+    
+    BatchingOutputStream(OutputStream out) {
+        super(out);
+    }
+    
+    /**
+     * Starts buffering the data.  This is called when the handshake is complete.
+     */
+    void startBuffering() {
+        buffering = true;
+    }
+    
+    public synchronized void write(int b) throws IOException {
+        if (buffering)
+            super.write(b);
+        else
+            out.write(b);
+    }
+    
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (buffering)
+            super.write(b, off, len);
+        else
+            out.write(b, off, len);
+    }
+    
+}
@@ -0,0 +1,305 @@
+package netgame.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A compact MessageCodec, named "binary".  Each message is written as a one-byte
+ * type tag followed by the fields of the message, with no class descriptions
+ * or other overhead.  Strings, Integers, ForwardedMessages, and the internal
+ * message types of the netgame.common package are built in.  An application can
+ * add its own message types by calling registerType(), which must be done on both
+ * the hub side and the client side before any messages are sent.  A message of any
+ * other type is sent using Java serialization, so any Serializable message
+ * can still be sent; it just won't be as compact.
+ * <p>Integers such as ID numbers and lengths are written with writeVarInt(),
+ * which uses one byte for values from -64 to 63 and at most five bytes for
+ * any int.
+ * <p>Tags from 0 to 31 are reserved for netgame.common.  Applications can use
+ * tags from 32 to 255.
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /**
+     * Writes the fields of a message of some registered type.
+     */
+    public interface TypeWriter<T> {
+        void write(T message, DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the fields written by a TypeWriter and creates the message.
+     */
+    public interface TypeReader {
+        Object read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * The smallest tag that an application can use in registerType().
+     */
+    public static final int FIRST_APPLICATION_TAG = 32;
+
+    private static final int SERIALIZED = 0;  // Tag for messages sent with Java serialization.
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int FORWARDED = 3;
+    private static final int STATUS = 4;
+    private static final int DISCONNECT = 5;
+    private static final int SHARED_MAP = 6;
+
+    /**
+     * Associates a message class with its tag and writer.
+     */
+    private static class Registration {
+        final int tag;
+        final TypeWriter<Object> writer;
+        Registration(int tag, TypeWriter<Object> writer) {
+            this.tag = tag;
+            this.writer = writer;
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>,Registration> writers = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<TypeReader> readers = new AtomicReferenceArray<>(256);
+    private static final Class<?>[] registeredTypes = new Class<?>[256];  // Guarded by BinaryCodec.class.
+
+    private static final SerializationCodec serialization = new SerializationCodec();
+
+    static {
+        register(STRING, String.class, (s, out) -> writeString(s, out), in -> readString(in));
+        register(INTEGER, Integer.class, (n, out) -> writeVarInt(n, out), in -> readVarInt(in));
+        register(FORWARDED, ForwardedMessage.class, (fm, out) -> {
+                    writeVarInt(fm.senderID, out);
+                    writeValue(fm.message, out);
+                },
+                in -> {
+                    int senderID = readVarInt(in);
+                    return new ForwardedMessage(senderID, readValue(in));
+                });
+        register(STATUS, StatusMessage.class, (sm, out) -> {
+                    writeVarInt(sm.playerID, out);
+                    out.writeBoolean(sm.connecting);
+                    writeIntArray(sm.players, out);
+                },
+                in -> {
+                    int playerID = readVarInt(in);
+                    boolean connecting = in.readBoolean();
+                    return new StatusMessage(playerID, connecting, readIntArray(in));
+                });
+        register(DISCONNECT, DisconnectMessage.class, (dm, out) -> writeString(dm.message, out),
+                in -> new DisconnectMessage(readString(in)));
+        register(SHARED_MAP, SharedMapMessage.class, (mm, out) -> {
+                    writeString(mm.mapName, out);
+                    writeVarInt(mm.version, out);
+                    if (mm.snapshot != null) {
+                        out.writeByte(0);
+                        writeVarInt(mm.snapshot.size(), out);
+                        for (Map.Entry<Object,Object> entry : mm.snapshot.entrySet()) {
+                            writeValue(entry.getKey(), out);
+                            writeValue(entry.getValue(), out);
+                        }
+                    }
+                    else if (mm.value != null) {
+                        out.writeByte(1);
+                        writeValue(mm.key, out);
+                        writeValue(mm.value, out);
+                    }
+                    else {
+                        out.writeByte(2);
+                        writeValue(mm.key, out);
+                    }
+                },
+                in -> {
+                    String mapName = readString(in);
+                    int version = readVarInt(in);
+                    int kind = in.readUnsignedByte();
+                    if (kind == 0) {
+                        int size = readVarInt(in);
+                        if (size < 0 || size > in.available())
+                            throw new IOException("Corrupt message data: map size " + size + ".");
+                        LinkedHashMap<Object,Object> snapshot = new LinkedHashMap<Object,Object>();
+                        for (int i = 0; i < size; i++) {
+                            Object key = readValue(in);
+                            snapshot.put(key, readValue(in));
+                        }
+                        return SharedMapMessage.snapshot(mapName, version, snapshot);
+                    }
+                    Object key = readValue(in);
+                    return SharedMapMessage.update(mapName, version, key, kind == 1 ? readValue(in) : null);
+                });
+    }
+
+    /**
+     * Adds a message type to those that are encoded compactly by this codec.
+     * Calling this method again with the same tag and type replaces the
+     * writer and reader.  Note that only messages that belong to exactly
+     * the specified class are affected, not subclasses.
+     * @param tag the tag that identifies the type in the encoded data, in
+     *    the range FIRST_APPLICATION_TAG to 255.
+     * @param type the class of the messages.
+     * @param writer writes the fields of a message of the given type.
+     * @param reader reads the fields and recreates the message.
+     * @throws IllegalArgumentException if the tag is out of range or is
+     *    already used for a different type.
+     */
+    public static <T> void registerType(int tag, Class<T> type, TypeWriter<? super T> writer, TypeReader reader) {
+        if (tag < FIRST_APPLICATION_TAG || tag > 255)
+            throw new IllegalArgumentException("Tag must be in the range " + FIRST_APPLICATION_TAG + " to 255.");
+        register(tag, type, writer, reader);
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized private static <T> void register(int tag, Class<T> type, TypeWriter<? super T> writer, TypeReader reader) {
+        if (registeredTypes[tag] != null && registeredTypes[tag] != type)
+            throw new IllegalArgumentException("Tag " + tag + " is already used for " + registeredTypes[tag].getName());
+        registeredTypes[tag] = type;
+        readers.set(tag, reader);
+        writers.put(type, new Registration(tag, (TypeWriter<Object>)writer));
+    }
+
+    public String getName() {
+        return "binary";
+    }
+
+    public void encode(Object message, DataOutputStream out) throws IOException {
+        writeValue(message, out);
+    }
+
+    public Object decode(DataInputStream in) throws IOException {
+        return readValue(in);
+    }
+
+    /**
+     * Writes a tagged value.  A TypeWriter can call this to write a field that
+     * can be any message, such as the message inside a ForwardedMessage.
+     */
+    public static void writeValue(Object value, DataOutputStream out) throws IOException {
+        Registration registration = writers.get(value.getClass());
+        if (registration != null) {
+            out.writeByte(registration.tag);
+            registration.writer.write(value, out);
+        }
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            serialization.encode(value, new DataOutputStream(bytes));
+            out.writeByte(SERIALIZED);
+            writeVarInt(bytes.size(), out);
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a value that was written by writeValue().  The stream must
+     * read from the data of a single frame, so that in.available() is
+     * the number of bytes that remain in the frame.
+     */
+    public static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        if (tag == SERIALIZED) {
+            int length = readVarInt(in);
+            if (length < 0 || length > in.available())
+                throw new IOException("Corrupt message data: length " + length + ".");
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return serialization.decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+        TypeReader reader = readers.get(tag);
+        if (reader == null)
+            throw new IOException("Received a message with unknown type tag " + tag + ".");
+        return reader.read(in);
+    }
+
+    /**
+     * Writes an int in a variable number of bytes.  The value is first mapped
+     * to a non-negative number (0, -1, 1, -2, 2, ... become 0, 1, 2, 3, 4, ...),
+     * which is then written seven bits at a time, with the high bit of each
+     * byte set if more bytes follow.
+     */
+    public static void writeVarInt(int value, DataOutputStream out) throws IOException {
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x7F) != 0) {
+            out.writeByte((bits & 0x7F) | 0x80);
+            bits >>>= 7;
+        }
+        out.writeByte(bits);
+    }
+
+    /**
+     * Reads an int that was written by writeVarInt().
+     */
+    public static int readVarInt(DataInputStream in) throws IOException {
+        int bits = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            bits |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return (bits >>> 1) ^ -(bits & 1);
+        }
+        throw new IOException("Corrupt message data: integer is too long.");
+    }
+
+    /**
+     * Writes a string, which can be null, as a length followed by UTF-8 bytes.
+     * (Unlike DataOutputStream.writeUTF(), there is no limit on the length.)
+     */
+    public static void writeString(String str, DataOutputStream out) throws IOException {
+        if (str == null)
+            writeVarInt(-1, out);
+        else {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length, out);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a string that was written by writeString().
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0)
+            return null;
+        if (length > in.available())
+            throw new IOException("Corrupt message data: string length " + length + ".");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an array of ints, which can be null.
+     */
+    public static void writeIntArray(int[] array, DataOutputStream out) throws IOException {
+        if (array == null)
+            writeVarInt(-1, out);
+        else {
+            writeVarInt(array.length, out);
+            for (int n : array)
+                writeVarInt(n, out);
+        }
+    }
+
+    /**
+     * Reads an array of ints that was written by writeIntArray().
+     */
+    public static int[] readIntArray(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0)
+            return null;
+        if (length > in.available())
+            throw new IOException("Corrupt message data: array length " + length + ".");
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++)
+            array[i] = readVarInt(in);
+        return array;
+    }
+
+}
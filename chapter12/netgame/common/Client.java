@@ -1,11 +1,21 @@
 package netgame.common;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -33,6 +43,19 @@ import java.util.concurrent.LinkedBlockingQueue;
  * the getID() method.  The protected variable connectedPlayerIDs
  * contains the ID numbers of all clients currently connected to the
  * hub, including this one.
+ * <p>During the handshake, the Client offers all registered MessageCodecs
+ * to the Hub, and the Hub picks one of them.  Each message is then encoded
+ * separately by that codec (so that resetting the output is never necessary).
+ * If the Hub does not pick a codec, messages are sent through an
+ * ObjectOutputStream, as described above.  See MessageCodec for more information.
+ * <p>The two threads that a Client uses for sending and receiving messages can be 
+ * virtual threads, if the Client is created with virtualThreads set to true or
+ * if the system property netgame.virtualThreads is "true".  This is useful when
+ * one program creates a large number of clients.  (Virtual threads require
+ * Java 21 or later.  Platform threads are used if they are not supported.)
+ * <p>A client keeps a copy of each SharedMap that belongs to the Hub.  The
+ * copy can be read by calling getSharedMap(), and the methods sharedMapReceived()
+ * and sharedMapChanged() are called when a map arrives and when it changes.
  */
 abstract public class Client {
     
@@ -50,6 +73,31 @@ abstract public class Client {
      */
     private volatile boolean autoreset;
     
+    /**
+     * Settings for write batching; see setWriteBatching().
+     */
+    private volatile boolean writeBatching = true;
+    private volatile int maxBatchDelay;
+    
+    /**
+     * This client's copies of the Hub's SharedMaps, keyed by name.  Only used
+     * in the receive thread, except in getSharedMap(), so access is synchronized
+     * on the map.
+     */
+    private final HashMap<String,SharedMapCopy> sharedMaps = new HashMap<String,SharedMapCopy>();
+    
+    /**
+     * A copy of a SharedMap, with the version of the map that it represents.
+     */
+    private static class SharedMapCopy {
+        final LinkedHashMap<Object,Object> map;
+        int version;
+        SharedMapCopy(LinkedHashMap<Object,Object> map, int version) {
+            this.map = map;
+            this.version = version;
+        }
+    }
+    
     /**
      * Constructor opens a connection to a Hub.  This constructor will 
      * block while waiting for the connection to be established.
@@ -58,7 +106,20 @@ abstract public class Client {
      * @throws IOException if any I/O exception occurs while trying to connect.
      */
     public Client(String hubHostName, int hubPort) throws IOException {
-        connection = new ConnectionToHub(hubHostName, hubPort);
+        this(hubHostName, hubPort, ConnectionThreads.VIRTUAL_BY_DEFAULT);
+    }
+    
+    /**
+     * Constructor opens a connection to a Hub, using either virtual threads or
+     * platform threads for sending and receiving messages.  This constructor will 
+     * block while waiting for the connection to be established.
+     * @param hubHostName  The host name (or IP address) of the computer where the Hub is running.
+     * @param hubPort      The port number on which the Hub is listening for connection requests.
+     * @param virtualThreads  If true, virtual threads are used, if they are supported.
+     * @throws IOException if any I/O exception occurs while trying to connect.
+     */
+    public Client(String hubHostName, int hubPort, boolean virtualThreads) throws IOException {
+        connection = new ConnectionToHub(hubHostName, hubPort, virtualThreads);
     }
 
     // ---------------- Methods that subclasses can override --------------------------
@@ -93,6 +154,27 @@ abstract public class Client {
      */
     protected void playerDisconnected(int departingPlayerID) { }
     
+    /**
+     * This method is called when this client receives the contents of
+     * one of the Hub's SharedMaps, which is sent when the client connects.
+     * The map can be retrieved by calling getSharedMap(mapName).
+     * The method in this class does nothing.
+     * @param mapName the name of the SharedMap.
+     */
+    protected void sharedMapReceived(String mapName) { }
+    
+    /**
+     * This method is called when this client is notified that one of
+     * the Hub's SharedMaps has changed.  The change has already been
+     * made to the map that is returned by getSharedMap(mapName).
+     * The method in this class does nothing.
+     * @param mapName the name of the SharedMap.
+     * @param key the key whose value has changed.
+     * @param oldValue the previous value for the key, or null if the key is new.
+     * @param newValue the new value for the key, or null if the key has been removed.
+     */
+    protected void sharedMapChanged(String mapName, Object key, Object oldValue, Object newValue) { }
+    
     /**
      * This method is called when the connection to the Hub is closed down
      * because of some error.  The method in this class does nothing.  Subclasses
@@ -178,6 +260,23 @@ abstract public class Client {
         return connection.id_number;
     }
     
+    /**
+     * Returns a copy of this client's version of one of the Hub's SharedMaps.
+     * The return value is an empty map if the map has not been received from
+     * the Hub (for example, if the Hub has no SharedMap with the given name).
+     * The returned map can't be modified.
+     * @param mapName the name of the SharedMap.
+     */
+    @SuppressWarnings("unchecked")
+    public <K,V> Map<K,V> getSharedMap(String mapName) {
+        synchronized(sharedMaps) {
+            SharedMapCopy copy = sharedMaps.get(mapName);
+            if (copy == null)
+                return Collections.emptyMap();
+            return Collections.unmodifiableMap(new LinkedHashMap<K,V>((Map<K,V>)copy.map));
+        }
+    }
+    
     /**
      * Resets the output stream, after any messages currently in the output queue
      * have been sent.  The stream only needs to be reset in one case:  If the same
@@ -208,6 +307,41 @@ abstract public class Client {
         return autoreset;
     }
     
+    /**
+     * Says how messages are sent to the hub.  When write batching is on, the thread
+     * that sends messages writes all of the messages that are waiting in the queue,
+     * and then flushes the output just once, so that many messages can be sent by
+     * one call to the operating system.  If maxDelay is greater than zero, the thread
+     * also waits for up to maxDelay milliseconds after the first message of a batch
+     * for more messages to arrive.  When write batching is off, the output is flushed
+     * after every message.  The default is write batching on, with a maximum delay
+     * of zero, which never delays a message.
+     * @param batch tells whether to use write batching.
+     * @param maxDelay the longest time, in milliseconds, that a message can wait
+     *    for other messages to be added to its batch.
+     * @throws IllegalArgumentException if maxDelay is negative.
+     */
+    public void setWriteBatching(boolean batch, int maxDelay) {
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("The maximum delay can't be negative.");
+        maxBatchDelay = maxDelay;
+        writeBatching = batch;
+    }
+    
+    /**
+     * Returns true if write batching is on.  See setWriteBatching().
+     */
+    public boolean getWriteBatching() {
+        return writeBatching;
+    }
+    
+    /**
+     * Returns the maximum delay for write batching, in milliseconds.  See setWriteBatching().
+     */
+    public int getMaxBatchDelay() {
+        return maxBatchDelay;
+    }
+    
 
     //------------- Private implementation part of the class -----------------------------
     
@@ -222,8 +356,11 @@ abstract public class Client {
         private final Socket socket;               // The socket that is connected to the Hub.
         private final ObjectInputStream in;        // A stream for sending messages to the Hub.
         private final ObjectOutputStream out;      // A stream for receiving messages from the Hub.
-        private final SendThread sendThread;       // The thread that sends messages to the Hub.
-        private final ReceiveThread receiveThread; // The thread that receives messages from the Hub.
+        private final MessageCodec codec;          // Codec chosen by the Hub, or null if none was chosen.
+        private final DataInputStream frameIn;     // Used instead of in, if codec is not null.
+        private final DataOutputStream frameOut;   // Used instead of out, if codec is not null.
+        private final Thread sendThread;           // The thread that sends messages to the Hub.
+        private final Thread receiveThread;        // The thread that receives messages from the Hub.
 
         private final LinkedBlockingQueue<Object> outgoingMessages;  // Queue of messages waiting to be transmitted.
 
@@ -233,31 +370,45 @@ abstract public class Client {
                                              // connection is being closed in the normal way.
         
         /**
-         * Constructor opens the connection and sends the string "Hello Hub"
-         * to the hub.  The hub responds with an object of type Integer representing
-         * the ID number of the client.  The extraHandshake() method is then called
+         * Constructor opens the connection and sends the string "Hello Hub", followed
+         * by the list of registered codecs, to the hub.  The hub responds with an
+         * object of type Integer representing the ID number of the client.  (If the
+         * hub has chosen a codec, it first sends "framed" and the name of the codec.)
+         * The extraHandshake() method is then called
          * to do any other required startup communication.  Finally, threads
          * are created to handle sending and receiving messages.
          */
-        ConnectionToHub(String host, int port) throws IOException {
+        ConnectionToHub(String host, int port, boolean virtualThreads) throws IOException {
             outgoingMessages = new LinkedBlockingQueue<Object>();
             socket = new Socket(host,port);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.writeObject("Hello Hub");
+            BatchingOutputStream batchingOut = new BatchingOutputStream(socket.getOutputStream());
+            out = new ObjectOutputStream(batchingOut);
+            out.writeObject(Frames.helloString());
             out.flush();
             in = new ObjectInputStream(socket.getInputStream());
             try {
                 Object response = in.readObject();
+                codec = Frames.codecFromResponse(response);
+                if (codec != null)
+                    response = in.readObject();
                 id_number = ((Integer)response).intValue();
             }
             catch (Exception e){
-                throw new IOException("Illegal response from server.");
+                throw new IOException("Illegal response from server: " + e);
             }
             extraHandshake(in,out);  // Will throw an IOException if handshake doesn't succeed.
-            sendThread = new SendThread();
-            receiveThread = new ReceiveThread();
-            sendThread.start();
-            receiveThread.start();
+            if (codec != null) {
+                frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            else {
+                frameIn = null;
+                frameOut = null;
+                out.flush();
+                batchingOut.startBuffering();  // Messages are sent in batches after the handshake.
+            }
+            sendThread = ConnectionThreads.start(new SendThread(), virtualThreads);
+            receiveThread = ConnectionThreads.start(new ReceiveThread(), virtualThreads);
         }
         
         /**
@@ -294,27 +445,74 @@ abstract public class Client {
             }
         }
         
+        /**
+         * Writes one message to the hub, without flushing the output.
+         */
+        private void writeMessage(Object message) throws IOException {
+            if (message instanceof ResetSignal) {
+                if (codec == null)
+                    out.reset();
+            }
+            else if (codec != null)
+                Frames.write(Frames.encode(message, codec), frameOut);
+            else {
+                if (autoreset)
+                    out.reset();
+                out.writeObject(message);
+            }
+        }
+        
+        private void flushOutput() throws IOException {
+            if (codec != null)
+                frameOut.flush();
+            else
+                out.flush();
+        }
+        
+        /**
+         * Reads one message from the hub, blocking until it is available.
+         */
+        private Object readMessage() throws IOException, ClassNotFoundException {
+            if (codec != null)
+                return Frames.read(frameIn, codec);
+            else
+                return in.readObject();
+        }
+        
         /**
          * This class defines a thread that sends messages to the Hub.
          */
-        private class SendThread extends Thread {
+        private class SendThread implements Runnable {
             public void run() {
                 System.out.println("Client send thread started.");
                 try {
+                    ArrayList<Object> batch = new ArrayList<Object>();
                     while ( ! closed ) {
-                        Object message = outgoingMessages.take();
-                        if (message instanceof ResetSignal) {
-                            out.reset();
-                        }
-                        else {
-                            if (autoreset)
-                                out.reset();
-                            out.writeObject(message);
-                            out.flush();
-                            if (message instanceof DisconnectMessage) {
-                                close();
+                        // Write all the messages that are in the queue, and any that arrive
+                        // before the maximum batch delay runs out, then flush the output.
+                        batch.add(outgoingMessages.take());
+                        long flushTime = System.nanoTime() + maxBatchDelay*1000000L;
+                        boolean disconnecting = false;
+                        while (true) {
+                            if (writeBatching)
+                                outgoingMessages.drainTo(batch);
+                            for (Object message : batch) {
+                                writeMessage(message);
+                                if (message instanceof DisconnectMessage)
+                                    disconnecting = true;
                             }
+                            batch.clear();
+                            long remaining = flushTime - System.nanoTime();
+                            if (disconnecting || ! writeBatching || remaining <= 0)
+                                break;
+                            Object message = outgoingMessages.poll(remaining, TimeUnit.NANOSECONDS);
+                            if (message == null)
+                                break;
+                            batch.add(message);
                         }
+                        flushOutput();
+                        if (disconnecting)
+                            close();
                     }
                 }
                 catch (IOException e) {
@@ -339,24 +537,26 @@ abstract public class Client {
         /**
          * This class defines a thread that reads messages from the Hub.
          */
-        private class ReceiveThread extends Thread {
+        private class ReceiveThread implements Runnable {
             public void run() {
                 System.out.println("Client receive thread started.");
                 try {
                     while ( ! closed ) {
-                        Object obj = in.readObject();
+                        Object obj = readMessage();
                         if (obj instanceof DisconnectMessage) {
                             close();
                             serverShutdown(((DisconnectMessage)obj).message);
                         }
                         else if (obj instanceof StatusMessage) {
                             StatusMessage msg = (StatusMessage)obj;
-                            connectedPlayerIDs = msg.players;
+                            connectedPlayerIDs = msg.applyTo(connectedPlayerIDs);
                             if (msg.connecting)
                                 playerConnected(msg.playerID);
                             else
                                 playerDisconnected(msg.playerID);
                         }
+                        else if (obj instanceof SharedMapMessage)
+                            sharedMapMessageReceived((SharedMapMessage)obj);
                         else
                             messageReceived(obj);
                     }
@@ -380,6 +580,35 @@ abstract public class Client {
             }
         }
         
+        /**
+         * Applies a snapshot or an update to this client's copy of a SharedMap.
+         * An update is ignored if the snapshot has not yet arrived or if the
+         * update was already included in the snapshot.
+         */
+        private void sharedMapMessageReceived(SharedMapMessage msg) {
+            Object oldValue;
+            synchronized(sharedMaps) {
+                SharedMapCopy copy = sharedMaps.get(msg.mapName);
+                if (msg.snapshot != null) {
+                    sharedMaps.put(msg.mapName, new SharedMapCopy(msg.snapshot, msg.version));
+                    oldValue = null;
+                }
+                else {
+                    if (copy == null || msg.version <= copy.version)
+                        return;
+                    copy.version = msg.version;
+                    if (msg.value == null)
+                        oldValue = copy.map.remove(msg.key);
+                    else
+                        oldValue = copy.map.put(msg.key, msg.value);
+                }
+            }
+            if (msg.snapshot != null)
+                sharedMapReceived(msg.mapName);
+            else
+                sharedMapChanged(msg.mapName, msg.key, oldValue, msg.value);
+        }
+        
     } // end nested class ConnectionToHub
 
 }
@@ -0,0 +1,80 @@
+package netgame.common;
+
+import java.lang.reflect.Method;
+
+/**
+ * This package private class is used internally in Hub and Client to
+ * create the threads that send and receive messages on a connection.
+ * Those threads can be ordinary platform threads or virtual threads.
+ * Virtual threads are much cheaper when there are many connections, since
+ * a virtual thread that is blocked waiting for I/O does not tie up an
+ * operating system thread and its stack.  Virtual threads were added to
+ * Java in version 21, so they are created by reflection; when they are not 
+ * available, platform threads are used instead.
+ * <p>If the system property netgame.virtualThreads is set to "true"
+ * (for example, with the command-line option -Dnetgame.virtualThreads=true),
+ * Hubs and Clients use virtual threads unless they are told otherwise.
+ */
+final class ConnectionThreads {
+    
+    /**
+     * The value of the netgame.virtualThreads system property, which
+     * is used by Hub and Client constructors that don't specify a mode.
+     */
+    static final boolean VIRTUAL_BY_DEFAULT = Boolean.getBoolean("netgame.virtualThreads");
+    
+    private static Object virtualThreadBuilder;  // A Thread.Builder, or null if not available.
+    private static Method unstarted;             // The Thread.Builder.unstarted(Runnable) method.
+    
+    static {
+        try {
+            virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (Exception e) {
+            virtualThreadBuilder = null;  // This version of Java does not have virtual threads.
+        }
+    }
+    
+    private static volatile boolean warned;  // Set after the fallback warning has been printed.
+    
+    private ConnectionThreads() {
+    }
+    
+    /**
+     * Tells whether virtual threads are supported by this version of Java.
+     */
+    static boolean virtualThreadsSupported() {
+        return virtualThreadBuilder != null;
+    }
+    
+    /**
+     * Creates and starts a thread to run a task.
+     * @param task the task to be run by the thread.
+     * @param virtual if true, a virtual thread is used if possible.  A platform
+     *    thread is used if virtual is false or if virtual threads are not supported.
+     * @return the thread that has been started.
+     */
+    static Thread start(Runnable task, boolean virtual) {
+        Thread thread = null;
+        if (virtual) {
+            if (virtualThreadBuilder != null) {
+                try {
+                    thread = (Thread)unstarted.invoke(virtualThreadBuilder, task);
+                }
+                catch (Exception e) {
+                    System.out.println("Can't create virtual thread: " + e);
+                }
+            }
+            else if ( ! warned ) {
+                warned = true;
+                System.out.println("Virtual threads are not supported; using platform threads.");
+            }
+        }
+        if (thread == null)
+            thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+}
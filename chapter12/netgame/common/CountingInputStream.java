@@ -0,0 +1,42 @@
+package netgame.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This package private class is used internally in Hub to count the
+ * bytes that are read from a socket.  The count is added to a LongAdder
+ * that is shared by all connections.
+ */
+class CountingInputStream extends FilterInputStream {
+    
+    private final LongAdder counter;
+    
+    CountingInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+    
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0)
+            counter.increment();
+        return b;
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count > 0)
+            counter.add(count);
+        return count;
+    }
+    
+    public long skip(long n) throws IOException {
+        long count = in.skip(n);
+        counter.add(count);
+        return count;
+    }
+    
+}
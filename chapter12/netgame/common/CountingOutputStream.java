@@ -0,0 +1,32 @@
+package netgame.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This package private class is used internally in Hub to count the
+ * bytes that are written to a socket.  The count is added to a LongAdder
+ * that is shared by all connections.
+ */
+class CountingOutputStream extends FilterOutputStream {
+    
+    private final LongAdder counter;
+    
+    CountingOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+    
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.increment();
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);  // (FilterOutputStream would write one byte at a time.)
+        counter.add(len);
+    }
+    
+}
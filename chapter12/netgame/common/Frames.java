@@ -0,0 +1,149 @@
+package netgame.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This package private class is used internally in Hub and Client to
+ * support the "framed" wire format.  In that format, each message is
+ * transmitted as a four-byte length followed by that many bytes of data,
+ * which is the message as encoded by the MessageCodec that was chosen
+ * during the connection handshake.  A message can be decoded as soon as
+ * all of its bytes have arrived, and there is never any need to reset
+ * the output stream.
+ * <p>The codec is negotiated as follows:  The client's hello string is
+ * "Hello Hub" followed by a space and a comma-separated list of the
+ * names of the codecs that it can use, in order of preference.  If the
+ * hub uses the framed format, it responds with the string "framed"
+ * followed by a space and the name of the codec that it has chosen,
+ * before it sends the client's ID number.  A hub that uses a pair of threads
+ * for each client only uses the framed format if the client offers a
+ * codec; otherwise, it uses a single ObjectOutputStream and ObjectInputStream
+ * for the life of the connection, as in older versions of netgame.
+ */
+final class Frames {
+    
+    static final String HELLO = "Hello Hub";
+    
+    static final String FRAMED = "framed";
+    
+    /**
+     * The largest frame that will be accepted.  A larger length in
+     * a frame header is taken to mean that the connection is corrupt.
+     */
+    static final int MAX_FRAME_LENGTH = 16*1024*1024;
+    
+    private Frames() {
+    }
+    
+    /**
+     * Returns the hello string for a client, listing all registered codecs.
+     */
+    static String helloString() {
+        return HELLO + " " + String.join(",", MessageCodecs.getNames());
+    }
+    
+    /**
+     * Tests whether a string received by a hub is a legal hello string.
+     */
+    static boolean isHello(String str) {
+        return str != null && (str.equals(HELLO) || str.startsWith(HELLO + " "));
+    }
+    
+    /**
+     * Chooses a codec for a connection, given the client's hello string.
+     * @return the first codec listed in the hello string that is registered,
+     *    or null if the hello string does not list any registered codec.
+     */
+    static MessageCodec chooseCodec(String hello) {
+        if (hello.length() <= HELLO.length())
+            return null;
+        for (String name : hello.substring(HELLO.length() + 1).split(",")) {
+            MessageCodec codec = MessageCodecs.get(name.trim());
+            if (codec != null)
+                return codec;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the string that a hub sends to tell the client which codec it has chosen.
+     */
+    static String framedResponse(MessageCodec codec) {
+        return FRAMED + " " + codec.getName();
+    }
+    
+    /**
+     * Gets the codec that was chosen by the hub, from the string sent by the hub.
+     * The string "framed" with no codec name means the "serial" codec.
+     * @return the codec, or null if the response is not a framed response.
+     * @throws IOException if the codec chosen by the hub is not registered.
+     */
+    static MessageCodec codecFromResponse(Object response) throws IOException {
+        if ( ! (response instanceof String) || ! ((String)response).startsWith(FRAMED) )
+            return null;
+        String name = ((String)response).substring(FRAMED.length()).trim();
+        MessageCodec codec = MessageCodecs.get(name.isEmpty() ? "serial" : name);
+        if (codec == null)
+            throw new IOException("Hub chose unknown codec \"" + name + "\".");
+        return codec;
+    }
+    
+    /**
+     * Encodes a message as a complete frame, including the length header.
+     * @return a buffer whose position is zero and whose limit is the
+     *    size of the frame.
+     */
+    static ByteBuffer encode(Object message, MessageCodec codec) throws IOException {
+        FrameBuilder bytes = new FrameBuilder();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);  // Placeholder for the length.
+        codec.encode(message, out);
+        out.flush();
+        return bytes.toFrame();
+    }
+    
+    /**
+     * Decodes the data from one frame, not including the length header.
+     */
+    static Object decode(byte[] data, MessageCodec codec) throws IOException {
+        return codec.decode(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+    
+    /**
+     * Writes a frame to a stream.  The stream is not flushed.
+     */
+    static void write(ByteBuffer frame, DataOutputStream out) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+    
+    /**
+     * Reads one frame from a stream, blocking until it is available, and decodes it.
+     */
+    static Object read(DataInputStream in, MessageCodec codec) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Illegal frame length " + length + " received.");
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return decode(data, codec);
+    }
+    
+    /**
+     * A ByteArrayOutputStream that can wrap its data in a ByteBuffer without copying it.
+     */
+    private static class FrameBuilder extends ByteArrayOutputStream {
+        ByteBuffer toFrame() throws IOException {
+            if (count - 4 > MAX_FRAME_LENGTH)
+                throw new IOException("Message is too large to send (" + (count - 4) + " bytes).");
+            ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+            frame.putInt(0, count - 4);
+            return frame;
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package netgame.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Histogram records a large number of non-negative values, such as times in
+ * nanoseconds, and can report percentiles of the values.  It uses a fixed amount
+ * of memory, no matter how many values are recorded.  The values are counted in
+ * buckets whose size grows with the value:  each power of two is divided into 16
+ * buckets of equal size (as in the HdrHistogram library), so any percentile that
+ * is reported is at most about 6% larger than the true value.  Recording a value
+ * does not lock anything, so a Histogram can be used by many threads at once.
+ * The values that are reported while values are being recorded might not be
+ * completely consistent with each other.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;  // 16 buckets for each power of two.
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one value.  A negative value is recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of values that have been recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the largest value that has been recorded, or zero if there are none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the average of the values that have been recorded, or zero if there are none.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double)sum.sum() / n;
+    }
+
+    /**
+     * Returns a value such that the given percentage of the recorded values
+     * are less than or equal to it.  For example, getValueAtPercentile(99)
+     * returns the 99th percentile.  The result is the largest value in the
+     * bucket that contains the percentile (but never more than getMax()).
+     * @param percentile a number in the range 0 to 100.
+     * @return the value at the percentile, or zero if no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return Math.min(highestValueInBucket(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns a one-line summary of the values, in the form
+     * "count=..., mean=..., p50=..., p99=..., p99.9=..., max=...".
+     * The values are divided by the given unit; for example, use 1000 to
+     * show times that were recorded in nanoseconds as microseconds.
+     */
+    public String summary(double unit) {
+        return String.format("count=%d, mean=%.1f, p50=%.1f, p99=%.1f, p99.9=%.1f, max=%.1f",
+                getCount(), getMean() / unit, getValueAtPercentile(50) / unit,
+                getValueAtPercentile(99) / unit, getValueAtPercentile(99.9) / unit, getMax() / unit);
+    }
+
+    public String toString() {
+        return summary(1);
+    }
+
+    /**
+     * Values less than 2*SUB_BUCKETS each have their own bucket.  For larger values,
+     * the bucket is found from the position of the highest one bit and the next
+     * SUB_BUCKET_BITS bits.
+     */
+    private static int bucket(long value) {
+        if (value < 2*SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long highestValueInBucket(int bucket) {
+        if (bucket < 2*SUB_BUCKETS)
+            return bucket;
+        int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long mantissa = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;  // (Wraps to Long.MAX_VALUE for the last bucket.)
+    }
+
+}
@@ -1,11 +1,23 @@
 package netgame.common;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.TreeMap;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -28,6 +40,10 @@ import java.util.concurrent.LinkedBlockingQueue;
  * client with the specified ID number.  If the same object is transmitted
  * more than once, it might be necessary to use the resetOutput() or
  * setAutoReset(true) methods.  See those methods for details.
+ * <p>Data that all clients need to know, such as the names of the players,
+ * can be kept in a SharedMap that belongs to the Hub.  The Hub sends the
+ * whole map to each client when it connects, and after that it sends
+ * just the changes.
  * <p>(Certain messages that are defined by package private classes in
  * the package netgame.common, are for internal use only.  These messages
  * do not result in a call to messageReceived, and they are not seen
@@ -36,7 +52,13 @@ import java.util.concurrent.LinkedBlockingQueue;
  * <p>The communication protocol that is used internally goes as follows:
  *  <ul>
  *  <li>When the server receives a connection request, it expects to
- *  read a string from the client.  The string is "Hello Hub".</li>
+ *  read a string from the client.  The string is "Hello Hub", optionally
+ *  followed by a space and a comma-separated list of the names of the
+ *  MessageCodecs that the client can use.</li>
+ *  <li>If the client has listed a codec that the hub also knows, the hub
+ *  sends the string "framed" followed by a space and the name of the first
+ *  such codec.  That codec will be used for all messages after the handshake.
+ *  (See MessageCodec.)</li>
  *  <li>The server responds by sending an object of type Integer 
  *  representing the unique ID number that has been assigned to the client.
  *  Clients are assigned the IDs 1, 2, 3, ..., in the order they connect.</li>
@@ -59,20 +81,82 @@ import java.util.concurrent.LinkedBlockingQueue;
  *  will be notified, and the ServerSocket, if any still exists, is closed down.  
  *  One second later, any connection that has not closed normally is closed.
  *  </ul>
+ *  
+ * <p>By default, a Hub uses two threads for each connected client, one for
+ * sending and one for receiving.  A Hub that is created with the constructor
+ * Hub(port,selectorThreadCount) instead uses non-blocking I/O, where a small,
+ * fixed number of "selector threads" handles the communication with all
+ * clients.  This lets one Hub serve many thousands of clients.  Such a Hub
+ * always uses the "framed" format, in which each message is sent as a
+ * four-byte length followed by the encoded message; if the client does not
+ * list any codecs, the "serial" codec is used.  The netgame Client
+ * class works with either kind of Hub, and the methods that are meant to
+ * be overridden in subclasses are called in the same way in both cases.
+ * <p>The threads that a Hub uses for each client can be virtual threads instead of
+ * platform threads, if the Hub is created with the constructor Hub(port,true)
+ * or if the system property netgame.virtualThreads is "true".  Virtual threads,
+ * which are available in Java 21 and later, make it possible to have a very
+ * large number of mostly idle connections without changing how the connections
+ * work.  If virtual threads are not available, platform threads are used.
+ * <p>Messages that are waiting to be sent to a client are kept in a queue for
+ * that client.  By default, the queues have no limit, so a client that stops
+ * reading its messages can use up the Hub's memory.  The setOutgoingQueueLimit()
+ * method sets a limit, along with a SlowConsumerPolicy that says what to do when
+ * a queue is full.  The getQueueStatus() methods report the state of the queues,
+ * and whenQueueDrained() arranges for something to be done when a queue is nearly empty.
+ * <p>Received messages are processed by a single thread, unless the number of
+ * threads is changed by calling setDispatchThreadCount().  Each player's messages
+ * are always processed in order by the same thread.
+ * <p>A Hub keeps statistics about the work that it does, such as the number of
+ * messages received and sent and the time taken to process them.  They can be
+ * read from the HubMetrics object that is returned by getMetrics().
+ * <p>Several Hubs, in the same program or in different programs, can be joined
+ * into a federation, so that players who are connected to different hubs are
+ * in the same game.  Each hub calls startFederation() with a different node ID
+ * before any players connect, and connectToPeer() is used to link each pair
+ * of hubs.  The hubs tell each other about players who connect and disconnect,
+ * so getPlayerList() and the StatusMessages that clients receive include
+ * the players on all the hubs, and sendToAll(), sendToOne(), and sendToGroup()
+ * forward messages to the other hubs as needed.  A message from a client is
+ * still passed to messageReceived() only on the hub to which that client is
+ * connected, and playerConnected() and playerDisconnected() are only called
+ * for the hub's own players.  Data that belongs to a hub, such as a SharedMap,
+ * is not shared with the other hubs.
  */
 public class Hub {
     
     /**
-     *  A map that associates player names with the connections to each player.
+     * The largest node ID that a hub in a federation can have.  (See startFederation().)
      */
-    private TreeMap<Integer, ConnectionToClient> playerConnections;
+    public static final int MAX_NODE_ID = 20;
     
     /**
-     * A queue of messages received from clients.  When a message is received,
-     * it is placed in this queue.  A separate thread takes messages from the
-     * queue and processes them (in the order in which they were received).
+     * The connections to all connected players, along with their ID numbers.
+     * The PlayerList is never modified.  When a player connects or disconnects,
+     * a new PlayerList is made and replaces the old one, so sendToAll(),
+     * sendToOne(), and getPlayerList() can use this variable without any
+     * locking.  Only the replacement of the list is synchronized, on registryLock.
      */
-    private LinkedBlockingQueue<Message> incomingMessages;
+    private volatile PlayerList playerConnections;
+    
+    private final Object registryLock = new Object();  // Held while changing playerConnections.
+    
+    private final HubMetrics metrics = new HubMetrics(this);
+    
+    /**
+     * The SharedMaps that belong to this Hub.  Each new player is sent a snapshot
+     * of each of the maps.
+     */
+    private final CopyOnWriteArrayList<SharedMap<?,?>> sharedMaps = new CopyOnWriteArrayList<SharedMap<?,?>>();
+    
+    /**
+     * The threads that process messages received from clients.  Each dispatcher
+     * has a queue of messages.  When a message is received, it is placed in the
+     * queue of the dispatcher that handles the player who sent it, and that
+     * dispatcher processes the player's messages in the order in which they
+     * were received.  By default, there is just one dispatcher.
+     */
+    private volatile Dispatcher[] dispatchers;
     
     /**
      * If the autoreset property is set to true, then the ObjectOutputStreams that are
@@ -80,6 +164,40 @@ public class Hub {
      */
     private volatile boolean autoreset;
     
+    /**
+     * Settings for write batching; see setWriteBatching().
+     */
+    private volatile boolean writeBatching = true;
+    private volatile int maxBatchDelay;
+    
+    /**
+     * The largest number of messages that can wait to be sent to one client,
+     * or zero if there is no limit, and what to do when the limit is reached.
+     */
+    private volatile int outgoingQueueLimit;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+    
+    /**
+     * The threads that do all network I/O when the Hub uses non-blocking I/O.
+     * This is null if the Hub uses a pair of threads for each connection.
+     */
+    private SelectorThread[] selectorThreads;
+    
+    /**
+     * When the Hub uses non-blocking I/O, the connection handshake is still
+     * done with blocking streams, since extraHandshake() requires them.  The
+     * handshakes are run by a small pool of threads.
+     */
+    private ExecutorService handshakeExecutor;
+    
+    private int nextSelectorThread;  // Index of selector thread for the next connection.
+    
+    /**
+     * If true, the threads that send and receive messages for each client
+     * are virtual threads (when they are supported by the Java version).
+     */
+    private boolean virtualThreads;
+    
     private ServerSocket serverSocket;  // Listens for connections.
     private Thread serverThread;        // Accepts connections on serverSocket.
     volatile private boolean shutdown;  // Set to true when the Hub is not listening.
@@ -87,35 +205,81 @@ public class Hub {
     private int nextClientID = 1;  // The id number that will be assigned to
                                    // the next client that connects.
     
+    private int clientIDOffset;    // Added to each ID number; see startFederation().
+    
+    /**
+     * Links this Hub with the other hubs in a federation, or null if the
+     * Hub is not part of a federation.
+     */
+    private volatile HubFederation federation;
+    
     /**
      * Creates a Hub listening on a specified port, and starts a thread for
-     * processing messages that are received from clients.
+     * processing messages that are received from clients.  Two threads are used
+     * for each client; they are virtual threads if the system property
+     * netgame.virtualThreads is "true".
      * @param port  the port on which the server will listen.
      * @throws IOException if it is not possible to create a listening socket on the specified port.
      */
     public Hub(int port) throws IOException {
-        playerConnections = new TreeMap<Integer, ConnectionToClient>();
-        incomingMessages = new LinkedBlockingQueue<Message>();
-        serverSocket = new ServerSocket(port);
+        this(port, 0, ConnectionThreads.VIRTUAL_BY_DEFAULT);
+    }
+    
+    /**
+     * Creates a Hub listening on a specified port, which uses two threads for each
+     * client.  The threads will be virtual threads if virtualThreads is true and
+     * virtual threads are supported by the Java version; otherwise, they will be
+     * platform threads.
+     * @param port  the port on which the server will listen.
+     * @param virtualThreads  tells whether to use virtual threads for clients.
+     * @throws IOException if it is not possible to create a listening socket on the specified port.
+     */
+    public Hub(int port, boolean virtualThreads) throws IOException {
+        this(port, 0, virtualThreads);
+    }
+    
+    /**
+     * Creates a Hub listening on a specified port that uses non-blocking I/O
+     * to communicate with clients.  All communication with connected clients
+     * is done by a fixed number of selector threads, instead of by two threads
+     * for each client.  (A few more threads are used to do the initial handshake
+     * with clients that are connecting.)
+     * @param port  the port on which the server will listen.
+     * @param selectorThreadCount  the number of threads that will handle 
+     *    communication with connected clients.  A value equal to
+     *    Runtime.getRuntime().availableProcessors() is reasonable.  If the value
+     *    is zero, the Hub will instead use two threads for each client, exactly
+     *    like a Hub created with the constructor Hub(port).
+     * @throws IOException if it is not possible to create a listening socket on the specified port.
+     * @throws IllegalArgumentException if selectorThreadCount is negative.
+     */
+    public Hub(int port, int selectorThreadCount) throws IOException {
+        this(port, selectorThreadCount, ConnectionThreads.VIRTUAL_BY_DEFAULT);
+    }
+    
+    private Hub(int port, int selectorThreadCount, boolean virtualThreads) throws IOException {
+        if (selectorThreadCount < 0)
+            throw new IllegalArgumentException("The number of selector threads can't be negative.");
+        this.virtualThreads = virtualThreads;
+        playerConnections = PlayerList.EMPTY;
+        dispatchers = new Dispatcher[] { new Dispatcher() };
+        dispatchers[0].start();
+        if (selectorThreadCount > 0) {
+            selectorThreads = new SelectorThread[selectorThreadCount];
+            for (int i = 0; i < selectorThreadCount; i++) {
+                selectorThreads[i] = new SelectorThread();
+                selectorThreads[i].start();
+            }
+            handshakeExecutor = Executors.newFixedThreadPool(HANDSHAKE_THREADS, task -> {
+                Thread t = new Thread(task);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        serverSocket = openServerSocket(port);
         System.out.println("Listening for client connections on port " + port);
         serverThread = new ServerThread();
         serverThread.start();
-        Thread readerThread = new Thread(){
-            public void run() {
-               while (true) {
-                   try {
-                       Message msg = incomingMessages.take();
-                       messageReceived(msg.playerConnection, msg.message);
-                   }
-                   catch (Exception e) {
-                       System.out.println("Exception while handling received message:");
-                       e.printStackTrace();
-                   }
-               }
-           }
-        };
-        readerThread.setDaemon(true);
-        readerThread.start();
     }
     
     
@@ -146,6 +310,9 @@ public class Hub {
     
     /**
      * This method is called just after a player has disconnected.
+     * It is also called when the connection to a player is lost because
+     * of an error, or because the player was disconnected by the
+     * SlowConsumerPolicy.DISCONNECT policy.
      * Note that getPlayerList() can be called to get a list
      * of connected players.  The method in this class does nothing.
      * @param playerID the ID number of the new player.
@@ -175,16 +342,19 @@ public class Hub {
     
     
     /**
-     * Gets a list of ID numbers of currently connected clients.
-     * @return an array containing the ID numbers of all the connected clients.
-     * The array is newly created each time this method is called.
+     * Gets a list of ID numbers of currently connected clients.  This method
+     * does not wait for any lock; it copies the list that was made when a
+     * player last connected or disconnected.  If this hub is part of a
+     * federation, the list includes the players on the other hubs.
+     * @return an array containing the ID numbers of all the connected clients,
+     * in increasing order.  The array is newly created each time this method is called.
      */
-    synchronized public int[] getPlayerList() {
-        int[] players = new int[playerConnections.size()];
-        int i = 0;
-        for (int p : playerConnections.keySet())
-            players[i++] = p;
-        return players;
+    public int[] getPlayerList() {
+        HubFederation f = federation;
+        if (f == null)
+            return playerConnections.ids.clone();
+        else
+            return f.withRemotePlayers(playerConnections.ids);
     }
     
 
@@ -196,7 +366,8 @@ public class Hub {
     public void shutdownServerSocket() {
         if (serverThread == null)
             return;
-        incomingMessages.clear();
+        for (Dispatcher d : dispatchers)
+            d.messages.clear();
         shutdown = true;
         try {
             serverSocket.close();
@@ -218,7 +389,7 @@ public class Hub {
         if (serverThread != null && serverThread.isAlive())
             throw new IllegalStateException("Server is already listening for connections.");
         shutdown = false;
-        serverSocket = new ServerSocket(port);
+        serverSocket = openServerSocket(port);
         serverThread = new ServerThread();
         serverThread.start();
     }
@@ -231,34 +402,47 @@ public class Hub {
      */
     public void shutDownHub() {
         shutdownServerSocket();
-        sendToAll(new DisconnectMessage("*shutdown*"));
+        sendToLocalPlayers(new DisconnectMessage("*shutdown*"));
         try {
             Thread.sleep(1000);
         }
         catch (InterruptedException e) {
         }
-        for (ConnectionToClient pc : playerConnections.values())
+        for (PlayerConnection pc : playerConnections.connections)
             pc.close();
     }
     
     
     /**
      * Sends a specified non-null Object as a message to all connected clients.
+     * For clients that use a MessageCodec, the message is encoded just once
+     * (by the thread that calls this method), and the encoded bytes are shared
+     * by all of the connections.  This method does not wait for any lock, so
+     * it can be called by several threads at the same time.  The message goes
+     * to the players who are connected when the method is called.  If this hub
+     * is part of a federation, the message is also sent, once, to each of the
+     * other hubs, which send it to their players.
      * @param message the message to be sent to all connected clients.  This object must
      * implement the Serializable interface.  Messages must not be null.
      */
-    synchronized public void sendToAll(Object message) {
+    public void sendToAll(Object message) {
         if (message == null)
             throw new IllegalArgumentException("Null cannot be sent as a message.");
         if ( ! (message instanceof Serializable) )
             throw new IllegalArgumentException("Messages must implement the Serializable interface.");
-        for (ConnectionToClient pc : playerConnections.values())
-            pc.send(message);
+        OutgoingMessage om = new OutgoingMessage(message, metrics.encodeTimes);
+        sendToLocalPlayers(om);
+        HubFederation f = federation;
+        if (f != null)
+            f.forwardToAll(om);
     }
     
     
     /**
      * Sends a specified non-null Object as a message to one connected client.
+     * Like sendToAll(), this method does not wait for any lock.  If the
+     * recipient is connected to another hub in a federation, the message
+     * is forwarded to that hub.
      * @param recipientID the ID number of the player to whom the message is
      * to be sent.  If there is no such player, then the method returns the 
      * value false.
@@ -266,18 +450,43 @@ public class Hub {
      * implement the Serializable interface.  Messages must not be null.
      * @return true if the specified recipient exists, false if not.
      */
-    synchronized public boolean sendToOne(int recipientID, Object message) {
+    public boolean sendToOne(int recipientID, Object message) {
         if (message == null)
             throw new IllegalArgumentException("Null cannot be sent as a message.");
         if ( ! (message instanceof Serializable) )
             throw new IllegalArgumentException("Messages must implement the Serializable interface.");
-        ConnectionToClient pc = playerConnections.get(recipientID);
-        if (pc == null)
-            return false;
-        else {
-            pc.send(message);
+        OutgoingMessage om = new OutgoingMessage(message, metrics.encodeTimes);
+        if (sendToLocalPlayer(recipientID, om))
             return true;
-        }
+        HubFederation f = federation;
+        return f != null && f.forwardToOne(recipientID, om);
+    }
+
+
+    /**
+     * Sends a specified non-null Object as a message to a group of connected
+     * clients.  As in sendToAll(), the message is encoded just once, and the
+     * encoded bytes are shared by all of the connections.  This is much more
+     * efficient than calling sendToOne() for each recipient.  Like sendToAll(),
+     * this method does not wait for any lock.  In a federation, the message is
+     * sent once to each other hub that has some of the recipients.
+     * @param recipientIDs the ID numbers of the players to whom the message is
+     * to be sent.  IDs of players who are not connected are ignored.
+     * @param message the message to be sent.  This object must implement the
+     * Serializable interface.  Messages must not be null.
+     * @return the number of players to whom the message was sent.
+     */
+    public int sendToGroup(int[] recipientIDs, Object message) {
+        if (message == null)
+            throw new IllegalArgumentException("Null cannot be sent as a message.");
+        if ( ! (message instanceof Serializable) )
+            throw new IllegalArgumentException("Messages must implement the Serializable interface.");
+        OutgoingMessage om = new OutgoingMessage(message, metrics.encodeTimes);
+        int count = sendToLocalGroup(recipientIDs, om);
+        HubFederation f = federation;
+        if (f != null && count < recipientIDs.length)
+            count += f.forwardToGroup(recipientIDs, om);
+        return count;
     }
     
     
@@ -288,11 +497,12 @@ public class Hub {
      * between transmissions.  The reason for this is that ObjectOutputStreams are
      * optimized for sending objects that don't change -- if the same object is sent
      * twice it will not actually be transmitted the second time, unless the stream
-     * has been reset in the meantime.
+     * has been reset in the meantime.  (Often, a better solution is to put the data
+     * in a SharedMap, which sends only the changes that are made to it.)
      */
     public void resetOutput() {
-        ResetSignal rs = new ResetSignal();
-        for (ConnectionToClient pc : playerConnections.values())
+        OutgoingMessage rs = new OutgoingMessage(new ResetSignal());
+        for (PlayerConnection pc : playerConnections.connections)
             pc.send(rs); // A ResetSignal in the output stream is seen as a signal to reset.
     }
     
@@ -314,49 +524,575 @@ public class Hub {
         return autoreset;
     }
     
+    
+    /**
+     * Says how a Hub that uses two threads for each client sends its messages.
+     * When write batching is on, the thread that sends messages to a client writes
+     * all of the messages that are waiting in the queue, and then flushes the output
+     * just once, so that many messages can be sent by one call to the operating
+     * system (and often in one network packet).  If maxDelay is greater than zero,
+     * the thread also waits for up to maxDelay milliseconds after the first message
+     * of a batch for more messages to arrive before it flushes the output.  This
+     * makes the batches larger, but delays some messages by up to maxDelay.  When write
+     * batching is off, the output is flushed after every message.  The default is
+     * write batching on, with a maximum delay of zero.  (A Hub that uses non-blocking
+     * I/O always writes all the messages that are waiting, and does not use a delay.)
+     * @param batch tells whether to use write batching.
+     * @param maxDelay the longest time, in milliseconds, that a message can wait
+     *    for other messages to be added to its batch.
+     * @throws IllegalArgumentException if maxDelay is negative.
+     */
+    public void setWriteBatching(boolean batch, int maxDelay) {
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("The maximum delay can't be negative.");
+        maxBatchDelay = maxDelay;
+        writeBatching = batch;
+    }
+    
+    /**
+     * Returns true if write batching is on.  See setWriteBatching().
+     */
+    public boolean getWriteBatching() {
+        return writeBatching;
+    }
+    
+    /**
+     * Returns the maximum delay for write batching, in milliseconds.  See setWriteBatching().
+     */
+    public int getMaxBatchDelay() {
+        return maxBatchDelay;
+    }
+    
+    
+    /**
+     * Sets a limit on the number of messages that can be waiting to be sent to
+     * any one client.  A client that does not read its messages fast enough would
+     * otherwise make the queue grow until the Hub runs out of memory.  When a
+     * message is sent to a client whose queue is full, the policy says what happens.
+     * The limit applies to all clients, including those that are already connected.
+     * By default, there is no limit.
+     * @param limit the maximum number of messages in each queue, or zero for no limit.
+     * @param policy what to do with a message for a client whose queue is full.
+     * @throws IllegalArgumentException if limit is negative or policy is null.
+     */
+    public void setOutgoingQueueLimit(int limit, SlowConsumerPolicy policy) {
+        if (limit < 0)
+            throw new IllegalArgumentException("The queue limit can't be negative.");
+        if (policy == null)
+            throw new IllegalArgumentException("The policy can't be null.");
+        slowConsumerPolicy = policy;
+        outgoingQueueLimit = limit;
+    }
+    
+    /**
+     * Returns the limit on the number of messages waiting to be sent to
+     * a client, or zero if there is no limit.
+     */
+    public int getOutgoingQueueLimit() {
+        return outgoingQueueLimit;
+    }
+    
+    /**
+     * Returns the policy that is used when a client's queue of outgoing messages is full.
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+    
+    
+    /**
+     * Returns the state of the queue of messages waiting to be sent to one player,
+     * or null if there is no such player.
+     */
+    public QueueStatus getQueueStatus(int playerID) {
+        PlayerConnection pc = playerConnections.get(playerID);
+        return (pc == null) ? null : pc.outgoing.getStatus(playerID);
+    }
+    
+    /**
+     * Arranges for an action to be performed once, as soon as no more than a given
+     * number of messages are waiting to be sent to one player.  This lets a hub
+     * send a long series of messages a few at a time, without filling the player's
+     * queue and without a thread that waits for the queue to empty.  The action is
+     * performed right away if the queue is already short enough; otherwise, it is
+     * performed by the thread that sends messages to the player, so it should be
+     * short, and it should not wait for anything.  (It can, for example, hand off
+     * the next part of the work to another thread.)  If the player disconnects
+     * before the queue is short enough, the action might be performed when its
+     * queue is cleared, or it might never be performed.  An action that has not
+     * yet been performed is replaced if this method is called again for the same player.
+     * @return false if there is no such player; in that case, the action is not performed.
+     */
+    public boolean whenQueueDrained(int playerID, int depth, Runnable action) {
+        PlayerConnection pc = playerConnections.get(playerID);
+        if (pc == null)
+            return false;
+        pc.outgoing.whenDrained(depth, action);
+        return true;
+    }
+    
+    /**
+     * Returns the state of the queues of messages waiting to be sent to each
+     * connected player, in order of increasing player ID.
+     */
+    public QueueStatus[] getQueueStatus() {
+        PlayerConnection[] connections = playerConnections.connections;
+        QueueStatus[] status = new QueueStatus[connections.length];
+        for (int i = 0; i < connections.length; i++)
+            status[i] = connections[i].outgoing.getStatus(connections[i].getPlayer());
+        return status;
+    }
+    
+    
+    /**
+     * Sets the number of threads that process messages received from clients.
+     * By default, there is one such thread, and messageReceived(), playerConnected(),
+     * and playerDisconnected() are never called at the same time.  With more than
+     * one thread, messages from different players can be processed in parallel.
+     * The messages from any one player are still processed one at a time, in the
+     * order in which they were received, by the thread that handles that player,
+     * and that thread also calls playerConnected() and playerDisconnected() for
+     * the player (before and after all of its messages).  But the methods can be
+     * called for different players at the same time, so a subclass that uses more
+     * than one thread must synchronize access to any data that the methods share.
+     * <p>This method can only be called before any client has connected, so it
+     * would usually be called in the constructor of a subclass.
+     * @param count the number of threads, which must be at least 1.
+     * @throws IllegalArgumentException if count is less than 1.
+     * @throws IllegalStateException if a client has already connected.
+     */
+    synchronized public void setDispatchThreadCount(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("There must be at least one dispatch thread.");
+        if (nextClientID > 1)  // (nextPlayerID() also synchronizes on the Hub.)
+            throw new IllegalStateException("The dispatch threads can't be changed after a client has connected.");
+        Dispatcher[] newDispatchers = new Dispatcher[count];
+        for (int i = 0; i < count; i++) {
+            newDispatchers[i] = new Dispatcher();
+            newDispatchers[i].start();
+        }
+        Dispatcher[] oldDispatchers = dispatchers;
+        dispatchers = newDispatchers;
+        for (Dispatcher d : oldDispatchers)
+            d.retire();
+    }
+    
+    /**
+     * Returns the number of threads that process messages received from clients.
+     */
+    public int getDispatchThreadCount() {
+        return dispatchers.length;
+    }
+    
+    
+    /**
+     * Returns the object that collects statistics about this Hub, such as the
+     * number of messages that it has received and sent.  The same object is
+     * returned every time, and its values are updated as the Hub runs.
+     * Call getMetrics().dump(System.out) to print all of the statistics.
+     */
+    public HubMetrics getMetrics() {
+        return metrics;
+    }
+    
+    
+    /**
+     * Makes this Hub a node in a federation of hubs, and starts listening for links
+     * from the other hubs.  (See the class comment.)  Every hub in the federation
+     * must have a different node ID, since the node ID is used to make sure that
+     * the ID numbers of players are unique across the federation:  the players on
+     * node n are numbered n*100000000+1, n*100000000+2, and so on.  So this method
+     * must be called before any players connect.  The hubs can run on the same
+     * computer, as long as they use different ports.
+     * @param nodeID the node ID of this hub, in the range 1 to MAX_NODE_ID.
+     * @param peerPort the port on which this hub listens for links from other hubs.
+     *    This must be different from the port on which it listens for clients.
+     * @throws IOException if it is not possible to listen on the peer port.
+     * @throws IllegalStateException if this hub is already in a federation, or if
+     *    a player has already connected.
+     */
+    synchronized public void startFederation(int nodeID, int peerPort) throws IOException {
+        if (nodeID < 1 || nodeID > MAX_NODE_ID)
+            throw new IllegalArgumentException("The node ID must be between 1 and " + MAX_NODE_ID + ".");
+        if (federation != null)
+            throw new IllegalStateException("This hub is already part of a federation.");
+        if (nextClientID != 1)
+            throw new IllegalStateException("A federation must be started before any player connects.");
+        federation = new HubFederation(this, registryLock, nodeID, peerPort);
+        clientIDOffset = nodeID * NODE_ID_RANGE;
+    }
+    
+    /**
+     * Links this hub with another hub in the same federation.  Each pair of
+     * hubs must be linked just once, by calling this method for one of them.
+     * When the link is made, each hub tells the other about its players.
+     * @param host the computer where the other hub is running.
+     * @param peerPort the port that the other hub passed to startFederation().
+     * @throws IOException if the link can't be made, for example if there
+     *    is already a link to a hub with the same node ID.
+     * @throws IllegalStateException if startFederation() has not been called.
+     */
+    public void connectToPeer(String host, int peerPort) throws IOException {
+        HubFederation f = federation;
+        if (f == null)
+            throw new IllegalStateException("startFederation() must be called first.");
+        f.connectToPeer(host, peerPort);
+    }
+    
+    /**
+     * Returns the node ID of this hub in its federation, or zero if the hub is
+     * not part of a federation.
+     */
+    public int getNodeID() {
+        HubFederation f = federation;
+        return (f == null) ? 0 : f.nodeID;
+    }
+    
+    /**
+     * Returns the node IDs of the other hubs to which this hub is linked,
+     * in increasing order.  The array is empty if there are none.
+     */
+    public int[] getPeerNodes() {
+        HubFederation f = federation;
+        return (f == null) ? new int[0] : f.getPeerNodes();
+    }
+    
+    /**
+     * Closes the links to the other hubs in the federation and stops listening
+     * for new links.  The other hubs see this hub's players as disconnected.
+     * The node ID is still used for the ID numbers of new players, so the hub
+     * can't join a different federation.
+     */
+    public void stopFederation() {
+        HubFederation f = federation;
+        if (f != null)
+            f.stop();
+    }
+    
+    
+    /**
+     * When the SlowConsumerPolicy is COALESCE and a message is sent to a client
+     * whose outgoing queue is full, this method is called to decide which queued
+     * message, if any, the new message makes unnecessary.  The queued messages are
+     * tested from newest to oldest, and the first one for which this method returns
+     * true is discarded.  The method in this class returns true if the two messages
+     * belong to the same class.  Subclasses can override it to compare the content
+     * of the messages.  This method can be called by any thread that sends a message,
+     * so it should not use data that can be changed by other threads.
+     * @param newMessage the message that is being sent.
+     * @param queuedMessage a message that is waiting to be sent to the same client.
+     */
+    protected boolean replacesMessage(Object newMessage, Object queuedMessage) {
+        return newMessage.getClass() == queuedMessage.getClass();
+    }
+    
 
     //------------------------- private implementation part ---------------------------------------
     
+    private static final int HANDSHAKE_THREADS = 4;         // Threads in handshakeExecutor.
+    private static final int HANDSHAKE_TIMEOUT = 30000;     // Milliseconds allowed for a read during the handshake.
+    private static final int ACCEPT_BACKLOG = 1024;         // Pending connections allowed by a non-blocking Hub.
+    private static final int READ_BUFFER_SIZE = 64*1024;    // Size of each selector thread's read buffer.
+    private static final int MAX_GATHERED_FRAMES = 64;      // Most frames written by one gathering write.
+    private static final int NODE_ID_RANGE = 100000000;     // Player IDs on node n start at n*NODE_ID_RANGE+1.
+    
     
-    synchronized private void messageReceived(ConnectionToClient fromConnection, Object message) {
-              // Note: DisconnectMessage is handled in the ConnectionToClient class.
+    /**
+     * Creates the listening socket.  If the Hub uses non-blocking I/O, the socket 
+     * belongs to a ServerSocketChannel, so that accepted sockets have channels.
+     */
+    private ServerSocket openServerSocket(int port) throws IOException {
+        if (selectorThreads == null)
+            return new ServerSocket(port);
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        return channel.socket();
+    }
+    
+    
+    synchronized private int nextPlayerID() {
+        return clientIDOffset + nextClientID++;
+    }
+    
+    
+    /*
+     * messageReceived(), playerConnected(), and playerDisconnected() are all called
+     * by the Dispatcher for the player.  When there is only one Dispatcher, the calls
+     * are also synchronized on the Hub, since subclasses might expect that.
+     * Changes to the list of players are made while holding registryLock instead,
+     * which is only held for as long as it takes to replace the list and queue the
+     * StatusMessages.  That way, the lock is never held while an application method
+     * runs, and all players see the StatusMessages in the same order.
+     */
+    
+    private static final Object CONNECTED = new Object();     // Special values for Message.message,
+    private static final Object DISCONNECTED = new Object();  //   which tell a Dispatcher to call
+                                                              //   playerConnected() or playerDisconnected().
+    
+    private void messageReceived(PlayerConnection fromConnection, Object message) {
+              // Note: DisconnectMessage is handled in the connection classes.
         int sender = fromConnection.getPlayer();
-        messageReceived(sender,message);
+        if (message == CONNECTED)
+            playerConnected(sender);
+        else if (message == DISCONNECTED)
+            playerDisconnected(sender);
+        else {
+            long start = System.nanoTime();
+            messageReceived(sender,message);
+            metrics.handlerTimes.record(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Adds a message to the queue of the Dispatcher for the player who sent it.
+     */
+    private void dispatch(PlayerConnection fromConnection, Object message) {
+        Message msg = new Message();
+        msg.playerConnection = fromConnection;
+        msg.message = message;
+        Dispatcher[] d = dispatchers;
+        d[fromConnection.getPlayer() % d.length].messages.add(msg);
     }
     
     
-    synchronized private void acceptConnection(ConnectionToClient newConnection) {
+    /**
+     * Nagle's algorithm is turned off for a socket while the handshake is being done.
+     * During the handshake, the object streams send small pieces of data, such as the
+     * stream header, in separate writes.  With Nagle's algorithm, a piece of data that
+     * follows one that has not been acknowledged waits for the acknowledgement, and
+     * the client might delay that for up to 40 milliseconds, so each connection would
+     * take tens of milliseconds to set up.  After the handshake, messages are written
+     * in batches, so Nagle's algorithm is turned back on.
+     */
+    private static void handshakeDone(Socket socket) throws IOException {
+        socket.setTcpNoDelay(false);
+    }
+    
+    private void acceptConnection(PlayerConnection newConnection) {
         int ID = newConnection.getPlayer();
-        playerConnections.put(ID,newConnection);
-        StatusMessage sm = new StatusMessage(ID,true,getPlayerList());
-        sendToAll(sm);
-        playerConnected(ID);
+        synchronized(registryLock) {
+            PlayerList oldList = playerConnections;
+            PlayerList newList = oldList.with(newConnection);
+            // The new player gets the full list before it can receive anything else.
+            int[] allPlayers = (federation == null) ? newList.ids : federation.withRemotePlayers(newList.ids);
+            newConnection.send(new OutgoingMessage(new StatusMessage(ID,true,allPlayers), metrics.encodeTimes));
+            playerConnections = newList;
+            OutgoingMessage sm = new OutgoingMessage(new StatusMessage(ID,true,null), metrics.encodeTimes);  // Other players only need the change.
+            for (PlayerConnection pc : oldList.connections)
+                pc.send(sm);
+            if (federation != null)
+                federation.localPlayerJoined(ID);
+        }
+        for (SharedMap<?,?> map : sharedMaps)
+            map.sendSnapshot(ID);  // Updates sent after this will have newer versions.
+        metrics.connectionsAccepted.increment();
+        metrics.handshakeTimes.record(System.nanoTime() - newConnection.startTime);
+        dispatch(newConnection, CONNECTED);
         System.out.println("Connection accepted from client number " + ID);
     }
     
-    synchronized private void clientDisconnected(int playerID) {
-        if (playerConnections.containsKey(playerID)) {
-            playerConnections.remove(playerID);
-            StatusMessage sm = new StatusMessage(playerID,false,getPlayerList());
-            sendToAll(sm);
-            playerDisconnected(playerID);
+    private void clientDisconnected(PlayerConnection playerConnection) {
+        int playerID = playerConnection.getPlayer();
+        if (removePlayer(playerID)) {
+            dispatch(playerConnection, DISCONNECTED);
             System.out.println("Connection with client number " + playerID + " closed by DisconnectMessage from client.");
         }
     }
     
-    synchronized private void connectionToClientClosedWithError( ConnectionToClient playerConnection, String message ) {
-        int ID = playerConnection.getPlayer();
-        if (playerConnections.remove(ID) != null) {
-            StatusMessage sm = new StatusMessage(ID,false,getPlayerList());
-            sendToAll(sm);
+    private void connectionToClientClosedWithError( PlayerConnection playerConnection, String message ) {
+        if (removePlayer(playerConnection.getPlayer()))
+            dispatch(playerConnection, DISCONNECTED);
+    }
+    
+    /*
+     * The following methods send messages only to the players who are connected to
+     * this hub.  They are used by SharedMap and HubFederation, as well as by the
+     * public send methods.
+     */
+    
+    int[] getLocalPlayerIDs() {
+        return playerConnections.ids;  // (Must not be modified.)
+    }
+    
+    void sendToLocalPlayers(Object message) {
+        sendToLocalPlayers(new OutgoingMessage(message, metrics.encodeTimes));
+    }
+    
+    void sendToLocalPlayers(OutgoingMessage om) {
+        for (PlayerConnection pc : playerConnections.connections)
+            pc.send(om);
+    }
+    
+    boolean sendToLocalPlayer(int recipientID, Object message) {
+        return sendToLocalPlayer(recipientID, new OutgoingMessage(message, metrics.encodeTimes));
+    }
+    
+    boolean sendToLocalPlayer(int recipientID, OutgoingMessage om) {
+        PlayerConnection pc = playerConnections.get(recipientID);
+        if (pc == null)
+            return false;
+        pc.send(om);
+        return true;
+    }
+    
+    int sendToLocalGroup(int[] recipientIDs, OutgoingMessage om) {
+        PlayerList players = playerConnections;
+        int count = 0;
+        for (int id : recipientIDs) {
+            PlayerConnection pc = players.get(id);
+            if (pc != null) {
+                pc.send(om);
+                count++;
+            }
         }
+        return count;
+    }
+    
+    /**
+     * Called by the SharedMap constructor.
+     */
+    void addSharedMap(SharedMap<?,?> map) {
+        synchronized(sharedMaps) {
+            for (SharedMap<?,?> m : sharedMaps) {
+                if (m.getName().equals(map.getName()))
+                    throw new IllegalArgumentException("This hub already has a SharedMap named " + map.getName());
+            }
+            sharedMaps.add(map);
+        }
+    }
+    
+    /**
+     * Removes a player from the list of connected players, and tells the remaining
+     * players about the change.  Returns false if the player was not in the list.
+     */
+    private boolean removePlayer(int playerID) {
+        synchronized(registryLock) {
+            PlayerList oldList = playerConnections;
+            if (oldList.get(playerID) == null)
+                return false;
+            PlayerList newList = oldList.without(playerID);
+            playerConnections = newList;
+            metrics.disconnections.increment();
+            OutgoingMessage sm = new OutgoingMessage(new StatusMessage(playerID,false,null), metrics.encodeTimes);
+            for (PlayerConnection pc : newList.connections)
+                pc.send(sm);
+            if (federation != null)
+                federation.localPlayerLeft(playerID);
+            return true;
+        }
+    }
+    
+    /**
+     * An immutable list of player connections, sorted by ID number, with a parallel
+     * array of the ID numbers.  A connection is found by binary search.  Adding or
+     * removing a player makes a new list, which takes time proportional to the number
+     * of players -- but so does telling all the players about the change.
+     */
+    private static class PlayerList {
+        
+        static final PlayerList EMPTY = new PlayerList(new int[0], new PlayerConnection[0]);
+        
+        final int[] ids;                       // These arrays must never be modified,
+        final PlayerConnection[] connections;  //   since they can be shared by other threads.
+        
+        PlayerList(int[] ids, PlayerConnection[] connections) {
+            this.ids = ids;
+            this.connections = connections;
+        }
+        
+        PlayerConnection get(int playerID) {
+            int i = Arrays.binarySearch(ids, playerID);
+            return (i < 0) ? null : connections[i];
+        }
+        
+        PlayerList with(PlayerConnection pc) {
+            int i = Arrays.binarySearch(ids, pc.getPlayer());
+            if (i >= 0) {  // Replaces the current connection for the same ID.
+                PlayerConnection[] newConnections = connections.clone();
+                newConnections[i] = pc;
+                return new PlayerList(ids, newConnections);
+            }
+            i = -(i + 1);  // Insertion point.
+            int[] newIDs = new int[ids.length + 1];
+            PlayerConnection[] newConnections = new PlayerConnection[ids.length + 1];
+            System.arraycopy(ids, 0, newIDs, 0, i);
+            System.arraycopy(connections, 0, newConnections, 0, i);
+            newIDs[i] = pc.getPlayer();
+            newConnections[i] = pc;
+            System.arraycopy(ids, i, newIDs, i+1, ids.length - i);
+            System.arraycopy(connections, i, newConnections, i+1, ids.length - i);
+            return new PlayerList(newIDs, newConnections);
+        }
+        
+        PlayerList without(int playerID) {
+            int i = Arrays.binarySearch(ids, playerID);
+            if (i < 0)
+                return this;
+            int[] newIDs = new int[ids.length - 1];
+            PlayerConnection[] newConnections = new PlayerConnection[ids.length - 1];
+            System.arraycopy(ids, 0, newIDs, 0, i);
+            System.arraycopy(connections, 0, newConnections, 0, i);
+            System.arraycopy(ids, i+1, newIDs, i, ids.length - i - 1);
+            System.arraycopy(connections, i+1, newConnections, i, ids.length - i - 1);
+            return new PlayerList(newIDs, newConnections);
+        }
+        
     }
     
     private class Message {
-        ConnectionToClient playerConnection;
+        PlayerConnection playerConnection;
         Object message;
     }
     
+    /**
+     * A thread that takes messages from its queue and processes them.
+     */
+    private class Dispatcher extends Thread {
+        
+        final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
+        private volatile boolean retired;  // Set to true when this thread should end.
+        
+        Dispatcher() {
+            setDaemon(true);
+        }
+        
+        void retire() {
+            retired = true;
+            interrupt();
+        }
+        
+        public void run() {
+            while ( ! retired ) {
+                try {
+                    Message msg = messages.take();
+                    if (dispatchers.length == 1) {
+                        synchronized(Hub.this) {
+                            messageReceived(msg.playerConnection, msg.message);
+                        }
+                    }
+                    else
+                        messageReceived(msg.playerConnection, msg.message);
+                }
+                catch (InterruptedException e) {
+                    // should mean that the thread is being retired
+                }
+                catch (Exception e) {
+                    System.out.println("Exception while handling received message:");
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+    }
+    
+    private SelectorThread nextSelectorThread() {
+        synchronized(selectorThreads) {
+            SelectorThread st = selectorThreads[nextSelectorThread];
+            nextSelectorThread = (nextSelectorThread + 1) % selectorThreads.length;
+            return st;
+        }
+    }
+    
     private class ServerThread extends Thread {  // Listens for connection requests from clients.
         public void run() {
             try {
@@ -366,7 +1102,10 @@ public class Hub {
                         System.out.println("Listener socket has shut down.");
                         break;
                     }
-                    new ConnectionToClient(incomingMessages,connection);
+                    if (selectorThreads == null)
+                        new ConnectionToClient(connection);
+                    else
+                        new ChannelConnection(connection.getChannel());
                 }
             }
             catch (Exception e) {
@@ -379,28 +1118,68 @@ public class Hub {
     }
     
     
-    private class ConnectionToClient { // Handles communication with one client.
+    /**
+     * Represents the connection to one client.  The subclass ConnectionToClient
+     * uses two threads for each connection; the subclass ChannelConnection is
+     * used when the Hub does non-blocking I/O.
+     */
+    private abstract class PlayerConnection {
+        
+        protected int playerID;  // The ID number for this player.
+        protected volatile boolean closed;  // Set to true when connection is closing normally.
+        protected final OutgoingQueue outgoing = new OutgoingQueue();  // Messages waiting to be sent.
+        protected final long startTime = System.nanoTime();  // When the connection was accepted.
+        
+        int getPlayer() {
+            return playerID;
+        }
+        
+        /**
+         * Queues a message for transmission to the client.  This must not block.
+         * If the connection uses a codec, the message is encoded before this
+         * method returns, so later changes to the message object are not seen.
+         */
+        abstract void send(OutgoingMessage om);
+        
+        abstract void close();
+        
+        protected void closedWithError(String message) {
+            connectionToClientClosedWithError(this, message);
+            close();
+        }
+        
+        /**
+         * Adds an item to the outgoing queue.  If the queue is full and the
+         * SlowConsumerPolicy is DISCONNECT, the connection is closed instead,
+         * and the return value is false.
+         */
+        protected boolean enqueue(Object item) {
+            if (outgoing.add(item, Hub.this))
+                return true;
+            if ( ! closed ) {
+                System.out.println("Client " + playerID + " is not reading its messages; closing connection.");
+                closedWithError("Outgoing message queue is full.");
+            }
+            return false;
+        }
+        
+    }
+    
+    
+    private class ConnectionToClient extends PlayerConnection { // Handles communication with one client.
 
-        private int playerID;  // The ID number for this player.
-        private BlockingQueue<Message> incomingMessages;
-        private LinkedBlockingQueue<Object> outgoingMessages;
         private Socket connection;
         private ObjectInputStream in;
         private ObjectOutputStream out;
-        private volatile boolean closed;  // Set to true when connection is closing normally.
+        private MessageCodec codec;          // Codec chosen in the handshake, or null if
+        private DataInputStream frameIn;     //   the object streams are used for messages.
+        private DataOutputStream frameOut;   // Streams for framed messages, if codec is not null.
         private Thread sendThread; // Handles setup, then handles outgoing messages.
         private volatile Thread receiveThread; // Created only after connection is open.
         
-        ConnectionToClient(BlockingQueue<Message> receivedMessageQueue, Socket connection)  {
+        ConnectionToClient(Socket connection)  {
             this.connection = connection;
-            incomingMessages = receivedMessageQueue;
-            outgoingMessages = new LinkedBlockingQueue<Object>();
-            sendThread =  new SendThread();
-            sendThread.start();
-        }
-        
-        int getPlayer() {
-            return playerID;
+            sendThread = ConnectionThreads.start(new SendThread(), virtualThreads);
         }
         
         void close() {
@@ -415,18 +1194,20 @@ public class Hub {
             }
         }
         
-        void send(Object obj) { // Just drop message into message output queue.
-            if (obj instanceof DisconnectMessage) {
+        void send(OutgoingMessage om) { // Just drop message into message output queue.
+            if (om.message instanceof ResetSignal) {
+                if (codec == null)
+                    enqueue(om.message);
+                return;
+            }
+            if (codec != null && om.frame(codec) == null)
+                return;  // The message can't be encoded.
+            if (om.message instanceof DisconnectMessage) {
                 // A signal to close the connection;
                 // discard other waiting messages, if any.
-                outgoingMessages.clear();
+                outgoing.clear();
             }
-            outgoingMessages.add(obj);
-        }
-        
-        private void closedWithError(String message) {
-            connectionToClientClosedWithError(this, message);
-            close();
+            enqueue(codec == null ? om.message : om);
         }
         
         /**
@@ -434,25 +1215,40 @@ public class Hub {
          * Once that's done, it creates a thread for receiving incoming messages,
          * and goes into an infinite loop in which it transmits outgoing messages.
          */
-        private class SendThread extends Thread {
+        private class SendThread implements Runnable {
             public void run() {
                 try {
-                    out = new ObjectOutputStream(connection.getOutputStream());
-                    in = new ObjectInputStream(connection.getInputStream());
+                    connection.setTcpNoDelay(true);  // See handshakeDone().
+                    InputStream socketIn = new CountingInputStream(connection.getInputStream(), metrics.bytesIn);
+                    OutputStream socketOut = new CountingOutputStream(connection.getOutputStream(), metrics.bytesOut);
+                    BatchingOutputStream batchingOut = new BatchingOutputStream(socketOut);
+                    out = new ObjectOutputStream(batchingOut);
+                    in = new ObjectInputStream(socketIn);
                     String handle = (String)in.readObject(); // first input must be "Hello Hub"
-                    if ( ! "Hello Hub".equals(handle) )
+                    if ( ! Frames.isHello(handle) )
                         throw new Exception("Incorrect hello string received from client.");
-                    synchronized(Hub.this) {
-                        playerID = nextClientID++; // Get a player ID for this player.
-                    }
+                    codec = Frames.chooseCodec(handle);
+                    playerID = nextPlayerID(); // Get a player ID for this player.
+                    if (codec != null)
+                        out.writeObject(Frames.framedResponse(codec));
                     out.writeObject(playerID);  // Send playerID to the client.
                     out.flush();
                     extraHandshake(playerID,in,out);  // Does any extra stuff before connection is fully established.
+                    if (codec != null) {
+                        out.flush();  // The object streams are not used after the handshake.
+                        frameIn = new DataInputStream(new BufferedInputStream(socketIn));
+                        frameOut = new DataOutputStream(new BufferedOutputStream(socketOut));
+                    }
+                    else {
+                        out.flush();
+                        batchingOut.startBuffering();  // Messages are sent in batches after the handshake.
+                    }
+                    handshakeDone(connection);
                     acceptConnection(ConnectionToClient.this);
-                    receiveThread = new ReceiveThread();
-                    receiveThread.start();
+                    receiveThread = ConnectionThreads.start(new ReceiveThread(), virtualThreads);
                 }
                 catch (Exception e) {
+                    metrics.handshakeFailures.increment();
                     try {
                         closed = true;
                         connection.close();
@@ -464,19 +1260,33 @@ public class Hub {
                     return;
                 }
                 try {
-                    while ( ! closed ) {  // Get messages from outgoingMessages queue and send them.
+                    ArrayList<Object> batch = new ArrayList<Object>();
+                    while ( ! closed ) {  // Get messages from outgoing queue and send them.
                         try {
-                            Object message = outgoingMessages.take();
-                            if (message instanceof ResetSignal)
-                                out.reset();
-                            else {
-                                if (autoreset)
-                                    out.reset();
-                                out.writeObject(message);
-                                out.flush();
-                                if (message instanceof DisconnectMessage) // A signal to close the connection.
-                                    close();
+                            // Write all the messages that are in the queue, and any that arrive
+                            // before the maximum batch delay runs out, then flush the output.
+                            batch.add(outgoing.take());
+                            long flushTime = System.nanoTime() + maxBatchDelay*1000000L;
+                            boolean disconnecting = false;
+                            while (true) {
+                                if (writeBatching)
+                                    outgoing.drainTo(batch);
+                                for (Object message : batch) {
+                                    if (writeMessage(message))
+                                        disconnecting = true;
+                                }
+                                batch.clear();
+                                long remaining = flushTime - System.nanoTime();
+                                if (disconnecting || ! writeBatching || remaining <= 0 
+                                                         || ! outgoing.awaitItem(remaining))
+                                    break;
                             }
+                            if (codec == null)
+                                out.flush();
+                            else
+                                frameOut.flush();
+                            if (disconnecting) // A DisconnectMessage has been sent.
+                                close();
                         }
                         catch (InterruptedException e) {
                             // should mean that connection is closing
@@ -499,34 +1309,56 @@ public class Hub {
             }
         }
         
+        /**
+         * Writes one item from the outgoing queue, without flushing the output.
+         * Returns true if the item is a DisconnectMessage, which means that the
+         * connection should be closed once it has been sent.
+         */
+        private boolean writeMessage(Object message) throws IOException {
+            if (message instanceof ResetSignal) {
+                out.reset();
+                return false;
+            }
+            metrics.messagesOut.increment();
+            if (message instanceof OutgoingMessage) {
+                // Write the frame that was encoded when the message was sent.
+                OutgoingMessage om = (OutgoingMessage)message;
+                Frames.write(om.frame(codec), frameOut);
+                return om.message instanceof DisconnectMessage;
+            }
+            else {
+                long start = System.nanoTime();
+                if (autoreset)
+                    out.reset();
+                out.writeObject(message);
+                metrics.encodeTimes.record(System.nanoTime() - start);
+                return message instanceof DisconnectMessage;
+            }
+        }
+        
         /**
          * The ReceiveThread reads messages transmitted from the client.  Messages
-         * are dropped into an incomingMessages queue, which is shared by all clients.
+         * are dropped into the queue of the Dispatcher that handles this client.
          * If a DisconnectMessage is received, however, it is a signal from the
          * client that the client is disconnecting.
          */
-        private class ReceiveThread extends Thread {
+        private class ReceiveThread implements Runnable {
             public void run() {
                 try {
                     while ( ! closed ) {
-                        try {
-                            Object message = in.readObject();
-                            Message msg = new Message();
-                            msg.playerConnection = ConnectionToClient.this;
-                            msg.message = message;
-                            if ( ! (message instanceof DisconnectMessage) )
-                                incomingMessages.put(msg);
-                            else {
-                                closed = true;
-                                outgoingMessages.clear();
+                        Object message = (codec == null) ? in.readObject() : Frames.read(frameIn, codec);
+                        metrics.messagesIn.increment();
+                        if ( ! (message instanceof DisconnectMessage) )
+                            dispatch(ConnectionToClient.this, message);
+                        else {
+                            closed = true;
+                            outgoing.clear();
+                            if (codec == null) {
                                 out.writeObject("*goodbye*");
                                 out.flush();
-                                clientDisconnected(playerID);
-                                close();
                             }
-                        }
-                        catch (InterruptedException e) {
-                            // should mean that connection is closing
+                            clientDisconnected(ConnectionToClient.this);
+                            close();
                         }
                     }
                 }
@@ -547,6 +1379,305 @@ public class Hub {
         }
         
     }  // end nested class ConnectionToClient
+    
+    
+    /**
+     * Handles communication with one client when the Hub uses non-blocking I/O.
+     * The constructor submits the connection handshake to the handshakeExecutor.
+     * Once the handshake is complete, the channel is switched to non-blocking mode
+     * and from then on, all reading and writing is done by one of the selector 
+     * threads.  Outgoing messages are encoded into frames by the thread that
+     * sends them, so the selector thread only has to copy bytes.  The frame
+     * for a broadcast message is shared by all connections, and several frames
+     * can be written to the channel by one gathering write.
+     */
+    private class ChannelConnection extends PlayerConnection implements Runnable {
+        
+        private final SocketChannel channel;
+        private final SelectorThread selectorThread;  // Does all I/O after the handshake.
+        private volatile MessageCodec codec;  // The codec chosen during the handshake.
+        private final AtomicBoolean serviceRequested;  // True while queued for the selector thread.
+        
+        // The following are used only by the selector thread.
+        private SelectionKey key;
+        private ArrayDeque<ByteBuffer> framesBeingWritten;
+        private ByteBuffer disconnectFrame;  // The frame of a DisconnectMessage, once it has been dequeued.
+        private boolean closeWhenSent;       // Set when disconnectFrame has been completely written.
+        private ByteBuffer partialFrame;  // Holds the start of a frame that has not completely arrived.
+        
+        ChannelConnection(SocketChannel channel) {
+            this.channel = channel;
+            selectorThread = nextSelectorThread();
+            serviceRequested = new AtomicBoolean();
+            framesBeingWritten = new ArrayDeque<ByteBuffer>();
+            handshakeExecutor.execute(this);
+        }
+        
+        /**
+         * Does the handshake, using blocking streams, then hands the
+         * connection over to its selector thread.
+         */
+        public void run() {
+            try {
+                Socket socket = channel.socket();
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                socket.setTcpNoDelay(true);  // See handshakeDone().
+                ObjectOutputStream out = new ObjectOutputStream(
+                        new CountingOutputStream(socket.getOutputStream(), metrics.bytesOut));
+                ObjectInputStream in = new ObjectInputStream(
+                        new CountingInputStream(socket.getInputStream(), metrics.bytesIn));
+                String handle = (String)in.readObject(); // first input must be "Hello Hub"
+                if ( ! Frames.isHello(handle) )
+                    throw new Exception("Incorrect hello string received from client.");
+                MessageCodec chosen = Frames.chooseCodec(handle);
+                codec = (chosen != null) ? chosen : MessageCodecs.get("serial");
+                playerID = nextPlayerID();
+                out.writeObject(Frames.framedResponse(codec));  // Tell the client to use framed messages.
+                out.writeObject(playerID);
+                out.flush();
+                extraHandshake(playerID,in,out);
+                out.flush();
+                socket.setSoTimeout(0);
+                handshakeDone(socket);
+                channel.configureBlocking(false);
+                acceptConnection(this);
+                selectorThread.requestService(this);  // Registers the channel.
+            }
+            catch (Exception e) {
+                metrics.handshakeFailures.increment();
+                closed = true;
+                try {
+                    channel.close();
+                }
+                catch (Exception e1) {
+                }
+                System.out.println("\nError while setting up connection: " + e);
+                e.printStackTrace();
+            }
+        }
+        
+        void send(OutgoingMessage om) {
+            if (om.message instanceof ResetSignal)
+                return;  // Not needed, since each message is encoded separately.
+            if (om.frame(codec) == null)
+                return;  // The message can't be encoded.
+            if (om.message instanceof DisconnectMessage) {
+                // A signal to close the connection;
+                // discard other waiting messages, if any.
+                // The connection is closed by the selector thread, after
+                // it has written the message; see writeOutput().
+                outgoing.clear();
+                outgoing.add(om, Hub.this);
+            }
+            else if ( ! enqueue(om) )
+                return;
+            selectorThread.requestService(this);
+        }
+        
+        void close() {
+            closed = true;
+            try {
+                channel.close();  // Also cancels the channel's SelectionKey.
+            }
+            catch (IOException e) {
+            }
+        }
+        
+        /**
+         * Called by the selector thread when this connection has asked for service,
+         * either because it has just been handed over by the handshake or because
+         * messages have been queued for output.
+         */
+        void service(Selector selector) throws IOException {
+            if (closed)
+                return;
+            if (key == null)
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            writeOutput();
+        }
+        
+        /**
+         * Called by the selector thread to write as much queued output as the
+         * channel will accept.  Several frames are written by each gathering write.
+         * If some output remains, the selector thread will watch for the channel
+         * to become writable.  When the frame of a DisconnectMessage has been
+         * completely written, the connection is closed.  (The decision is made
+         * here, and not in send(), since only this thread knows when the frame
+         * has actually been written.)
+         */
+        void writeOutput() throws IOException {
+            while (true) {
+                OutgoingMessage om;
+                while (disconnectFrame == null && framesBeingWritten.size() < MAX_GATHERED_FRAMES
+                                  && (om = (OutgoingMessage)outgoing.poll()) != null) {
+                    ByteBuffer frame = om.frame(codec);  // (Already encoded by send().)
+                    framesBeingWritten.add(frame);
+                    if (om.message instanceof DisconnectMessage)
+                        disconnectFrame = frame;  // Nothing after it will be sent.
+                }
+                if (framesBeingWritten.isEmpty())
+                    break;
+                metrics.bytesOut.add(channel.write(framesBeingWritten.toArray(new ByteBuffer[framesBeingWritten.size()])));
+                while ( ! framesBeingWritten.isEmpty() && ! framesBeingWritten.peekFirst().hasRemaining() ) {
+                    if (framesBeingWritten.removeFirst() == disconnectFrame)
+                        closeWhenSent = true;
+                    metrics.messagesOut.increment();
+                }
+                if ( ! framesBeingWritten.isEmpty() )
+                    break;  // The channel can't take any more data right now.
+            }
+            if ( ! framesBeingWritten.isEmpty() )
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            else if (closeWhenSent)
+                close();  // The DisconnectMessage has been sent.
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+        
+        /**
+         * Called by the selector thread when data is available to be read.
+         * Complete frames are decoded and handled; the start of an incomplete
+         * frame is saved in partialFrame until the rest of the frame arrives.
+         * @param buffer a buffer, shared by all connections of the selector 
+         *    thread, into which the data is read.
+         */
+        void readInput(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0)
+                throw new EOFException("Connection closed by client.");
+            metrics.bytesIn.add(count);
+            buffer.flip();
+            ByteBuffer data = buffer;
+            if (partialFrame != null) {
+                if (partialFrame.remaining() < buffer.remaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(
+                            Math.max(2*partialFrame.capacity(), partialFrame.position() + buffer.remaining()));
+                    partialFrame.flip();
+                    bigger.put(partialFrame);
+                    partialFrame = bigger;
+                }
+                partialFrame.put(buffer);
+                partialFrame.flip();
+                data = partialFrame;
+            }
+            while (data.remaining() >= 4 && ! closed) {
+                int length = data.getInt(data.position());
+                if (length < 0 || length > Frames.MAX_FRAME_LENGTH)
+                    throw new IOException("Illegal frame length " + length + " received from client.");
+                if (data.remaining() < 4 + length)
+                    break;
+                data.getInt();
+                byte[] bytes = new byte[length];
+                data.get(bytes);
+                frameReceived(Frames.decode(bytes, codec));
+            }
+            if ( ! data.hasRemaining() || closed )
+                partialFrame = null;
+            else if (data == partialFrame)
+                partialFrame.compact();
+            else {
+                int needed = data.remaining() >= 4 ? 4 + data.getInt(data.position()) : 4;
+                partialFrame = ByteBuffer.allocate(Math.max(needed, data.remaining()));
+                partialFrame.put(data);
+            }
+        }
+        
+        private void frameReceived(Object message) {
+            metrics.messagesIn.increment();
+            if ( ! (message instanceof DisconnectMessage) )
+                dispatch(this, message);
+            else {
+                closed = true;  // (The client closes its end as soon as it has sent the message.)
+                outgoing.clear();
+                clientDisconnected(this);
+                close();
+            }
+        }
+        
+    } // end nested class ChannelConnection
+    
+    
+    /**
+     * A thread that handles network I/O for some of the connections of a Hub that
+     * uses non-blocking I/O.  Connections are assigned to the threads in rotation.
+     */
+    private class SelectorThread extends Thread {
+        
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<ChannelConnection> serviceRequests;
+        private final ByteBuffer readBuffer;
+        
+        SelectorThread() throws IOException {
+            selector = Selector.open();
+            serviceRequests = new ConcurrentLinkedQueue<ChannelConnection>();
+            readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            setDaemon(true);
+        }
+        
+        /**
+         * Asks this thread to call connection.service(), unless such a call 
+         * is already pending.  This can be called from any thread.
+         */
+        void requestService(ChannelConnection connection) {
+            if (connection.serviceRequested.compareAndSet(false, true)) {
+                serviceRequests.add(connection);
+                selector.wakeup();
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    ChannelConnection connection;
+                    while ( (connection = serviceRequests.poll()) != null ) {
+                        connection.serviceRequested.set(false);
+                        try {
+                            connection.service(selector);
+                        }
+                        catch (Exception e) {
+                            connectionFailed(connection, e);
+                        }
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        connection = (ChannelConnection)key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.readInput(readBuffer);
+                            if (key.isValid() && key.isWritable())
+                                connection.writeOutput();
+                        }
+                        catch (Exception e) {
+                            connectionFailed(connection, e);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+                catch (Exception e) {
+                    System.out.println("\nUnexpected error in hub's selector thread:");
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        private void connectionFailed(ChannelConnection connection, Exception e) {
+            if (connection.closed)
+                return;
+            if (e instanceof IOException) {
+                connection.closedWithError("Error while communicating with client.");
+                System.out.println("Hub connection to client " + connection.getPlayer() 
+                                                   + " terminated by IOException: " + e);
+            }
+            else {
+                connection.closedWithError("Internal Error: Unexpected exception in selector thread: " + e);
+                System.out.println("\nUnexpected error shuts down hub's connection to client " 
+                                                   + connection.getPlayer() + ":");
+                e.printStackTrace();
+            }
+        }
+        
+    } // end nested class SelectorThread
 
     
 }
@@ -0,0 +1,520 @@
+package netgame.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This package private class is used internally by a Hub that is part of
+ * a federation of hubs.  (See Hub.startFederation().)  Each hub in the
+ * federation has a TCP connection, called a link, to every other hub.  A
+ * hub tells the other hubs when players connect to it or disconnect from
+ * it, so every hub has a directory of the players that are connected to the
+ * other hubs.  Messages for players on other hubs are forwarded over the links.
+ * Each forwarded message is sent once to each hub that needs it, no matter
+ * how many of that hub's players will receive it, and it is encoded with
+ * the "binary" codec, so that a hub that receives a message can pass the same
+ * encoded bytes on to its own clients that use that codec.
+ * <p>The data sent over a link, after the handshake, consists of records that
+ * each start with a one-byte type.  A message is sent as an encoded frame,
+ * in the same format as messages sent to clients.  A hub never passes on a
+ * message that it received from another hub, so messages can't go around in
+ * circles.
+ * <p>The directory of remote players is changed only while holding the Hub's
+ * registry lock, the same lock that is held while changing the list of local
+ * players, so that the StatusMessages that players receive are consistent.
+ */
+class HubFederation {
+
+    private static final String PEER_HELLO = "Hello Hub peer";
+
+    private static final byte PLAYER_JOINED = 1;  // Followed by the player's ID.
+    private static final byte PLAYER_LEFT = 2;    // Followed by the player's ID.
+    private static final byte TO_ALL = 3;         // Followed by a message frame.
+    private static final byte TO_ONE = 4;         // Followed by an ID and a message frame.
+    private static final byte TO_GROUP = 5;       // Followed by a count, that many IDs, and a message frame.
+
+    private final Hub hub;
+    private final Object registryLock;
+    final int nodeID;
+    private final MessageCodec codec = MessageCodecs.get("binary");
+    private final ServerSocket peerListener;
+    private final CopyOnWriteArrayList<PeerLink> links = new CopyOnWriteArrayList<PeerLink>();
+    private volatile boolean stopped;
+
+    /**
+     * The players who are connected to other hubs, along with the links to those hubs.
+     * Like the Hub's PlayerList, a Directory is never modified; a new one replaces it.
+     */
+    private volatile Directory directory = Directory.EMPTY;
+
+    private static class Directory {
+        static final Directory EMPTY = new Directory(new int[0], new PeerLink[0]);
+        final int[] ids;  // In increasing order.
+        final PeerLink[] links;
+        Directory(int[] ids, PeerLink[] links) {
+            this.ids = ids;
+            this.links = links;
+        }
+        PeerLink get(int playerID) {
+            int i = Arrays.binarySearch(ids, playerID);
+            return (i < 0) ? null : links[i];
+        }
+        Directory with(int playerID, PeerLink link) {
+            int i = Arrays.binarySearch(ids, playerID);
+            if (i >= 0)
+                return this;
+            i = -(i + 1);
+            int[] newIDs = new int[ids.length + 1];
+            PeerLink[] newLinks = new PeerLink[ids.length + 1];
+            System.arraycopy(ids, 0, newIDs, 0, i);
+            System.arraycopy(links, 0, newLinks, 0, i);
+            newIDs[i] = playerID;
+            newLinks[i] = link;
+            System.arraycopy(ids, i, newIDs, i+1, ids.length - i);
+            System.arraycopy(links, i, newLinks, i+1, ids.length - i);
+            return new Directory(newIDs, newLinks);
+        }
+        Directory without(int playerID) {
+            int i = Arrays.binarySearch(ids, playerID);
+            if (i < 0)
+                return this;
+            int[] newIDs = new int[ids.length - 1];
+            PeerLink[] newLinks = new PeerLink[ids.length - 1];
+            System.arraycopy(ids, 0, newIDs, 0, i);
+            System.arraycopy(links, 0, newLinks, 0, i);
+            System.arraycopy(ids, i+1, newIDs, i, ids.length - i - 1);
+            System.arraycopy(links, i+1, newLinks, i, ids.length - i - 1);
+            return new Directory(newIDs, newLinks);
+        }
+    }
+
+    /**
+     * Starts listening for connections from other hubs.
+     */
+    HubFederation(Hub hub, Object registryLock, int nodeID, int peerPort) throws IOException {
+        this.hub = hub;
+        this.registryLock = registryLock;
+        this.nodeID = nodeID;
+        peerListener = new ServerSocket(peerPort);
+        Thread listener = new Thread(this::listen, "Hub peer listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Opens a link to another hub.  Returns when the link has been set up.
+     */
+    void connectToPeer(String host, int peerPort) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, peerPort));
+            startLink(socket);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the node IDs of the hubs to which this hub has links.
+     */
+    int[] getPeerNodes() {
+        ArrayList<PeerLink> current = new ArrayList<PeerLink>(links);
+        int[] nodes = new int[current.size()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = current.get(i).peerNode;
+        Arrays.sort(nodes);
+        return nodes;
+    }
+
+    /**
+     * Closes the links to all other hubs and stops listening for new ones.
+     */
+    void stop() {
+        stopped = true;
+        try {
+            peerListener.close();
+        }
+        catch (IOException e) {
+        }
+        for (PeerLink link : links)
+            link.close();
+    }
+
+    /**
+     * Returns an array containing the IDs in localIDs and the IDs of the players on
+     * other hubs, in increasing order.  Neither array is modified.
+     */
+    int[] withRemotePlayers(int[] localIDs) {
+        int[] remoteIDs = directory.ids;
+        int[] all = new int[localIDs.length + remoteIDs.length];
+        int i = 0, j = 0, k = 0;
+        while (i < localIDs.length && j < remoteIDs.length)
+            all[k++] = (localIDs[i] < remoteIDs[j]) ? localIDs[i++] : remoteIDs[j++];
+        while (i < localIDs.length)
+            all[k++] = localIDs[i++];
+        while (j < remoteIDs.length)
+            all[k++] = remoteIDs[j++];
+        return all;
+    }
+
+    /**
+     * Tells the other hubs that a player has connected to this hub.
+     * Called while holding the registry lock.
+     */
+    void localPlayerJoined(int playerID) {
+        for (PeerLink link : links)
+            link.send(new Record(PLAYER_JOINED, playerID, null, null));
+    }
+
+    /**
+     * Tells the other hubs that a player has disconnected from this hub.
+     * Called while holding the registry lock.
+     */
+    void localPlayerLeft(int playerID) {
+        for (PeerLink link : links)
+            link.send(new Record(PLAYER_LEFT, playerID, null, null));
+    }
+
+    /**
+     * Sends a message to every other hub, to be sent to all of its players.
+     */
+    void forwardToAll(OutgoingMessage message) {
+        for (PeerLink link : links)
+            link.send(new Record(TO_ALL, 0, null, message));
+    }
+
+    /**
+     * Sends a message to the hub of a player who is connected to another hub.
+     * @return false if the player is not connected to any of the other hubs.
+     */
+    boolean forwardToOne(int playerID, OutgoingMessage message) {
+        PeerLink link = directory.get(playerID);
+        if (link == null)
+            return false;
+        link.send(new Record(TO_ONE, playerID, null, message));
+        return true;
+    }
+
+    /**
+     * Sends a message to each hub that has some of the players in a group,
+     * along with the IDs of those players.  IDs of players who are not
+     * connected to other hubs are ignored.
+     * @return the number of players to whom the message was forwarded.
+     */
+    int forwardToGroup(int[] playerIDs, OutgoingMessage message) {
+        Directory dir = directory;
+        if (dir.ids.length == 0)
+            return 0;
+        PeerLink[] recipientLinks = new PeerLink[playerIDs.length];
+        int count = 0;
+        for (int i = 0; i < playerIDs.length; i++) {
+            recipientLinks[i] = dir.get(playerIDs[i]);
+            if (recipientLinks[i] != null)
+                count++;
+        }
+        if (count == 0)
+            return 0;
+        for (PeerLink link : links) {
+            int n = 0;
+            for (PeerLink l : recipientLinks) {
+                if (l == link)
+                    n++;
+            }
+            if (n == 0)
+                continue;
+            int[] ids = new int[n];
+            n = 0;
+            for (int i = 0; i < playerIDs.length; i++) {
+                if (recipientLinks[i] == link)
+                    ids[n++] = playerIDs[i];
+            }
+            link.send(new Record(TO_GROUP, 0, ids, message));
+        }
+        return count;
+    }
+
+    //------------------------------------------------------------------------------------
+
+    /**
+     * Accepts links from other hubs.  The handshake for each one is done in
+     * a separate thread, so a hub that does not complete its handshake can't
+     * hold up the others.
+     */
+    private void listen() {
+        while ( ! stopped ) {
+            try {
+                Socket socket = peerListener.accept();
+                Thread handshake = new Thread( () -> {
+                    try {
+                        startLink(socket);
+                    }
+                    catch (IOException e) {
+                        System.out.println("Link from another hub failed: " + e);
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException e1) {
+                        }
+                    }
+                });
+                handshake.setDaemon(true);
+                handshake.start();
+            }
+            catch (IOException e) {
+                if ( ! stopped )
+                    System.out.println("Hub peer listener shut down by error: " + e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Does the handshake on a new link, in which each hub sends PEER_HELLO and
+     * its node ID, and then adds the link to the federation.  The other hub is
+     * told about all the players on this hub, and from then on, about all changes.
+     */
+    private void startLink(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64*1024));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64*1024));
+        out.writeUTF(PEER_HELLO);
+        out.writeInt(nodeID);
+        out.flush();
+        if ( ! PEER_HELLO.equals(in.readUTF()) )
+            throw new IOException("Incorrect hello string received from other hub.");
+        int peerNode = in.readInt();
+        if (peerNode == nodeID)
+            throw new IOException("The other hub has the same node ID, " + nodeID + ".");
+        PeerLink link = new PeerLink(socket, peerNode, in, out);
+        synchronized(registryLock) {
+            if (stopped)
+                throw new IOException("This hub has left the federation.");
+            for (PeerLink l : links) {
+                if (l.peerNode == peerNode)
+                    throw new IOException("There is already a link to hub node " + peerNode + ".");
+            }
+            links.add(link);
+            for (int id : hub.getLocalPlayerIDs())
+                link.send(new Record(PLAYER_JOINED, id, null, null));
+        }
+        link.start();
+        System.out.println("Linked to hub node " + peerNode + ".");
+    }
+
+    /**
+     * Called when a link has closed, for any reason.  The players on the
+     * other hub are removed from the directory, and the players on this hub
+     * are told that they have left.
+     */
+    private void linkClosed(PeerLink link) {
+        synchronized(registryLock) {
+            if ( ! links.remove(link) )
+                return;
+            Directory dir = directory;
+            int[] ids = new int[dir.ids.length];
+            PeerLink[] remaining = new PeerLink[dir.ids.length];
+            int count = 0;
+            for (int i = 0; i < dir.ids.length; i++) {
+                if (dir.links[i] != link) {
+                    ids[count] = dir.ids[i];
+                    remaining[count] = dir.links[i];
+                    count++;
+                }
+            }
+            directory = new Directory(Arrays.copyOf(ids, count), Arrays.copyOf(remaining, count));
+            for (int i = 0; i < dir.ids.length; i++) {
+                if (dir.links[i] == link)
+                    hub.sendToLocalPlayers(new StatusMessage(dir.ids[i], false, null));
+            }
+        }
+        if ( ! stopped )
+            System.out.println("Link to hub node " + link.peerNode + " has closed.");
+    }
+
+    /**
+     * Something to be sent over a link.
+     */
+    private static class Record {
+        final byte type;
+        final int playerID;
+        final int[] playerIDs;
+        final OutgoingMessage message;
+        Record(byte type, int playerID, int[] playerIDs, OutgoingMessage message) {
+            this.type = type;
+            this.playerID = playerID;
+            this.playerIDs = playerIDs;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The link to one other hub.  One thread writes the records that are waiting
+     * in the queue, in batches, and another reads and handles the records that
+     * come from the other hub.
+     */
+    private class PeerLink {
+
+        final Socket socket;
+        final int peerNode;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+        private volatile boolean closed;
+
+        PeerLink(Socket socket, int peerNode, DataInputStream in, DataOutputStream out) {
+            this.socket = socket;
+            this.peerNode = peerNode;
+            this.in = in;
+            this.out = out;
+        }
+
+        void start() {
+            Thread writer = new Thread(this::writeRecords, "Link to hub node " + peerNode);
+            Thread reader = new Thread(this::readRecords, "Link from hub node " + peerNode);
+            writer.setDaemon(true);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        void send(Record record) {
+            if ( ! closed )
+                queue.add(record);
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+
+        /**
+         * Writes all the records that are waiting, then flushes the output, and repeats.
+         */
+        private void writeRecords() {
+            ArrayList<Record> batch = new ArrayList<Record>();
+            try {
+                while ( ! closed ) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    if (closed)
+                        break;
+                    for (Record record : batch) {
+                        ByteBuffer frame = null;
+                        if (record.message != null) {
+                            frame = record.message.frame(codec);
+                            if (frame == null)
+                                continue;  // The message can't be encoded.
+                        }
+                        out.writeByte(record.type);
+                        if (record.type == TO_GROUP) {
+                            out.writeInt(record.playerIDs.length);
+                            for (int id : record.playerIDs)
+                                out.writeInt(id);
+                        }
+                        else if (record.type != TO_ALL)
+                            out.writeInt(record.playerID);
+                        if (frame != null)
+                            Frames.write(frame, out);
+                    }
+                    batch.clear();
+                    out.flush();
+                }
+            }
+            catch (InterruptedException e) {
+            }
+            catch (IOException e) {
+                if ( ! closed )
+                    System.out.println("Error while writing to hub node " + peerNode + ": " + e);
+            }
+            close();
+        }
+
+        /**
+         * Reads records from the other hub and handles them.  Messages are sent to
+         * the players on this hub without going through messageReceived(), since
+         * they were already handled by the hub that received them from a player.
+         */
+        private void readRecords() {
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type < 0)
+                        break;
+                    if (type == PLAYER_JOINED || type == PLAYER_LEFT) {
+                        int playerID = in.readInt();
+                        synchronized(registryLock) {
+                            if (closed)
+                                break;
+                            directory = (type == PLAYER_JOINED) ? directory.with(playerID, this)
+                                                                : directory.without(playerID);
+                            hub.sendToLocalPlayers(new StatusMessage(playerID, type == PLAYER_JOINED, null));
+                        }
+                    }
+                    else if (type == TO_ALL)
+                        hub.sendToLocalPlayers(readMessage());
+                    else if (type == TO_ONE) {
+                        int playerID = in.readInt();
+                        hub.sendToLocalPlayer(playerID, readMessage());
+                    }
+                    else if (type == TO_GROUP) {
+                        int count = in.readInt();
+                        if (count < 0 || count > Frames.MAX_FRAME_LENGTH)
+                            throw new IOException("Corrupt data from hub node " + peerNode + ".");
+                        int[] playerIDs = new int[count];
+                        for (int i = 0; i < count; i++)
+                            playerIDs[i] = in.readInt();
+                        hub.sendToLocalGroup(playerIDs, readMessage());
+                    }
+                    else
+                        throw new IOException("Unknown record type " + type + " from hub node " + peerNode + ".");
+                }
+            }
+            catch (EOFException e) {
+            }
+            catch (IOException e) {
+                if ( ! closed )
+                    System.out.println("Error while reading from hub node " + peerNode + ": " + e);
+            }
+            close();
+            queue.add(new Record(TO_ALL, 0, null, null));  // Wakes up the writer, so that it can end.
+            linkClosed(this);
+        }
+
+        /**
+         * Reads a message frame, and returns an OutgoingMessage that already holds
+         * the encoded frame, so the message is not encoded again for players who
+         * use the same codec.
+         */
+        private OutgoingMessage readMessage() throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > Frames.MAX_FRAME_LENGTH)
+                throw new IOException("Corrupt data from hub node " + peerNode + ".");
+            byte[] frame = new byte[4 + length];
+            ByteBuffer.wrap(frame).putInt(length);
+            in.readFully(frame, 4, length);
+            Object message = codec.decode(new DataInputStream(new ByteArrayInputStream(frame, 4, length)));
+            return new OutgoingMessage(message, codec, ByteBuffer.wrap(frame));
+        }
+
+    }
+
+}
@@ -0,0 +1,265 @@
+package netgame.common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HubMetrics collects statistics about the work done by a Hub:  the number of
+ * connected players, the number of messages and bytes received and sent, the
+ * sizes of the queues of outgoing messages, and the distribution of the times
+ * taken by connection handshakes, by encoding messages, and by the Hub's
+ * messageReceived() method.  Every Hub has a HubMetrics object, which
+ * can be obtained by calling the Hub's getMetrics() method.  The values are
+ * updated as the Hub runs, and can be read at any time, by any thread.
+ * <p>Collecting the metrics is cheap enough that it is always done.  Counters
+ * are LongAdders, which can be updated by many threads without contention,
+ * and times are recorded in Histograms.  All times are in nanoseconds.
+ * <p>The dump() method prints all of the metrics, one per line, in the form
+ * "name: value".
+ */
+public final class HubMetrics {
+
+    private final Hub hub;
+
+    // The counters and histograms are updated directly by the Hub.
+
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder connectionsAccepted = new LongAdder();
+    final LongAdder handshakeFailures = new LongAdder();
+    final LongAdder disconnections = new LongAdder();
+    final Histogram handshakeTimes = new Histogram();
+    final Histogram encodeTimes = new Histogram();
+    final Histogram handlerTimes = new Histogram();
+
+    private final long startTime = System.nanoTime();
+
+    // The rates are computed from two samples of the counters.
+
+    private long sampleTime = startTime;
+    private long[] sample = new long[4];  // messagesIn, messagesOut, bytesIn, bytesOut
+    private double[] rates = new double[4];
+
+    HubMetrics(Hub hub) {
+        this.hub = hub;
+    }
+
+    /**
+     * Returns the number of players who are currently connected to this Hub.
+     * (If the Hub is part of a federation, players on the other hubs are not included.)
+     */
+    public int getConnectedPlayers() {
+        return hub.getLocalPlayerIDs().length;
+    }
+
+    /**
+     * Returns the number of messages that have been received from clients,
+     * including the DisconnectMessages that clients send when they leave.
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * Returns the number of messages that have been sent to clients.  A message
+     * that is sent to all clients is counted once for each client.  Messages
+     * that are used internally by the Hub, such as the messages that tell clients
+     * about players who connect and disconnect, are included.
+     */
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * Returns the number of bytes that have been received from clients,
+     * including the data that is sent during connection handshakes.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Returns the number of bytes that have been sent to clients,
+     * including the data that is sent during connection handshakes.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Returns the number of messages per second received from clients.  This is
+     * the average over the interval between the two most recent samples of the
+     * counters.  A new sample is taken when a rate is requested, if at least one
+     * second has passed since the previous sample.
+     */
+    public double getMessagesInPerSecond() {
+        return rate(0);
+    }
+
+    /**
+     * Returns the number of messages per second sent to clients.
+     * See getMessagesInPerSecond().
+     */
+    public double getMessagesOutPerSecond() {
+        return rate(1);
+    }
+
+    /**
+     * Returns the number of bytes per second received from clients.
+     * See getMessagesInPerSecond().
+     */
+    public double getBytesInPerSecond() {
+        return rate(2);
+    }
+
+    /**
+     * Returns the number of bytes per second sent to clients.
+     * See getMessagesInPerSecond().
+     */
+    public double getBytesOutPerSecond() {
+        return rate(3);
+    }
+
+    /**
+     * Returns the number of connections that have completed the handshake.
+     */
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    /**
+     * Returns the number of connections that were closed because the handshake failed.
+     */
+    public long getHandshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    /**
+     * Returns the number of players who have disconnected, for any reason.
+     */
+    public long getDisconnections() {
+        return disconnections.sum();
+    }
+
+    /**
+     * Returns the total number of messages waiting to be sent, for all players.
+     */
+    public long getQueuedMessages() {
+        long total = 0;
+        for (QueueStatus status : hub.getQueueStatus())
+            total += status.depth;
+        return total;
+    }
+
+    /**
+     * Returns the largest number of messages waiting to be sent to any one player.
+     * (The queue of each player can be checked with the Hub's getQueueStatus() method.)
+     */
+    public int getLargestQueueDepth() {
+        int largest = 0;
+        for (QueueStatus status : hub.getQueueStatus())
+            largest = Math.max(largest, status.depth);
+        return largest;
+    }
+
+    /**
+     * Returns the times, from when a connection was accepted until the player was
+     * added to the list of connected players.  (For a Hub that uses non-blocking I/O,
+     * this includes time spent waiting for a handshake thread.)
+     */
+    public Histogram getHandshakeTimes() {
+        return handshakeTimes;
+    }
+
+    /**
+     * Returns the times taken to encode outgoing messages.  A message that is sent
+     * to all clients is usually encoded just once.  For connections that use object
+     * streams instead of a MessageCodec, this is the time to write each message to
+     * the stream.
+     */
+    public Histogram getEncodeTimes() {
+        return encodeTimes;
+    }
+
+    /**
+     * Returns the times taken by calls to the Hub's messageReceived() method.
+     */
+    public Histogram getHandlerTimes() {
+        return handlerTimes;
+    }
+
+    /**
+     * Returns the number of seconds since the Hub was created.
+     */
+    public double getUptime() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Prints all of the metrics to a stream, one per line.  The times are shown in microseconds.
+     */
+    public void dump(PrintStream out) {
+        out.print(toString());
+        out.flush();
+    }
+
+    /**
+     * Returns the text that is printed by dump().
+     */
+    public String toString() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.printf("uptime.seconds: %.1f%n", getUptime());
+        out.printf("players.connected: %d%n", getConnectedPlayers());
+        out.printf("connections.accepted: %d%n", getConnectionsAccepted());
+        out.printf("connections.handshakeFailures: %d%n", getHandshakeFailures());
+        out.printf("connections.disconnected: %d%n", getDisconnections());
+        out.printf("messages.in: %d%n", getMessagesIn());
+        out.printf("messages.out: %d%n", getMessagesOut());
+        out.printf("messages.inPerSecond: %.1f%n", getMessagesInPerSecond());
+        out.printf("messages.outPerSecond: %.1f%n", getMessagesOutPerSecond());
+        out.printf("bytes.in: %d%n", getBytesIn());
+        out.printf("bytes.out: %d%n", getBytesOut());
+        out.printf("bytes.inPerSecond: %.1f%n", getBytesInPerSecond());
+        out.printf("bytes.outPerSecond: %.1f%n", getBytesOutPerSecond());
+        QueueStatus[] queues = hub.getQueueStatus();
+        long queued = 0, dropped = 0;
+        for (QueueStatus status : queues) {
+            queued += status.depth;
+            dropped += status.dropped;
+        }
+        out.printf("queues.totalDepth: %d%n", queued);
+        out.printf("queues.dropped: %d%n", dropped);
+        Arrays.sort(queues, (a,b) -> b.depth - a.depth);
+        for (int i = 0; i < queues.length && i < 5 && queues[i].depth > 0; i++)
+            out.printf("queues.deepest.%d: %s%n", i+1, queues[i]);
+        out.printf("handshake.micros: %s%n", handshakeTimes.summary(1000));
+        out.printf("encode.micros: %s%n", encodeTimes.summary(1000));
+        out.printf("handler.micros: %s%n", handlerTimes.summary(1000));
+        out.flush();
+        return text.toString();
+    }
+
+    /**
+     * Returns one of the rates, taking a new sample of the counters first if
+     * at least one second has passed since the previous sample.
+     */
+    synchronized private double rate(int which) {
+        long now = System.nanoTime();
+        if (now - sampleTime >= 1000000000L) {
+            long[] current = { messagesIn.sum(), messagesOut.sum(), bytesIn.sum(), bytesOut.sum() };
+            double seconds = (now - sampleTime) / 1e9;
+            for (int i = 0; i < 4; i++)
+                rates[i] = (current[i] - sample[i]) / seconds;
+            sample = current;
+            sampleTime = now;
+        }
+        return rates[which];
+    }
+
+}
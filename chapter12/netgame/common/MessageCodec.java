@@ -0,0 +1,42 @@
+package netgame.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A MessageCodec converts messages to and from bytes for transmission
+ * between a Hub and its Clients.  When a Client connects, it sends the
+ * names of the codecs that it can use as part of its "Hello Hub" string,
+ * and the Hub picks the first one on that list that it also knows.
+ * From then on, each message is encoded by that codec and sent as a
+ * "frame", consisting of a four-byte length followed by the encoded message.
+ * <p>A codec must be registered with MessageCodecs.register() on both sides
+ * before it can be used.  The codecs "binary" (a compact format for the
+ * built-in message types; see BinaryCodec) and "serial" (ordinary Java
+ * serialization; see SerializationCodec) are always registered.
+ */
+public interface MessageCodec {
+
+    /**
+     * Returns the name that identifies this codec during the handshake.
+     * The name must not contain spaces or commas.
+     */
+    String getName();
+
+    /**
+     * Writes the encoded form of a message.
+     * @param message  a non-null, Serializable message.
+     * @param out  the stream to which the encoded message is written.
+     * @throws IOException if the message can't be encoded.
+     */
+    void encode(Object message, DataOutputStream out) throws IOException;
+
+    /**
+     * Reads one message that was written by encode().  The stream 
+     * contains exactly the bytes written for that message.
+     * @throws IOException if the data does not represent a valid message.
+     */
+    Object decode(DataInputStream in) throws IOException;
+
+}
@@ -0,0 +1,50 @@
+package netgame.common;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps track of the MessageCodecs that can be used by Hubs and Clients
+ * in this program.  The order in which codecs are registered is the order
+ * of preference that a Client announces to a Hub.  The "binary" and
+ * "serial" codecs are registered automatically, in that order.
+ */
+public final class MessageCodecs {
+    
+    private static final LinkedHashMap<String,MessageCodec> codecs = new LinkedHashMap<String,MessageCodec>();
+    
+    static {
+        register(new BinaryCodec());
+        register(new SerializationCodec());
+    }
+    
+    private MessageCodecs() {
+    }
+    
+    /**
+     * Makes a codec available for use.  If a codec with the same name has already
+     * been registered, it is replaced, but it keeps its place in the order of preference.
+     * @throws IllegalArgumentException if the codec's name is empty or
+     *     contains a space or comma.
+     */
+    synchronized public static void register(MessageCodec codec) {
+        String name = codec.getName();
+        if (name == null || name.isEmpty() || name.contains(" ") || name.contains(","))
+            throw new IllegalArgumentException("Illegal codec name: \"" + name + "\"");
+        codecs.put(name, codec);
+    }
+    
+    /**
+     * Returns the codec with the given name, or null if there is none.
+     */
+    synchronized public static MessageCodec get(String name) {
+        return codecs.get(name);
+    }
+    
+    /**
+     * Returns the names of all registered codecs, in order of preference.
+     */
+    synchronized public static String[] getNames() {
+        return codecs.keySet().toArray(new String[codecs.size()]);
+    }
+
+}
@@ -0,0 +1,89 @@
+package netgame.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This package private class is used internally in Hub to hold a message 
+ * that is being sent to one or more clients.  When the message is sent to
+ * many clients, as it is by Hub.sendToAll(), it is encoded only once for
+ * each MessageCodec that is in use (which is usually just one), and all
+ * of the connections share the same encoded bytes.  This means that the
+ * cost of encoding a broadcast does not depend on the number of players.
+ */
+final class OutgoingMessage {
+    
+    /**
+     * The message itself.  This is what is written to a connection that
+     * does not use a codec.
+     */
+    final Object message;
+    
+    private MessageCodec codec;       // The codec used to make frame.
+    private ByteBuffer frame;         // The message as encoded by codec.
+    private MessageCodec otherCodec;  // Second codec, for the rare case where
+    private ByteBuffer otherFrame;    //    connections use different codecs.
+    private boolean failed;           // Set to true if the message can't be encoded.
+    private final Histogram encodeTimes;  // If not null, the time for each encoding is recorded here.
+    
+    OutgoingMessage(Object message) {
+        this(message, null);
+    }
+    
+    OutgoingMessage(Object message, Histogram encodeTimes) {
+        this.message = message;
+        this.encodeTimes = encodeTimes;
+    }
+    
+    /**
+     * Creates an OutgoingMessage for a message that has already been encoded
+     * with a given codec, such as a message that was forwarded by another hub.
+     */
+    OutgoingMessage(Object message, MessageCodec codec, ByteBuffer frame) {
+        this(message, null);
+        this.codec = codec;
+        this.frame = frame;
+    }
+    
+    /**
+     * Returns the encoded frame for this message, encoding it the first time
+     * this is called for a given codec.  The returned buffer shares its bytes
+     * with the buffers returned to other callers, but it has its own position
+     * and limit.  The bytes must not be modified.
+     * @return the frame, or null if the message can't be encoded.  (An error
+     *    message is printed the first time that happens.)
+     */
+    synchronized ByteBuffer frame(MessageCodec codec) {
+        if (failed)
+            return null;
+        try {
+            if (this.codec == null) {
+                this.codec = codec;
+                frame = encode(codec);
+            }
+            if (this.codec == codec)
+                return frame.duplicate();
+            if (otherCodec != codec) {  // (Encode again if there are more than two codecs.)
+                otherCodec = codec;
+                otherFrame = encode(codec);
+            }
+            return otherFrame.duplicate();
+        }
+        catch (IOException e) {
+            failed = true;
+            System.out.println("Message of type " + message.getClass().getName()
+                                          + " discarded; it can't be encoded: " + e);
+            return null;
+        }
+    }
+    
+    private ByteBuffer encode(MessageCodec codec) throws IOException {
+        if (encodeTimes == null)
+            return Frames.encode(message, codec);
+        long start = System.nanoTime();
+        ByteBuffer encoded = Frames.encode(message, codec);
+        encodeTimes.record(System.nanoTime() - start);
+        return encoded;
+    }
+
+}
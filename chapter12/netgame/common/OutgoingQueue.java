@@ -0,0 +1,201 @@
+package netgame.common;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * This package private class is used internally in Hub to hold the messages
+ * that are waiting to be sent to one client.  The queue can have a limit on
+ * its size, set by Hub.setOutgoingQueueLimit(), so that a client that stops
+ * reading can't make the Hub run out of memory.  When the queue is full, the
+ * Hub's SlowConsumerPolicy says what happens.  The queue also keeps track of
+ * the statistics that are reported by Hub.getQueueStatus().
+ * <p>An item in the queue is either an OutgoingMessage or, for a connection
+ * that uses object streams, the message itself.  Messages that are used
+ * internally by the netgame package are never discarded.
+ */
+final class OutgoingQueue {
+    
+    private final ArrayDeque<Object> items = new ArrayDeque<Object>();
+    private int maxDepth;   // Largest number of items that have been in the queue.
+    private long dropped;   // Number of items discarded because the queue was full.
+    private Runnable drainedAction;  // Set by whenDrained(); null if there is none.
+    private int drainedDepth;        // The queue size at which drainedAction is run.
+    
+    /**
+     * Adds an item to the end of the queue, first discarding an item if
+     * the queue is full, according to the hub's SlowConsumerPolicy.
+     * @return false if the queue is full and the policy is DISCONNECT; in
+     *    that case, the item is not added.
+     */
+    synchronized boolean add(Object item, Hub hub) {
+        int limit = hub.getOutgoingQueueLimit();
+        if (limit > 0 && items.size() >= limit && ! isInternal(messageOf(item))) {
+            SlowConsumerPolicy policy = hub.getSlowConsumerPolicy();
+            if (policy == SlowConsumerPolicy.DISCONNECT)
+                return false;
+            if (policy != SlowConsumerPolicy.COALESCE || ! removeReplaced(messageOf(item), hub))
+                removeOldest();
+        }
+        items.add(item);
+        if (items.size() > maxDepth)
+            maxDepth = items.size();
+        notify();
+        return true;
+    }
+    
+    /**
+     * Removes and returns the item at the head of the queue, waiting
+     * for an item to be added if the queue is empty.
+     */
+    Object take() throws InterruptedException {
+        Object item;
+        Runnable action;
+        synchronized(this) {
+            while (items.isEmpty())
+                wait();
+            item = items.poll();
+            action = drainedAction();
+        }
+        if (action != null)
+            action.run();
+        return item;
+    }
+    
+    /**
+     * Removes all of the items from the queue and adds them to a collection.
+     * This lets the thread that sends the messages get a whole batch of
+     * messages at once.
+     */
+    void drainTo(Collection<Object> batch) {
+        Runnable action;
+        synchronized(this) {
+            batch.addAll(items);
+            items.clear();
+            action = drainedAction();
+        }
+        if (action != null)
+            action.run();
+    }
+    
+    /**
+     * Waits until the queue is not empty, for at most the given number
+     * of nanoseconds.  Returns true if the queue is not empty.
+     */
+    synchronized boolean awaitItem(long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        while (items.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            wait(remaining / 1000000, (int)(remaining % 1000000));
+        }
+        return true;
+    }
+    
+    /**
+     * Removes and returns the item at the head of the queue, or
+     * returns null if the queue is empty.
+     */
+    Object poll() {
+        Object item;
+        Runnable action;
+        synchronized(this) {
+            item = items.poll();
+            action = drainedAction();
+        }
+        if (action != null)
+            action.run();
+        return item;
+    }
+    
+    void clear() {
+        Runnable action;
+        synchronized(this) {
+            items.clear();
+            action = drainedAction();
+        }
+        if (action != null)
+            action.run();
+    }
+    
+    /**
+     * Arranges for an action to be run once, as soon as the queue holds no more
+     * than depth items.  If it already holds no more than that, the action is run
+     * right away.  Otherwise, it is run by the thread that takes items from the
+     * queue, after the lock on the queue has been released.  This replaces any
+     * action that is still waiting.
+     */
+    void whenDrained(int depth, Runnable action) {
+        synchronized(this) {
+            if (items.size() > depth) {
+                drainedDepth = depth;
+                drainedAction = action;
+                return;
+            }
+        }
+        action.run();
+    }
+    
+    /**
+     * Returns the action set by whenDrained(), and forgets it, if the queue is
+     * now short enough; otherwise returns null.  Called while holding the lock.
+     */
+    private Runnable drainedAction() {
+        Runnable action = drainedAction;
+        if (action == null || items.size() > drainedDepth)
+            return null;
+        drainedAction = null;
+        return action;
+    }
+    
+    synchronized int size() {
+        return items.size();
+    }
+    
+    synchronized QueueStatus getStatus(int playerID) {
+        return new QueueStatus(playerID, items.size(), maxDepth, dropped);
+    }
+    
+    /**
+     * Removes the newest queued message that is replaced by a new message.
+     */
+    private boolean removeReplaced(Object message, Hub hub) {
+        Iterator<Object> iter = items.descendingIterator();
+        while (iter.hasNext()) {
+            Object queued = messageOf(iter.next());
+            if ( ! isInternal(queued) && hub.replacesMessage(message, queued) ) {
+                iter.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Removes the oldest message that is not used internally.  (If all the
+     * queued messages are internal, nothing is removed.)
+     */
+    private void removeOldest() {
+        Iterator<Object> iter = items.iterator();
+        while (iter.hasNext()) {
+            if ( ! isInternal(messageOf(iter.next())) ) {
+                iter.remove();
+                dropped++;
+                return;
+            }
+        }
+    }
+    
+    private static Object messageOf(Object item) {
+        return (item instanceof OutgoingMessage) ? ((OutgoingMessage)item).message : item;
+    }
+    
+    private static boolean isInternal(Object message) {
+        return message instanceof StatusMessage || message instanceof DisconnectMessage 
+                    || message instanceof ResetSignal || message instanceof SharedMapMessage;
+    }
+
+}
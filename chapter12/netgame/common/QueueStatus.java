@@ -0,0 +1,41 @@
+package netgame.common;
+
+/**
+ * Describes the queue of messages that are waiting to be sent to one client
+ * of a Hub.  A QueueStatus is a snapshot that does not change.  It can be
+ * obtained by calling hub.getQueueStatus().
+ */
+public final class QueueStatus {
+    
+    /**
+     * The ID number of the player to whom the messages will be sent.
+     */
+    public final int playerID;
+    
+    /**
+     * The number of messages in the queue.
+     */
+    public final int depth;
+    
+    /**
+     * The largest number of messages that have been in the queue at one time.
+     */
+    public final int maxDepth;
+    
+    /**
+     * The number of messages that have been discarded because the queue was full.
+     */
+    public final long dropped;
+    
+    public QueueStatus(int playerID, int depth, int maxDepth, long dropped) {
+        this.playerID = playerID;
+        this.depth = depth;
+        this.maxDepth = maxDepth;
+        this.dropped = dropped;
+    }
+    
+    public String toString() {
+        return "player " + playerID + ": depth " + depth + ", max " + maxDepth + ", dropped " + dropped;
+    }
+    
+}
@@ -0,0 +1,38 @@
+package netgame.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * A MessageCodec that uses ordinary Java serialization.  Each message is
+ * written by its own ObjectOutputStream, so it includes a stream header and
+ * complete class descriptions.  This codec can send any Serializable message,
+ * and it is used when a Client does not offer a more compact codec.  Its
+ * name is "serial".
+ */
+public class SerializationCodec implements MessageCodec {
+
+    public String getName() {
+        return "serial";
+    }
+
+    public void encode(Object message, DataOutputStream out) throws IOException {
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.writeObject(message);
+        objectOut.flush();
+    }
+
+    public Object decode(DataInputStream in) throws IOException {
+        ObjectInputStream objectIn = new ObjectInputStream(in);
+        try {
+            return objectIn.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Received a message of unknown type: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package netgame.common;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A SharedMap is a map that is owned by a Hub and copied to all of its clients.
+ * The Hub changes the map by calling put() and remove(), and each change is sent
+ * to the clients as a small update message.  A client that connects is sent the
+ * whole map, just once.  So, keeping the clients up to date costs an amount of
+ * data for each change that does not depend on the size of the map.  (Compare
+ * this to sending the whole map after each change, which also requires calling
+ * resetOutput() if the same map object is sent again.)
+ * <p>On the client side, the map can be read by calling getSharedMap(name),
+ * and the client's sharedMapReceived() and sharedMapChanged() methods are
+ * called when the map arrives and when it changes.
+ * <p>Keys and values must be Serializable, and values can't be null.  (If a
+ * MessageCodec is used, the keys and values are encoded with it.  Strings and
+ * Integers are encoded compactly by the binary codec.)  All methods are
+ * synchronized, so a SharedMap can be used by several threads.
+ * <p>If the Hub is part of a federation (see Hub.startFederation()), the map
+ * is only sent to the Hub's own clients, not to the clients of the other hubs.
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class SharedMap<K,V> {
+    
+    private final Hub hub;
+    private final String name;
+    private final LinkedHashMap<K,V> map = new LinkedHashMap<K,V>();
+    private int version;  // Increased by one for each change.
+    
+    /**
+     * Creates an empty SharedMap that belongs to a given Hub.
+     * @param hub the Hub that will send the map to its clients.
+     * @param name the name that identifies the map.  A client uses this name
+     *    in getSharedMap() to get its copy of the map.
+     * @throws IllegalArgumentException if the hub already has a map with the same name.
+     */
+    public SharedMap(Hub hub, String name) {
+        if (name == null)
+            throw new IllegalArgumentException("The name of a SharedMap can't be null.");
+        this.hub = hub;
+        this.name = name;
+        hub.addSharedMap(this);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Associates a value with a key, and sends the change to all connected clients.
+     * @return the previous value for the key, or null if there was none.
+     * @throws IllegalArgumentException if the key or value is null or is not Serializable.
+     */
+    synchronized public V put(K key, V value) {
+        if (key == null || value == null)
+            throw new IllegalArgumentException("Null keys and values are not allowed in a SharedMap.");
+        if ( ! (key instanceof Serializable && value instanceof Serializable) )
+            throw new IllegalArgumentException("Keys and values in a SharedMap must be Serializable.");
+        V oldValue = map.put(key, value);
+        version++;
+        hub.sendToLocalPlayers(SharedMapMessage.update(name, version, key, value));
+        return oldValue;
+    }
+    
+    /**
+     * Removes a key from the map, and sends the change to all connected clients.
+     * Nothing is sent if the key is not in the map.
+     * @return the value that was associated with the key, or null if there was none.
+     */
+    synchronized public V remove(K key) {
+        if ( ! map.containsKey(key) )
+            return null;
+        V oldValue = map.remove(key);
+        version++;
+        hub.sendToLocalPlayers(SharedMapMessage.update(name, version, key, null));
+        return oldValue;
+    }
+    
+    synchronized public V get(K key) {
+        return map.get(key);
+    }
+    
+    synchronized public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+    
+    synchronized public boolean containsValue(V value) {
+        return map.containsValue(value);
+    }
+    
+    synchronized public int size() {
+        return map.size();
+    }
+    
+    /**
+     * Returns a copy of the map.
+     */
+    synchronized public Map<K,V> getSnapshot() {
+        return new LinkedHashMap<K,V>(map);
+    }
+    
+    /**
+     * Sends the whole map to one player.  This is called by the Hub
+     * when a player connects.
+     */
+    synchronized void sendSnapshot(int playerID) {
+        hub.sendToLocalPlayer(playerID, SharedMapMessage.snapshot(name, version, new LinkedHashMap<Object,Object>(map)));
+    }
+
+}
@@ -0,0 +1,59 @@
+package netgame.common;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+/**
+ * A SharedMapMessage is sent by a Hub to keep the clients' copies of a
+ * SharedMap up to date.  A snapshot, which contains the whole map, is sent
+ * to a client when it connects.  After that, the client gets an update for
+ * each change to the map.  Each change increases the version number of the
+ * map by one, so a client can ignore updates that are already included
+ * in its snapshot.  This package private class is only used internally in
+ * the netgame.common package.  Users of the package will not see these
+ * messages; instead, the Client's sharedMapReceived() or sharedMapChanged()
+ * method will be called.
+ */
+final class SharedMapMessage implements Serializable {
+    
+    /**
+     * The name of the SharedMap.
+     */
+    final String mapName;
+    
+    /**
+     * The version of the map after the change, or the version of the map
+     * in the snapshot.
+     */
+    final int version;
+    
+    /**
+     * For a snapshot, the contents of the whole map; null for an update.
+     */
+    final LinkedHashMap<Object,Object> snapshot;
+    
+    /**
+     * For an update, the key that has been changed, and its new value.
+     * The value is null if the key has been removed from the map.
+     */
+    final Object key;
+    final Object value;
+    
+    private SharedMapMessage(String mapName, int version, LinkedHashMap<Object,Object> snapshot, 
+                                                                          Object key, Object value) {
+        this.mapName = mapName;
+        this.version = version;
+        this.snapshot = snapshot;
+        this.key = key;
+        this.value = value;
+    }
+    
+    static SharedMapMessage snapshot(String mapName, int version, LinkedHashMap<Object,Object> contents) {
+        return new SharedMapMessage(mapName, version, contents, null, null);
+    }
+    
+    static SharedMapMessage update(String mapName, int version, Object key, Object value) {
+        return new SharedMapMessage(mapName, version, null, key, value);
+    }
+    
+}
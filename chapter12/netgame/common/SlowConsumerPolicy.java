@@ -0,0 +1,34 @@
+package netgame.common;
+
+/**
+ * Tells a Hub what to do when a message is sent to a client whose queue of
+ * outgoing messages is already full, which happens when the client does not
+ * read messages as fast as they are sent.  (See Hub.setOutgoingQueueLimit().)
+ * Messages that are used internally by the netgame package, such as the
+ * messages that tell clients when players connect and disconnect, are never
+ * discarded and are added to the queue even if it is full.
+ */
+public enum SlowConsumerPolicy {
+    
+    /**
+     * The oldest message in the queue is discarded to make room for the new one.
+     * The client will miss some messages, but it will get the most recent ones.
+     */
+    DROP_OLDEST,
+    
+    /**
+     * A queued message that is replaced by the new message, as determined by the
+     * Hub's replacesMessage() method, is discarded.  By default, a message replaces
+     * any queued message of the same class, which is right for messages that
+     * describe the current state of a game.  If no queued message is replaced,
+     * the oldest message is discarded, as for DROP_OLDEST.
+     */
+    COALESCE,
+    
+    /**
+     * The client is disconnected.  This is treated like any other lost connection:
+     * the player is removed and the other players are told that it has left.
+     */
+    DISCONNECT
+    
+}
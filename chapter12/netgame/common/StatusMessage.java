@@ -1,6 +1,7 @@
 package netgame.common;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * The Hub sends a StatusMessage to all connected clients when
@@ -29,7 +30,12 @@ final class StatusMessage implements Serializable {
     public final boolean connecting;
     
     /**
-     * The list of players after the change has been made.
+     * The list of players after the change has been made.  The Hub only
+     * sends the complete list to a player who has just connected.  In
+     * other messages, this is null, and the client computes the new list
+     * from the old one by calling applyTo().  (Sending the whole list to
+     * every client on every change would make the cost of a connection
+     * grow with the square of the number of players.)
      */
     public final int[] players;
     
@@ -39,4 +45,33 @@ final class StatusMessage implements Serializable {
         this.players = players;
     }
     
+    /**
+     * Returns the list of players after this change, given the list of
+     * players before the change.  If this message contains the complete
+     * list, that list is returned.  Otherwise, a new list is made by
+     * adding playerID to the old list or removing it from the old list.
+     * The old list must be in increasing order, and so is the returned list.
+     */
+    public int[] applyTo(int[] oldPlayers) {
+        if (players != null)
+            return players;
+        int pos = Arrays.binarySearch(oldPlayers, playerID);
+        if (connecting == (pos >= 0))
+            return oldPlayers;  // Nothing to change.
+        int[] newPlayers;
+        if (connecting) {
+            pos = -pos - 1;  // Position where playerID belongs.
+            newPlayers = new int[oldPlayers.length + 1];
+            System.arraycopy(oldPlayers, 0, newPlayers, 0, pos);
+            newPlayers[pos] = playerID;
+            System.arraycopy(oldPlayers, pos, newPlayers, pos + 1, oldPlayers.length - pos);
+        }
+        else {
+            newPlayers = new int[oldPlayers.length - 1];
+            System.arraycopy(oldPlayers, 0, newPlayers, 0, pos);
+            System.arraycopy(oldPlayers, pos + 1, newPlayers, pos, oldPlayers.length - pos - 1);
+        }
+        return newPlayers;
+    }
+    
 }
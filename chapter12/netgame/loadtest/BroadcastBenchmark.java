@@ -0,0 +1,73 @@
+package netgame.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+
+/**
+ * Measures the CPU time that a Hub spends, in the thread that sends the
+ * message, to broadcast a message to 1, 100, and 1000 recipients.  Each
+ * broadcast is done in two ways:  with sendToAll(), which encodes the message
+ * once and shares the encoded bytes among all connections, and with a call
+ * to sendToOne() for each recipient, which encodes the message separately for
+ * each connection (the way that every broadcast used to be done).
+ * <p>Usage:  java netgame.loadtest.BroadcastBenchmark [broadcasts]
+ */
+public class BroadcastBenchmark {
+
+    private static final int PORT = 37833;
+
+    public static void main(String[] args) throws Exception {
+        int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Hub hub = new Hub(PORT, 1);
+        DrainingClients clients = new DrainingClients();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        ForwardedMessage message = new ForwardedMessage(1, "A typical line of chat, about this long.");
+
+        System.out.printf("%12s %22s %22s%n", "Recipients", "sendToAll (us/msg)", "sendToOne (us/msg)");
+        int connected = 0;
+        for (int recipients : new int[] { 1, 100, 1000 }) {
+            while (connected < recipients) {
+                clients.connect("localhost", PORT);
+                connected++;
+            }
+            while (hub.getPlayerList().length < recipients)
+                Thread.sleep(10);
+            int[] players = hub.getPlayerList();
+            int count = Math.max(10, broadcasts / Math.max(1, recipients/10));
+            double[] results = new double[2];
+            for (int round = 0; round < 2; round++) {  // Round 0 is a warm-up.
+                for (int method = 0; method < 2; method++) {
+                    waitForDrain(clients);
+                    long start = threadBean.getCurrentThreadCpuTime();
+                    for (int i = 0; i < count; i++) {
+                        if (method == 0)
+                            hub.sendToAll(message);
+                        else {
+                            for (int player : players)
+                                hub.sendToOne(player, message);
+                        }
+                    }
+                    results[method] = (threadBean.getCurrentThreadCpuTime() - start) / 1000.0 / count;
+                }
+            }
+            System.out.printf("%12d %22.1f %22.1f%n", recipients, results[0], results[1]);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Waits until the clients have stopped receiving data, so that one
+     * measurement is not slowed down by output left over from the previous one.
+     */
+    private static void waitForDrain(DrainingClients clients) throws InterruptedException {
+        long received;
+        do {
+            received = clients.getBytesReceived();
+            Thread.sleep(200);
+        } while (clients.getBytesReceived() != received);
+    }
+
+}
@@ -0,0 +1,65 @@
+package netgame.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import netgame.common.ForwardedMessage;
+import netgame.common.MessageCodec;
+import netgame.common.MessageCodecs;
+import netgame.newchat.ChatMessageTypes;
+import netgame.newchat.PrivateMessage;
+
+/**
+ * Compares the "serial" and "binary" MessageCodecs on some typical messages.
+ * For each message, the program reports the number of bytes in the encoded
+ * message and the time needed to encode and to decode it.
+ * <p>Usage:  java netgame.loadtest.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        ChatMessageTypes.register();
+        Object[] messages = {
+                new ForwardedMessage(17, "Hello, everybody!"),
+                new PrivateMessage(42, "Are you still there?")
+        };
+        MessageCodec[] codecs = { MessageCodecs.get("serial"), MessageCodecs.get("binary") };
+        System.out.printf("%-24s %-8s %8s %12s %12s%n", "Message", "Codec", "Bytes", "Encode ns", "Decode ns");
+        for (Object message : messages) {
+            for (MessageCodec codec : codecs) {
+                byte[] data = encode(codec, message);
+                for (int i = 0; i < iterations/10; i++) {  // Warm up.
+                    encode(codec, message);
+                    decode(codec, data);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    encode(codec, message);
+                double encodeTime = (double)(System.nanoTime() - start)/iterations;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    decode(codec, data);
+                double decodeTime = (double)(System.nanoTime() - start)/iterations;
+                System.out.printf("%-24s %-8s %8d %12.0f %12.0f%n", message.getClass().getSimpleName(),
+                                      codec.getName(), data.length, encodeTime, decodeTime);
+            }
+        }
+    }
+
+    private static byte[] encode(MessageCodec codec, Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.encode(message, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(MessageCodec codec, byte[] data) throws IOException {
+        return codec.decode(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+}
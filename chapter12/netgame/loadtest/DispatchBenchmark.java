@@ -0,0 +1,96 @@
+package netgame.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import netgame.common.Hub;
+import netgame.common.MessageCodec;
+import netgame.common.MessageCodecs;
+
+/**
+ * Measures how the number of messages per second that a Hub can process grows
+ * with the number of dispatch threads (see Hub.setDispatchThreadCount()).  The
+ * Hub in this program spends a fixed amount of CPU time on each message, and
+ * a number of clients each send the same number of messages as fast as they can.
+ * The test is repeated with 1, 2, 4, 8, and 16 dispatch threads.  The results
+ * can't be better than the number of processors allows:  with one processor,
+ * more threads can't help.
+ * <p>Usage:  java netgame.loadtest.DispatchBenchmark [work-microseconds] [clients] [messages-per-client]
+ * <p>The default is 20 microseconds of work per message, 64 clients, and 2000 messages per client.
+ */
+public class DispatchBenchmark {
+
+    private static final int PORT = 37836;  // Ports PORT to PORT+4 are used.
+
+    /**
+     * A Hub that does some work for each message and counts the messages.
+     */
+    private static class WorkingHub extends Hub {
+        final LongAdder handled = new LongAdder();
+        final long workNanos;
+        WorkingHub(int port, long workNanos) throws IOException {
+            super(port, 1);
+            this.workNanos = workNanos;
+        }
+        protected void messageReceived(int playerID, Object message) {
+            long end = System.nanoTime() + workNanos;
+            while (System.nanoTime() < end) {
+            }
+            handled.increment();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int work = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int messagesPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        ByteBuffer frames = makeFrames(messagesPerClient);
+        long total = (long)clientCount * messagesPerClient;
+
+        System.out.println("Processors: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%16s %18s %10s%n", "Dispatch threads", "Messages/second", "Speedup");
+        double base = 0;
+        int port = PORT;
+        for (int threads = 1; threads <= 16; threads *= 2, port++) {
+            WorkingHub hub = new WorkingHub(port, work*1000L);
+            hub.setDispatchThreadCount(threads);
+            DrainingClients clients = new DrainingClients();
+            for (int i = 0; i < clientCount; i++)
+                clients.connect("localhost", port);
+            while (hub.getPlayerList().length < clientCount)
+                Thread.sleep(10);
+            long start = System.nanoTime();
+            clients.writeToAll(frames);
+            while (hub.handled.sum() < total)
+                Thread.sleep(1);
+            double rate = total / ((System.nanoTime() - start)/1e9);
+            if (threads == 1)
+                base = rate;
+            System.out.printf("%16d %18.0f %10.2f%n", threads, rate, rate/base);
+            hub.shutDownHub();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Makes a buffer containing the given number of framed messages, encoded
+     * with the binary codec, as a Client would send them.
+     */
+    private static ByteBuffer makeFrames(int count) throws IOException {
+        MessageCodec codec = MessageCodecs.get("binary");
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        codec.encode("A typical line of chat, about this long.", new DataOutputStream(message));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(message.size());
+            message.writeTo(out);
+        }
+        out.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+}
@@ -0,0 +1,199 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight test clients for the load tests in this package.  These are
+ * not netgame Clients, since each of those uses two threads.  A test client
+ * does the "Hello Hub" handshake with blocking streams, asking for the binary
+ * codec, and is then handed over to this thread, which reads and discards
+ * everything that the Hub sends.  So the Hub is never held up by a full
+ * socket buffer, and nearly all of the resources in use belong to the Hub.
+ */
+class DrainingClients extends Thread {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> newChannels;
+    private final AtomicLong bytesReceived;
+    private final ConcurrentLinkedQueue<SocketChannel> stalledChannels;
+    private final ConcurrentLinkedQueue<SocketChannel> allChannels;  // Except stalled ones.
+    private final ConcurrentHashMap<Integer,SocketChannel> channelsByID;
+
+    DrainingClients() throws IOException {
+        selector = Selector.open();
+        newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        bytesReceived = new AtomicLong();
+        stalledChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        allChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        channelsByID = new ConcurrentHashMap<Integer,SocketChannel>();
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Opens a connection to a hub, does the handshake, and starts draining the connection.
+     * @return the ID number that the hub assigned to the client.
+     */
+    int connect(String host, int port) throws IOException {
+        return connect(host, port, null);
+    }
+
+    /**
+     * Opens a connection to a hub that expects a name during the handshake, as
+     * NewChatRoomHub does.  The name is sent after the ID number is received,
+     * and the hub's reply is read and discarded.  If name is null, no name is sent.
+     * @return the ID number that the hub assigned to the client.
+     */
+    int connect(String host, int port, String name) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        int id = handshake(channel, name);
+        channel.configureBlocking(false);
+        newChannels.add(channel);
+        allChannels.add(channel);
+        channelsByID.put(id, channel);
+        selector.wakeup();
+        return id;
+    }
+
+    /**
+     * Opens a connection to a hub and does the handshake, but never reads anything
+     * after that, so the hub's output for the connection backs up once the (small)
+     * socket buffers are full.  This simulates a client that has stalled.
+     * @return the ID number that the hub assigned to the client.
+     */
+    int connectStalled(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.socket().setReceiveBufferSize(4096);
+        channel.connect(new InetSocketAddress(host, port));
+        int id = handshake(channel, null);
+        stalledChannels.add(channel);  // Keeps the connection open.
+        return id;
+    }
+
+    /**
+     * Does the "Hello Hub" handshake on a connected channel, sending a name
+     * (and no reconnect token) if name is not null.
+     */
+    private static int handshake(SocketChannel channel, String name) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(channel.socket().getOutputStream());
+        out.writeObject("Hello Hub binary");  // Ask for the compact codec.
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(channel.socket().getInputStream());
+        try {
+            Object response = in.readObject();
+            if (response instanceof String)  // The hub's choice of codec.
+                response = in.readObject();     // The client's ID number.
+            if (name != null) {
+                out.writeObject(name);
+                out.writeObject(null);  // No reconnect token.
+                out.flush();
+                in.readObject();  // The name that the hub has approved.
+                in.readObject();  // The reconnect token.
+            }
+            return (Integer)response;
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Illegal response from server.");
+        }
+    }
+
+    /**
+     * Writes the same data to each connection that is being drained, so that a
+     * test can make the clients send messages.  The data must consist of complete
+     * frames, as sent by a Client that uses a MessageCodec.  Since the channels are
+     * in non-blocking mode, this method waits (by yielding) whenever a channel
+     * can't take more data.
+     */
+    void writeToAll(ByteBuffer data) throws IOException {
+        for (SocketChannel channel : allChannels) {
+            ByteBuffer buffer = data.duplicate();
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0)
+                    Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Writes data to the connection of one client, given the ID number that
+     * the hub assigned to it.  As for writeToAll(), the data must consist of
+     * complete frames.
+     */
+    void writeTo(int id, ByteBuffer data) throws IOException {
+        SocketChannel channel = channelsByID.get(id);
+        ByteBuffer buffer = data.duplicate();
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0)
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Closes all of the connections, so that a test can go on to use another hub
+     * without running out of file descriptors.
+     */
+    void closeAll() {
+        for (SocketChannel channel : allChannels)
+            close(channel);
+        for (SocketChannel channel : stalledChannels)
+            close(channel);
+        allChannels.clear();
+        stalledChannels.clear();
+        channelsByID.clear();
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Returns the total number of bytes received on all connections, after the handshake.
+     */
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+        try {
+            while (true) {
+                selector.select();
+                SocketChannel channel;
+                while ( (channel = newChannels.poll()) != null )
+                    channel.register(selector, SelectionKey.OP_READ);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    try {
+                        int count = ((SocketChannel)key.channel()).read(buffer);
+                        if (count < 0)
+                            key.cancel();
+                        else
+                            bytesReceived.addAndGet(count);
+                    }
+                    catch (IOException e) {
+                        key.cancel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Draining thread terminated by error: " + e);
+        }
+    }
+
+}
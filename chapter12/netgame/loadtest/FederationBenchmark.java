@@ -0,0 +1,152 @@
+package netgame.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import netgame.common.Hub;
+import netgame.common.MessageCodec;
+import netgame.common.MessageCodecs;
+
+/**
+ * Measures the throughput of a federation of hubs as hubs are added.  For each
+ * number of hubs, from one up to a given maximum, the hubs are started in this
+ * program, on different ports, and linked to each other, and the same total
+ * number of clients is spread evenly over the hubs.  Each client then sends
+ * messages to other clients chosen at random, so most messages have to be
+ * forwarded to another hub.  The hubs are RelayHubs, which send each message,
+ * an Integer, to the player whose ID it contains.  The program reports the
+ * number of messages delivered per second by all the hubs together, and the
+ * fraction of them that went through a link between hubs.
+ * <p>Since all the hubs run in this program, they share the same processors;
+ * on a computer with few processors, this measures the cost of forwarding
+ * more than the gain from spreading the players over several hubs.  (Hubs
+ * in separate programs can be linked in the same way, with startFederation()
+ * and connectToPeer().)
+ * <p>Usage:  java netgame.loadtest.FederationBenchmark [max-hubs] [clients] [messages]
+ * <p>The default is up to 4 hubs, 2000 clients, and 400000 messages for each test.
+ */
+public class FederationBenchmark {
+
+    private static final int PORT = 37850;  // Clients connect to PORT+1, PORT+2, ...; links use PORT+21, PORT+22, ...
+    private static final int BATCH = 50;    // Messages written at once by each client.
+
+    /**
+     * A hub that sends each Integer that it receives to the player whose ID is the Integer.
+     */
+    private static class RelayHub extends Hub {
+        RelayHub(int port) throws IOException {
+            super(port, 1);
+        }
+        protected void messageReceived(int playerID, Object message) {
+            if (message instanceof Integer)
+                sendToOne((Integer)message, message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxHubs = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int messageCount = args.length > 2 ? Integer.parseInt(args[2]) : 400000;
+        if (maxHubs < 1 || maxHubs > 20) {
+            System.out.println("The number of hubs must be between 1 and 20.");
+            return;
+        }
+        double[] rates = new double[maxHubs + 1];
+        double[] remote = new double[maxHubs + 1];
+        for (int hubCount = 1; hubCount <= maxHubs; hubCount++) {
+            double[] result = test(hubCount, clientCount, messageCount);
+            rates[hubCount] = result[0];
+            remote[hubCount] = result[1];
+        }
+        System.out.println();
+        System.out.printf("%5s %10s %18s %18s%n", "Hubs", "Clients", "Messages/second", "Forwarded");
+        for (int hubCount = 1; hubCount <= maxHubs; hubCount++)
+            System.out.printf("%5d %10d %18.0f %17.0f%%%n", hubCount, clientCount, rates[hubCount], 100*remote[hubCount]);
+        System.exit(0);
+    }
+
+    /**
+     * Runs one test, and returns the number of messages delivered per second
+     * and the fraction of messages that were sent to a client on another hub.
+     */
+    private static double[] test(int hubCount, int clientCount, int messageCount) throws Exception {
+        RelayHub[] hubs = new RelayHub[hubCount];
+        for (int i = 0; i < hubCount; i++) {
+            hubs[i] = new RelayHub(PORT + 1 + i);
+            hubs[i].startFederation(i + 1, PORT + 21 + i);
+            for (int j = 0; j < i; j++)
+                hubs[i].connectToPeer("localhost", PORT + 21 + j);
+        }
+        DrainingClients clients = new DrainingClients();
+        int[] ids = new int[clientCount];
+        int[] hubOf = new int[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            hubOf[i] = i % hubCount;
+            ids[i] = clients.connect("localhost", PORT + 1 + hubOf[i]);
+        }
+        for (RelayHub hub : hubs) {
+            while (hub.getPlayerList().length < clientCount)
+                Thread.sleep(10);
+        }
+
+        /* Each client gets a buffer holding a batch of messages to random clients. */
+
+        MessageCodec codec = MessageCodecs.get("binary");
+        Random random = new Random(42);
+        ByteBuffer[] batches = new ByteBuffer[clientCount];
+        long forwarded = 0;
+        for (int i = 0; i < clientCount; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int m = 0; m < BATCH; m++) {
+                int recipient = random.nextInt(clientCount);
+                if (hubOf[recipient] != hubOf[i])
+                    forwarded++;
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                codec.encode(ids[recipient], new DataOutputStream(encoded));
+                out.writeInt(encoded.size());
+                encoded.writeTo(out);
+            }
+            out.flush();
+            batches[i] = ByteBuffer.wrap(bytes.toByteArray());
+        }
+        int rounds = Math.max(1, messageCount / (clientCount * BATCH));
+        long expected = (long)rounds * clientCount * BATCH;
+
+        long before;
+        do {  // Wait until the hubs have finished telling the clients about each other.
+            before = messagesOut(hubs);
+            Thread.sleep(200);
+        } while (messagesOut(hubs) != before);
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < clientCount; i++)
+                clients.writeTo(ids[i], batches[i]);
+        }
+        long deadline = System.currentTimeMillis() + 120000;
+        while (messagesOut(hubs) - before < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long delivered = messagesOut(hubs) - before;
+        System.out.printf("%d hub(s): %d of %d messages delivered in %.2f seconds%n",
+                                             hubCount, delivered, expected, seconds);
+
+        clients.closeAll();
+        for (RelayHub hub : hubs)
+            hub.stopFederation();
+        for (RelayHub hub : hubs)
+            hub.shutdownServerSocket();
+        return new double[] { delivered / seconds, (double)forwarded / (clientCount * BATCH) };
+    }
+
+    private static long messagesOut(Hub[] hubs) {
+        long total = 0;
+        for (Hub hub : hubs)
+            total += hub.getMetrics().getMessagesOut();
+        return total;
+    }
+
+}
@@ -0,0 +1,72 @@
+package netgame.loadtest;
+
+import java.lang.management.ManagementFactory;
+
+import netgame.common.Hub;
+
+/**
+ * A load test that connects a large number of idle clients to a Hub running in
+ * the same program, and then reports how many clients the Hub has accepted,
+ * how much heap memory is in use, and how many threads are running.
+ * <p>The clients are DrainingClients, which use a single thread for all
+ * connections, so nearly all of the threads and memory that are reported
+ * belong to the Hub.
+ * <p>Usage:  java netgame.loadtest.HubConnectionLoadTest [clients] [selector-threads]
+ * <p>The default is 10000 clients and one selector thread per processor.
+ * Use 0 selector threads to test a Hub that uses two threads for each client.
+ * Note that each client needs two file descriptors (one in the Hub and one in
+ * the client), so the limit on open files might have to be raised
+ * (for example, with "ulimit -n 25000" in Linux).
+ */
+public class HubConnectionLoadTest {
+
+    private static final int PORT = 37831;
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 10000;
+        int selectorThreads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0)
+            clientCount = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            selectorThreads = Integer.parseInt(args[1]);
+
+        report("Before starting the hub", 0);
+        Hub hub = new Hub(PORT, selectorThreads);
+        System.out.println(selectorThreads == 0 ? "Hub uses two threads per client."
+                                  : "Hub uses " + selectorThreads + " selector thread(s).");
+
+        DrainingClients clients = new DrainingClients();
+        long startTime = System.nanoTime();
+        for (int i = 1; i <= clientCount; i++) {
+            clients.connect("localhost", PORT);
+            if (i % 1000 == 0)
+                System.out.printf("   %d clients connected after %.1f seconds%n",
+                                         i, (System.nanoTime() - startTime)/1e9);
+        }
+
+        /* Wait for the hub to finish accepting the connections. */
+
+        long deadline = System.currentTimeMillis() + 60000;
+        while (hub.getPlayerList().length < clientCount && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+        System.out.printf("Connected in %.1f seconds.%n", (System.nanoTime() - startTime)/1e9);
+        report("With all clients connected", hub.getPlayerList().length);
+        System.exit(0);
+    }
+
+    /**
+     * Prints the number of players, heap memory in use after garbage collection,
+     * and the number of live threads.
+     */
+    private static void report(String title, int players) {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long usedMemory = rt.totalMemory() - rt.freeMemory();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(title + ":");
+        System.out.println("   Players connected to hub:  " + players);
+        System.out.printf ("   Heap memory in use:        %.1f MB%n", usedMemory/(1024.0*1024));
+        System.out.println("   Live threads:              " + threads);
+    }
+
+}
@@ -0,0 +1,403 @@
+package netgame.loadtest;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import netgame.common.Client;
+import netgame.common.ForwardedMessage;
+import netgame.common.Histogram;
+import netgame.common.Hub;
+import netgame.newchat.ChatMessageTypes;
+import netgame.newchat.NewChatRoomHub;
+import netgame.newchat.PrivateMessage;
+
+/**
+ * A load generator for the chat room server (or for a plain netgame Hub).
+ * The program opens a number of sessions, each of which is a netgame Client
+ * that does the same handshake as the chat room's ChatClient, and then sends
+ * messages at a fixed total rate from randomly chosen sessions.  Each message
+ * is either a chat line, which the hub forwards to everyone, or a PrivateMessage
+ * to one other session.  Sessions can also be closed and replaced at a fixed
+ * rate, to simulate users joining and leaving.
+ * <p>Each message carries the time at which it was scheduled to be sent, and
+ * every session that receives it records the delivery latency.  (Using the
+ * scheduled time, rather than the time when the message was actually sent,
+ * means that delays in the load generator itself are counted, as they would
+ * be for real users.)  At the end of the run, the program prints the latency
+ * percentiles, throughput, and error counts as a single JSON object, or as
+ * CSV, so that the results of different runs can be compared.  Only the messages
+ * that are scheduled after the warmup period are counted.  Error counts and
+ * join times include the sessions that are opened before the run starts.
+ * <p>Usage:  java netgame.loadtest.LoadGenerator [name=value ...]
+ * <p>The options, with their defaults, are:
+ * <ul>
+ * <li>hub=none -- "chat" or "basic" to start a NewChatRoomHub or a plain Hub in
+ *     this program, instead of connecting to a server that is already running.
+ *     Private messages and names need a chat hub.</li>
+ * <li>host=localhost, port=37830 -- where the hub is.  (37830 is the port used
+ *     by NewChatRoomServer.)</li>
+ * <li>selectors=1, dispatch=1 -- selector threads and dispatch threads for a hub
+ *     that is started by this program.  Use selectors=0 for two threads per client.</li>
+ * <li>clients=200 -- the number of sessions.</li>
+ * <li>virtual=false -- use virtual threads for the sessions (Java 21 or later).</li>
+ * <li>rate=200 -- messages sent per second, by all sessions together.</li>
+ * <li>private=0.2 -- the fraction of the messages that are private messages.</li>
+ * <li>churn=0 -- sessions closed and replaced per second.</li>
+ * <li>size=64 -- approximate length of each message, in characters.</li>
+ * <li>warmup=2, duration=10 -- seconds to run before and while measuring.</li>
+ * <li>format=json -- "json" or "csv" (which prints a header line and a data line).</li>
+ * <li>out= -- if given, the results are also appended to this file, without a CSV header.</li>
+ * <li>label= -- a name for the run, which is included in the results.</li>
+ * <li>verbose=false -- if true, the messages that the Hub and Client classes print are shown.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static Map<String,String> options = new LinkedHashMap<String,String>();
+
+    private static final Histogram latencies = new Histogram();
+    private static final Histogram joinTimes = new Histogram();  // Includes the initial connections.
+    private static final LongAdder broadcastsSent = new LongAdder();
+    private static final LongAdder privatesSent = new LongAdder();
+    private static final LongAdder expectedDeliveries = new LongAdder();
+    private static final LongAdder deliveries = new LongAdder();
+    private static final LongAdder joins = new LongAdder();
+    private static final LongAdder leaves = new LongAdder();
+    private static final LongAdder connectErrors = new LongAdder();
+    private static final LongAdder connectionErrors = new LongAdder();
+    private static final LongAdder sendErrors = new LongAdder();
+
+    private static final ArrayList<Session> sessions = new ArrayList<Session>();  // Synchronized on itself.
+    private static volatile long measureStart = Long.MAX_VALUE;  // Only messages scheduled after this time are counted.
+
+    private static String host;
+    private static int port;
+    private static boolean chat;
+    private static boolean virtual;
+    private static String padding;
+
+    /**
+     * One simulated user.  If the hub is a chat hub, the session sends a name
+     * during the handshake, as ChatClient does.
+     */
+    private static class Session extends Client {
+
+        volatile boolean leaving;
+
+        Session() throws IOException {
+            super(host, port, virtual);
+        }
+
+        protected void extraHandshake(ObjectInputStream in, ObjectOutputStream out) throws IOException {
+            if ( ! chat )
+                return;
+            try {
+                out.writeObject("load");
+                out.writeObject(null);  // No reconnect token.
+                out.flush();
+                in.readObject();  // The name assigned by the hub.
+                in.readObject();  // The reconnect token, which is not used.
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException("Error while setting up connection: " + e);
+            }
+        }
+
+        protected void messageReceived(Object message) {
+            Object text = null;
+            if (message instanceof ForwardedMessage)
+                text = ((ForwardedMessage)message).message;
+            else if (message instanceof PrivateMessage)
+                text = ((PrivateMessage)message).message;
+            if (text instanceof String) {
+                String str = (String)text;
+                int space = str.indexOf(' ');
+                try {
+                    long scheduled = Long.parseLong(space < 0 ? str : str.substring(0, space));
+                    if (scheduled >= measureStart) {
+                        latencies.record(System.nanoTime() - scheduled);
+                        deliveries.increment();
+                    }
+                }
+                catch (NumberFormatException e) {
+                    // Not a message from this program.
+                }
+            }
+        }
+
+        protected void connectionClosedByError(String message) {
+            if ( ! leaving )
+                connectionErrors.increment();
+        }
+
+        protected void serverShutdown(String message) {
+            connectionErrors.increment();
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.out.println("Usage:  java netgame.loadtest.LoadGenerator [name=value ...]");
+                System.out.println("See the documentation of the class for the options.");
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        String hubType = option("hub", "none");
+        host = option("host", "localhost");
+        port = Integer.parseInt(option("port", "37830"));
+        int clientCount = Integer.parseInt(option("clients", "200"));
+        virtual = Boolean.parseBoolean(option("virtual", "false"));
+        double rate = Double.parseDouble(option("rate", "200"));
+        double privateFraction = Double.parseDouble(option("private", "0.2"));
+        double churn = Double.parseDouble(option("churn", "0"));
+        int size = Integer.parseInt(option("size", "64"));
+        double warmup = Double.parseDouble(option("warmup", "2"));
+        double duration = Double.parseDouble(option("duration", "10"));
+        String format = option("format", "json");
+        boolean verbose = Boolean.parseBoolean(option("verbose", "false"));
+        chat = ! hubType.equals("basic");
+
+        PrintStream results = System.out;
+        if ( ! verbose ) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // Hides the netgame classes' output.
+        }
+        ChatMessageTypes.register();
+
+        Hub hub = null;
+        if ( ! hubType.equals("none") ) {
+            int selectors = Integer.parseInt(option("selectors", "1"));
+            hub = chat ? new NewChatRoomHub(port, selectors) : new Hub(port, selectors);
+            hub.setDispatchThreadCount(Integer.parseInt(option("dispatch", "1")));
+        }
+        StringBuilder pad = new StringBuilder();
+        while (pad.length() < size - 20)
+            pad.append('x');
+        padding = pad.toString();
+
+        System.err.println("Connecting " + clientCount + " sessions...");
+        for (int i = 0; i < clientCount; i++)
+            openSession();
+        System.err.println("Connected " + sessionCount() + " sessions.  Running...");
+
+        Thread churnThread = null;
+        if (churn > 0) {
+            churnThread = new Thread( () -> churn(churn) );
+            churnThread.setDaemon(true);
+            churnThread.start();
+        }
+
+        long interval = (long)(1e9 / rate);
+        long start = System.nanoTime();
+        measureStart = start + (long)(warmup * 1e9);
+        long end = measureStart + (long)(duration * 1e9);
+        long next = start;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (next > now)
+                LockSupport.parkNanos(next - now);
+            sendOne(next, privateFraction);
+            next += interval;
+        }
+        long sendEnd = System.nanoTime();
+        if (churnThread != null)
+            churnThread.interrupt();
+        Thread.sleep(2000);  // Time for messages in transit to be delivered.
+
+        double seconds = (sendEnd - measureStart) / 1e9;
+        long sent = broadcastsSent.sum() + privatesSent.sum();
+        Histogram lat = latencies;
+        Histogram jt = joinTimes;
+        LinkedHashMap<String,Object> r = new LinkedHashMap<String,Object>();
+        r.put("label", option("label", ""));
+        r.put("hub", hubType);
+        r.put("clients", clientCount);
+        r.put("targetRate", rate);
+        r.put("privateFraction", privateFraction);
+        r.put("churnPerSecond", churn);
+        r.put("messageSize", size);
+        r.put("seconds", round(seconds));
+        r.put("sent", sent);
+        r.put("sentBroadcast", broadcastsSent.sum());
+        r.put("sentPrivate", privatesSent.sum());
+        r.put("sendsPerSecond", round(sent / seconds));
+        r.put("delivered", deliveries.sum());
+        r.put("expectedDeliveries", expectedDeliveries.sum());
+        r.put("expectedIsExact", churn == 0);  // Sessions that join or leave make it approximate.
+        r.put("deliveriesPerSecond", round(deliveries.sum() / seconds));
+        r.put("latencyMeanMicros", round(lat.getMean() / 1000));
+        r.put("latencyP50Micros", round(lat.getValueAtPercentile(50) / 1000.0));
+        r.put("latencyP99Micros", round(lat.getValueAtPercentile(99) / 1000.0));
+        r.put("latencyP999Micros", round(lat.getValueAtPercentile(99.9) / 1000.0));
+        r.put("latencyMaxMicros", round(lat.getMax() / 1000.0));
+        r.put("joins", joins.sum());
+        r.put("leaves", leaves.sum());
+        r.put("joinP50Micros", round(jt.getValueAtPercentile(50) / 1000.0));
+        r.put("joinP99Micros", round(jt.getValueAtPercentile(99) / 1000.0));
+        r.put("connectErrors", connectErrors.sum());
+        r.put("connectionErrors", connectionErrors.sum());
+        r.put("sendErrors", sendErrors.sum());
+        if (hub != null) {
+            r.put("hubMessagesIn", hub.getMetrics().getMessagesIn());
+            r.put("hubMessagesOut", hub.getMetrics().getMessagesOut());
+            r.put("hubHandlerP99Micros", round(hub.getMetrics().getHandlerTimes().getValueAtPercentile(99) / 1000.0));
+        }
+
+        String text = format.equals("csv") ? csvHeader(r) + "\n" + csvRow(r) : json(r);
+        results.println(text);
+        String outFile = option("out", "");
+        if ( ! outFile.equals("") ) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(outFile, true))) {
+                out.println(format.equals("csv") ? csvRow(r) : json(r));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static double round(double x) {
+        return Math.round(x * 10) / 10.0;
+    }
+
+    private static int sessionCount() {
+        synchronized(sessions) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Opens a session, and adds it to the list of sessions if the connection succeeds.
+     */
+    private static void openSession() {
+        long start = System.nanoTime();
+        try {
+            Session session = new Session();
+            joinTimes.record(System.nanoTime() - start);
+            joins.increment();
+            synchronized(sessions) {
+                sessions.add(session);
+            }
+        }
+        catch (IOException e) {
+            connectErrors.increment();
+        }
+    }
+
+    /**
+     * Sends one message from a random session.  The message starts with the time
+     * at which it was scheduled to be sent.
+     */
+    private static void sendOne(long scheduled, double privateFraction) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Session sender, recipient = null;
+        int count;
+        synchronized(sessions) {
+            count = sessions.size();
+            if (count == 0)
+                return;
+            sender = sessions.get(random.nextInt(count));
+            if (chat && count > 1 && random.nextDouble() < privateFraction) {
+                do {
+                    recipient = sessions.get(random.nextInt(count));
+                } while (recipient == sender);
+            }
+        }
+        String text = scheduled + " " + padding;
+        boolean counted = scheduled >= measureStart;
+        try {
+            if (recipient != null) {
+                sender.send(new PrivateMessage(recipient.getID(), text));
+                if (counted) {
+                    privatesSent.increment();
+                    expectedDeliveries.increment();
+                }
+            }
+            else {
+                sender.send(text);
+                if (counted) {
+                    broadcastsSent.increment();
+                    expectedDeliveries.add(count);
+                }
+            }
+        }
+        catch (Exception e) {
+            sendErrors.increment();  // (For example, if the connection has closed.)
+        }
+    }
+
+    /**
+     * Run by the churn thread:  closes a random session and opens a new one,
+     * the given number of times per second.
+     */
+    private static void churn(double perSecond) {
+        long interval = (long)(1e9 / perSecond);
+        long next = System.nanoTime();
+        while ( ! Thread.currentThread().isInterrupted() ) {
+            next += interval;
+            long now = System.nanoTime();
+            if (next > now)
+                LockSupport.parkNanos(next - now);
+            Session leaving;
+            synchronized(sessions) {
+                if (sessions.isEmpty())
+                    continue;
+                leaving = sessions.remove(ThreadLocalRandom.current().nextInt(sessions.size()));
+            }
+            leaving.leaving = true;
+            leaving.disconnect();
+            leaves.increment();
+            openSession();
+        }
+    }
+
+    private static String json(Map<String,Object> r) {
+        StringBuilder str = new StringBuilder("{");
+        for (Map.Entry<String,Object> entry : r.entrySet()) {
+            if (str.length() > 1)
+                str.append(", ");
+            str.append('"').append(entry.getKey()).append("\": ");
+            Object value = entry.getValue();
+            if (value instanceof String)
+                str.append('"').append(((String)value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            else
+                str.append(value);
+        }
+        return str.append("}").toString();
+    }
+
+    private static String csvHeader(Map<String,Object> r) {
+        return String.join(",", r.keySet());
+    }
+
+    private static String csvRow(Map<String,Object> r) {
+        StringBuilder str = new StringBuilder();
+        for (Object value : r.values()) {
+            if (str.length() > 0)
+                str.append(',');
+            String s = String.valueOf(value);
+            if (s.contains(",") || s.contains("\""))
+                s = '"' + s.replace("\"", "\"\"") + '"';
+            str.append(s);
+        }
+        return str.toString();
+    }
+
+}
@@ -0,0 +1,92 @@
+package netgame.loadtest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import netgame.newchat.NewChatRoomHub;
+
+/**
+ * Measures how fast a NewChatRoomHub accepts a storm of connections when
+ * every client asks for the same name, so that the hub has to give all but
+ * one of them a name with a suffix such as "#2" or "#3".  For comparison, the
+ * same storm is also run with clients who all ask for different names.  Several
+ * threads connect clients as fast as they can, and for each tenth of the clients,
+ * the program reports the number of connections per second.  If the time taken
+ * to find an unused name does not depend on the number of clients who share the
+ * name, the two columns should be about the same all the way down.  (Both rates
+ * fall as more clients connect, since the hub sends each new name to all the
+ * clients that are already connected.)
+ * <p>Usage:  java netgame.loadtest.NameStormBenchmark [clients] [threads] [name]
+ * <p>The default is 5000 clients, connected by 8 threads, who ask for the
+ * name "noname".  Each client needs two file descriptors, so the limit on open
+ * files might have to be raised (for example, with "ulimit -n").
+ */
+public class NameStormBenchmark {
+
+    private static final int PORT = 37845;  // Two ports are used.
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        String name = args.length > 2 ? args[2] : "noname";
+        int blockSize = Math.max(1, clientCount / 10);
+
+        double[][] rates = new double[2][];
+        rates[0] = storm(PORT, clientCount, threadCount, blockSize, name);
+        rates[1] = storm(PORT + 1, clientCount, threadCount, blockSize, null);
+
+        System.out.println();
+        System.out.printf("%-12s %22s %22s%n", "Clients", "Same name (conn/s)", "Different names (conn/s)");
+        for (int i = 0; i < rates[0].length; i++) {
+            System.out.printf("%5d-%-6d %22.0f %22.0f%n", i*blockSize + 1, (i+1)*blockSize, rates[0][i], rates[1][i]);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Connects clients to a new hub from several threads at once, and returns the rate
+     * at which connections were accepted during each block of blockSize clients.  If
+     * name is null, each client asks for a different name.
+     */
+    private static double[] storm(int port, int clientCount, int threadCount, int blockSize, String name)
+                                                                                       throws Exception {
+        NewChatRoomHub hub = new NewChatRoomHub(port, 1);
+        DrainingClients clients = new DrainingClients();
+        AtomicInteger next = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                int i;
+                while ( (i = next.getAndIncrement()) < clientCount ) {
+                    try {
+                        clients.connect("localhost", port, name == null ? "user" + i : name);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Connection failed: " + e);
+                        return;
+                    }
+                }
+            });
+        }
+        double[] rates = new double[clientCount / blockSize];
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        long blockStart = start;
+        for (int block = 0; block < rates.length; block++) {
+            while (hub.getMetrics().getConnectionsAccepted() < (long)(block + 1) * blockSize)
+                Thread.sleep(1);
+            long now = System.nanoTime();
+            rates[block] = blockSize / ((now - blockStart) / 1e9);
+            blockStart = now;
+        }
+        for (Thread thread : threads)
+            thread.join();
+        System.out.printf("%d clients %s connected in %.1f seconds; handshake times (ms): %s%n",
+                clientCount, name == null ? "with different names" : "named \"" + name + "\"",
+                (System.nanoTime() - start)/1e9, hub.getMetrics().getHandshakeTimes().summary(1e6));
+        clients.closeAll();
+        hub.shutDownHub();
+        return rates;
+    }
+
+}
@@ -0,0 +1,98 @@
+package netgame.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+
+/**
+ * Measures how fast many threads can send messages through one Hub at the same
+ * time.  Each sender thread repeatedly calls sendToOne() for a random player,
+ * and now and then calls getPlayerList(); one more thread keeps calling
+ * sendToAll().  The program reports the number of calls per second.
+ * <p>The Hub no longer uses a lock for these methods.  In "locked" mode, the
+ * program synchronizes on the Hub around each call, the way that every call
+ * used to be synchronized, so the two modes can be compared.
+ * <p>Usage:  java netgame.loadtest.RegistryContentionBenchmark [free|locked] [senders] [clients] [seconds]
+ * <p>The default is free mode, 16 sender threads, 100 clients, and 5 seconds.
+ */
+public class RegistryContentionBenchmark {
+
+    private static final int PORT = 37834;
+
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        boolean locked = args.length > 0 && args[0].equals("locked");
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int clientCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        Hub hub = new Hub(PORT, 1);
+        DrainingClients clients = new DrainingClients();
+        for (int i = 0; i < clientCount; i++)
+            clients.connect("localhost", PORT);
+        while (hub.getPlayerList().length < clientCount)
+            Thread.sleep(10);
+        ForwardedMessage message = new ForwardedMessage(1, "x");
+
+        LongAdder calls = new LongAdder();
+        Thread[] threads = new Thread[senders + 1];
+        for (int i = 0; i < senders; i++) {
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int[] players = hub.getPlayerList();
+                while (running) {
+                    if (random.nextInt(20) == 0) {
+                        if (locked) {
+                            synchronized(hub) {
+                                players = hub.getPlayerList();
+                            }
+                        }
+                        else
+                            players = hub.getPlayerList();
+                    }
+                    int recipient = players[random.nextInt(players.length)];
+                    if (locked) {
+                        synchronized(hub) {
+                            hub.sendToOne(recipient, message);
+                        }
+                    }
+                    else
+                        hub.sendToOne(recipient, message);
+                    calls.increment();
+                }
+            });
+        }
+        threads[senders] = new Thread(() -> {
+            while (running) {
+                if (locked) {
+                    synchronized(hub) {
+                        hub.sendToAll(message);
+                    }
+                }
+                else
+                    hub.sendToAll(message);
+                calls.increment();
+                Thread.yield();
+            }
+        });
+
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread t : threads)
+            t.join();
+        double elapsed = (System.nanoTime() - start)/1e9;
+
+        System.out.println("Mode:              " + (locked ? "locked" : "lock-free"));
+        System.out.println("Sender threads:    " + senders);
+        System.out.println("Clients:           " + clientCount);
+        System.out.printf ("Calls per second:  %.0f%n", calls.sum()/elapsed);
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,121 @@
+package netgame.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import netgame.common.MessageCodec;
+import netgame.common.MessageCodecs;
+import netgame.newchat.JoinRoomMessage;
+import netgame.newchat.NewChatRoomHub;
+import netgame.newchat.RoomMessage;
+
+/**
+ * Compares sending lines of chat to rooms with sending them to everyone.  A
+ * NewChatRoomHub is started, a number of users connect to it, and the users
+ * are spread evenly over a number of rooms.  Then the users send lines of chat
+ * as RoomMessages, which go only to the members of the sender's room, and then
+ * as ordinary messages, which the hub forwards to every user.  For each case,
+ * the program reports the number of lines per second that the hub delivers
+ * and the number of messages and bytes sent by the hub for each line.
+ * (Fewer lines are sent to everyone, since each one costs much more.)
+ * <p>Usage:  java netgame.loadtest.RoomBenchmark [users] [rooms] [lines]
+ * <p>The default is 10000 users in 500 rooms, and 20000 lines.  The program
+ * opens two sockets for each user, so the limit on open files might have to
+ * be raised (for example, with "ulimit -n").
+ */
+public class RoomBenchmark {
+
+    private static final int PORT = 37839;
+
+    public static void main(String[] args) throws Exception {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int lines = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        MessageCodec codec = MessageCodecs.get("binary");
+
+        NewChatRoomHub hub = new NewChatRoomHub(PORT, 1);
+        DrainingClients clients = new DrainingClients();
+        int[] ids = new int[userCount];
+        long start = System.nanoTime();
+        for (int i = 0; i < userCount; i++)
+            ids[i] = clients.connect("localhost", PORT, "user" + i);
+        while (hub.getPlayerList().length < userCount)
+            Thread.sleep(10);
+        System.out.printf("Connected %d users in %.1f seconds.%n", userCount, (System.nanoTime() - start)/1e9);
+
+        start = System.nanoTime();
+        for (int i = 0; i < userCount; i++)
+            clients.writeTo(ids[i], frame(new JoinRoomMessage(roomName(i % roomCount)), codec));
+        while (membersInRooms(hub) < userCount)
+            Thread.sleep(10);
+        System.out.printf("Joined %d rooms in %.1f seconds.%n", roomCount, (System.nanoTime() - start)/1e9);
+        waitForDrain(clients);
+
+        ByteBuffer[] roomFrames = new ByteBuffer[roomCount];
+        for (int r = 0; r < roomCount; r++)
+            roomFrames[r] = frame(new RoomMessage(roomName(r), "A typical line of chat, about this long."), codec);
+        ByteBuffer everyoneFrame = frame("A typical line of chat, about this long.", codec);
+
+        System.out.println();
+        System.out.printf("%-10s %8s %14s %18s %16s%n", "Send to", "Lines", "Lines/second", "Messages/line", "Bytes/line");
+        for (int test = 0; test < 2; test++) {
+            boolean rooms = (test == 0);
+            int count = rooms ? lines : Math.max(1, lines * roomCount / userCount);
+            long messagesBefore = hub.getMetrics().getMessagesOut();
+            long bytesBefore = clients.getBytesReceived();
+            long expected = rooms ? (long)count * (userCount / roomCount) : (long)count * userCount;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                int user = i % userCount;
+                clients.writeTo(ids[user], rooms ? roomFrames[user % roomCount] : everyoneFrame);
+            }
+            while (hub.getMetrics().getMessagesOut() - messagesBefore < expected)
+                Thread.sleep(1);
+            double seconds = (System.nanoTime() - start)/1e9;
+            waitForDrain(clients);
+            System.out.printf("%-10s %8d %14.0f %18.1f %16.0f%n", rooms ? "room" : "everyone", count,
+                    count / seconds, (double)(hub.getMetrics().getMessagesOut() - messagesBefore) / count,
+                    (double)(clients.getBytesReceived() - bytesBefore) / count);
+        }
+        System.exit(0);
+    }
+
+    private static String roomName(int room) {
+        return "room" + room;
+    }
+
+    private static int membersInRooms(NewChatRoomHub hub) {
+        int total = 0;
+        for (String name : hub.getRoomNames())
+            total += hub.getRoomMembers(name).length;
+        return total;
+    }
+
+    /**
+     * Returns a frame containing a message, encoded as a Client would send it.
+     */
+    private static ByteBuffer frame(Object message, MessageCodec codec) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        codec.encode(message, new DataOutputStream(encoded));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(encoded.size());
+        encoded.writeTo(out);
+        out.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Waits until the clients have stopped receiving data.
+     */
+    private static void waitForDrain(DrainingClients clients) throws InterruptedException {
+        long received;
+        do {
+            received = clients.getBytesReceived();
+            Thread.sleep(200);
+        } while (clients.getBytesReceived() != received);
+    }
+
+}
@@ -0,0 +1,126 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+import netgame.common.BinaryCodec;
+import netgame.common.Hub;
+import netgame.common.SharedMap;
+
+/**
+ * Compares two ways of keeping a map of player names up to date on all of the
+ * clients of a Hub:  sending the whole map to everyone each time a player joins,
+ * as the chat room hub used to do, and keeping the names in a SharedMap, which
+ * sends the map once to the new player and just the new name to everyone else.
+ * For each number of players, the program connects that many clients to a new
+ * Hub and reports the total number of bytes received by all the clients, and
+ * the number of bytes sent for the last join.  (This includes the StatusMessages
+ * that the Hub sends in both cases.)  Both versions use the binary codec.
+ * <p>Usage:  java netgame.loadtest.SharedMapBenchmark [players...]
+ * <p>The default is to test with 10, 100, and 1000 players.
+ */
+public class SharedMapBenchmark {
+
+    private static final int PORT = 37838;  // Two ports are used for each number of players.
+
+    private static final int FULL_MAP = BinaryCodec.FIRST_APPLICATION_TAG + 100;
+
+    /**
+     * The message that is sent by the hub that sends the whole map.
+     */
+    private static class FullMapMessage implements Serializable {
+        final TreeMap<Integer,String> names;
+        FullMapMessage(TreeMap<Integer,String> names) {
+            this.names = names;
+        }
+    }
+
+    /**
+     * A hub that sends a copy of the whole map to all players when a player joins.
+     */
+    private static class FullMapHub extends Hub {
+        final TreeMap<Integer,String> names = new TreeMap<Integer,String>();
+        FullMapHub(int port) throws IOException {
+            super(port, 1);
+        }
+        protected void playerConnected(int playerID) {
+            names.put(playerID, "player" + playerID);
+            sendToAll(new FullMapMessage(new TreeMap<Integer,String>(names)));
+        }
+    }
+
+    /**
+     * A hub that keeps the names in a SharedMap.
+     */
+    private static class SharedMapHub extends Hub {
+        final SharedMap<Integer,String> names = new SharedMap<Integer,String>(this, "names");
+        SharedMapHub(int port) throws IOException {
+            super(port, 1);
+        }
+        protected void playerConnected(int playerID) {
+            names.put(playerID, "player" + playerID);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 10, 100, 1000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        BinaryCodec.registerType(FULL_MAP, FullMapMessage.class, (fm, out) -> {
+                    BinaryCodec.writeVarInt(fm.names.size(), out);
+                    for (Map.Entry<Integer,String> entry : fm.names.entrySet()) {
+                        BinaryCodec.writeVarInt(entry.getKey(), out);
+                        BinaryCodec.writeString(entry.getValue(), out);
+                    }
+                },
+                in -> {
+                    TreeMap<Integer,String> names = new TreeMap<Integer,String>();
+                    int size = BinaryCodec.readVarInt(in);
+                    for (int i = 0; i < size; i++) {
+                        int id = BinaryCodec.readVarInt(in);
+                        names.put(id, BinaryCodec.readString(in));
+                    }
+                    return new FullMapMessage(names);
+                });
+
+        System.out.printf("%8s %-12s %16s %16s%n", "Players", "Method", "Total bytes", "Last join bytes");
+        int port = PORT;
+        for (int players : sizes) {
+            for (int method = 0; method < 2; method++, port++) {
+                Hub hub = (method == 0) ? new FullMapHub(port) : new SharedMapHub(port);
+                DrainingClients clients = new DrainingClients();
+                long beforeLast = 0;
+                for (int i = 0; i < players; i++) {
+                    if (i == players - 1) {
+                        waitForDrain(clients);
+                        beforeLast = clients.getBytesReceived();
+                    }
+                    clients.connect("localhost", port);
+                }
+                waitForDrain(clients);
+                long total = clients.getBytesReceived();
+                System.out.printf("%8d %-12s %16d %16d%n", players, method == 0 ? "full map" : "SharedMap",
+                                       total, total - beforeLast);
+                hub.shutDownHub();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Waits until the clients have stopped receiving data.
+     */
+    private static void waitForDrain(DrainingClients clients) throws InterruptedException {
+        long received;
+        do {
+            received = clients.getBytesReceived();
+            Thread.sleep(200);
+        } while (clients.getBytesReceived() != received);
+    }
+
+}
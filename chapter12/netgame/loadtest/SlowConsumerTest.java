@@ -0,0 +1,81 @@
+package netgame.loadtest;
+
+import netgame.common.Hub;
+import netgame.common.QueueStatus;
+import netgame.common.SlowConsumerPolicy;
+
+/**
+ * Shows what happens to a Hub when one of its clients stops reading.  One
+ * stalled client and some normal clients are connected to a Hub, and a number
+ * of broadcasts are sent.  The program reports the heap memory in use and the
+ * state of each client's outgoing queue.  Without a limit on the queues, all
+ * of the messages for the stalled client stay in memory.
+ * <p>Usage:  java netgame.loadtest.SlowConsumerTest [none|drop|coalesce|disconnect] [broadcasts] [selector-threads]
+ * <p>The default is no limit, 20000 broadcasts of about 1 KB each, and one selector
+ * thread.  Use 0 selector threads to test a Hub that uses two threads per client.
+ * The queue limit, when there is one, is 1000 messages.  The broadcasts are
+ * paced so that the normal clients can keep up; only the stalled client's
+ * queue should fill up.
+ */
+public class SlowConsumerTest {
+
+    private static final int PORT = 37835;
+    private static final int QUEUE_LIMIT = 1000;
+    private static final int NORMAL_CLIENTS = 10;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "none";
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int selectorThreads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        long baseMemory = usedMemory();
+        Hub hub = new Hub(PORT, selectorThreads);
+        if (mode.equals("drop"))
+            hub.setOutgoingQueueLimit(QUEUE_LIMIT, SlowConsumerPolicy.DROP_OLDEST);
+        else if (mode.equals("coalesce"))
+            hub.setOutgoingQueueLimit(QUEUE_LIMIT, SlowConsumerPolicy.COALESCE);
+        else if (mode.equals("disconnect"))
+            hub.setOutgoingQueueLimit(QUEUE_LIMIT, SlowConsumerPolicy.DISCONNECT);
+        else
+            mode = "none";
+
+        DrainingClients clients = new DrainingClients();
+        clients.connectStalled("localhost", PORT);
+        for (int i = 0; i < NORMAL_CLIENTS; i++)
+            clients.connect("localhost", PORT);
+        while (hub.getPlayerList().length < NORMAL_CLIENTS + 1)
+            Thread.sleep(10);
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1000)
+            text.append("All work and no play makes Jack a dull boy. ");
+        long startTime = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            hub.sendToAll(i + ": " + text);  // A different message each time.
+            if (i % 20 == 0)
+                Thread.sleep(1);  // Give the normal clients a chance to keep up.
+        }
+        double seconds = (System.nanoTime() - startTime)/1e9;
+        Thread.sleep(1000);  // Let the normal clients catch up.
+
+        System.out.println();
+        System.out.println("Queue limit and policy:  " + (mode.equals("none") ? "none" : QUEUE_LIMIT + ", " + mode));
+        System.out.printf ("Time to send:            %.2f seconds%n", seconds);
+        System.out.printf ("Heap memory in use:      %.1f MB%n", (usedMemory() - baseMemory)/(1024.0*1024));
+        System.out.println("Players still connected: " + hub.getPlayerList().length);
+        QueueStatus[] queues = hub.getQueueStatus();
+        for (int i = 0; i < queues.length && i < 3; i++)
+            System.out.println("   " + queues[i]);
+        System.exit(0);
+    }
+
+    /**
+     * Returns the amount of heap memory in use after garbage collection.
+     */
+    private static long usedMemory() {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+}
@@ -0,0 +1,103 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import netgame.common.Client;
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+
+/**
+ * Compares platform threads and virtual threads for a Hub and its Clients,
+ * which use two threads for each connection.  A Hub and a number of Clients
+ * are created in this program.  The program reports the time it takes to
+ * connect all the clients, the heap memory and number of threads in use while
+ * the clients are idle, and the time it takes for a broadcast message to reach
+ * every client.  (A broadcast is done by having one client send a message to
+ * the Hub, which forwards it to all clients.)
+ * <p>Usage:  java netgame.loadtest.ThreadModeBenchmark platform|virtual [clients] [broadcasts]
+ * <p>Run the program once in each mode to compare them.  The default is 1000 clients
+ * and 50 broadcasts.  Virtual threads need Java 21 or later; with an older
+ * version, platform threads are used in both modes.  Note that the platform
+ * thread count reported by the JVM does not include virtual threads.
+ */
+public class ThreadModeBenchmark {
+
+    private static final int PORT = 37832;
+
+    private static volatile CountDownLatch arrivals;  // Counted down as clients receive a broadcast.
+
+    /**
+     * A client that counts down the arrivals latch when it receives a broadcast.
+     */
+    private static class BenchmarkClient extends Client {
+        BenchmarkClient(boolean virtualThreads) throws IOException {
+            super("localhost", PORT, virtualThreads);
+        }
+        protected void messageReceived(Object message) {
+            if (message instanceof ForwardedMessage)
+                arrivals.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || ! (args[0].equals("platform") || args[0].equals("virtual"))) {
+            System.out.println("Usage:  java netgame.loadtest.ThreadModeBenchmark platform|virtual [clients] [broadcasts]");
+            return;
+        }
+        boolean virtual = args[0].equals("virtual");
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int broadcasts = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        long baseMemory = usedMemory();
+        Hub hub = new Hub(PORT, virtual);
+
+        long startTime = System.nanoTime();
+        BenchmarkClient[] clients = new BenchmarkClient[clientCount];
+        for (int i = 0; i < clientCount; i++)
+            clients[i] = new BenchmarkClient(virtual);
+        while (hub.getPlayerList().length < clientCount)
+            Thread.sleep(10);
+        double connectSeconds = (System.nanoTime() - startTime)/1e9;
+
+        Thread.sleep(1000);  // Let things settle down.
+        long idleMemory = usedMemory() - baseMemory;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        double[] latencies = new double[broadcasts];
+        for (int i = 0; i < broadcasts; i++) {
+            arrivals = new CountDownLatch(clientCount);
+            long sendTime = System.nanoTime();
+            clients[i % clientCount].send("broadcast " + i);
+            if ( ! arrivals.await(60, TimeUnit.SECONDS) ) {
+                System.out.println("Broadcast " + i + " did not reach all clients.");
+                System.exit(1);
+            }
+            latencies[i] = (System.nanoTime() - sendTime)/1e6;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println();
+        System.out.println("Mode:                      " + args[0] + " threads");
+        System.out.println("Clients:                   " + clientCount);
+        System.out.printf ("Time to connect:           %.2f seconds%n", connectSeconds);
+        System.out.printf ("Heap memory while idle:    %.1f MB%n", idleMemory/(1024.0*1024));
+        System.out.println("Platform threads:          " + threads);
+        System.out.printf ("Broadcast latency median:  %.2f ms%n", latencies[broadcasts/2]);
+        System.out.printf ("Broadcast latency max:     %.2f ms%n", latencies[broadcasts-1]);
+        System.exit(0);
+    }
+
+    /**
+     * Returns the amount of heap memory in use after garbage collection.
+     */
+    private static long usedMemory() {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+}
@@ -0,0 +1,139 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+import netgame.common.Client;
+import netgame.common.Hub;
+
+/**
+ * Compares the speed of sending bursts of messages with and without write
+ * batching (see Hub.setWriteBatching() and Client.setWriteBatching()).  First,
+ * a Hub that uses two threads per client sends a burst of broadcasts to a number
+ * of clients; then one Client sends a burst of messages to a Hub.  For each
+ * setting, the program reports the number of messages delivered per second and
+ * the number of write system calls made per message.  The number of system calls
+ * is read from /proc/self/io, so it is only available on Linux.
+ * <p>Usage:  java netgame.loadtest.WriteBatchingBenchmark [messages] [clients]
+ * <p>The default is 20000 messages and 20 clients.
+ */
+public class WriteBatchingBenchmark {
+
+    private static final int PORT = 37837;
+
+    private static final String MESSAGE = "A typical line of chat, about this long.";
+
+    /**
+     * A Hub that only counts the messages that it receives.
+     */
+    private static class CountingHub extends Hub {
+        final LongAdder received = new LongAdder();
+        CountingHub(int port) throws IOException {
+            super(port, 0);
+        }
+        protected void messageReceived(int playerID, Object message) {
+            received.increment();
+        }
+    }
+
+    /**
+     * A Client that ignores the messages that it receives.
+     */
+    private static class SendingClient extends Client {
+        SendingClient(int port) throws IOException {
+            super("localhost", port);
+        }
+        protected void messageReceived(Object message) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        CountingHub hub = new CountingHub(PORT);
+        DrainingClients clients = new DrainingClients();
+        for (int i = 0; i < clientCount; i++)
+            clients.connect("localhost", PORT);
+        while (hub.getPlayerList().length < clientCount)
+            Thread.sleep(10);
+        SendingClient sender = new SendingClient(PORT);
+        waitForDrain(clients);
+
+        /* Find the number of bytes that each client receives for one broadcast. */
+
+        long before = clients.getBytesReceived();
+        hub.sendToAll(MESSAGE);
+        waitForDrain(clients);
+        long bytesPerBroadcast = clients.getBytesReceived() - before;
+
+        System.out.println();
+        System.out.println("Hub to " + clientCount + " clients, " + messages + " broadcasts:");
+        System.out.printf("%-22s %16s %16s%n", "Setting", "Messages/second", "Writes/message");
+        for (int setting = 0; setting < 3; setting++) {
+            hub.setWriteBatching(setting > 0, setting == 2 ? 2 : 0);
+            long expected = clients.getBytesReceived() + messages * bytesPerBroadcast;
+            long writes = writeSyscalls();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++)
+                hub.sendToAll(MESSAGE);
+            while (clients.getBytesReceived() < expected)
+                Thread.sleep(1);
+            report(setting, (long)messages * clientCount, System.nanoTime() - start, writes);
+        }
+
+        System.out.println();
+        System.out.println("One client to hub, " + messages + " messages:");
+        System.out.printf("%-22s %16s %16s%n", "Setting", "Messages/second", "Writes/message");
+        for (int setting = 0; setting < 3; setting++) {
+            sender.setWriteBatching(setting > 0, setting == 2 ? 2 : 0);
+            long expected = hub.received.sum() + messages;
+            long writes = writeSyscalls();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++)
+                sender.send(MESSAGE);
+            while (hub.received.sum() < expected)
+                Thread.sleep(1);
+            report(setting, messages, System.nanoTime() - start, writes);
+        }
+        System.exit(0);
+    }
+
+    private static void report(int setting, long delivered, long nanos, long writesBefore) {
+        String[] names = { "no batching", "batching, no delay", "batching, 2 ms delay" };
+        long writes = writeSyscalls();
+        String writesPerMessage = (writes < 0) ? "n/a"
+                    : String.format("%.3f", (double)(writes - writesBefore) / delivered);
+        System.out.printf("%-22s %16.0f %16s%n", names[setting], delivered / (nanos/1e9), writesPerMessage);
+    }
+
+    /**
+     * Returns the number of write system calls made by this process, or -1
+     * if that number is not available.
+     */
+    private static long writeSyscalls() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+                if (line.startsWith("syscw:"))
+                    return Long.parseLong(line.substring(6).trim());
+            }
+        }
+        catch (Exception e) {
+        }
+        return -1;
+    }
+
+    /**
+     * Waits until the clients have stopped receiving data.
+     */
+    private static void waitForDrain(DrainingClients clients) throws InterruptedException {
+        long received;
+        do {
+            received = clients.getBytesReceived();
+            Thread.sleep(200);
+        } while (clients.getBytesReceived() != received);
+    }
+
+}
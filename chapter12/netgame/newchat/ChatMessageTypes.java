@@ -0,0 +1,119 @@
+package netgame.newchat;
+
+import java.io.IOException;
+
+import netgame.common.BinaryCodec;
+
+/**
+ * Registers the message types of the chat room application with the
+ * BinaryCodec, so that they are transmitted in a compact form instead
+ * of by Java serialization.  The register() method must be called by
+ * both the hub and the clients; NewChatRoomHub and NewChatRoomWindow
+ * do that when their classes are loaded.
+ */
+public class ChatMessageTypes {
+    
+    public static final int PRIVATE_MESSAGE = BinaryCodec.FIRST_APPLICATION_TAG;
+    public static final int ROOM_MESSAGE = BinaryCodec.FIRST_APPLICATION_TAG + 1;
+    public static final int JOIN_ROOM = BinaryCodec.FIRST_APPLICATION_TAG + 2;
+    public static final int LEAVE_ROOM = BinaryCodec.FIRST_APPLICATION_TAG + 3;
+    public static final int HISTORY = BinaryCodec.FIRST_APPLICATION_TAG + 4;
+    public static final int UNDELIVERED = BinaryCodec.FIRST_APPLICATION_TAG + 5;
+    
+    private static boolean registered;
+    
+    /**
+     * Registers the chat message types.  Calling this more than once has no effect.
+     */
+    synchronized public static void register() {
+        if (registered)
+            return;
+        BinaryCodec.registerType(PRIVATE_MESSAGE, PrivateMessage.class, (pm, out) -> {
+                    BinaryCodec.writeVarInt(pm.senderID, out);
+                    BinaryCodec.writeVarInt(pm.recipientID, out);
+                    BinaryCodec.writeString(pm.message, out);
+                },
+                in -> {
+                    int senderID = BinaryCodec.readVarInt(in);
+                    PrivateMessage pm = new PrivateMessage(BinaryCodec.readVarInt(in), BinaryCodec.readString(in));
+                    pm.senderID = senderID;
+                    return pm;
+                });
+        BinaryCodec.registerType(ROOM_MESSAGE, RoomMessage.class, (rm, out) -> {
+                    BinaryCodec.writeVarInt(rm.senderID, out);
+                    BinaryCodec.writeString(rm.room, out);
+                    BinaryCodec.writeString(rm.message, out);
+                },
+                in -> {
+                    int senderID = BinaryCodec.readVarInt(in);
+                    RoomMessage rm = new RoomMessage(BinaryCodec.readString(in), BinaryCodec.readString(in));
+                    rm.senderID = senderID;
+                    return rm;
+                });
+        BinaryCodec.registerType(JOIN_ROOM, JoinRoomMessage.class, (jm, out) -> {
+                    BinaryCodec.writeVarInt(jm.senderID, out);
+                    BinaryCodec.writeString(jm.room, out);
+                    if (jm.members == null)
+                        BinaryCodec.writeVarInt(0, out);
+                    else {
+                        BinaryCodec.writeVarInt(jm.members.length + 1, out);  // (0 means null.)
+                        for (int id : jm.members)
+                            BinaryCodec.writeVarInt(id, out);
+                    }
+                },
+                in -> {
+                    int senderID = BinaryCodec.readVarInt(in);
+                    JoinRoomMessage jm = new JoinRoomMessage(BinaryCodec.readString(in));
+                    jm.senderID = senderID;
+                    int count = BinaryCodec.readVarInt(in) - 1;
+                    if (count > in.available())
+                        throw new IOException("Corrupt message data: member count " + count + ".");
+                    if (count >= 0) {
+                        jm.members = new int[count];
+                        for (int i = 0; i < count; i++)
+                            jm.members[i] = BinaryCodec.readVarInt(in);
+                    }
+                    return jm;
+                });
+        BinaryCodec.registerType(LEAVE_ROOM, LeaveRoomMessage.class, (lm, out) -> {
+                    BinaryCodec.writeVarInt(lm.senderID, out);
+                    BinaryCodec.writeString(lm.room, out);
+                },
+                in -> {
+                    int senderID = BinaryCodec.readVarInt(in);
+                    LeaveRoomMessage lm = new LeaveRoomMessage(BinaryCodec.readString(in));
+                    lm.senderID = senderID;
+                    return lm;
+                });
+        BinaryCodec.registerType(HISTORY, HistoryMessage.class, (hm, out) -> {
+                    BinaryCodec.writeVarInt(hm.messages.length, out);
+                    for (LoggedMessage m : hm.messages) {
+                        out.writeLong(m.time);
+                        BinaryCodec.writeString(m.senderName, out);
+                        BinaryCodec.writeString(m.recipient, out);
+                        BinaryCodec.writeString(m.message, out);
+                    }
+                    out.writeBoolean(hm.complete);
+                },
+                in -> {
+                    int count = BinaryCodec.readVarInt(in);
+                    if (count < 0 || count > in.available())
+                        throw new IOException("Corrupt message data: message count " + count + ".");
+                    LoggedMessage[] messages = new LoggedMessage[count];
+                    for (int i = 0; i < count; i++) {
+                        long time = in.readLong();
+                        String senderName = BinaryCodec.readString(in);
+                        String recipient = BinaryCodec.readString(in);
+                        messages[i] = new LoggedMessage(time, senderName, recipient, BinaryCodec.readString(in));
+                    }
+                    return new HistoryMessage(messages, in.readBoolean());
+                });
+        BinaryCodec.registerType(UNDELIVERED, UndeliveredMessage.class, (um, out) -> {
+                    BinaryCodec.writeVarInt(um.recipientID, out);
+                    BinaryCodec.writeString(um.message, out);
+                },
+                in -> new UndeliveredMessage(BinaryCodec.readVarInt(in), BinaryCodec.readString(in)));
+        registered = true;
+    }
+
+}
@@ -0,0 +1,22 @@
+package netgame.newchat;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the hub to a client who has come back to the chat room, with some
+ * of the messages that it missed while it was away:  the messages that were
+ * sent to everyone and the private messages that were saved for it.  The
+ * messages are sent in several HistoryMessages, oldest first; the last one
+ * has complete set to true.
+ */
+public class HistoryMessage implements Serializable {
+
+    public LoggedMessage[] messages;  // Some of the missed messages, oldest first.
+    public boolean complete;          // True for the last HistoryMessage in the backlog.
+
+    public HistoryMessage(LoggedMessage[] messages, boolean complete) {
+        this.messages = messages;
+        this.complete = complete;
+    }
+
+}
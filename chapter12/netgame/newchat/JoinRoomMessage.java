@@ -0,0 +1,27 @@
+package netgame.newchat;
+
+import java.io.Serializable;
+
+/**
+ * A client sends a JoinRoomMessage to the hub to enter a chat room.  A room
+ * exists as long as it has members, so joining a room that does not exist
+ * creates it.  The hub sends a copy of the message, with senderID set to the
+ * ID number of the client who joined, to all the members of the room,
+ * including the new member.  In the copy that goes to the new member,
+ * members contains the ID numbers of all the members of the room.
+ */
+public class JoinRoomMessage implements Serializable {
+    
+    public int senderID;    // The ID number of the client who is joining.
+    public String room;     // The name of the room.
+    public int[] members;   // The members of the room; only sent to the new member.
+
+    /**
+     *  Create a request to join a room.
+     *  The senderID of the message will be set by the hub.
+     */
+    public JoinRoomMessage(String room) {
+        this.room = room;
+    }
+
+}
@@ -0,0 +1,25 @@
+package netgame.newchat;
+
+import java.io.Serializable;
+
+/**
+ * A client sends a LeaveRoomMessage to the hub to leave a chat room.  The
+ * hub sends a copy of the message, with senderID set to the ID number of the
+ * client who left, to the client and to the members who remain in the room.
+ * The hub also sends a LeaveRoomMessage to the other members of each room
+ * that a client was in when the client disconnects.
+ */
+public class LeaveRoomMessage implements Serializable {
+    
+    public int senderID;    // The ID number of the client who is leaving.
+    public String room;     // The name of the room.
+
+    /**
+     *  Create a request to leave a room.
+     *  The senderID of the message will be set by the hub.
+     */
+    public LeaveRoomMessage(String room) {
+        this.room = room;
+    }
+
+}
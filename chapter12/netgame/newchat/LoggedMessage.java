@@ -0,0 +1,28 @@
+package netgame.newchat;
+
+import java.io.Serializable;
+
+/**
+ * A line of chat that has been saved in the hub's MessageLog.  Since the
+ * client who sent the message might no longer be connected when the message
+ * is read from the log, the sender is identified by name instead of by
+ * ID number.  Saved messages are sent to clients in a HistoryMessage.
+ */
+public class LoggedMessage implements Serializable {
+
+    public long time;          // When the hub received the message (from System.currentTimeMillis()).
+    public String senderName;  // The name of the client who sent the message.
+    public String recipient;   // For a private message, the hub's key for the recipient
+                               //    (see NewChatRoomHub); null for a message that was
+                               //    sent to everyone.  The key does not change when the
+                               //    recipient leaves and comes back.
+    public String message;     // The message.
+
+    public LoggedMessage(long time, String senderName, String recipient, String message) {
+        this.time = time;
+        this.senderName = senderName;
+        this.recipient = recipient;
+        this.message = message;
+    }
+
+}
@@ -0,0 +1,289 @@
+package netgame.newchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import netgame.common.BinaryCodec;
+
+/**
+ * An append-only log of chat messages, kept in memory-mapped files so that
+ * it does not use heap memory and survives a restart of the hub.  Messages
+ * are kept for a given length of time, the retention period.  The log is
+ * stored as a sequence of segment files named messages-1.log, messages-2.log,
+ * ..., in a directory that is used only for the log.  Each segment has a fixed
+ * size, and a new segment is started when the current one is full.  A segment
+ * is deleted when all of the messages in it are older than the retention period.
+ * <p>Each message is stored as a record that consists of the length of the
+ * rest of the record, as an int, followed by the time and the three strings
+ * of the LoggedMessage.  The length is written after the rest of the record,
+ * and the unused part of a segment is all zeros, so if the hub stops in the
+ * middle of writing a record, the record is ignored when the log is reopened.
+ * <p>Messages are added by append(), which is synchronized, but read() does
+ * not lock anything, so reading the log, which might take a while, does
+ * not hold up the threads that are adding messages.
+ */
+public class MessageLog {
+
+    /**
+     * The size of each segment file, unless another size is given to the constructor.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16*1024*1024;
+
+    private final File directory;
+    private final long retention;
+    private final int segmentSize;
+    private final CopyOnWriteArrayList<Segment> segments;  // In order, oldest first.
+    private Segment current;  // The segment that is being written; null if the log has been closed.
+
+    /**
+     * One segment file.  The buffer maps the entire file; records are written
+     * through a separate buffer, so that the position of the mapped buffer never
+     * changes, and readers can safely use duplicates of it.  The end of the data
+     * and the time of the newest record are volatile, so a reader sees complete
+     * records without locking.
+     */
+    private static class Segment {
+        final long number;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final ByteBuffer writer;
+        volatile int end;       // The position just after the last complete record.
+        volatile long lastTime; // The time of the newest record, or 0 if there are none.
+        Segment(File file, long number, int size) throws IOException {
+            this.number = number;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+            writer = buffer.duplicate();
+        }
+        void close() {
+            try {
+                buffer.force();
+                channel.close();  // (The file remains mapped until the buffer is garbage collected.)
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Opens a log with the default segment size.  See the other constructor.
+     */
+    public MessageLog(File directory, long retentionMillis) throws IOException {
+        this(directory, retentionMillis, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a log that is stored in a given directory.  The directory is created
+     * if it does not exist.  If it already contains a log, the records in that
+     * log are kept, except for segments that have expired, and new messages are
+     * added to the end.
+     * @param directory the directory that holds the segment files of the log.
+     * @param retentionMillis how long messages are kept, in milliseconds.
+     * @param segmentSize the size of each segment file, in bytes.  This is also the
+     *    limit on the size of a single message.
+     * @throws IOException if the directory or a segment can't be opened.
+     */
+    public MessageLog(File directory, long retentionMillis, int segmentSize) throws IOException {
+        if (retentionMillis <= 0)
+            throw new IllegalArgumentException("The retention period must be positive.");
+        if (segmentSize < 1024)
+            throw new IllegalArgumentException("The segment size must be at least 1024 bytes.");
+        if ( ! directory.isDirectory() && ! directory.mkdirs() )
+            throw new IOException("Can't create directory " + directory);
+        this.directory = directory;
+        this.retention = retentionMillis;
+        this.segmentSize = segmentSize;
+        segments = new CopyOnWriteArrayList<Segment>();
+        String[] names = directory.list();
+        long[] numbers = new long[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            if (names[i].startsWith("messages-") && names[i].endsWith(".log")) {
+                try {
+                    numbers[count] = Long.parseLong(names[i].substring(9, names[i].length() - 4));
+                    count++;
+                }
+                catch (NumberFormatException e) {
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        for (long number : numbers) {
+            Segment segment = new Segment(segmentFile(number), number, 0);
+            recover(segment);
+            segments.add(segment);
+        }
+        synchronized(this) {
+            if (segments.isEmpty())
+                startSegment(1);
+            else
+                current = segments.get(segments.size() - 1);
+            deleteExpiredSegments();
+        }
+    }
+
+    /**
+     * Returns the retention period, in milliseconds.
+     */
+    public long getRetention() {
+        return retention;
+    }
+
+    /**
+     * Adds a message to the end of the log.
+     * @return false if the message was not added because it is too big to fit in
+     *    a segment, or because the log has been closed.
+     * @throws IOException if a new segment is needed and it can't be created.
+     */
+    synchronized public boolean append(LoggedMessage message) throws IOException {
+        if (current == null)
+            return false;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(message.time);
+        BinaryCodec.writeString(message.senderName, out);
+        BinaryCodec.writeString(message.recipient, out);
+        BinaryCodec.writeString(message.message, out);
+        out.flush();
+        int length = bytes.size();
+        if (4 + length > segmentSize)
+            return false;
+        if (current.end + 4 + length > current.buffer.capacity()) {
+            startSegment(current.number + 1);
+            deleteExpiredSegments();
+        }
+        Segment segment = current;
+        int position = segment.end;
+        segment.writer.position(position + 4);
+        segment.writer.put(bytes.toByteArray());
+        segment.writer.putInt(position, length);
+        segment.lastTime = message.time;
+        segment.end = position + 4 + length;  // Makes the record visible to readers.
+        return true;
+    }
+
+    /**
+     * Returns the newest messages in the log that were added between two times
+     * and that are meant for a given recipient:  messages that were sent to everyone,
+     * and private messages whose recipient is the given one.  Messages that are
+     * older than the retention period are not returned, even if they are still in
+     * the log.  This can be called by any thread, at the same time as append().
+     * @param after only messages whose time is greater than this are returned.
+     * @param until only messages whose time is less than or equal to this are returned.
+     * @param recipient the recipient, as stored in LoggedMessages, or null to get only
+     *    messages that were sent to everyone.
+     * @param max the maximum number of messages to return.  If there are more,
+     *    the newest ones are returned.
+     * @return the messages, oldest first.
+     */
+    public List<LoggedMessage> read(long after, long until, String recipient, int max) throws IOException {
+        ArrayDeque<LoggedMessage> newest = new ArrayDeque<LoggedMessage>();
+        if (max <= 0)
+            return new ArrayList<LoggedMessage>();
+        after = Math.max(after, System.currentTimeMillis() - retention - 1);
+        for (Segment segment : segments) {
+            int end = segment.end;
+            if (segment.lastTime <= after)
+                continue;  // There is nothing new enough in this segment.
+            ByteBuffer data = segment.buffer.duplicate();
+            int position = 0;
+            while (position < end) {
+                int length = data.getInt(position);
+                long time = data.getLong(position + 4);
+                if (time > after && time <= until) {
+                    byte[] record = new byte[length];
+                    data.position(position + 4);
+                    data.get(record);
+                    LoggedMessage message = decode(record);
+                    if (message.recipient == null || message.recipient.equals(recipient)) {
+                        if (newest.size() == max)
+                            newest.removeFirst();
+                        newest.addLast(message);
+                    }
+                }
+                position += 4 + length;
+            }
+        }
+        return new ArrayList<LoggedMessage>(newest);
+    }
+
+    /**
+     * Closes the log.  After this, append() does nothing.
+     */
+    synchronized public void close() {
+        for (Segment segment : segments)
+            segment.close();
+        current = null;
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, "messages-" + number + ".log");
+    }
+
+    private void startSegment(long number) throws IOException {
+        if (current != null)
+            current.buffer.force();
+        current = new Segment(segmentFile(number), number, segmentSize);
+        segments.add(current);
+    }
+
+    /**
+     * Deletes the segments, other than the current one, that contain only messages
+     * that are older than the retention period.  (A reader that is still using one
+     * of them can go on doing so, since the file stays mapped.)
+     */
+    private void deleteExpiredSegments() {
+        long cutoff = System.currentTimeMillis() - retention;
+        for (Segment segment : segments) {
+            if (segment != current && segment.lastTime < cutoff) {
+                segments.remove(segment);
+                segment.close();
+                segment.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the complete records in a segment that was read from a file,
+     * and the time of the newest record.
+     */
+    private static void recover(Segment segment) {
+        ByteBuffer data = segment.buffer;
+        int position = 0;
+        while (position + 4 + 8 <= data.capacity()) {
+            int length = data.getInt(position);
+            if (length < 8 || position + 4 + length > data.capacity())
+                break;
+            segment.lastTime = data.getLong(position + 4);
+            position += 4 + length;
+        }
+        segment.end = position;
+    }
+
+    private static LoggedMessage decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long time = in.readLong();
+        String senderName = BinaryCodec.readString(in);
+        String recipient = BinaryCodec.readString(in);
+        String message = BinaryCodec.readString(in);
+        return new LoggedMessage(time, senderName, recipient, message);
+    }
+
+}
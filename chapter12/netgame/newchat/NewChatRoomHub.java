@@ -3,7 +3,16 @@ package netgame.newchat;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.TreeMap;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import netgame.common.*;
 
@@ -11,14 +20,193 @@ import netgame.common.*;
  *  This class defines the "hub" that acts as a server for the
  *  chat room application.  It extends the basic Hub class in
  *  order to support names for clients, as well as ID numbers.
+ *  <p>The names are kept in a SharedMap named NAME_MAP, so each client
+ *  gets the complete list of names when it connects, and after that
+ *  just the names that are added and removed.
+ *  <p>Clients can also join named rooms, by sending a JoinRoomMessage,
+ *  and leave them by sending a LeaveRoomMessage.  A RoomMessage is sent
+ *  only to the members of its room, so the cost of a line of chat depends
+ *  on the size of the room, not on the number of connected clients.
+ *  (Other messages are still forwarded to all clients.)  For each room,
+ *  the hub keeps a hash set of its members; for each client, it keeps
+ *  the set of rooms that the client is in, so the client can be removed
+ *  from its rooms when it disconnects.
+ *  <p>During the connection handshake, the hub gives each client a "reconnect
+ *  token", a random string that the client keeps secret and sends back when it
+ *  connects again.  A client's name is not used to identify it, since anyone can
+ *  ask for any name; the token shows that a client that is connecting is the
+ *  same one that left.  If a MessageLog has been set with setMessageLog(), the
+ *  lines of chat that are sent to everyone are saved in the log, and so are
+ *  private messages whose recipient has left, with the recipient identified by
+ *  a key that goes with its token.  When a client presents the token of a client
+ *  that left less than the log's retention period ago, the hub sends it the
+ *  messages that it missed, in HistoryMessages.  The log is read by a separate
+ *  thread, so this does not hold up the handling of other messages.  A private
+ *  message that can be neither delivered nor saved is returned to its sender in
+ *  an UndeliveredMessage.
+ *  <p>All access to the map of client names and to the rooms is synchronized,
+ *  so this hub can be used with more than one dispatch thread.  (See the
+ *  setDispatchThreadCount() method in the Hub class.)
  */
 public class NewChatRoomHub extends Hub {
     
+    static {
+        ChatMessageTypes.register();  // Use the compact encoding for chat messages.
+    }
+    
+    /**
+     * The name of the SharedMap that holds the names of the clients.
+     */
+    public static final String NAME_MAP = "names";
+    
     /**
      * This map keeps track of the names of all connected clients.
-     * It maps client ID numbers to client names.
+     * It maps client ID numbers to client names, and it is shared with
+     * all the clients.  Checking whether a name is in use and adding it
+     * to the map is done while synchronized on the map, since the map is
+     * used by the threads that do the connection handshakes as well as by
+     * the dispatch thread or threads.
+     */
+    private final SharedMap<Integer,String> nameMap = new SharedMap<Integer,String>(this, NAME_MAP);
+    
+    /**
+     * The reverse of nameMap:  the ID number of the client that is using each name.
+     * This lets the hub check whether a name is in use without searching nameMap.
+     * Like the tables below, it is only used while synchronized on nameMap.
+     */
+    private final HashMap<String,Integer> idOfName = new HashMap<String,Integer>();
+    
+    /**
+     * Information about each name that clients have asked for and that is still
+     * in use, either by itself or with a suffix.  The key is the name that was
+     * asked for, after it has been cleaned up.
+     */
+    private final HashMap<String,BaseName> baseNames = new HashMap<String,BaseName>();
+    
+    /**
+     * The BaseName for each connected client; that is, the name that the client
+     * asked for.  Used to update the BaseName when the client disconnects.
+     */
+    private final HashMap<Integer,BaseName> baseNameOfPlayer = new HashMap<Integer,BaseName>();
+    
+    /**
+     * Keeps track of the suffixes that have been added to a name that several clients
+     * have asked for.  The next client who asks for the name is given the suffix
+     * nextSuffix (if no one is using that name already), so the hub does not have to
+     * try "#2", "#3", ... every time.  The suffixes are not reused until everyone who
+     * asked for the name has left, when the BaseName is discarded.
+     */
+    private static class BaseName {
+        final String name;
+        int nextSuffix = 2;
+        int users;  // The number of connected clients who asked for this name.
+        BaseName(String name) {
+            this.name = name;
+        }
+    }
+    
+    /**
+     * The log that holds messages for clients who come back, or null if messages
+     * are not being saved.
+     */
+    private volatile MessageLog messageLog;
+    
+    /**
+     * The maximum number of saved messages that are sent to a client who comes back.
+     */
+    private volatile int maxReplayedMessages;
+    
+    /**
+     * The thread that reads the message log and sends the messages to clients who
+     * have come back.  Created when a message log is first set.
+     */
+    private ExecutorService historyExecutor;
+    
+    /**
+     * The identity of a client, which stays the same when the client leaves and
+     * comes back.  The token is given only to the client itself.  The key is used
+     * as the recipient of the private messages that are saved in the message log
+     * for the client, so that the token is not stored in the log.
+     */
+    private static class Identity {
+        final String token;
+        final String key;
+        Identity(String token, String key) {
+            this.token = token;
+            this.key = key;
+        }
+    }
+    
+    private static class Departure {
+        final Identity identity;
+        final int playerID;  // The ID number that the client had before it left.
+        final long time;
+        Departure(Identity identity, int playerID, long time) {
+            this.identity = identity;
+            this.playerID = playerID;
+            this.time = time;
+        }
+    }
+    
+    private final SecureRandom random = new SecureRandom();  // For making tokens and keys.
+    
+    /**
+     * The identities of the connected clients, keyed by ID number.
+     */
+    private final HashMap<Integer,Identity> identityOfPlayer = new HashMap<Integer,Identity>();
+    
+    /**
+     * The clients who have left within the retention period of the message log,
+     * keyed by token and by the ID number that the client had.  The entries are
+     * in the order in which the clients left, so expired entries can be removed
+     * from the front of the maps.
      */
-    private TreeMap<Integer,String> nameMap = new TreeMap<Integer,String>();
+    private final LinkedHashMap<String,Departure> departures = new LinkedHashMap<String,Departure>();
+    private final LinkedHashMap<Integer,Departure> departuresByID = new LinkedHashMap<Integer,Departure>();
+    
+    /**
+     * The departures of the clients that have come back, keyed by their new ID
+     * numbers, from the handshake until playerConnected() starts to send them the
+     * messages that they missed.  This map, the maps of departures, and
+     * identityOfPlayer are only used while synchronized on departures.
+     */
+    private final HashMap<Integer,Departure> returning = new HashMap<Integer,Departure>();
+    
+    private static final int HISTORY_BATCH_SIZE = 100;  // Messages in each HistoryMessage.
+    
+    /**
+     * The rooms that have at least one member, keyed by name.  A room is
+     * created when a client joins it and is removed when its last member leaves.
+     */
+    private final ConcurrentHashMap<String,Room> rooms = new ConcurrentHashMap<String,Room>();
+    
+    /**
+     * The names of the rooms that each client is in.  The set for a client is
+     * only used by the dispatch thread that handles that client, so the sets
+     * are not synchronized.
+     */
+    private final ConcurrentHashMap<Integer,HashSet<String>> roomsOfPlayer 
+                                          = new ConcurrentHashMap<Integer,HashSet<String>>();
+    
+    /**
+     * The members of one room.  All access to a Room is synchronized on the Room,
+     * and messages to the members of a room are sent while holding that lock, so
+     * all the members see the messages, joins, and leaves in the same order.
+     */
+    private static class Room {
+        final HashSet<Integer> members = new HashSet<Integer>();
+        int[] memberList;  // Copy of members, for sending; null when it has to be rebuilt.
+        boolean removed;   // Set to true when the room has been removed from the rooms map.
+        int[] getMembers() {
+            if (memberList == null) {
+                memberList = new int[members.size()];
+                int i = 0;
+                for (int id : members)
+                    memberList[i++] = id;
+            }
+            return memberList;
+        }
+    }
 
     /**
      * Create a NewChatRoomHub, which will listen for connections on
@@ -30,6 +218,66 @@ public class NewChatRoomHub extends Hub {
         super(port);
     }
 
+    /**
+     * Create a NewChatRoomHub that uses two threads for each client,
+     * which are virtual threads if virtualThreads is true and virtual
+     * threads are supported.
+     * @param port the port on which to listen for connections
+     * @param virtualThreads tells whether to use virtual threads
+     * @throws IOException if it is not possible to create a listening socket
+     */
+    public NewChatRoomHub(int port, boolean virtualThreads) throws IOException {
+        super(port, virtualThreads);
+    }
+
+    /**
+     * Create a NewChatRoomHub that uses non-blocking I/O, with a given
+     * number of selector threads.  See the Hub(port,selectorThreadCount)
+     * constructor.
+     * @param port the port on which to listen for connections
+     * @param selectorThreadCount the number of threads that handle communication
+     *    with clients, or zero to use two threads for each client.
+     * @throws IOException if it is not possible to create a listening socket
+     */
+    public NewChatRoomHub(int port, int selectorThreadCount) throws IOException {
+        super(port, selectorThreadCount);
+    }
+    
+    /**
+     * Sets the log in which messages are saved for clients who leave and come
+     * back.  Messages are only saved after the log has been set.
+     * @param log the log, or null to stop saving messages.  The log is not
+     *    closed by this hub.
+     * @param maxReplayedMessages the maximum number of messages that are sent to a
+     *    client who comes back.  If more messages were saved while it was away, the
+     *    newest ones are sent.
+     */
+    synchronized public void setMessageLog(MessageLog log, int maxReplayedMessages) {
+        if (log != null && historyExecutor == null) {
+            historyExecutor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "Message history");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.maxReplayedMessages = maxReplayedMessages;
+        messageLog = log;
+    }
+    
+    /**
+     * Returns the log in which messages are saved, or null if there is none.
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+    
+    /**
+     * Returns the maximum number of saved messages that are sent to a client who comes back.
+     */
+    public int getMaxReplayedMessages() {
+        return maxReplayedMessages;
+    }
+
     /**
      * This method is called as part of the connection setup between this hub
      * and a client that has requested a connection.  It is overridden in this
@@ -37,18 +285,25 @@ public class NewChatRoomHub extends Hub {
      * process.  This method works in cooperation with the extraHandshake()
      * method in the client class (which is defined as a nested class inside
      * NewChatRoomWindow).  In this method, the Hub reads a string from the
-     * user that contains the name that the client wants to use.  The name
+     * user that contains the name that the client wants to use, followed by
+     * the client's reconnect token, or null if it does not have one.  The name
      * can be modified to make sure that it is non-null, 15 characters or less.
      * The resulting name is further modified by adding a suffix such as
-     * "#2" or "#3" if the name is already in use by another client.  Finally,
+     * "#2" or "#3" if the name is already in use by another client.  (The
+     * hub keeps an index of the names that are in use and remembers the next
+     * suffix to use for each name, so this takes the same time no matter how
+     * many clients ask for the same name.)  Finally,
      * the possibly modified name is sent back to the client, which will use
      * the returned value as the name that identifies the client in the chat
-     * room.
+     * room.  The name is followed by the client's reconnect token:  the one
+     * that the client sent, if it belongs to a client that has left and
+     * that can still be given the messages that it missed, or a new one.
      */
     protected void extraHandshake(int playerID, 
                       ObjectInputStream in, ObjectOutputStream out) throws IOException {
         try {
             String name = (String)in.readObject();
+            String token = (String)in.readObject();
             if (name == null)
                 name = "noname";
             if (name.length() > 15)
@@ -56,67 +311,368 @@ public class NewChatRoomHub extends Hub {
             if (name.equals(""))
                 name = "noname";
             synchronized(nameMap) {
-                if (nameMap.containsValue(name)) {
-                    String approvedName = name;
-                    int num = 2;
-                    while (nameMap.containsValue(approvedName)) {
-                        approvedName = name + "#" + num;
-                        num++;
-                    }
-                    name = approvedName;
+                BaseName base = baseNames.get(name);
+                if (base == null) {
+                    base = new BaseName(name);
+                    baseNames.put(name, base);
+                }
+                String approvedName = name;
+                while (idOfName.containsKey(approvedName)) {
+                    // (This only repeats if a client has asked for a name such as "fred#2".)
+                    approvedName = name + "#" + base.nextSuffix;
+                    base.nextSuffix++;
                 }
+                base.users++;
+                baseNameOfPlayer.put(playerID, base);
+                idOfName.put(approvedName, playerID);
+                nameMap.put(playerID,approvedName);  // Reserve the name before another client can take it.
+                name = approvedName;
             }
             out.writeObject(name);
-            nameMap.put(playerID,name);
+            out.writeObject(assignIdentity(playerID, token).token);
         }
         catch (Exception e) {
+            releaseName(playerID);  // The client will never be connected.
+            releaseIdentity(playerID);
             throw new IOException("Error while setting up connection: " + e);
         }
     }
+    
+    /**
+     * Gives a client that is connecting the identity of the client that left with
+     * the given token, if there is one, and otherwise a new identity.
+     */
+    private Identity assignIdentity(int playerID, String token) {
+        synchronized(departures) {
+            Departure departure = (token == null) ? null : departures.remove(token);
+            Identity identity;
+            if (departure != null) {
+                departuresByID.remove(departure.playerID);
+                returning.put(playerID, departure);
+                identity = departure.identity;
+            }
+            else
+                identity = new Identity(randomString(16), randomString(8));
+            identityOfPlayer.put(playerID, identity);
+            return identity;
+        }
+    }
+    
+    /**
+     * Forgets the identity of a client whose handshake has failed.  If it was a
+     * client that came back, its departure is recorded again, so it can try again.
+     */
+    private void releaseIdentity(int playerID) {
+        synchronized(departures) {
+            Identity identity = identityOfPlayer.remove(playerID);
+            Departure departure = returning.remove(playerID);
+            if (identity != null && departure != null) {
+                departures.put(identity.token, departure);
+                departuresByID.put(departure.playerID, departure);
+            }
+        }
+    }
+    
+    /**
+     * Returns a random string of hexadecimal digits, made from the given number of bytes.
+     */
+    private String randomString(int bytes) {
+        byte[] data = new byte[bytes];
+        random.nextBytes(data);
+        StringBuilder str = new StringBuilder();
+        for (byte b : data)
+            str.append(String.format("%02x", b));
+        return str.toString();
+    }
 
     /**
      * This method is overridden to provide support for PrivateMessages.
      * If a PrivateMessage is received from some client, this method
      * will set the senderID field in the message to be the ID number
      * of the client who sent the message.  It will then send the
-     * message on to the specified recipient.  If some other type
+     * message on to the specified recipient.  If the recipient has left, the
+     * message is saved in the message log for it, and if that can't be done
+     * either, the message is sent back to the sender in an UndeliveredMessage.
+     * If some other type
      * of message is received, it is handled by the messageReceived()
      * method in the superclass (which will wrap it in a ForwardedMessage
-     * and send it to all connected clients).
+     * and send it to all connected clients).  A String that is sent
+     * to everyone is also saved in the message log.
      */
     protected void messageReceived(int playerID, Object message) {
         if (message instanceof PrivateMessage) {
             PrivateMessage pm = (PrivateMessage)message;
             pm.senderID = playerID;
-            sendToOne(pm.recipientID, pm);
+            if (sendToOne(pm.recipientID, pm))
+                return;
+            Departure recipient = null;
+            if (messageLog != null) {
+                synchronized(departures) {
+                    recipient = departuresByID.get(pm.recipientID);
+                }
+            }
+            if (recipient == null || ! saveMessage(playerID, recipient.identity.key, pm.message))
+                sendToOne(playerID, new UndeliveredMessage(pm.recipientID, pm.message));
+        }
+        else if (message instanceof RoomMessage) {
+            RoomMessage rm = (RoomMessage)message;
+            Room room = (rm.room == null) ? null : rooms.get(rm.room);
+            if (room == null)
+                return;
+            synchronized(room) {
+                if (room.members.contains(playerID)) {  // Only members can send to a room.
+                    rm.senderID = playerID;
+                    sendToGroup(room.getMembers(), rm);
+                }
+            }
+        }
+        else if (message instanceof JoinRoomMessage) {
+            String name = ((JoinRoomMessage)message).room;
+            if (name != null)
+                joinRoom(playerID, name);
         }
-        else
+        else if (message instanceof LeaveRoomMessage) {
+            String name = ((LeaveRoomMessage)message).room;
+            HashSet<String> myRooms = roomsOfPlayer.get(playerID);
+            if (myRooms != null && myRooms.remove(name))
+                leaveRoom(playerID, name, true);
+        }
+        else {
+            if (message instanceof String && messageLog != null)
+                saveMessage(playerID, null, (String)message);
             super.messageReceived(playerID, message);
+        }
     }
-
+    
+    /**
+     * Adds a message to the message log.  The recipient is the key of the
+     * identity of the client that a private message is for, or null for a
+     * message that was sent to everyone.  Returns false if the message
+     * could not be saved.
+     */
+    private boolean saveMessage(int senderID, String recipient, String text) {
+        MessageLog log = messageLog;
+        if (log == null)
+            return false;
+        try {
+            log.append(new LoggedMessage(System.currentTimeMillis(), nameMap.get(senderID), recipient, text));
+            return true;
+        }
+        catch (IOException e) {
+            System.out.println("Error while saving message in log: " + e);
+            return false;
+        }
+    }
+    
     /**
-     *  This method is called when a new client connects.  It is called
-     *  after the extraHandshake() method has been called, so that the
-     *  client's name has already been added to nameMap.  This method
-     *  creates a ClientConnectedMessage and sends it to all connected
-     *  clients to announce the new participant in the chat room.
+     * This method is called when a client has connected.  If the client presented
+     * the token of a client that left within the retention period of the message
+     * log, the messages that it missed are read from the log and sent to it, by
+     * the thread that handles the message history.
      */
     protected void playerConnected(int playerID) {
-        resetOutput(); // Reset the output stream before resending nameMap.
-        sendToAll(new ClientConnectedMessage(playerID,nameMap));
+        Departure departure;
+        synchronized(departures) {
+            departure = returning.remove(playerID);
+        }
+        MessageLog log = messageLog;
+        if (log == null || departure == null)
+            return;
+        long connectTime = System.currentTimeMillis();
+        historyExecutor.execute( () -> sendHistory(log, playerID, departure.identity.key,
+                                                          departure.time, connectTime) );
+    }
+    
+    /**
+     * Reads the messages for a client that were saved in the log between two times,
+     * and starts sending them to the client, in batches.  This is called by the
+     * thread that handles the message history.
+     */
+    private void sendHistory(MessageLog log, int playerID, String key, long leftTime, long returnTime) {
+        List<LoggedMessage> missed;
+        try {
+            missed = log.read(leftTime, returnTime, key, maxReplayedMessages);
+        }
+        catch (IOException e) {
+            System.out.println("Error while reading message log: " + e);
+            return;
+        }
+        if ( ! missed.isEmpty() )
+            scheduleHistoryBatch(playerID, missed, 0);
+    }
+    
+    /**
+     * Arranges for the batch of missed messages that begins at a given position in
+     * the list to be sent to a client by the history thread.  To avoid filling up
+     * the client's queue of outgoing messages, this is done only when the queue is
+     * nearly empty; the hub performs the action when the queue drains, so no thread
+     * has to wait for a slow client.  Nothing more is sent if the client has left.
+     */
+    private void scheduleHistoryBatch(int playerID, List<LoggedMessage> missed, int start) {
+        whenQueueDrained(playerID, HISTORY_BATCH_SIZE,
+                  () -> historyExecutor.execute( () -> sendHistoryBatch(playerID, missed, start) ));
+    }
+    
+    /**
+     * Sends one batch of missed messages to a client, and schedules the next
+     * batch, if there is one.  This is called by the thread that handles the
+     * message history.
+     */
+    private void sendHistoryBatch(int playerID, List<LoggedMessage> missed, int start) {
+        int end = Math.min(start + HISTORY_BATCH_SIZE, missed.size());
+        LoggedMessage[] batch = missed.subList(start, end).toArray(new LoggedMessage[0]);
+        if ( ! sendToOne(playerID, new HistoryMessage(batch, end == missed.size())) )
+            return;  // The client has left again.
+        if (end < missed.size())
+            scheduleHistoryBatch(playerID, missed, end);
+    }
+    
+    /**
+     * Records that a client has left, so that it can be sent the messages that it
+     * missed if it comes back with its token.  Departures that are older than the
+     * retention period of the message log are discarded.
+     */
+    private void recordDeparture(int playerID) {
+        MessageLog log = messageLog;
+        long now = System.currentTimeMillis();
+        synchronized(departures) {
+            Identity identity = identityOfPlayer.remove(playerID);
+            returning.remove(playerID);  // (In case it left before playerConnected() was called.)
+            if (log == null || identity == null)
+                return;
+            Departure departure = new Departure(identity, playerID, now);
+            departures.put(identity.token, departure);
+            departuresByID.put(playerID, departure);
+            Iterator<Departure> oldest = departures.values().iterator();
+            while (oldest.hasNext()) {
+                Departure d = oldest.next();
+                if (d.time >= now - log.getRetention())
+                    break;
+                oldest.remove();
+                departuresByID.remove(d.playerID);
+            }
+        }
+    }
+    
+    /**
+     * Returns the names of the rooms that currently have members, in alphabetical order.
+     */
+    public String[] getRoomNames() {
+        String[] names = rooms.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+    
+    /**
+     * Returns the ID numbers of the members of a room, in increasing order,
+     * or an empty array if there is no such room.
+     */
+    public int[] getRoomMembers(String name) {
+        Room room = rooms.get(name);
+        if (room == null)
+            return new int[0];
+        int[] members;
+        synchronized(room) {
+            members = room.getMembers().clone();
+        }
+        Arrays.sort(members);
+        return members;
+    }
+    
+    /**
+     * Adds a client to a room, creating the room if necessary.  The new member
+     * is sent a JoinRoomMessage that lists all the members, and the other members
+     * are sent a JoinRoomMessage that just announces the new member.
+     */
+    private void joinRoom(int playerID, String name) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, k -> new Room());
+            synchronized(room) {
+                if (room.removed)
+                    continue;  // The last member left just now; make a new room.
+                if ( ! room.members.add(playerID) )
+                    return;  // Already a member.
+                room.memberList = null;
+                roomsOfPlayer.computeIfAbsent(playerID, k -> new HashSet<String>()).add(name);
+                JoinRoomMessage toMember = new JoinRoomMessage(name);
+                toMember.senderID = playerID;
+                toMember.members = room.getMembers();
+                sendToOne(playerID, toMember);
+                if (room.members.size() > 1) {
+                    JoinRoomMessage toOthers = new JoinRoomMessage(name);
+                    toOthers.senderID = playerID;
+                    int[] others = new int[room.members.size() - 1];
+                    int i = 0;
+                    for (int id : room.getMembers()) {
+                        if (id != playerID)
+                            others[i++] = id;
+                    }
+                    sendToGroup(others, toOthers);
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Removes a client from a room, and tells the remaining members.  The client
+     * is also told, if tellPlayer is true.  The room is removed when it is empty.
+     * The caller has already removed the room from the client's set of rooms.
+     */
+    private void leaveRoom(int playerID, String name, boolean tellPlayer) {
+        Room room = rooms.get(name);
+        if (room == null)
+            return;
+        synchronized(room) {
+            if ( ! room.members.remove(playerID) )
+                return;
+            room.memberList = null;
+            LeaveRoomMessage lm = new LeaveRoomMessage(name);
+            lm.senderID = playerID;
+            if (tellPlayer)
+                sendToOne(playerID, lm);
+            if (room.members.isEmpty()) {
+                room.removed = true;
+                rooms.remove(name, room);
+            }
+            else
+                sendToGroup(room.getMembers(), lm);
+        }
+    }
+
+    /**
+     * Removes a client's name from nameMap and from the index of names.
+     */
+    private void releaseName(int playerID) {
+        synchronized(nameMap) {
+            String name = nameMap.remove(playerID);
+            if (name != null)
+                idOfName.remove(name);
+            BaseName base = baseNameOfPlayer.remove(playerID);
+            if (base != null) {
+                base.users--;
+                if (base.users == 0)
+                    baseNames.remove(base.name);
+            }
+        }
     }
 
     /**
      * This method is called when a client has been disconnected from
-     * this hub.  It removes the client from the nameMap and sends
-     * a ClientDisconnectedMessage to all connected players to
+     * this hub.  It removes the client from the nameMap.  The SharedMap
+     * sends the change to all connected clients, which lets them
      * announce the fact that the client has left the chat room. 
+     * The client is also removed from any rooms that it was in, and its
+     * departure is recorded for the message log.
      */
     protected void playerDisconnected(int playerID) {
-        String name = nameMap.get(playerID); // Get the departing player's name.
-        nameMap.remove(playerID);  // Remove the player from nameMap.
-        resetOutput(); // Reset the output stream before resending nameMap.
-        sendToAll(new ClientDisconnectedMessage(playerID, name, nameMap));
+        recordDeparture(playerID);
+        releaseName(playerID);
+        HashSet<String> myRooms = roomsOfPlayer.remove(playerID);
+        if (myRooms != null) {
+            for (String name : myRooms)
+                leaveRoom(playerID, name, false);
+        }
     }
     
 }
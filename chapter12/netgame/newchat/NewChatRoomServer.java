@@ -1,6 +1,9 @@
 package netgame.newchat;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 
 /**
  * This class contains just a small main class that creates a NewChatRoomHub
@@ -11,17 +14,63 @@ import java.io.IOException;
  * will listens for connection requests from clients until the
  * NewChatRoomServer program is terminated (for example by a 
  * Control-C).
+ * <p>If a command-line argument is given, it must be an integer.  The
+ * hub will then use non-blocking I/O, with the specified number of
+ * selector threads.  This allows many more clients to connect.
+ * A second integer can be given to set the number of threads that
+ * process incoming messages (one by default).  A third integer can be
+ * given to make the hub save messages for users who leave and come back;
+ * it is the number of hours for which messages are kept.  The messages are
+ * saved in a directory named "chatlog", in the current directory.
+ * <p>While the server is running, pressing return prints the hub's
+ * metrics (see netgame.common.HubMetrics).
  */
 public class NewChatRoomServer {
 
     private final static int PORT = 37830;
+    private final static int MAX_REPLAYED_MESSAGES = 1000;
     
     public static void main(String[] args) {
+        int selectorThreads = 0;
+        int dispatchThreads = 1;
+        int historyHours = 0;
         try {
-            new NewChatRoomHub(PORT);
+            if (args.length > 0)
+                selectorThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                dispatchThreads = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                historyHours = Integer.parseInt(args[2]);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Usage:  java netgame.newchat.NewChatRoomServer "
+                                  + "[<selector-threads> [<dispatch-threads> [<history-hours>]]]");
+            return;
+        }
+        NewChatRoomHub hub;
+        try {
+            hub = new NewChatRoomHub(PORT, selectorThreads);
+            hub.setDispatchThreadCount(dispatchThreads);
         }
         catch (IOException e) {
             System.out.println("Can't create listening socket.  Shutting down.");
+            return;
+        }
+        if (historyHours > 0) {
+            try {
+                hub.setMessageLog(new MessageLog(new File("chatlog"), historyHours*3600000L), MAX_REPLAYED_MESSAGES);
+            }
+            catch (IOException e) {
+                System.out.println("Can't open the message log; messages will not be saved.");
+                System.out.println("Error: " + e);
+            }
+        }
+        try {
+            BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+            while (console.readLine() != null)  // (Ends if there is no console input.)
+                hub.getMetrics().dump(System.out);
+        }
+        catch (IOException e) {
         }
     }
     
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.TreeMap;
+import java.util.prefs.Preferences;
 
 import netgame.common.*;
 
@@ -44,12 +45,20 @@ import netgame.common.*;
  * <p>Participants in the chat room are represented by ID numbers
  * that are assigned to them by the server when they connect. They
  * also have names which they select.
+ * <p>The server also gives the program a "reconnect token", which is saved
+ * in the user's preferences.  The next time the program connects to the same
+ * server, it sends the token, and the server sends it the messages that the
+ * user missed, including private messages that were sent to the user.
  */
 public class NewChatRoomWindow extends Application {
     
     public static void main(String[] args) {
         launch(args);
     }
+    
+    static {
+        ChatMessageTypes.register();  // Use the compact encoding for chat messages.
+    }
     //---------------------------------------------------------------------------------
     
     private final static int PORT = 37830; // The ChatRoom port number; can't be 
@@ -74,12 +83,20 @@ public class NewChatRoomWindow extends Application {
                                     // if there is already a client of the same name connected
                                     // to the Hub.
 
+    private static final Preferences PREFERENCES = Preferences.userNodeForPackage(NewChatRoomWindow.class);
+    
+    private volatile String reconnectToken; // The token that the hub gave this user the last time
+                                            //   the program connected to it, or null.
+    private String tokenPreference;         // The key under which the token for the hub is saved
+                                            //   in the PREFERENCES.
+
     private volatile TreeMap<Integer,String> clientNameMap = new TreeMap<Integer, String>();
                                     // The clientNameMap maps client ID numbers to the names that they are
-                                    // using in the chat room.  Every time a client connects or disconnects,
-                                    // the Hub sends a new, modified name map to each connected client.  When
-                                    // that message is received, the clientNameMap is replaced with the new value,
-                                    // and the content of the clientList is replaced with info from the nameMap.
+                                    // using in the chat room.  The Hub keeps the names in a SharedMap, and
+                                    // sends a change to each connected client every time a client connects or
+                                    // disconnects.  When a change is received, the clientNameMap is replaced with
+                                    // a copy of the shared map, and the content of the clientList is replaced
+                                    // with info from the nameMap.
 
     private ComboBox<String> clientList;    // List of connected client names, where the user can select
                                             //   the client who is to receive the private message.
@@ -104,6 +121,10 @@ public class NewChatRoomWindow extends Application {
         String host = response.get().trim();
         if (host == null || host.trim().length() == 0)
             System.exit(0);
+        tokenPreference = "token:" + host;
+        if (tokenPreference.length() > Preferences.MAX_KEY_LENGTH)
+            tokenPreference = tokenPreference.substring(0, Preferences.MAX_KEY_LENGTH);
+        reconnectToken = PREFERENCES.get(tokenPreference, null);
         
         question = new TextInputDialog();
         question.setHeaderText("Enter the name that you want\nto use in the chat room.");
@@ -203,16 +224,22 @@ public class NewChatRoomWindow extends Application {
 
     /**
      * A ChatClient connects to the Hub and is used to send messages to
-     * and receive messages from a Hub.  Four types of message are
+     * and receive messages from a Hub.  Two types of message are
      * received from the Hub.  A ForwardedMessage represents a message
      * that was entered by some user and sent to all users of the
      * chat room.  A PrivateMessage represents a message that was
-     * sent by another user only to this user.  A ClientConnectedMessage
-     * is sent when a new user enters the room.  A ClientDisconnectedMessage
-     * is sent when a user leaves the room.
+     * sent by another user only to this user.  A HistoryMessage holds
+     * some of the messages that were sent while this user was away, if
+     * the user has been in the chat room before.  An UndeliveredMessage
+     * returns a private message that the hub could not deliver.  The names
+     * of the users are in the Hub's SharedMap named NewChatRoomHub.NAME_MAP; a name
+     * is added to the map when a user enters the room, and is removed
+     * when the user leaves.
      */
     private class ChatClient extends Client {
         
+        private boolean receivingHistory;  // True while HistoryMessages are arriving.
+        
         /**
          * Opens a connection the chat room server on a specified computer.
          */
@@ -234,28 +261,67 @@ public class NewChatRoomWindow extends Application {
                 String senderName = clientNameMap.get(pm.senderID);
                 addToTranscript("PRIVATE MESSAGE FROM " + senderName + ":  " + pm.message);
             }
-            else if (message instanceof ClientConnectedMessage) {
-                ClientConnectedMessage cm = (ClientConnectedMessage)message;
-                addToTranscript('"' + cm.nameMap.get(cm.newClientID) + "\" HAS JOINED THE CHAT ROOM.");
-                newNameMap(cm.nameMap);
+            else if (message instanceof UndeliveredMessage) {
+                UndeliveredMessage um = (UndeliveredMessage)message;
+                addToTranscript("COULD NOT DELIVER PRIVATE MESSAGE:  " + um.message);
             }
-            else if (message instanceof ClientDisconnectedMessage) {
-                ClientDisconnectedMessage dm = (ClientDisconnectedMessage)message;
-                addToTranscript('"' + clientNameMap.get(dm.departingClientID) + "\" HAS LEFT THE CHAT ROOM.");
-                newNameMap(dm.nameMap);
+            else if (message instanceof HistoryMessage) {
+                HistoryMessage hm = (HistoryMessage)message;
+                if ( ! receivingHistory ) {
+                    addToTranscript("MESSAGES SENT WHILE YOU WERE AWAY:");
+                    receivingHistory = true;
+                }
+                for (LoggedMessage lm : hm.messages) {
+                    if (lm.recipient == null)
+                        addToTranscript(String.format("[%tR] %s SAYS:  %s", lm.time, lm.senderName, lm.message));
+                    else
+                        addToTranscript(String.format("[%tR] PRIVATE MESSAGE FROM %s:  %s", lm.time, lm.senderName, lm.message));
+                }
+                if (hm.complete) {
+                    addToTranscript("END OF MESSAGES SENT WHILE YOU WERE AWAY.");
+                    receivingHistory = false;
+                }
             }
         }
         
+        /**
+         * Called when the map of names is received from the hub, just after
+         * this client connects.
+         */
+        protected void sharedMapReceived(String mapName) {
+            if (mapName.equals(NewChatRoomHub.NAME_MAP))
+                newNameMap(new TreeMap<Integer,String>(getSharedMap(mapName)));
+        }
+        
+        /**
+         * Called when a name is added to or removed from the map of names,
+         * which happens when a user enters or leaves the chat room.
+         */
+        protected void sharedMapChanged(String mapName, Object key, Object oldValue, Object newValue) {
+            if ( ! mapName.equals(NewChatRoomHub.NAME_MAP) )
+                return;
+            if (newValue != null)
+                addToTranscript('"' + newValue + "\" HAS JOINED THE CHAT ROOM.");
+            else
+                addToTranscript('"' + oldValue + "\" HAS LEFT THE CHAT ROOM.");
+            newNameMap(new TreeMap<Integer,String>(getSharedMap(mapName)));
+        }
+        
         /**
          * This method is part of the connection set up.  It sends the user's selected
-         * name to the hub by writing that name to the output stream.  The hub will
-         * respond by sending the name back to this client, possibly modified if someone
-         * is the chat room is already using the selected name.
+         * name to the hub by writing that name to the output stream, followed by the
+         * reconnect token, if this user has one.  The hub will respond by sending the
+         * name back to this client, possibly modified if someone is the chat room is
+         * already using the selected name, followed by the token to use next time,
+         * which is saved in the user's preferences.
          */
         protected void extraHandshake(ObjectInputStream in, ObjectOutputStream out) throws IOException {
             try {
                 out.writeObject(myName);  // Send user's name request to the server. 
+                out.writeObject(reconnectToken);
                 myName = (String)in.readObject();  // Get the actual name from the server.
+                reconnectToken = (String)in.readObject();
+                PREFERENCES.put(tokenPreference, reconnectToken);
             }
             catch (Exception e) {
                 throw new IOException("Error while setting up connection: " + e);
@@ -283,7 +349,7 @@ public class NewChatRoomWindow extends Application {
         
         // Note:  the methods playerConnected() and playerDisconnected(), which where present here
         // in ChatRoomWindow, were removed, since their functionality (to announce arrivals
-        // and departures) has been taken over by ClientConnectedMessage and ClientDisconnectedMessage.
+        // and departures) has been taken over by sharedMapChanged().
 
     } // end nested class ChatClient
     
@@ -313,9 +379,9 @@ public class NewChatRoomWindow extends Application {
     }
 
     /**
-     * This method is called when a ClientConnectedMessage or ClientDisconnectedMessage
-     * is received from the hub.  Its job is to save the nameMap that is part of the
-     * message and use it to rebuild the contents of the ComboBox, clientList, where
+     * This method is called when the map of names is received from the hub or
+     * changes.  Its job is to save a copy of the map and use it to rebuild
+     * the contents of the ComboBox, clientList, where
      * the user selects the recipient of a private message.  It also enables or
      * disables the private message input box and send button, depending on whether
      * there are any possible message recipients.
@@ -0,0 +1,27 @@
+package netgame.newchat;
+
+import java.io.Serializable;
+
+/**
+ * Represents a string sent as a message to all the clients who are
+ * in a chat room.  A client can only send a message to a room that
+ * it has joined (see JoinRoomMessage).  As for a PrivateMessage, the
+ * hub sets the senderID to the ID number of the client who actually
+ * sent the message.
+ */
+public class RoomMessage implements Serializable {
+    
+    public int senderID;    // The ID number of the sender.
+    public String room;     // The name of the room.
+    public String message;  // The message.
+
+    /**
+     *  Create a message for the members of a room.
+     *  The senderID of the message will be set by the hub.
+     */
+    public RoomMessage(String room, String message) {
+        this.room = room;
+        this.message = message;
+    }
+
+}
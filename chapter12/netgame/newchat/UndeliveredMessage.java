@@ -0,0 +1,21 @@
+package netgame.newchat;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the hub back to the sender of a PrivateMessage that could not be
+ * delivered, because its recipient is not connected and the message could not
+ * be saved for the recipient in the hub's message log.  (This happens, for
+ * example, when the hub does not have a message log.)
+ */
+public class UndeliveredMessage implements Serializable {
+    
+    public int recipientID; // The ID number of the recipient of the private message.
+    public String message;  // The message that was not delivered.
+
+    public UndeliveredMessage(int recipientID, String message) {
+        this.recipientID = recipientID;
+        this.message = message;
+    }
+
+}